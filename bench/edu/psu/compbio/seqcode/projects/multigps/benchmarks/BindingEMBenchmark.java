@@ -0,0 +1,68 @@
+package edu.psu.compbio.seqcode.projects.multigps.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.psu.compbio.seqcode.projects.multigps.framework.PotentialRegionFilter;
+import edu.psu.compbio.seqcode.projects.multigps.mixturemodel.BindingMixture;
+
+/**
+ * BindingEMBenchmark: one round of EM training (BindingEM.train on every potential region), 
+ * driven through BindingMixture so that data loading and component initialization are included as in a real run.
+ * Potential regions are found once per trial.
+ *
+ * @author mahony
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MINUTES)
+@Warmup(iterations=2, time=10)
+@Measurement(iterations=5, time=10)
+@Fork(1)
+public class BindingEMBenchmark {
+
+	@Param({"100000", "1000000"})
+	public int readDepth;
+
+	@Param({"1", "2", "4"})
+	public int numConditions;
+
+	@Param({"1"})
+	public int threads;
+
+	private SyntheticData data;
+	private PotentialRegionFilter filter;
+
+	@Setup(Level.Trial)
+	public void setup(){
+		data = new SyntheticData(numConditions, 2, readDepth, 200, threads);
+		filter = new PotentialRegionFilter(data.getConfig(), data.getManager());
+		filter.execute();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown(){
+		data.close();
+	}
+
+	@Benchmark
+	public int trainEM(){
+		BindingMixture mixture = new BindingMixture(data.getConfig(), data.getManager(), filter);
+		mixture.execute(true, true);
+		return mixture.getBindingComponents().get(0).size();
+	}
+}
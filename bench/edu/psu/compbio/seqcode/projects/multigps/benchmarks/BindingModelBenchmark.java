@@ -0,0 +1,51 @@
+package edu.psu.compbio.seqcode.projects.multigps.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.psu.compbio.seqcode.projects.multigps.framework.BindingModel;
+
+/**
+ * BindingModelBenchmark: BindingModel.probability over the model's full support, 
+ * including distances outside the support as EM does for distant reads.
+ *
+ * @author mahony
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations=5, time=1)
+@Measurement(iterations=10, time=1)
+@Fork(1)
+public class BindingModelBenchmark {
+
+	private BindingModel model;
+	private int min, max;
+
+	@Setup(Level.Trial)
+	public void setup(){
+		model = new BindingModel(BindingModel.defaultEmpiricalDistribution);
+		min = model.getMin()-100;
+		max = model.getMax()+100;
+	}
+
+	@Benchmark
+	public double probabilitySweep(){
+		double sum=0;
+		for(int d=min; d<=max; d++)
+			sum+=model.probability(d);
+		return sum;
+	}
+}
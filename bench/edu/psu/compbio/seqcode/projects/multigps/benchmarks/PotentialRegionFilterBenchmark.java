@@ -0,0 +1,61 @@
+package edu.psu.compbio.seqcode.projects.multigps.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.psu.compbio.seqcode.projects.multigps.framework.PotentialRegionFilter;
+
+/**
+ * PotentialRegionFilterBenchmark: a full genome scan for potential regions (hit landscapes, thresholds, merging).
+ *
+ * @author mahony
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MINUTES)
+@Warmup(iterations=3, time=5)
+@Measurement(iterations=5, time=5)
+@Fork(1)
+public class PotentialRegionFilterBenchmark {
+
+	@Param({"100000", "1000000"})
+	public int readDepth;
+
+	@Param({"1", "2", "4"})
+	public int numConditions;
+
+	@Param({"1"})
+	public int threads;
+
+	private SyntheticData data;
+
+	@Setup(Level.Trial)
+	public void setup(){
+		data = new SyntheticData(numConditions, 2, readDepth, 200, threads);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown(){
+		data.close();
+	}
+
+	@Benchmark
+	public int execute(){
+		PotentialRegionFilter filter = new PotentialRegionFilter(data.getConfig(), data.getManager());
+		return filter.execute().size();
+	}
+}
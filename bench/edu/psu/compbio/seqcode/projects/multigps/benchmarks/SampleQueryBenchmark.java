@@ -0,0 +1,89 @@
+package edu.psu.compbio.seqcode.projects.multigps.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.psu.compbio.seqcode.gse.datasets.general.Region;
+import edu.psu.compbio.seqcode.projects.multigps.experiments.Sample;
+import edu.psu.compbio.seqcode.projects.multigps.framework.StrandedBaseBuffer;
+import edu.psu.compbio.seqcode.projects.multigps.framework.StrandedBaseCount;
+
+/**
+ * SampleQueryBenchmark: region queries on a loaded Sample.
+ * Compares the buffer-filling query with the list-building query over random regions of a fixed width.
+ *
+ * @author mahony
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations=5, time=1)
+@Measurement(iterations=10, time=1)
+@Fork(1)
+public class SampleQueryBenchmark {
+
+	private static final int NUM_REGIONS = 1024;
+
+	@Param({"200", "1000", "10000"})
+	public int regionWidth;
+
+	@Param({"100000", "1000000"})
+	public int readDepth;
+
+	private SyntheticData data;
+	private Sample sample;
+	private List<Region> regions;
+	private StrandedBaseBuffer buf = new StrandedBaseBuffer();
+	private List<StrandedBaseCount> list = new ArrayList<StrandedBaseCount>();
+	private int next=0;
+
+	@Setup(Level.Trial)
+	public void setup(){
+		data = new SyntheticData(1, 1, readDepth, 200, 1);
+		sample = data.getManager().getExperimentSet().getSamples().get(0);
+		regions = data.randomRegions(NUM_REGIONS, regionWidth, 42);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown(){
+		data.close();
+	}
+
+	@Benchmark
+	public double getStrandedBasesBuffer(){
+		Region r = regions.get(next++ & (NUM_REGIONS-1));
+		sample.getStrandedBases(r, '+', buf);
+		return buf.getTotalCount();
+	}
+
+	@Benchmark
+	public int getStrandedBasesList(){
+		Region r = regions.get(next++ & (NUM_REGIONS-1));
+		list.clear();
+		sample.getStrandedBases(r, '+', list);
+		return list.size();
+	}
+
+	@Benchmark
+	public double getUnstrandedBasesBuffer(){
+		Region r = regions.get(next++ & (NUM_REGIONS-1));
+		sample.getUnstrandedBases(r, buf);
+		return buf.getTotalCount();
+	}
+}
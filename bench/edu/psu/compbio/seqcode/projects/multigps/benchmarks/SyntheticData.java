@@ -0,0 +1,149 @@
+package edu.psu.compbio.seqcode.projects.multigps.benchmarks;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import edu.psu.compbio.seqcode.gse.datasets.general.Region;
+import edu.psu.compbio.seqcode.gse.datasets.species.Genome;
+import edu.psu.compbio.seqcode.projects.multigps.experiments.ExperimentManager;
+import edu.psu.compbio.seqcode.projects.multigps.framework.BindingModel;
+import edu.psu.compbio.seqcode.projects.multigps.framework.Config;
+import edu.psu.compbio.seqcode.projects.multigps.utilities.CountDataSimulator;
+import edu.psu.compbio.seqcode.projects.multigps.utilities.CountDataSimulator.SimCounts;
+import edu.psu.compbio.seqcode.projects.multigps.utilities.MultiConditionReadSimulator;
+
+/**
+ * SyntheticData: a throwaway MultiGPS dataset for the benchmarks.
+ *
+ * A fake two-chromosome genome ("1" holds shared events, "X" holds differential events) is written to a temporary
+ * directory, reads are simulated into BED files with MultiConditionReadSimulator, and a Config & ExperimentManager
+ * are built over those files exactly as the command line would.
+ * MultiConditionReadSimulator simulates condition pairs, so odd or larger condition counts are made up from
+ * several independent simulator runs.
+ *
+ * @author mahony
+ *
+ */
+public class SyntheticData {
+
+	public static final int EVENT_SPACING = 10000; //As used by MultiConditionReadSimulator
+	public static final int CHROM_PADDING = 200000;
+	public static final double NOISE_PROB = 0.7;
+
+	private File dir;
+	private Genome gen;
+	private Config config;
+	private ExperimentManager manager;
+	private int chromLength;
+
+	/**
+	 * Simulate and load a dataset
+	 * @param numConditions number of conditions
+	 * @param numReplicates replicates per condition
+	 * @param readsPerReplicate approximate total reads per replicate (signal + noise)
+	 * @param numEvents binding events per condition pair
+	 * @param threads value passed to --threads
+	 */
+	public SyntheticData(int numConditions, int numReplicates, int readsPerReplicate, int numEvents, int threads){
+		try{
+			dir = File.createTempFile("multigps-bench", "");
+			dir.delete();
+			dir.mkdirs();
+
+			//Fake genome
+			chromLength = numEvents*EVENT_SPACING + CHROM_PADDING;
+			File genInfo = new File(dir, "geninfo.txt");
+			FileWriter fout = new FileWriter(genInfo);
+			fout.write("1\t"+chromLength+"\nX\t"+chromLength+"\n");
+			fout.close();
+			gen = new Genome("Genome", genInfo, true);
+
+			//Simulate reads, two conditions at a time
+			BindingModel model = new BindingModel(BindingModel.defaultEmpiricalDistribution);
+			List<String> args = new ArrayList<String>();
+			int cond=0;
+			while(cond<numConditions){
+				int simConds = Math.min(2, numConditions-cond);
+				CountDataSimulator cdsim = new CountDataSimulator();
+				cdsim.setEmpirical(empiricalStrengths(1000, cond));
+				cdsim.setDataPoints(numEvents);
+				cdsim.setReplicates(numReplicates);
+				cdsim.setReadsA(readsPerReplicate*(1-NOISE_PROB));
+				cdsim.setReadsB(readsPerReplicate*(1-NOISE_PROB));
+				List<SimCounts> counts = cdsim.simulate();
+
+				String outPath = new File(dir, "sim"+cond).getAbsolutePath();
+				MultiConditionReadSimulator sim = new MultiConditionReadSimulator(model, gen, counts, simConds, numReplicates, NOISE_PROB, 0.0, 200, outPath);
+				sim.simulate();
+				for(int c=0; c<simConds; c++)
+					for(int r=0; r<numReplicates; r++){
+						args.add("--exptC"+(cond+c)+"-R"+r);
+						args.add(sim.getReadFileName(c, r));
+					}
+				cond+=simConds;
+			}
+
+			args.add("--geninfo"); args.add(genInfo.getAbsolutePath());
+			args.add("--format"); args.add("BED");
+			args.add("--threads"); args.add(Integer.toString(threads));
+			args.add("--out"); args.add(new File(dir, "out").getAbsolutePath());
+			args.add("--nomotifs");
+			config = new Config(args.toArray(new String[args.size()]));
+			manager = new ExperimentManager(config);
+		}catch(IOException e){
+			throw new RuntimeException("SyntheticData: could not write the simulated dataset", e);
+		}
+	}
+
+	//Accessors
+	public Config getConfig(){return config;}
+	public ExperimentManager getManager(){return manager;}
+	public Genome getGenome(){return gen;}
+
+	/**
+	 * Random regions of a fixed width on the shared-event chromosome
+	 */
+	public List<Region> randomRegions(int num, int width, long seed){
+		Random rand = new Random(seed);
+		List<Region> regs = new ArrayList<Region>(num);
+		for(int i=0; i<num; i++){
+			int start = rand.nextInt(Math.max(1, chromLength-width));
+			regs.add(new Region(gen, "1", start, start+width-1));
+		}
+		return regs;
+	}
+
+	/**
+	 * Clean up the loaders and delete the simulated files
+	 */
+	public void close(){
+		if(manager!=null)
+			manager.close();
+		delete(dir);
+	}
+
+	/**
+	 * Log-normal event strengths standing in for an empirical file. Seeded, so repeated setups are comparable.
+	 */
+	private static List<Double> empiricalStrengths(int n, long seed){
+		Random rand = new Random(seed);
+		List<Double> e = new ArrayList<Double>(n);
+		for(int i=0; i<n; i++)
+			e.add(Math.exp(3+rand.nextGaussian()));
+		return e;
+	}
+
+	private static void delete(File f){
+		if(f==null)
+			return;
+		File[] children = f.listFiles();
+		if(children!=null)
+			for(File c : children)
+				delete(c);
+		f.delete();
+	}
+}
@@ -0,0 +1,75 @@
+package edu.psu.compbio.seqcode.projects.multigps.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.psu.compbio.seqcode.gse.datasets.motifs.WeightMatrix;
+import edu.psu.compbio.seqcode.gse.tools.motifs.WeightMatrixScanner;
+
+/**
+ * WeightMatrixScanBenchmark: WeightMatrixScanner.scanSequence (both strands) on random sequence with a random motif.
+ * The score threshold is set at a fraction of the motif's maximum score, so hit density stays comparable across widths.
+ *
+ * @author mahony
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations=5, time=1)
+@Measurement(iterations=10, time=1)
+@Fork(1)
+public class WeightMatrixScanBenchmark {
+
+	@Param({"1000", "100000"})
+	public int sequenceLength;
+
+	@Param({"8", "16"})
+	public int motifWidth;
+
+	private WeightMatrix matrix;
+	private char[] seq;
+	private float threshold;
+
+	@Setup(Level.Trial)
+	public void setup(){
+		Random rand = new Random(42);
+		matrix = new WeightMatrix(motifWidth);
+		float maxScore=0;
+		for(int i=0; i<motifWidth; i++){
+			for(char l : WeightMatrix.letters)
+				matrix.matrix[i][l]=rand.nextFloat()+0.01f;
+		}
+		matrix.normalizeFrequencies();
+		matrix.toLogOdds();
+		for(int i=0; i<motifWidth; i++){
+			float max = Float.NEGATIVE_INFINITY;
+			for(char l : WeightMatrix.letters)
+				max = Math.max(max, matrix.matrix[i][l]);
+			maxScore+=max;
+		}
+		threshold = maxScore*0.6f;
+
+		seq = new char[sequenceLength];
+		for(int i=0; i<sequenceLength; i++)
+			seq[i] = WeightMatrix.letters[rand.nextInt(4)];
+	}
+
+	@Benchmark
+	public int scanSequence(){
+		return WeightMatrixScanner.scanSequence(matrix, threshold, seq).size();
+	}
+}
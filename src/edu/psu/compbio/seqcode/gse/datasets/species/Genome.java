@@ -4,6 +4,7 @@ import edu.psu.compbio.seqcode.gse.utils.*;
 import edu.psu.compbio.seqcode.gse.utils.database.DatabaseException;
 import edu.psu.compbio.seqcode.gse.utils.database.DatabaseFactory;
 import edu.psu.compbio.seqcode.gse.utils.database.UnknownRoleException;
+import edu.psu.compbio.seqcode.gse.utils.io.parsing.TwoBitFile;
 
 import java.util.*;
 import java.io.*;
@@ -55,6 +56,7 @@ public class Genome implements edu.psu.compbio.seqcode.gse.utils.Closeable {
     private String species, version;
     private int speciesid, dbid;
     private java.sql.Connection cxn=null;
+    private TwoBitFile sequenceFile=null;
     
     private Map<String,ChromosomeInfo> chroms;
     private Map<Integer,ChromosomeInfo> revchroms;
@@ -296,6 +298,8 @@ public class Genome implements edu.psu.compbio.seqcode.gse.utils.Closeable {
      * Returns the full sequence for the specified chromosome
      */
     public String getChromosomeSequence(ChromosomeInfo info) throws SQLException { 
+        String packed = getPackedSequence(info, 1, info.getLength());
+        if (packed != null) { return packed; }
         StringBuilder sb = new StringBuilder();
         Statement s = cxn.createStatement();
         ResultSet rs = s.executeQuery("select sequence from chromsequence where id=" + info.getDBID());
@@ -313,6 +317,8 @@ public class Genome implements edu.psu.compbio.seqcode.gse.utils.Closeable {
      * length <code>end-start+1</code>.
      */
     public String getChromosomeSequence(ChromosomeInfo info, int start, int end) throws SQLException {
+        String packed = getPackedSequence(info, start, end);
+        if (packed != null) { return packed; }
         StringBuilder sb = new StringBuilder();
         Statement s = cxn.createStatement();
         
@@ -332,6 +338,26 @@ public class Genome implements edu.psu.compbio.seqcode.gse.utils.Closeable {
         return sb.toString();
     }
 
+    /**
+     * Reads chromosome sequence from a packed (.2bit) genome file rather than the database.
+     * Only the requested bases are decoded from the memory-mapped file, so this also works
+     * for the temporary genomes that have no database connection.
+     */
+    public void setSequenceFile(File f) throws IOException { 
+        sequenceFile = TwoBitFile.get(f);
+    }
+    public TwoBitFile getSequenceFile() { return sequenceFile; }
+    
+    /* null if there's no sequence file or it lacks the chromosome */
+    private String getPackedSequence(ChromosomeInfo info, int start, int end) { 
+        if(sequenceFile == null) { return null; }
+        try { 
+            return sequenceFile.getSequence(info.getName(), start, end);
+        } catch(IOException ie) { 
+            throw new DatabaseException("Couldn't read " + info.getName() + " from " + sequenceFile, ie);
+        }
+    }
+
     /** Maps a chromosome database identifier to a name */        
     public String getChromName(int chromID) { return revchroms.get(chromID).getName(); }
     /** Returns true iff this Genome contains a chromosome with the supplied database identifier */
@@ -0,0 +1,197 @@
+package edu.psu.compbio.seqcode.gse.deepseq.discovery.kmer;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Hyper-geometric p-values (log10) of hit counts in a fixed set of positive and negative sequences,
+ * as computed by KMAC.computeHGP() <br>
+ * The log factorials up to the total number of sequences are computed once, when the scorer is made,
+ * and the CDF is summed down from x by the ratio of successive terms, which is a multiply and a divide
+ * per term instead of an exp(), and stops once the remaining terms can't change the sum.
+ * The results agree with StatUtil.hyperGeometricCDF_cache() to about 1e-12, and stay accurate
+ * for p-values below Double.MIN_NORMAL. <br>
+ * Instances are immutable and can be shared between threads.  Batches of p-values are computed
+ * on a shared pool of daemon threads.  KMAC keeps its own scorer for its sequence counts; get()
+ * keeps the scorers for the few most recently used counts for the other callers.
+ */
+public class HyperGeometricScorer {
+	private static final double LOG10_E = Math.log10(Math.E);
+	/* below this many p-values a batch is computed in the calling thread */
+	private static final int MIN_PARALLEL = 64;
+
+	/* how many scorers get() keeps */
+	private static final int CACHED = 16;
+
+	private static ExecutorService executor;
+	/* keyed by posSeq and negSeq, in access order.  Guarded by itself */
+	private static final Map<Long,HyperGeometricScorer> cache = new LinkedHashMap<Long,HyperGeometricScorer>(CACHED*2, 0.75f, true){
+		protected boolean removeEldestEntry(Map.Entry<Long,HyperGeometricScorer> eldest){
+			return size()>CACHED;
+		}
+	};
+
+	private final int posSeq, negSeq, allSeq;
+	private final double[] logFactorials;
+
+	public HyperGeometricScorer(int posSeq, int negSeq){
+		this.posSeq = posSeq;
+		this.negSeq = negSeq;
+		allSeq = posSeq + negSeq;
+		logFactorials = new double[allSeq+1];
+		for (int i=2;i<=allSeq;i++)
+			logFactorials[i] = logFactorials[i-1]+Math.log(i);
+	}
+
+	/**
+	 * A scorer for posSeq positive and negSeq negative sequences, which is shared with
+	 * the other recent callers that asked for the same counts
+	 */
+	public static HyperGeometricScorer get(int posSeq, int negSeq){
+		Long key = ((long)posSeq<<32) | (negSeq & 0xffffffffL);
+		synchronized(cache){
+			HyperGeometricScorer scorer = cache.get(key);
+			if (scorer!=null)
+				return scorer;
+		}
+		// built outside the lock, since it takes time proportional to the counts
+		HyperGeometricScorer scorer = new HyperGeometricScorer(posSeq, negSeq);
+		synchronized(cache){
+			HyperGeometricScorer other = cache.get(key);
+			if (other!=null)
+				return other;
+			cache.put(key, scorer);
+		}
+		return scorer;
+	}
+	/** true if this scorer is for posSeq positive and negSeq negative sequences */
+	public boolean isFor(int posSeq, int negSeq){
+		return this.posSeq==posSeq && this.negSeq==negSeq;
+	}
+
+	public int getPosSeqCount(){return posSeq;}
+	public int getNegSeqCount(){return negSeq;}
+
+	/**
+	 * Compute hgp (log10) of posHit positive and negHit negative sequences, see KMAC.computeHGP()
+	 */
+	public double hgp(int posHit, int negHit){
+		int allHit = posHit + negHit;
+		if (posHit<negHit){		// depleted, the upper tail of the positive count
+			double hgcdf = Math.min(1, Math.pow(10, log10CDF(posHit, allHit, posSeq)));
+			if (hgcdf<=0.99)
+				return Math.log(1-hgcdf);
+		}
+		// flip the problem, compute cdf of negative count, CDF for negative hit do not include negHit
+		double hgcdf_log10;
+		if (negHit==0)
+			hgcdf_log10 = log10CDF(0, allHit+2+1, negSeq);		// add 1 negHit, 2 posHit as pseudo count
+		else
+			hgcdf_log10 = log10CDF(negHit-1, allHit, negSeq);
+		if (hgcdf_log10==Double.NEGATIVE_INFINITY)	// every positive sequence is hit, which is no enrichment at all
+			return 0;
+		return Math.min(0, hgcdf_log10);
+	}
+
+	/**
+	 * Compute hgps[i] for each i in idxs, using up to numThread threads
+	 */
+	public void hgp(final int[] posHits, final int[] negHits, List<Integer> idxs, final double[] hgps, int numThread){
+		final int[] ids = new int[idxs.size()];
+		for (int i=0;i<ids.length;i++)
+			ids[i] = idxs.get(i);
+		int tasks = Math.min(numThread, ids.length/MIN_PARALLEL);
+		if (tasks<=1){
+			for (int i: ids)
+				hgps[i] = hgp(posHits[i], negHits[i]);
+			return;
+		}
+		ArrayList<Future<?>> futures = new ArrayList<Future<?>>();
+		for (int t=0;t<tasks;t++){
+			final int start = t;
+			final int step = tasks;
+			// interleaved, because the cost of a p-value grows with the hit counts
+			futures.add(getExecutor().submit(new Runnable(){
+				public void run(){
+					for (int j=start;j<ids.length;j+=step){
+						int i = ids[j];
+						hgps[i] = hgp(posHits[i], negHits[i]);
+					}
+				}
+			}));
+		}
+		for (Future<?> f: futures){
+			try {
+				f.get();
+			} catch (InterruptedException e) {
+				for (Future<?> g: futures)
+					g.cancel(true);
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
+			} catch (ExecutionException e) {
+				throw new RuntimeException(e.getCause());
+			}
+		}
+	}
+
+	/**
+	 * Compute the hgps of all the (posHits[i], negHits[i]) pairs
+	 */
+	public double[] hgp(int[] posHits, int[] negHits, int numThread){
+		double[] hgps = new double[posHits.length];
+		ArrayList<Integer> idxs = new ArrayList<Integer>(posHits.length);
+		for (int i=0;i<posHits.length;i++)
+			idxs.add(i);
+		hgp(posHits, negHits, idxs, hgps, numThread);
+		return hgps;
+	}
+
+	private static synchronized ExecutorService getExecutor(){
+		if (executor==null){
+			executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory(){
+				public Thread newThread(Runnable r){
+					Thread t = new Thread(r, "HyperGeometricScorer");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return executor;
+	}
+
+	/* log10 of the probability of at most x successes in a sample of n, when s of the allSeq are successes */
+	private double log10CDF(int x, int s, int n){
+		int N = allSeq;
+		int lo = Math.max(0, n-(N-s));		// the fewest successes possible
+		if (x<lo)
+			return Double.NEGATIVE_INFINITY;
+		if (x>=Math.min(s, n))
+			return 0;
+		double log10_pdf = (logFactorials[s]-logFactorials[x]-logFactorials[s-x]
+				+ logFactorials[N-s]-logFactorials[n-x]-logFactorials[N-s-(n-x)]
+				- logFactorials[N]+logFactorials[n]+logFactorials[N-n]) * LOG10_E;
+		// sum the terms relative to P(x), rescaling if they get too big to hold
+		double sum = 1, term = 1;
+		int scale = 0;
+		for (int k=x;k>lo;k--){
+			double ratio = (double)k*(N-s-n+k) / ((double)(s-k+1)*(n-k+1));		// P(k-1)/P(k)
+			term *= ratio;
+			sum += term;
+			if (sum>1e250){
+				sum *= 1e-250;
+				term *= 1e-250;
+				scale += 250;
+			}
+			if (ratio<0.5 && term<sum*1e-17)	// the ratio only gets smaller, so the rest adds less than term
+				break;
+		}
+		return log10_pdf + Math.log10(sum) + scale;
+	}
+}
@@ -24,6 +24,11 @@ import java.util.Random;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.imageio.ImageIO;
 
@@ -87,6 +92,8 @@ public class KMAC {
 	public int getNegSeqCount(){return negSeqCount;}
     private int posSeqCount;
     private int negSeqCount;
+    /* for posSeqCount and negSeqCount, see getScorer() */
+    private volatile HyperGeometricScorer scorer;
     public void setTotalSeqCount(int pos, int neg){
     	posSeqCount = pos;
     	negSeqCount = neg;
@@ -121,6 +128,8 @@ public class KMAC {
 			return clusters.get(0);
 		return null;
 	}
+	/** motif clusters from the last KmerMotifAlignmentClustering(), primary cluster first */
+	public ArrayList<KmerCluster> getClusters(){return clusters;}
 	
 	public KMAC(){
 	}
@@ -439,10 +448,14 @@ public class KMAC {
 		double bestAllHGP = 0;
 		ArrayList<KmerCluster> kClusters = new ArrayList<KmerCluster>();
 		StringBuilder sb = new StringBuilder("\n------------------- "+ new File(outName).getName() +" ----------------------\n");
+		// count the k-mers for all the values of k at once, before the sequences are masked
+		tic = System.currentTimeMillis();
+		KmerCounter[] counters = countKmers(k_min, k_max);
 		for (int i=0;i<k_max-k_min+1;i++){
 			int k = i+k_min;
 			System.out.println("\n----------------------------------------------\nTrying k="+k+" ...\n");
-			ArrayList<Kmer> kmers = selectEnrichedKmers(k);
+			ArrayList<Kmer> kmers = counters[i]!=null ? selectEnrichedKmers(counters[i]) : selectEnrichedKmers(k);
+			counters[i] = null;
 			KmerMotifAlignmentClustering(kmers, 2, false, null);
 			double bestclusterHGP = 0;
 			KmerCluster bestCluster=null;
@@ -554,10 +567,14 @@ public class KMAC {
 		double bestAllHGP = 0;
 		ArrayList<KmerCluster> kClusters = new ArrayList<KmerCluster>();
 		StringBuilder sb = new StringBuilder("\n------------------- "+ new File(outName).getName() +" ----------------------\n");
+		// count the k-mers for all the values of k at once, before the sequences are masked
+		tic = System.currentTimeMillis();
+		KmerCounter[] counters = countKmers(k_min, k_max);
 		for (int i=0;i<k_max-k_min+1;i++){
 			int k = i+k_min;
 			System.out.println("\n----------------------------------------------\nTrying k="+k+" ...\n");
-			ArrayList<Kmer> kmers = selectEnrichedKmers(k);
+			ArrayList<Kmer> kmers = counters[i]!=null ? selectEnrichedKmers(counters[i]) : selectEnrichedKmers(k);
+			counters[i] = null;
 			KmerMotifAlignmentClustering(kmers, 2, true, null);	// seed kmer only
 			double bestclusterHGP = 0;
 			KmerCluster bestCluster=null;
@@ -721,115 +738,87 @@ public class KMAC {
 	 * Index k-mers from the positive sequences, select enriched k-mers
 	 * */
 	public ArrayList<Kmer> selectEnrichedKmers(int k){
-		this.k = k;
-		// expected count of kmer = total possible unique occurence of kmer in sequence / total possible kmer sequence permutation
 		tic = System.currentTimeMillis();
-		numPos = k_win-k+1;
+		return selectEnrichedKmers(countKmers(k));
+	}
+	
+	/** 
+	 * Count the k-mers in the positive sequences, and the frequent ones in the negative sequences
+	 * */
+	private KmerCounter countKmers(int k){
+		// expected count of kmer = total possible unique occurence of kmer in sequence / total possible kmer sequence permutation
 		int expectedCount = (int) Math.round(seqs.length*(seqs[0].length()-k+1) / Math.pow(4, k));
-		HashMap<String, HashSet<Integer>> kmerstr2seqs = new HashMap<String, HashSet<Integer>>();
-		for (int seqId=0;seqId<posSeqCount;seqId++){
-			String seq = seqs[seqId];
-			HashSet<String> uniqueKmers = new HashSet<String>();			// only count repeated kmer once in a sequence
-			for (int i=0;i<numPos;i++){
-				if ((i+k)>seq.length()) // endIndex of substring is exclusive
-					break;
-				String kstring = seq.substring(i, i+k);
-				if (kstring.contains("N"))									// ignore 'N', converted from repeat when loading the sequences
-					continue;
-				uniqueKmers.add(kstring);
-			}
-			for (String s: uniqueKmers){
-				if (!kmerstr2seqs.containsKey(s)){
-					 kmerstr2seqs.put(s, new HashSet<Integer>());
-				}
-				kmerstr2seqs.get(s).add(seqId);
-			}
-		}
-		
-		// Merge kmer and its reverse compliment (RC)	
+		KmerCounter counter = new KmerCounter(k);
+		counter.countPositives(seqs, posSeqCount, k_win-k+1, Math.max(expectedCount, minHitCount));	// k-mers with 'N' are skipped
+		counter.countNegatives(seqsNegList, negSeqCount);
+		return counter;
+	}
+	
+	/** 
+	 * Count the k-mers for each k from k_min to k_max, in parallel, with a task per value of k. <br>
+	 * A failure in any of the tasks is rethrown here, and the rest are cancelled.
+	 * */
+	private KmerCounter[] countKmers(int k_min, int k_max){
+		KmerCounter[] counters = new KmerCounter[k_max-k_min+1];
+		int numThread = Math.min(counters.length, Math.min(config.maxThreads, java.lang.Runtime.getRuntime().availableProcessors()));
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, numThread));
+		try {
+			ArrayList<Future<KmerCounter>> futures = new ArrayList<Future<KmerCounter>>();
+			for (int k=k_max;k>=k_min;k--){			// the longest k-mers take the longest, start them first
+				final int kk = k;
+				futures.add(executor.submit(new Callable<KmerCounter>(){
+					public KmerCounter call(){
+						return countKmers(kk);
+					}
+				}));
+			}
+			for (int i=0;i<futures.size();i++)
+				counters[k_max-i-k_min] = futures.get(i).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while counting k-mers", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException)cause;
+			if (cause instanceof Error)
+				throw (Error)cause;
+			throw new RuntimeException(cause);
+		} finally {
+			executor.shutdownNow();
+		}
+		return counters;
+	}
+	
+	/** 
+	 * Select enriched k-mers from the k-mer counts
+	 * */
+	private ArrayList<Kmer> selectEnrichedKmers(KmerCounter counter){
+		this.k = counter.getK();
+		numPos = k_win-k+1;
 		ArrayList<Kmer> kms = new ArrayList<Kmer>();
-		ArrayList<String> kmerStrings = new ArrayList<String>();
-		kmerStrings.addAll(kmerstr2seqs.keySet());
-		
-		// create kmers from its and RC's counts
-		for (String key:kmerStrings){
-			if (!kmerstr2seqs.containsKey(key))		// this kmer has been removed, represented by RC
-				continue;
-			// consolidate kmer and its reverseComplment kmer
-			String key_rc = SequenceUtils.reverseComplement(key);				
-			if (!key_rc.equals(key)){	// if it is not reverse compliment itself
-				if (kmerstr2seqs.containsKey(key_rc)){
-					int kCount = kmerstr2seqs.get(key).size();
-					int rcCount = kmerstr2seqs.get(key_rc).size();
-					String winner = kCount>=rcCount?key:key_rc;
-					String loser = kCount>=rcCount?key_rc:key;
-					kmerstr2seqs.get(winner).addAll(kmerstr2seqs.get(loser));	// winner take all
-					kmerstr2seqs.remove(loser);					// remove the loser kmer because it is represented by its RC
-				}
-			}
-		}
-
-		// create the kmer object
-		for (String key:kmerstr2seqs.keySet()){	
-			if (kmerstr2seqs.get(key).size()< Math.max(expectedCount, minHitCount))
-				continue;	// skip low count kmers 
-			Kmer kmer = new Kmer(key, kmerstr2seqs.get(key));
+		for (int i=0;i<counter.size();i++){
+			Kmer kmer = new Kmer(counter.getKmerString(i), counter.getPosHits(i));
+			kmer.setNegHits(counter.getNegHits(i));
 			kms.add(kmer);
 		}
-		kmerstr2seqs=null;
-		System.gc();
 		System.out.println("k="+k+", mapped "+kms.size()+" k-mers, "+CommonUtils.timeElapsed(tic));
 		
 		/**
 		 * Select significantly over-representative kmers 
-		 * Search the kmer counts in the negative sequences, then compare to positive counts
+		 * Compare the kmer counts in the negative sequences to positive counts
 		 */
 		tic = System.currentTimeMillis();
-		//Aho-Corasick for searching Kmers in negative sequences
-		//ahocorasick_java-1.1.tar.gz is an implementation of Aho-Corasick automata for Java. BSD license.
-		//from <http://hkn.eecs.berkeley.edu/~dyoo/java/index.html> 
-		AhoCorasick tmp = new AhoCorasick();
-		for (Kmer km: kms){
-			tmp.add(km.getKmerString().getBytes(), km.getKmerString());
-	    }
-		tmp.prepare();
-		
-		// count hits in the negative sequences
-		HashMap<String, HashSet<Integer>> kmerstr2negSeqs = new HashMap<String, HashSet<Integer>>();
-		for (int negSeqId=0; negSeqId<negSeqCount;negSeqId++){
-			String seq = seqsNegList.get(negSeqId);
-			HashSet<Object> kmerHits = new HashSet<Object>();	// to ensure each sequence is only counted once for each kmer
-			Iterator searcher = tmp.search(seq.getBytes());
-			while (searcher.hasNext()) {
-				SearchResult result = (SearchResult) searcher.next();
-				kmerHits.addAll(result.getOutputs());
-			}
-			String seq_rc = SequenceUtils.reverseComplement(seq);
-			searcher = tmp.search(seq_rc.getBytes());
-			while (searcher.hasNext()) {
-				SearchResult result = (SearchResult) searcher.next();
-				kmerHits.addAll(result.getOutputs());
-			}
-			for (Object o: kmerHits){
-				String kmer = (String) o;
-				if (!kmerstr2negSeqs.containsKey(kmer))					
-					kmerstr2negSeqs.put(kmer, new HashSet<Integer>());
-				kmerstr2negSeqs.get(kmer).add(negSeqId);
-			}
-		}
 		
 		// score the kmers, hypergeometric p-value
 		ArrayList<Kmer> toRemove = new ArrayList<Kmer>();
 		ArrayList<Kmer> highHgpKmers = new ArrayList<Kmer>();
 		int offset_factor = k/2-k_win/2;
 		for (Kmer kmer:kms){
-			if (kmer.getPosHits().size()<=1){
+			if (kmer.getUnweightedPosHitCount()<=1){
 				toRemove.add(kmer);	
 				continue;
 			}
-			if (kmerstr2negSeqs.containsKey(kmer.getKmerString())){
-				kmer.setNegHits(kmerstr2negSeqs.get(kmer.getKmerString()));
-			}
 			if (kmer.getPosHitCount() < kmer.getNegHitCount()/get_NP_ratio() * config.k_fold ){
 				highHgpKmers.add(kmer);	
 				continue;
@@ -837,7 +826,7 @@ public class KMAC {
 			if (config.use_weighted_kmer){
 				kmer.setWeightedPosHitCount();
 			}
-			kmer.setHgp(computeHGP(posSeqCount, negSeqCount, kmer.getPosHitCount(), kmer.getNegHitCount()));
+			kmer.setHgp(computeHGP(kmer.getPosHitCount(), kmer.getNegHitCount()));
 			if (kmer.getHgp()>config.hgp){
 				highHgpKmers.add(kmer);		
 				continue;
@@ -4364,6 +4353,11 @@ public class KMAC {
 		double pi;
 		
 		KmerCluster(){}	// empty constructor;
+		
+		/** position frequency matrix, indexed by position and base letter */
+		public float[][] getPFM(){return pfm;}
+		public double getPwmThresholdHGP(){return pwmThresholdHGP;}
+		public int getPwmPosHitCount(){return pwmPosHitCount;}
 
 		protected KmerCluster clone(){
 			KmerCluster cluster = new KmerCluster();
@@ -4418,47 +4412,23 @@ public class KMAC {
 	 * Compute hgp (log10) using the positive/negative sequences
 	 */	
 	public double computeHGP(int posHitCount, int negHitCount){
-		return computeHGP(posSeqCount, negSeqCount, posHitCount, negHitCount);
+		return getScorer().hgp(posHitCount, negHitCount);
+	}
+	/* the scorer for this run's sequence counts, made again only when they change, so that
+	   KMAC runs with different counts in other threads don't make it rebuild its tables */
+	private HyperGeometricScorer getScorer(){
+		HyperGeometricScorer s = scorer;
+		if (s==null || !s.isFor(posSeqCount, negSeqCount)){
+			s = new HyperGeometricScorer(posSeqCount, negSeqCount);
+			scorer = s;
+		}
+		return s;
 	}
 	/**
 	 * Compute hgp (log10) using the positive/negative sequences
 	 */
 	public static double computeHGP(int posSeq, int negSeq, int posHit, int negHit){
-		int allHit = posHit + negHit;
-		int allSeq = posSeq + negSeq;
-		if (posHit<negHit){		// select smaller x for hyperGeometricCDF_cache(), to reduce # of x sum operations
-			double hgcdf = StatUtil.hyperGeometricCDF_cache(posHit, allSeq, allHit, posSeq);
-			if (hgcdf>0.99)
-				return computeHGP_TINY(posSeq, negSeq, posHit, negHit);
-			else
-				return Math.log(1-hgcdf);
-		}
-		else{	// flip the problem, compute cdf of negative count, CDF for negative hit do not include negHit
-			double hgcdf=0;
-			if (negHit==0)
-				hgcdf = StatUtil.hyperGeometricCDF_cache(0, allSeq, allHit+2+1, negSeq);		// add 1 negHit, 2 posHit as pseudo count
-			else
-				hgcdf = StatUtil.hyperGeometricCDF_cache(negHit-1, allSeq, allHit, negSeq);
-			if (hgcdf==0||hgcdf<=Double.MIN_VALUE)
-				return computeHGP_TINY(posSeq, negSeq, posHit, negHit);
-			else
-				return Math.log10(hgcdf);
-		}
-	}
-	/**
-	 * Compute hgp using the positive/negative sequences, high precision approximation
-	 * Only use for very small p-value (<MIN_VALUE, 2^-1074)
-	 */
-	private static double computeHGP_TINY(int posSeq, int negSeq, int posHit, int negHit){
-		int allHit = posHit + negHit;
-		int allSeq = posSeq + negSeq;
-		// flip the problem, compute cdf of negative count
-		double hgcdf_log10=0;
-		if (negHit==0)
-			hgcdf_log10 = StatUtil.log10_hyperGeometricCDF_cache_appr(0, allSeq, allHit+2+1, negSeq); // add 1 negHit, 2 posHit as pseudo count
-		else
-			hgcdf_log10 = StatUtil.log10_hyperGeometricCDF_cache_appr(negHit-1, allSeq, allHit, negSeq);
-		return hgcdf_log10;
+		return HyperGeometricScorer.get(posSeq, negSeq).hgp(posHit, negHit);
 	}
 	
 	/**
@@ -4493,7 +4463,7 @@ public class KMAC {
 	    }
 	    double hgps[] = new double[kmerStrings.size()];
 	    for (int i=0;i<kmerStrings.size();i++){
-			hgps[i] = computeHGP(posSeqCount, negSeqCount, posHitCount[i], negHitCount[i]);
+			hgps[i] = computeHGP(posHitCount[i], negHitCount[i]);
 //	    	hgps[i] = 1-StatUtil.hyperGeometricCDF_cache(posHitCount[i], totalSeqCount, posHitCount[i]+negHitCount[i], posSeqCount);
 	    }
 	    return hgps;
@@ -4694,7 +4664,7 @@ public class KMAC {
 			index = CommonUtils.findKey(negSeqScores, score.score);
 			score.negHit = negSeqScores.length-index;
 			if (score.posHit>=score.negHit*2.0*posSeqCount/negSeqCount){	// posHit should be at least 2 fold
-				score.hgp = computeHGP(posSeqCount, negSeqCount, score.posHit, score.negHit);
+				score.hgp = computeHGP(score.posHit, score.negHit);
 				return score;
 			}			
 		}
@@ -4706,25 +4676,7 @@ public class KMAC {
 	private Pair<Double, Integer> findBestScore(ArrayList<Integer> idxs, int[] poshits, int[] neghits, double[] hgps){
 
 		int numThread = Math.min(config.maxThreads, java.lang.Runtime.getRuntime().availableProcessors());
-		Thread[] threads = new Thread[numThread];
-		for (int i=0;i<numThread;i++){
-            Thread t = new Thread(new HGPThread(idxs, posSeqCount, negSeqCount, poshits, neghits, hgps));
-            t.start();
-            threads[i] = t;
-		}
-		boolean anyrunning = true;
-        while (anyrunning) {
-            anyrunning = false;
-            try {
-                Thread.sleep(100);
-            } catch (InterruptedException e) { }
-            for (int i = 0; i < threads.length; i++) {
-                if (threads[i].isAlive()) {
-                    anyrunning = true;
-                    break;
-                }
-            }   
-        }
+		getScorer().hgp(poshits, neghits, idxs, hgps, numThread);
 		
 		Pair<Double, TreeSet<Integer>> minHgp = StatUtil.findMin(hgps);
 		int minIdx = minHgp.cdr().last();
@@ -4893,29 +4845,11 @@ public class KMAC {
 		}
 
 		int numThread = Math.min(config.maxThreads, java.lang.Runtime.getRuntime().availableProcessors());
-		Thread[] threads = new Thread[numThread];
 		ArrayList<Integer> idxs = new ArrayList<Integer>();
 		for (int i=posScores_u.length-1;i>=0;i--)
 			if (poshits[i]>neghits[i]*2.0*posSeqCount/negSeqCount)	// posHit should be at least 2 fold
 				idxs.add(i);
-		for (int i=0;i<numThread;i++){
-            Thread t = new Thread(new HGPThread(idxs, posSeqCount, negSeqCount, poshits, neghits, hgps));
-            t.start();
-            threads[i] = t;
-		}
-		boolean anyrunning = true;
-        while (anyrunning) {
-            anyrunning = false;
-            try {
-                Thread.sleep(100);
-            } catch (InterruptedException e) { }
-            for (int i = 0; i < threads.length; i++) {
-                if (threads[i].isAlive()) {
-                    anyrunning = true;
-                    break;
-                }
-            }   
-        }
+		getScorer().hgp(poshits, neghits, idxs, hgps, numThread);
 		hgps[0]=0;		// the lowest threshold will match all positive sequences, lead to hgp=0
 		
 		if (printKgcHgp){
@@ -5384,38 +5318,6 @@ public class KMAC {
 			return String.format("%s %d: %d+/%d-, hpg=%.2f", getBestKmer().getKmerString(), bs, posHitGroupCount, negHitGroupCount, hgp);
 		}
 	}
-	class HGPThread implements Runnable {
-		ArrayList<Integer> idxs;
-		int posTotal;
-		int negTotal;
-		int[] posHits;
-		int[] negHits;
-		double[] hgps;
-		HGPThread(ArrayList<Integer> idxs, int posTotal, int negTotal, int[] posHits, int[] negHits, double[] hgps){
-			this.idxs = idxs;
-			this.posTotal = posTotal;
-			this.negTotal = negTotal;
-			this.posHits = posHits;
-			this.negHits = negHits;
-			this.hgps = hgps;
-		}
-		public void run() {
-			int i;
-			while (!idxs.isEmpty()) {
-				synchronized (idxs){
-	            	if (!idxs.isEmpty()){
-	            		i = idxs.get(0);
-	            		idxs.remove(0);
-	        		}
-	            	else
-	            		break;
-	        	}		
-				if (i==0 && posHits[0]==posSeqCount)
-	    			hgps[0]=0;
-				hgps[i]=computeHGP(posTotal, negTotal, posHits[i], negHits[i]);
-			}
-		}
-	}
 	public static void main1(String[] args){
 		ArrayList<Integer> x_list = new ArrayList<Integer>();
 		ArrayList<Integer> same_list = new ArrayList<Integer>();
@@ -37,7 +37,11 @@ public class Kmer implements Comparable<Kmer>{
 	private int k;
 	public int getK(){return k;}
 	
-	private HashSet<Integer> posHits = new HashSet<Integer>();
+	/* The hits are kept as the arrays of sequence ids from KmerCounter (posIds, negIds) until
+	   something asks for them as a set, so the k-mers that are scored and dropped never box them.
+	   Once the set has been made it is the only copy, since callers may change it. */
+	private HashSet<Integer> posHits;
+	private int[] posIds = new int[0];
 	/**	get posHitCount; one hit at most for one sequence, to avoid simple repeat<br>
 	 * 	get a weighted version of hit count if use_weighted_hit_count is true
 	 */
@@ -45,30 +49,69 @@ public class Kmer implements Comparable<Kmer>{
 		if (use_weighted_hit_count)
 			return weightedPosHitCount;
 		else
-			return posHits.size();
+			return getUnweightedPosHitCount();
+	}
+	/** the number of positive sequences with the kmer, regardless of use_weighted_hit_count */
+	public synchronized int getUnweightedPosHitCount() {
+		return posHits!=null ? posHits.size() : posIds.length;
 	}
 	public void setPosHits(HashSet<Integer> posHits) {
-		this.posHits = posHits;
-		if (use_weighted_hit_count)
-			setWeightedPosHitCount();
-		if (posHits.isEmpty())
-			return;
 		double[] ids = new double[posHits.size()];
 		int count=0;
 		for (int id:posHits){
 			ids[count++]=id;
 		}
+		synchronized(this){
+			this.posHits = posHits;
+			posIds = null;
+		}
+		initPosHits(ids);
+	}
+	/** set the positive hits from an array of distinct sequence ids, as from KmerCounter */
+	public void setPosHits(int[] ids) {
+		double[] d = new double[ids.length];
+		for (int i=0;i<ids.length;i++)
+			d[i] = ids[i];
+		synchronized(this){
+			posHits = null;
+			posIds = ids;
+		}
+		initPosHits(d);
+	}
+	private void initPosHits(double[] ids){
+		if (use_weighted_hit_count)
+			setWeightedPosHitCount();
+		if (ids.length==0)
+			return;
 		double mean = StatUtil.mean(ids);
 		double median = StatUtil.median(ids);
 		setTop(median-mean);
 	}
-	public HashSet<Integer> getPosHits(){return posHits;}
+	public synchronized HashSet<Integer> getPosHits(){
+		if (posHits==null){
+			posHits = toSet(posIds);
+			posIds = null;
+		}
+		return posHits;
+	}
+	private static HashSet<Integer> toSet(int[] ids){
+		HashSet<Integer> set = new HashSet<Integer>(Math.max(16, ids.length*4/3+1));
+		for (int id: ids)
+			set.add(id);
+		return set;
+	}
 	
 	private int weightedPosHitCount;
-	public void setWeightedPosHitCount(){
+	public synchronized void setWeightedPosHitCount(){
 		double weight=0;
-		for (int i: posHits)
-			weight+=seq_weights[i];
+		if (posHits!=null){
+			for (int i: posHits)
+				weight+=seq_weights[i];
+		}
+		else{
+			for (int i: posIds)
+				weight+=seq_weights[i];
+		}
 		weightedPosHitCount = (int)weight;
 	}
 	public int getWeightedHitCount(){
@@ -81,13 +124,26 @@ public class Kmer implements Comparable<Kmer>{
 	public double getTop() {return top;	}
 	
 //	int negHitCount;
-	private HashSet<Integer> negHits = new HashSet<Integer>();
-	public int getNegHitCount() {return negHits.size();}
-	public void setNegHits(HashSet<Integer> negHits) {
+	private HashSet<Integer> negHits;
+	private int[] negIds = new int[0];
+	public synchronized int getNegHitCount() {return negHits!=null ? negHits.size() : negIds.length;}
+	public synchronized void setNegHits(HashSet<Integer> negHits) {
 		this.negHits = negHits;
+		negIds = null;
 //		negHitCount = negHits.size();
 	}
-	public HashSet<Integer> getNegHits(){return negHits;}
+	/** set the negative hits from an array of distinct sequence ids, as from KmerCounter */
+	public synchronized void setNegHits(int[] ids) {
+		negHits = null;
+		negIds = ids;
+	}
+	public synchronized HashSet<Integer> getNegHits(){
+		if (negHits==null){
+			negHits = toSet(negIds);
+			negIds = null;
+		}
+		return negHits;
+	}
 	
 	private double strength;	// the total read counts from all events explained by this kmer
 	public double getStrength(){return strength;}
@@ -127,7 +183,7 @@ public class Kmer implements Comparable<Kmer>{
 	public Kmer(String kmerStr, Integer posHit ){
 		this.kmerString = kmerStr;
 		this.k = kmerString.length();
-		posHits.add(posHit);
+		posIds = new int[]{posHit};
 	}
 	
 	public Kmer(String kmerStr, HashSet<Integer> posHits ){
@@ -136,15 +192,23 @@ public class Kmer implements Comparable<Kmer>{
 		setPosHits(posHits);
 	}
 	
+	/** a kmer with the positive hits given as distinct sequence ids, as from KmerCounter */
+	public Kmer(String kmerStr, int[] posIds ){
+		this.kmerString = kmerStr;
+		this.k = kmerString.length();
+		setPosHits(posIds);
+	}
+	
 	public Kmer clone(){
 		HashSet<Integer> hits = new HashSet<Integer>();
-		hits.addAll(this.posHits);
+		hits.addAll(getPosHits());
 		Kmer n = new Kmer(getKmerString(), hits);
 		n.clusterId = clusterId;
 		n.strength = strength;
 		n.shift = shift;
-		n.negHits = new HashSet<Integer>();
-		n.negHits.addAll(negHits);
+		HashSet<Integer> neg = new HashSet<Integer>();
+		neg.addAll(getNegHits());
+		n.setNegHits(neg);
 		n.hgp_lg10 = hgp_lg10;
 		n.alignString = alignString;
 		n.kmerStartOffset = kmerStartOffset;
@@ -191,10 +255,10 @@ public class Kmer implements Comparable<Kmer>{
 	public String toString(){
 		if (use_weighted_hit_count)
 			return String.format("%s/%s\t%d\t%d\t%d\t%d\t%d\t%.1f", 
-				kmerString, getKmerRC(),clusterId, kmerStartOffset, posHits.size(), weightedPosHitCount, getNegHitCount(), hgp_lg10);
+				kmerString, getKmerRC(),clusterId, kmerStartOffset, getUnweightedPosHitCount(), weightedPosHitCount, getNegHitCount(), hgp_lg10);
 		else
 			return String.format("%s/%s\t%d\t%d\t%d\t%d\t%.1f", 
-				kmerString, getKmerRC(),clusterId, kmerStartOffset, posHits.size(), getNegHitCount(), hgp_lg10);
+				kmerString, getKmerRC(),clusterId, kmerStartOffset, getUnweightedPosHitCount(), getNegHitCount(), hgp_lg10);
 	}
 	public static String toHeader(int k){
 		int length=2*k+1;
@@ -209,10 +273,10 @@ public class Kmer implements Comparable<Kmer>{
 	public String toShortString(){
 		if (use_weighted_hit_count)
 			return String.format("%s/%s\t%d\t%d\t%d\t%.1f", 
-				kmerString, getKmerRC(), posHits.size(), weightedPosHitCount, getNegHitCount(), hgp_lg10);
+				kmerString, getKmerRC(), getUnweightedPosHitCount(), weightedPosHitCount, getNegHitCount(), hgp_lg10);
 		else
 			return String.format("%s/%s\t%d\t%d\t%.1f", 
-				kmerString, getKmerRC(), posHits.size(), getNegHitCount(), hgp_lg10);
+				kmerString, getKmerRC(), getUnweightedPosHitCount(), getNegHitCount(), hgp_lg10);
 	}
 	public static String toShortHeader(int k){
 		int length=2*k+1;
@@ -279,8 +343,8 @@ public class Kmer implements Comparable<Kmer>{
 //	}
 	public void mergeKmer(Kmer newKmer){
 		if (kmerString.equals(newKmer.kmerString)){
-			posHits.addAll(newKmer.posHits);
-			negHits.addAll(newKmer.negHits);
+			getPosHits().addAll(newKmer.getPosHits());
+			getNegHits().addAll(newKmer.getNegHits());
 //			posHitCount = posHits.size();
 //			negHitCount = negHits.size();
 			strength += newKmer.strength;
@@ -0,0 +1,251 @@
+package edu.psu.compbio.seqcode.gse.deepseq.discovery.kmer;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Counts the sequences that contain each k-mer, for KMAC.selectEnrichedKmers() <br>
+ * The k-mers are packed 2 bits per base into a long as the sequence is read, with the k-mer
+ * and its reverse complement rolled along together, so no String is made for each position.
+ * The smaller of the two (the canonical k-mer) is the key into an open-addressing table,
+ * so a k-mer and its RC are counted together in one pass. <br>
+ * Only the k-mers in at least minCount positive sequences keep the ids of the sequences
+ * they are found in, which are then looked up in the negative sequences.  The ids are handed
+ * to Kmer as int arrays, in increasing order.
+ *
+ * Each instance counts one value of k, and different instances can be run in different threads.
+ */
+public class KmerCounter {
+	private static final byte[] CODES = new byte[128];
+	static {
+		Arrays.fill(CODES, (byte)-1);
+		CODES['A']=0;
+		CODES['C']=1;
+		CODES['G']=2;
+		CODES['T']=3;
+	}
+	private static final long EMPTY = -1;
+
+	private int k;
+	private long mask;
+	private int rcShift;				// where the next base goes in the reverse complement
+
+	// the table of canonical k-mers, with the sequences they are in
+	private long[] keys;
+	private int hashShift;
+	private int[] fwdCounts;			// sequences with the canonical k-mer
+	private int[] rcCounts;				// sequences with its reverse complement
+	private int[] counts;				// sequences with either
+	private int[] fwdLast;				// the last sequence each was counted in
+	private int[] rcLast;
+	private int[] selected;				// index of the selected k-mer in each slot, or -1
+
+	// the selected k-mers
+	private String[] kmerStrings;
+	private int[][] posIds;
+	private int[][] negIds;
+
+	public KmerCounter(int k){
+		if (k<1 || k>31)
+			throw new IllegalArgumentException("k="+k+" does not fit in a long");
+		this.k = k;
+		mask = (1L<<(2*k))-1;
+		rcShift = 2*(k-1);
+	}
+
+	public int getK(){return k;}
+	/** The number of selected k-mers */
+	public int size(){return kmerStrings==null ? 0 : kmerStrings.length;}
+	/** The selected k-mer, as the strand that is in more positive sequences */
+	public String getKmerString(int i){return kmerStrings[i];}
+	public int getPosHitCount(int i){return posIds[i].length;}
+	public int getNegHitCount(int i){return negIds==null ? 0 : negIds[i].length;}
+	/** The ids of the positive sequences with the selected k-mer */
+	public int[] getPosHits(int i){return posIds[i];}
+	/** The ids of the negative sequences with the selected k-mer */
+	public int[] getNegHits(int i){return negIds==null ? new int[0] : negIds[i];}
+
+	/**
+	 * Counts the k-mers that start in the first numPos positions of seqs[0..seqCount-1],
+	 * skipping those with a base other than ACGT. <br>
+	 * A k-mer is counted once per sequence, on either strand, and is selected if it is found in
+	 * at least minCount sequences.  Like the string-based counting it replaces, a k-mer and its RC
+	 * are reported as whichever of the two is in more sequences (the smaller one on ties).
+	 */
+	public void countPositives(String[] seqs, int seqCount, int numPos, int minCount){
+		long total = 0;
+		int longest = 0;
+		for (int s=0;s<seqCount;s++){
+			int starts = Math.min(numPos, seqs[s].length()-k+1);
+			if (starts>0){
+				total += starts;
+				longest = Math.max(longest, starts);
+			}
+		}
+		// at most half full, so the table never needs to grow
+		long distinct = Math.min(total, k<16 ? (1L<<(2*k-1))+(1L<<(k-1)) : Long.MAX_VALUE);
+		int capacity = 16;
+		while (capacity<distinct*2)
+			capacity <<= 1;
+		hashShift = 64-Integer.numberOfTrailingZeros(capacity);
+		keys = new long[capacity];
+		Arrays.fill(keys, EMPTY);
+		fwdCounts = new int[capacity];
+		rcCounts = new int[capacity];
+		counts = new int[capacity];
+		fwdLast = new int[capacity];
+		rcLast = new int[capacity];
+		Arrays.fill(fwdLast, -1);
+		Arrays.fill(rcLast, -1);
+
+		long[] buf = new long[longest];
+		boolean[] fwd = new boolean[longest];
+		for (int s=0;s<seqCount;s++){
+			int n = encode(seqs[s], numPos, buf, fwd);
+			for (int j=0;j<n;j++){
+				int slot = slot(buf[j]);
+				if (keys[slot]==EMPTY)
+					keys[slot] = buf[j];
+				if (fwd[j]){
+					if (fwdLast[slot]!=s){
+						if (rcLast[slot]!=s)
+							counts[slot]++;
+						fwdLast[slot] = s;
+						fwdCounts[slot]++;
+					}
+				}
+				else if (rcLast[slot]!=s){
+					if (fwdLast[slot]!=s)
+						counts[slot]++;
+					rcLast[slot] = s;
+					rcCounts[slot]++;
+				}
+			}
+		}
+		fwdLast = null;
+		rcLast = null;
+
+		// select the frequent k-mers
+		selected = new int[capacity];
+		Arrays.fill(selected, -1);
+		int count = 0;
+		for (int slot=0;slot<capacity;slot++){
+			if (keys[slot]!=EMPTY && counts[slot]>=minCount)
+				selected[slot] = count++;
+		}
+		kmerStrings = new String[count];
+		posIds = new int[count][];
+		for (int slot=0;slot<capacity;slot++){
+			int i = selected[slot];
+			if (i<0)
+				continue;
+			long key = keys[slot];
+			kmerStrings[i] = decode(fwdCounts[slot]>=rcCounts[slot] ? key : reverseComplement(key));
+			posIds[i] = new int[counts[slot]];
+		}
+		fwdCounts = null;
+		rcCounts = null;
+		counts = null;
+
+		// and find the sequences they are in
+		int[] filled = new int[count];
+		int[] last = new int[count];
+		Arrays.fill(last, -1);
+		for (int s=0;s<seqCount;s++){
+			int n = encode(seqs[s], numPos, buf, fwd);
+			for (int j=0;j<n;j++){
+				int i = selected[slot(buf[j])];
+				if (i>=0 && last[i]!=s){
+					last[i] = s;
+					posIds[i][filled[i]++] = s;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Finds the selected k-mers, on either strand, anywhere in seqs[0..seqCount-1]
+	 */
+	public void countNegatives(List<String> seqs, int seqCount){
+		int count = size();
+		negIds = new int[count][];
+		int[] negCounts = new int[count];
+		int[] last = new int[count];
+		Arrays.fill(last, -1);
+		long[] buf = new long[0];
+		boolean[] fwd = new boolean[0];
+		for (int s=0;s<seqCount;s++){
+			String seq = seqs.get(s);
+			if (buf.length<seq.length()){
+				buf = new long[seq.length()];
+				fwd = new boolean[seq.length()];
+			}
+			int n = encode(seq, seq.length(), buf, fwd);
+			for (int j=0;j<n;j++){
+				int i = selected[slot(buf[j])];
+				if (i>=0 && last[i]!=s){
+					last[i] = s;
+					if (negIds[i]==null)
+						negIds[i] = new int[4];
+					else if (negIds[i].length==negCounts[i])
+						negIds[i] = Arrays.copyOf(negIds[i], negCounts[i]*2);
+					negIds[i][negCounts[i]++] = s;
+				}
+			}
+		}
+		int[] none = new int[0];
+		for (int i=0;i<count;i++)
+			negIds[i] = negIds[i]==null ? none : Arrays.copyOf(negIds[i], negCounts[i]);
+	}
+
+	/* puts the canonical k-mers starting at 0..starts-1 of seq in buf, and whether each is
+	   the forward strand in fwd.  Returns how many there are. */
+	private int encode(String seq, int starts, long[] buf, boolean[] fwd){
+		int end = Math.min(seq.length(), starts+k-1);
+		long f = 0, r = 0;
+		int valid = 0, n = 0;
+		for (int i=0;i<end;i++){
+			char ch = seq.charAt(i);
+			int c = ch<128 ? CODES[ch] : -1;
+			if (c<0){
+				valid = 0;
+				continue;
+			}
+			f = ((f<<2)|c) & mask;
+			r = (r>>>2) | ((long)(3-c)<<rcShift);
+			if (++valid>=k){
+				buf[n] = f<=r ? f : r;
+				fwd[n] = f<=r;
+				n++;
+			}
+		}
+		return n;
+	}
+
+	/* the slot holding key, or the empty slot where it would go */
+	private int slot(long key){
+		int i = (int)((key*0x9E3779B97F4A7C15L)>>>hashShift);
+		int m = keys.length-1;
+		while (keys[i]!=EMPTY && keys[i]!=key)
+			i = (i+1) & m;
+		return i;
+	}
+
+	private long reverseComplement(long key){
+		long rc = 0;
+		for (int i=0;i<k;i++){
+			rc = (rc<<2) | (3-(key&3));
+			key >>>= 2;
+		}
+		return rc;
+	}
+
+	private String decode(long key){
+		char[] chars = new char[k];
+		for (int i=k-1;i>=0;i--){
+			chars[i] = "ACGT".charAt((int)(key&3));
+			key >>>= 2;
+		}
+		return new String(chars);
+	}
+}
@@ -11,11 +11,18 @@ import edu.psu.compbio.seqcode.gse.ewok.types.*;
 import edu.psu.compbio.seqcode.gse.utils.*;
 import edu.psu.compbio.seqcode.gse.utils.database.*;
 import edu.psu.compbio.seqcode.gse.utils.io.parsing.FASTAStream;
+import edu.psu.compbio.seqcode.gse.utils.io.parsing.TwoBitFile;
 
 /** 
  * <code>SequenceGenerator</code> maps a Region to the genomic
  * sequence included in that Region.
  * 
+ * With local files, a packed genome (see TwoBitFile) is used in preference
+ * to the per-chromosome FASTA files: either the Genome's sequence file, the
+ * genome path itself if it names a .2bit file, or &lt;version&gt;.2bit or
+ * genome.2bit in the genome path directory.  Regions are then read straight
+ * from the memory-mapped file and no chromosome is ever cached.
+ * 
  * 1-based genome
  */
 public class SequenceGenerator<X extends Region> implements Mapper<X,String>, SelfDescribingVerb {
@@ -25,6 +32,8 @@ public class SequenceGenerator<X extends Region> implements Mapper<X,String>, Se
     private boolean useCache = false;
     private boolean useLocalFiles = true;
     private String genomePath = null;
+    private volatile TwoBitFile packed = null;
+    private volatile boolean packedChecked = false;
 
     private static Map<String, String[]> regionCache;
     private static Map<String, int[]> regionStarts;
@@ -47,6 +56,33 @@ public class SequenceGenerator<X extends Region> implements Mapper<X,String>, Se
     }
     public void setGenomePath(String genomePath){
     	this.genomePath = genomePath;
+    	packedChecked = false;
+    }
+    
+    /** the packed genome file to read from, or null to use FASTA files or the database */
+    private TwoBitFile packedGenome(Genome g) throws IOException {
+        if (!useLocalFiles) {
+            return null;
+        }
+        if (g.getSequenceFile() != null) {
+            return g.getSequenceFile();
+        }
+        if (!packedChecked) {
+            packed = null;
+            String path = genomePath == null ? "/scratch/" + g.getVersion() : genomePath;
+            File f = new File(path);
+            if (!(f.isFile() && path.endsWith(".2bit"))) {
+                f = new File(path + "/" + g.getVersion() + ".2bit");
+                if (!f.isFile()) {
+                    f = new File(path + "/genome.2bit");
+                }
+            }
+            if (f.isFile()) {
+                packed = TwoBitFile.get(f);
+            }
+            packedChecked = true;
+        }
+        return packed;
     }
     
     /** cache the whole chromosome of this region */
@@ -117,7 +153,11 @@ public class SequenceGenerator<X extends Region> implements Mapper<X,String>, Se
         try {
             Genome genome = region.getGenome();
             int chromid = genome.getChromID(chromname);
-            if (useCache) {
+            TwoBitFile packedFile = packedGenome(genome);
+            if (packedFile != null) {
+                result = packedFile.getSequence(chromname, region.getStart(), region.getEnd());
+            }
+            if (result == null && useCache) {
                 cache(region);
                 String chromString = null;
                 synchronized(cache) {
@@ -174,6 +214,7 @@ public class SequenceGenerator<X extends Region> implements Mapper<X,String>, Se
     /**
      * Setup light-weight region cache of genome sequences, cover only the specified regions<br>
      * So that it does not cache the whole chromosome, save memory space. <br>
+     * With a packed genome file, whole chromosomes are never loaded at all. <br>
      * At the same time, retrieve some one-time sequences in rs.
      * @param regions sorted, non-overlapping regions for cache
      * @param rs regions for one-time sequence retrieval
@@ -0,0 +1,280 @@
+package edu.psu.compbio.seqcode.gse.ewok.verbs.motifs;
+
+import java.util.*;
+
+import edu.psu.compbio.seqcode.gse.datasets.motifs.WMHit;
+import edu.psu.compbio.seqcode.gse.datasets.motifs.WeightMatrix;
+
+/**
+ * A WeightMatrix compiled for fast scanning of EncodedSequences.
+ *
+ * WeightMatrix rows are MAXLETTERVAL floats wide and indexed by character, so
+ * scoring a window touches a different cache line for every column.  Here each
+ * run of four columns becomes one 256-entry table, indexed by the packed 4-mer
+ * at that point of the window (the last table ignores the bases past the end
+ * of the matrix).  A 20 column matrix is then five lookups per window rather
+ * than twenty.  Windows that contain N's are scored with dense
+ * 5-entry-per-column tables (ACGT plus N), where the N entry is the matrix's
+ * value for 'N'.
+ *
+ * There is a second set of tables for the reverse complement of the matrix.
+ * Both strands are scored in one pass over the forward sequence, and the
+ * sequence is never reverse complemented.  The reverse score for the window
+ * starting at i is the matrix's score for the reverse complement of that
+ * window, which is what WeightMatrixScorer calls the '-' score at i.
+ *
+ * Scores are summed in float, like WeightMatrixScanner always has, although
+ * the order of the additions differs so the last bit may not match exactly.
+ * Compiling copies the matrix, so changes made to it afterwards (eg, toLogOdds())
+ * need a new CompiledWeightMatrix.  Instances are immutable and thread-safe.
+ */
+public class CompiledWeightMatrix {
+
+    /* windows scored at a time by the batch scans; small enough that the score
+       buffers and the stretch of sequence stay in cache while every matrix is run over them */
+    public static final int BLOCK = 4096;
+
+    private final WeightMatrix matrix;
+    private final int length, chunks;
+    /* [chunk * 256 + quad] */
+    private final float[] fquad, rquad;
+    /* [column * 5 + code], with N as code 4 */
+    private final float[] fcol, rcol;
+    /* [k] is the best score that chunks k.. can add */
+    private final float[] fbest, rbest;
+    private final float minScore, maxScore;
+
+    public CompiledWeightMatrix(WeightMatrix m) {
+        matrix = m;
+        length = m.length();
+        chunks = (length + 3) / 4;
+        /* padded with zeros to a whole number of chunks */
+        fcol = new float[chunks * 4 * 5];
+        rcol = new float[chunks * 4 * 5];
+        char[] letters = {'A','C','G','T','N'};
+        for (int j = 0; j < length; j++) {
+            float[] row = m.matrix[j];
+            float[] rrow = m.matrix[length - 1 - j];
+            for (int c = 0; c < 5; c++) {
+                char l = letters[c];
+                /* the complement of code c is 3-c and N stays N */
+                char rl = c == 4 ? 'N' : letters[3 - c];
+                fcol[j * 5 + c] = l < row.length ? row[l] : 0;
+                rcol[j * 5 + c] = rl < rrow.length ? rrow[rl] : 0;
+            }
+        }
+        fquad = new float[chunks * 256];
+        rquad = new float[chunks * 256];
+        for (int k = 0; k < chunks; k++) {
+            fillQuads(fcol, k, fquad);
+            fillQuads(rcol, k, rquad);
+        }
+        fbest = best(fquad, chunks);
+        rbest = best(rquad, chunks);
+        minScore = (float)m.getMinScore();
+        maxScore = (float)m.getMaxScore();
+    }
+    /* builds the table for columns 4k..4k+3 from partial sums, which is 340 additions rather than 1024 */
+    private static void fillQuads(float[] col, int k, float[] output) {
+        int b = k * 4 * 5;
+        int o = k * 256;
+        for (int x = 0; x < 4; x++) {
+            float s1 = col[b + x];
+            for (int y = 0; y < 4; y++) {
+                float s2 = s1 + col[b + 5 + y];
+                for (int z = 0; z < 4; z++) {
+                    float s3 = s2 + col[b + 10 + z];
+                    int i = o + (x << 6) + (y << 4) + (z << 2);
+                    for (int w = 0; w < 4; w++) {
+                        output[i + w] = s3 + col[b + 15 + w];
+                    }
+                }
+            }
+        }
+    }
+
+    private static float[] best(float[] quad, int chunks) {
+        float[] output = new float[chunks + 1];
+        for (int k = chunks - 1; k >= 0; k--) {
+            float max = Float.NEGATIVE_INFINITY;
+            for (int q = k * 256; q < (k + 1) * 256; q++) {
+                max = Math.max(max, quad[q]);
+            }
+            output[k] = output[k + 1] + max;
+        }
+        return output;
+    }
+
+    public WeightMatrix getMatrix() {return matrix;}
+    public int length() {return length;}
+    public float getMinScore() {return minScore;}
+    public float getMaxScore() {return maxScore;}
+
+    /**
+     * Scores the windows that start at from..to-1 (all of which must fit in the
+     * sequence) on both strands.  The score of window from+i goes in fwd[i] and rev[i].
+     */
+    public void score(EncodedSequence seq, int from, int to, float[] fwd, float[] rev) {
+        checkWindows(seq, from, to);
+        Arrays.fill(fwd, 0, to - from, 0);
+        Arrays.fill(rev, 0, to - from, 0);
+        addChunks(seq, from, to, 0, chunks, fwd, rev);
+        rescoreN(seq, from, to, fwd, rev, null);
+    }
+    private void checkWindows(EncodedSequence seq, int from, int to) {
+        if (to > seq.length() - length + 1 || from < 0) {
+            throw new IndexOutOfBoundsException("windows " + from + " to " + to + " of a " + length +
+                                                " column matrix don't fit in " + seq.length() + " bases");
+        }
+    }
+    /* adds chunks k0..k1-1 to the scores.  A chunk at a time over all the windows, so the inner
+       loop is one table in cache and a straight run through the sequence */
+    private void addChunks(EncodedSequence seq, int from, int to, int k0, int k1, float[] fwd, float[] rev) {
+        byte[] quads = seq.quads;
+        int n = to - from;
+        for (int k = k0; k < k1; k++) {
+            int t = k * 256;
+            int i = from + k * 4;
+            for (int w = 0; w < n; w++, i++) {
+                int q = t + (quads[i] & 0xff);
+                fwd[w] += fquad[q];
+                rev[w] += rquad[q];
+            }
+        }
+    }
+    /* the quads read N's as A's, so this scores the windows that touch an N column by column.
+       They're flagged in touched if it isn't null */
+    private void rescoreN(EncodedSequence seq, int from, int to, float[] fwd, float[] rev, boolean[] touched) {
+        byte[] codes = seq.codes;
+        int[] nStarts = seq.nStarts, nEnds = seq.nEnds;
+        int done = from;
+        for (int r = seq.firstRunAfter(from); r < nStarts.length && nStarts[r] - length + 1 < to; r++) {
+            int end = Math.min(nEnds[r], to);
+            for (int p = Math.max(Math.max(nStarts[r] - length + 1, from), done); p < end; p++) {
+                float f = 0, rv = 0;
+                for (int j = 0, t = 0; j < length; j++, t += 5) {
+                    int c = codes[p + j];
+                    f += fcol[t + c];
+                    rv += rcol[t + c];
+                }
+                fwd[p - from] = f;
+                rev[p - from] = rv;
+                if (touched != null) {
+                    touched[p - from] = true;
+                }
+            }
+            done = Math.max(done, end);
+        }
+    }
+
+    /**
+     * Fills in WeightMatrixScorer-style profiles for the whole sequence: fwd[i] and rev[i]
+     * are the scores of the window starting at i, and the positions where the matrix
+     * doesn't fit get the matrix's minimum score.
+     */
+    public void score(EncodedSequence seq, double[] fwd, double[] rev) {
+        int windows = Math.max(seq.length() - length + 1, 0);
+        float[] f = new float[Math.min(windows, BLOCK)], r = new float[f.length];
+        for (int from = 0; from < windows; from += BLOCK) {
+            int to = Math.min(from + BLOCK, windows);
+            score(seq, from, to, f, r);
+            for (int i = from; i < to; i++) {
+                fwd[i] = f[i - from];
+                rev[i] = r[i - from];
+            }
+        }
+        for (int i = windows; i < seq.length(); i++) {
+            fwd[i] = minScore;
+            rev[i] = minScore;
+        }
+    }
+
+    /**
+     * Returns the hits scoring at least cutoff, on either strand, in the windows that start at
+     * from..to-1.  Windows that run off the end of the sequence are skipped.  Hits have start and
+     * end relative to the sequence and scanid and chromid of -1.
+     */
+    public List<WMHit> scanHits(EncodedSequence seq, float cutoff, int from, int to) {
+        return scanHits(Collections.singletonList(this), new float[]{cutoff}, seq, from, to).get(0);
+    }
+    public List<WMHit> scanHits(EncodedSequence seq, float cutoff) {
+        return scanHits(seq, cutoff, 0, seq.length());
+    }
+
+    /**
+     * Scans several matrices over the same sequence.  The sequence is taken BLOCK windows at a
+     * time and every matrix is run over each block before moving on, so the block is read from
+     * cache rather than memory for all but the first matrix.  Returns each matrix's hits, ordered
+     * by position.
+     */
+    public static List<List<WMHit>> scanHits(List<CompiledWeightMatrix> matrices, float[] cutoffs,
+                                             EncodedSequence seq, int from, int to) {
+        List<List<WMHit>> output = new ArrayList<List<WMHit>>();
+        for (int m = 0; m < matrices.size(); m++) {
+            output.add(new ArrayList<WMHit>());
+        }
+        Scratch scratch = new Scratch();
+        to = Math.min(to, seq.length());
+        for (int start = Math.max(from, 0); start < to; start += BLOCK) {
+            for (int m = 0; m < matrices.size(); m++) {
+                CompiledWeightMatrix matrix = matrices.get(m);
+                int end = Math.min(Math.min(start + BLOCK, to), seq.length() - matrix.length + 1);
+                if (end > start) {
+                    matrix.blockHits(seq, start, end, cutoffs[m], output.get(m), scratch);
+                }
+            }
+        }
+        return output;
+    }
+
+    private static class Scratch {
+        final float[] f = new float[BLOCK], r = new float[BLOCK];
+        final boolean[] touched = new boolean[BLOCK];
+        final int[] candidates = new int[BLOCK];
+    }
+    /* only the first FILTER chunks are scored for every window.  The rest are only added for
+       windows that could still reach the cutoff given the best possible score of the remaining
+       columns, which at the usual cutoffs is a small fraction of them */
+    private static final int FILTER = 2;
+
+    private void blockHits(EncodedSequence seq, int start, int end, float cutoff, List<WMHit> hits, Scratch s) {
+        int n = end - start;
+        float[] f = s.f, r = s.r;
+        boolean[] touched = s.touched;
+        Arrays.fill(f, 0, n, 0);
+        Arrays.fill(r, 0, n, 0);
+        Arrays.fill(touched, 0, n, false);
+        int first = Math.min(FILTER, chunks);
+        addChunks(seq, start, end, 0, first, f, r);
+        rescoreN(seq, start, end, f, r, touched);
+
+        /* a little slack so rounding can't drop a hit */
+        float fneed = cutoff - fbest[first] - 1e-3f, rneed = cutoff - rbest[first] - 1e-3f;
+        int[] candidates = s.candidates;
+        int count = 0;
+        for (int w = 0; w < n; w++) {
+            if (touched[w] || f[w] >= fneed || r[w] >= rneed) {
+                candidates[count++] = w;
+            }
+        }
+        byte[] quads = seq.quads;
+        int last = length - 1;
+        for (int c = 0; c < count; c++) {
+            int w = candidates[c];
+            float fs = f[w], rs = r[w];
+            if (!touched[w]) {
+                for (int k = first, t = first * 256, i = start + w + first * 4; k < chunks; k++, t += 256, i += 4) {
+                    int q = t + (quads[i] & 0xff);
+                    fs += fquad[q];
+                    rs += rquad[q];
+                }
+            }
+            if (fs >= cutoff) {
+                hits.add(new WMHit(-1, -1, start + w, start + w + last, "+", fs));
+            }
+            if (rs >= cutoff) {
+                hits.add(new WMHit(-1, -1, start + w, start + w + last, "-", rs));
+            }
+        }
+    }
+}
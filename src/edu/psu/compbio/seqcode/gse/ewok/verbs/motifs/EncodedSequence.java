@@ -0,0 +1,90 @@
+package edu.psu.compbio.seqcode.gse.ewok.verbs.motifs;
+
+import java.nio.CharBuffer;
+import java.util.Arrays;
+
+/**
+ * A DNA sequence encoded for scanning with CompiledWeightMatrix.  Each base is stored
+ * as a 2-bit code (A=0, C=1, G=2, T=3; case is ignored).  Each position also holds the
+ * four bases starting there, packed into one byte with the first base in the high bits,
+ * so that a single table lookup scores four matrix columns.  Anything other than ACGT
+ * is an N.  The N's are kept as a list of runs, so windows that touch one can be
+ * scored column by column.
+ *
+ * Encode a sequence once and scan as many matrices over it as you like.  Instances
+ * are immutable and can be shared between threads.
+ */
+public class EncodedSequence {
+
+    public static final byte N = 4;
+    private static final byte[] CODES = new byte[128];
+    static {
+        Arrays.fill(CODES, N);
+        CODES['A'] = CODES['a'] = 0;
+        CODES['C'] = CODES['c'] = 1;
+        CODES['G'] = CODES['g'] = 2;
+        CODES['T'] = CODES['t'] = 3;
+    }
+
+    final byte[] codes;
+    /* quads[i] packs codes[i..i+3], with N's and positions past the end read as 0 */
+    final byte[] quads;
+    /* runs of N's as [start,end) */
+    final int[] nStarts, nEnds;
+
+    public EncodedSequence(char[] seq) {
+        this(CharBuffer.wrap(seq));
+    }
+    /* reads the sequence in place, so a chromosome-sized String isn't copied */
+    public EncodedSequence(CharSequence seq) {
+        int n = seq.length();
+        codes = new byte[n];
+        int runs = 0;
+        for (int i = 0; i < n; i++) {
+            char c = seq.charAt(i);
+            byte b = c < 128 ? CODES[c] : N;
+            codes[i] = b;
+            if (b == N && (i == 0 || codes[i-1] != N)) {
+                runs++;
+            }
+        }
+        nStarts = new int[runs];
+        nEnds = new int[runs];
+        quads = new byte[n];
+        int r = 0, q = 0;
+        for (int i = n - 1; i >= 0; i--) {
+            byte b = codes[i];
+            q = (q >> 2) | ((b == N ? 0 : b) << 6);
+            quads[i] = (byte)q;
+        }
+        for (int i = 0; i < n; i++) {
+            if (codes[i] == N) {
+                if (i == 0 || codes[i-1] != N) {
+                    nStarts[r] = i;
+                }
+                if (i == n - 1 || codes[i+1] != N) {
+                    nEnds[r++] = i + 1;
+                }
+            }
+        }
+    }
+
+    public int length() {return codes.length;}
+    /** 2-bit code of the base at i, or N */
+    public byte getCode(int i) {return codes[i];}
+    public boolean hasN() {return nStarts.length > 0;}
+
+    /* index of the first N run that ends after pos */
+    int firstRunAfter(int pos) {
+        int lo = 0, hi = nEnds.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (nEnds[mid] <= pos) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+}
@@ -12,10 +12,15 @@ public class WeightMatrixScoreProfile {
 	private double[] forward, reverse;
 	
 	public WeightMatrixScoreProfile(WeightMatrix m, double[] f, double[] r) {
+		this(m, f, r, true);
+	}
+	
+	/* WeightMatrixScorer hands over arrays it has just made, so there's no need to copy them */
+	WeightMatrixScoreProfile(WeightMatrix m, double[] f, double[] r, boolean copy) {
 		matrix = m;
 		if(f.length != r.length) { throw new IllegalArgumentException(); }
-		forward = (double[])f.clone();
-		reverse = (double[])r.clone();
+		forward = copy ? (double[])f.clone() : f;
+		reverse = copy ? (double[])r.clone() : r;
 	}
 	
 	public int length() { return forward.length; }
@@ -14,42 +14,35 @@ import edu.psu.compbio.seqcode.gse.utils.stats.StatUtil;
 public class WeightMatrixScorer implements Mapper<Region,WeightMatrixScoreProfile> {
 
     private WeightMatrix matrix;
+    private CompiledWeightMatrix compiled;
     private SequenceGenerator seqgen;
     
+    /* the matrix is compiled here, so the scorer won't see later changes to it */
     public WeightMatrixScorer(WeightMatrix m) {
     	matrix = m;
+    	compiled = new CompiledWeightMatrix(m);
         seqgen = new SequenceGenerator();
     }
     
     public WeightMatrixScorer(WeightMatrix m, SequenceGenerator sg) {
     	matrix = m;
+    	compiled = new CompiledWeightMatrix(m);
         seqgen = sg;
     }
     
     public WeightMatrixScoreProfile execute(Region r) { 
-        String seq = seqgen.execute(r);
-        seq = seq.toUpperCase();
-        double[] fscores = null, rscores = null;
-
-        try { 
-        	fscores = score(matrix, seq.toCharArray(), '+');
-            seq = SequenceUtils.reverseComplement(seq);
-            rscores = score(matrix, seq.toCharArray(), '-');
-
-        } catch (ArrayIndexOutOfBoundsException e) { 
-            e.printStackTrace(System.err);
-        }
-       	
-        return new WeightMatrixScoreProfile(matrix, fscores, rscores);
+        return execute(seqgen.execute(r));
     }
     
     public WeightMatrixScoreProfile execute(String seq) { 
-    	seq = seq.toUpperCase();
-        double[] fscores = null, rscores = null;
-    	fscores = score(matrix, seq.toCharArray(), '+');
-        seq = SequenceUtils.reverseComplement(seq);
-        rscores = score(matrix, seq.toCharArray(), '-');
-        return new WeightMatrixScoreProfile(matrix, fscores, rscores);
+        return execute(new EncodedSequence(seq));
+    }
+
+    /** scores both strands in one pass; see CompiledWeightMatrix */
+    public WeightMatrixScoreProfile execute(EncodedSequence seq) { 
+        double[] fscores = new double[seq.length()], rscores = new double[seq.length()];
+        compiled.score(seq, fscores, rscores);
+        return new WeightMatrixScoreProfile(matrix, fscores, rscores, false);
     }
 
     public static double[] score(WeightMatrix matrix, char[] sequence, char strand) {
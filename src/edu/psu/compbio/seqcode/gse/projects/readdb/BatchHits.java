@@ -0,0 +1,35 @@
+package edu.psu.compbio.seqcode.gse.projects.readdb;
+
+/**
+ * Results of a batched gethits request (see Client.getBatch()).  Holds the positions,
+ * weights, and lengths-and-strands codes of the hits in each region of the batch, indexed
+ * in the order in which the regions were requested.  Columns that weren't requested are null.
+ */
+public class BatchHits {
+
+    private int[] counts;
+    private int[][] positions, las;
+    private float[][] weights;
+
+    public BatchHits(int numRegions, boolean wantPositions, boolean wantWeights, boolean wantLAS) {
+        counts = new int[numRegions];
+        positions = wantPositions ? new int[numRegions][] : null;
+        weights = wantWeights ? new float[numRegions][] : null;
+        las = wantLAS ? new int[numRegions][] : null;
+    }
+
+    public int numRegions() {return counts.length;}
+    /** number of hits in the region.  -1 if the server couldn't read the region */
+    public int getCount(int region) {return counts[region];}
+    /** sorted hit positions in the region */
+    public int[] getPositions(int region) {return positions == null ? null : positions[region];}
+    /** hit weights in the region, in the same order as the positions */
+    public float[] getWeights(int region) {return weights == null ? null : weights[region];}
+    /** lengths-and-strands codes in the region (see Hits.getLengthOne() and Hits.getStrandOne()) */
+    public int[] getLAS(int region) {return las == null ? null : las[region];}
+
+    protected void setCount(int region, int c) {counts[region] = c;}
+    protected void setPositions(int region, int[] p) {positions[region] = p;}
+    protected void setWeights(int region, float[] w) {weights[region] = w;}
+    protected void setLAS(int region, int[] l) {las[region] = l;}
+}
@@ -75,102 +75,72 @@ public class Bits {
      *  uses the current value of the order field to determine whether it
      * should send big or little endian.
      *
-     * buffer is scratch space
+     * buffer is scratch space.  Values are converted a buffer at a time through an IntBuffer
+     * view rather than one at a time.
      */
     public static void sendInts(int[] a, OutputStream stream, byte[] buffer) throws IOException {
-        int i = 0;
-        ByteBuffer bb = ByteBuffer.wrap(buffer);
-        while (i < a.length) {
-            int end = i + (buffer.length/4) - 1;
-            int bufpos = 0;
-            if (end >= a.length) {
-                end = a.length - 1;
-            }            
-            for (int j = i; j <= end; j++) {
-                bb.putInt(bufpos*4, a[j]);
-                bufpos++;
-            }		
-            stream.write(buffer,0,(end - i + 1) * 4);
-            i += buffer.length / 4;
+        IntBuffer ib = ByteBuffer.wrap(buffer).asIntBuffer();
+        int chunk = buffer.length / 4;
+        for (int i = 0; i < a.length; i += chunk) {
+            int n = Math.min(chunk, a.length - i);
+            ib.clear();
+            ib.put(a, i, n);
+            stream.write(buffer, 0, n * 4);
         }
         stream.flush();
     }
     public static void sendFloats(float[] a, OutputStream stream, byte[] buffer) throws IOException {
-        int i = 0;
-        ByteBuffer bb = ByteBuffer.wrap(buffer);
-        while (i < a.length) {
-            int end = i + (buffer.length/4) - 1;
-            int bufpos = 0;
-            if (end >= a.length) {
-                end = a.length - 1;
-            }            
-            for (int j = i; j <= end; j++) {
-                bb.putFloat(bufpos*4, a[j]);
-                bufpos++;
-            }		
-            stream.write(buffer,0,(end - i + 1) * 4);
-            i += buffer.length / 4;
+        FloatBuffer fb = ByteBuffer.wrap(buffer).asFloatBuffer();
+        int chunk = buffer.length / 4;
+        for (int i = 0; i < a.length; i += chunk) {
+            int n = Math.min(chunk, a.length - i);
+            fb.clear();
+            fb.put(a, i, n);
+            stream.write(buffer, 0, n * 4);
         }
         stream.flush();
     }
+    /**
+     * reads count big-endian ints from the stream.  buffer is scratch space.  Whole buffers
+     * are read and then converted through an IntBuffer view, which the JVM does in bulk.
+     */
     public static int[] readInts(int count, InputStream instream, byte[] buffer) throws IOException {
         int[] output = new int[count];        
-        int outputpos = 0;
-        int bytesLeftover = 0;
-        ByteBuffer bb = ByteBuffer.wrap(buffer);
-        while (outputpos < count) {
-            bb.position(bytesLeftover);
-            int toread = Math.min((count - outputpos) * 4, buffer.length - bytesLeftover);
-            int bytesavail = instream.read(buffer, bytesLeftover, toread) + bytesLeftover;
-            if (bytesavail == -1 && outputpos < count) {
-                IOException e = new IOException(String.format("couldn't read enough bytes : %d %d", outputpos, count));
-                e.printStackTrace();
-                throw e;
-            }
-
-            int i = 0;
-            for (i = 0; i < bytesavail / 4 && outputpos < count; i++) {
-                output[outputpos++] = bb.getInt(i*4);
-            }
-            int j = i * 4 + 1;
-            while (j < bytesavail) {
-                buffer[j - i*4] = buffer[j];
-                j++;
-            }
-            bytesLeftover = bytesavail - i*4;
-            if (bytesLeftover < 0) {
-                System.err.println(String.format("avail was %d but i=%d",bytesavail,i));
-            }
-            if (bytesLeftover > bb.capacity()) {
-                System.err.println(String.format("leftover %d capacity %d", bytesLeftover, bb.capacity()));
-            }
-
-
+        IntBuffer ib = ByteBuffer.wrap(buffer).asIntBuffer();
+        int chunk = buffer.length / 4;
+        for (int outputpos = 0; outputpos < count; outputpos += chunk) {
+            int n = Math.min(chunk, count - outputpos);
+            readFully(instream, buffer, n * 4, outputpos, count);
+            ib.clear();
+            ib.get(output, outputpos, n);
         }
         return output;
     }
     public static float[] readFloats(int count, InputStream instream, byte[] buffer) throws IOException {
         float[] output = new float[count];        
-        int outputpos = 0;
-        int bytesLeftover = 0;
-        ByteBuffer bb = ByteBuffer.wrap(buffer);
-        while (outputpos < count) {
-            bb.position(bytesLeftover);
-            int toread = Math.min((count - outputpos) * 4, buffer.length - bytesLeftover);
-            int bytesavail = instream.read(buffer, bytesLeftover, toread) + bytesLeftover;
-            int i = 0;
-            for (i = 0; i < bytesavail / 4 && outputpos < count; i++) {
-                output[outputpos++] = bb.getFloat(i*4);
-            }
-            int j = i * 4 + 1;
-            while (j < bytesavail) {
-                buffer[j - i*4] = buffer[j];
-                j++;
-            }
-            bytesLeftover = bytesavail - i*4;
+        FloatBuffer fb = ByteBuffer.wrap(buffer).asFloatBuffer();
+        int chunk = buffer.length / 4;
+        for (int outputpos = 0; outputpos < count; outputpos += chunk) {
+            int n = Math.min(chunk, count - outputpos);
+            readFully(instream, buffer, n * 4, outputpos, count);
+            fb.clear();
+            fb.get(output, outputpos, n);
         }
         return output;
     }    
+    /* fills the first len bytes of buffer from the stream; outputpos and count are for the error message */
+    private static void readFully(InputStream instream, byte[] buffer, int len, int outputpos, int count) throws IOException {
+        int read = 0;
+        while (read < len) {
+            int r = instream.read(buffer, read, len - read);
+            if (r == -1) {
+                IOException e = new IOException(String.format("couldn't read enough bytes : %d %d", outputpos + read / 4, count));
+                e.printStackTrace();
+                throw e;
+            }
+            read += r;
+        }
+    }
     public static int[] floatToInt(float[] f) {
         int output[] = new int[f.length];
         for (int i = 0; i < f.length; i++) {
@@ -0,0 +1,454 @@
+package edu.psu.compbio.seqcode.gse.projects.readdb;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.apache.commons.cli.*;
+
+import net.sf.samtools.*;
+import net.sf.samtools.util.CloseableIterator;
+
+/**
+ * <p>Loads single-ended hits from SAM or BAM files straight into a readdb data directory, without
+ * going through the server.
+ * Usage:
+ * <pre>java edu.psu.compbio.seqcode.gse.projects.readdb.BulkImport --datadir /path/to/data --align alignmentname \
+ *    --user username [--threads 8] [--buffer 4000000] [--chroms chroms.txt] [--uniquehits] [--compress] \
+ *    [--tmpdir /scratch] one.bam [two.bam ...]</pre>
+ *
+ * <p>SAMToReadDB | ImportHits parses the alignments on one thread, sorts them as SingleHit objects and stores
+ * them through the server a chunk at a time.  BulkImport instead
+ * <ul>
+ * <li> decodes the inputs on --threads workers.  A BAM file with an index is split by reference sequence, so
+ *   that several workers can decode it at once.  Other files are read by one worker each.
+ * <li> keeps each worker's hits in primitive arrays per chromosome.  Once a worker holds --buffer hits, it sorts them
+ *   and spills each chromosome's run to disk in the segment file format (see SingleHits.writeSegment()).
+ * <li> merges each chromosome's runs (at most MAXFANIN at a time) into the main hits files and writes the index.
+ *   The chromosomes are merged in parallel.
+ * </ul>
+ *
+ * <p>The alignment must not exist yet.  Its files are written to a temporary directory next to the alignment's
+ * directory, which is renamed into place at the end, so a running server sees either nothing or the complete alignment.
+ * The ACL is the default ACL plus read, write and admin for --user, as the server sets for a new alignment.
+ *
+ * <p>Chromosome names are mapped to readdb's numeric ids by the --chroms file, which has a name and an id
+ * on each tab delimited line.  Without it, names must be numbers, optionally prefixed by "chr".  Hits on
+ * other chromosomes are skipped.  Hit positions, weights and --uniquehits follow SAMToReadDB.  Paired hits
+ * aren't loaded; use PairedSAMToReadDB and ImportHits for those.
+ */
+public class BulkImport {
+
+    /** the most runs merged at once.  Each open run holds three files */
+    public static final int MAXFANIN = 64;
+
+    private Server server;
+    private String alignname, username, tmpdir;
+    private int numThreads = 4, bufferHits = 4000000;
+    private boolean uniqueOnly = false;
+    private List<File> inputs;
+    private Map<String,Integer> chromMap = null;
+
+    /* the parts of the inputs that are still to be decoded */
+    private ConcurrentLinkedQueue<Unit> units;
+    /* ids of the runs spilled for each chromosome.  Guarded by itself */
+    private Map<Integer,List<Integer>> runs;
+    private AtomicInteger nextRun;
+    private AtomicLong numHits, numSkipped;
+    private Set<String> unknownChroms;
+    private String runPrefix, importPrefix;
+
+    public static void main(String args[]) {
+        BulkImport importer = new BulkImport();
+        try {
+            importer.parseArgs(args);
+            importer.run();
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    public void parseArgs(String args[]) throws IllegalArgumentException, ParseException, IOException {
+        Options options = new Options();
+        options.addOption("d","datadir",true,"the server's data directory");
+        options.addOption("a","align",true,"alignment name");
+        options.addOption("u","user",true,"user who gets read, write and admin access to the alignment");
+        options.addOption("t","threads",true,"number of threads to decode and merge with");
+        options.addOption("b","buffer",true,"hits each thread holds in memory before spilling them to disk");
+        options.addOption("c","chroms",true,"file mapping chromosome names to ids");
+        options.addOption("U","uniquehits",false,"only load hits with a single mapping");
+        options.addOption("Z","compress",false,"write the hits in the compressed format");
+        options.addOption("T","tmpdir",true,"directory for the spilled runs");
+        options.addOption("h","help",false,"print help message");
+        CommandLineParser parser = new GnuParser();
+        CommandLine line = parser.parse( options, args, false );
+        if (line.hasOption("help")) {
+            printHelp();
+            System.exit(0);
+        }
+        if (!line.hasOption("datadir") || !line.hasOption("align") || !line.hasOption("user")) {
+            printHelp();
+            throw new IllegalArgumentException("Must supply --datadir, --align and --user");
+        }
+        alignname = line.getOptionValue("align");
+        username = line.getOptionValue("user");
+        if (line.hasOption("threads")) {
+            numThreads = Math.max(1, Integer.parseInt(line.getOptionValue("threads")));
+        }
+        if (line.hasOption("buffer")) {
+            bufferHits = Math.max(1, Integer.parseInt(line.getOptionValue("buffer")));
+        }
+        if (line.hasOption("chroms")) {
+            chromMap = readChromMap(line.getOptionValue("chroms"));
+        }
+        uniqueOnly = line.hasOption("uniquehits");
+        tmpdir = line.getOptionValue("tmpdir");
+        inputs = new ArrayList<File>();
+        for (String f : line.getArgs()) {
+            inputs.add(new File(f));
+        }
+        if (inputs.size() == 0) {
+            printHelp();
+            throw new IllegalArgumentException("No input files");
+        }
+        /* the Server is only used for the layout of the data directory */
+        server = new Server();
+        if (line.hasOption("compress")) {
+            server.parseArgs(new String[]{"--datadir", line.getOptionValue("datadir"), "--compress"});
+        } else {
+            server.parseArgs(new String[]{"--datadir", line.getOptionValue("datadir")});
+        }
+    }
+    public void printHelp() {
+        System.out.println("BulkImport SAM/BAM files into a ReadDB data directory");
+        System.out.println("usage: java edu.psu.compbio.seqcode.gse.projects.readdb.BulkImport --datadir /path/to/data \\");
+        System.out.println(" --align alignmentname --user username [options] one.bam [two.bam ...]");
+        System.out.println(" [--threads 4] threads to decode and merge with");
+        System.out.println(" [--buffer 4000000] hits each thread holds in memory before spilling them to disk");
+        System.out.println(" [--chroms chroms.txt] tab delimited chromosome names and ids.  Default is to");
+        System.out.println("   parse the names as numbers, ignoring any chr prefix");
+        System.out.println(" [--uniquehits] only load hits with a single mapping");
+        System.out.println(" [--compress] write the hits in the compressed format");
+        System.out.println(" [--tmpdir dir] directory for the spilled runs.  Default is the data directory");
+        System.out.println(" [--help] print usage");
+    }
+    private static Map<String,Integer> readChromMap(String fname) throws IOException {
+        Map<String,Integer> output = new HashMap<String,Integer>();
+        BufferedReader reader = new BufferedReader(new FileReader(fname));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            String pieces[] = line.split("\\t");
+            if (pieces.length >= 2) {
+                output.put(pieces[0], Integer.parseInt(pieces[1].trim()));
+            }
+        }
+        reader.close();
+        return output;
+    }
+    /* readdb chromosome id for a reference name, or null if it can't be loaded */
+    private Integer chromID(String name) {
+        if (chromMap != null) {
+            return chromMap.get(name);
+        }
+        String n = name.startsWith("chr") ? name.substring(3) : name;
+        try {
+            return Integer.parseInt(n);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    public void run() throws IOException {
+        long started = System.currentTimeMillis();
+        String aligndir = server.getAlignmentDir(alignname);
+        if ((new File(aligndir)).exists()) {
+            throw new IOException("Alignment " + alignname + " already exists in " + aligndir);
+        }
+        /* alignment directory names never contain '.', so these can't collide with an alignment */
+        File importdir = new File(aligndir + ".import");
+        File rundir = tmpdir == null ? new File(aligndir + ".runs") : new File(tmpdir, (new File(aligndir)).getName() + ".runs");
+        if (importdir.exists() || rundir.exists()) {
+            throw new IOException("Remove " + importdir + " and " + rundir + " left by an earlier import first");
+        }
+        if (!importdir.mkdirs() || !rundir.mkdirs()) {
+            throw new IOException("Can't create " + importdir + " or " + rundir);
+        }
+        String sep = System.getProperty("file.separator");
+        importPrefix = importdir.getPath() + sep;
+        runPrefix = rundir.getPath() + sep;
+
+        runs = new HashMap<Integer,List<Integer>>();
+        nextRun = new AtomicInteger(1);
+        numHits = new AtomicLong(0);
+        numSkipped = new AtomicLong(0);
+        unknownChroms = Collections.synchronizedSet(new HashSet<String>());
+        units = new ConcurrentLinkedQueue<Unit>();
+        for (File f : inputs) {
+            addUnits(f);
+        }
+
+        List<Runnable> decoders = new ArrayList<Runnable>();
+        for (int i = 0; i < numThreads; i++) {
+            decoders.add(new Runnable() {
+                    public void run() {
+                        RunBuffer buffer = new RunBuffer();
+                        Unit u;
+                        try {
+                            while ((u = units.poll()) != null) {
+                                decode(u, buffer);
+                            }
+                            buffer.spill();
+                        } catch (IOException e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                });
+        }
+        runAll(decoders);
+        System.err.println(String.format("Decoded %d hits (%d skipped) into %d runs in %d s",
+                                         numHits.get(), numSkipped.get(), nextRun.get() - 1,
+                                         (System.currentTimeMillis() - started) / 1000));
+
+        List<Runnable> mergers = new ArrayList<Runnable>();
+        for (final int chrom : runs.keySet()) {
+            mergers.add(new Runnable() {
+                    public void run() {
+                        try {
+                            merge(chrom);
+                        } catch (IOException e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                });
+        }
+        runAll(mergers);
+
+        AlignmentACL acl = new AlignmentACL();
+        try {
+            acl.readFromFile(server.getDefaultACLFileName());
+        } catch (IOException e) {
+            // no default acl, so dont' worry.
+        }
+        acl.getAdminACL().add(username);
+        acl.getWriteACL().add(username);
+        acl.getReadACL().add(username);
+        acl.writeToFile(importPrefix + (new File(server.getACLFileName(alignname))).getName());
+        if (!importdir.renameTo(new File(aligndir))) {
+            throw new IOException("Couldn't rename " + importdir + " to " + aligndir);
+        }
+        rundir.delete();
+        System.err.println(String.format("Loaded %d hits on %d chromosomes into %s in %d s",
+                                         numHits.get(), runs.size(), aligndir,
+                                         (System.currentTimeMillis() - started) / 1000));
+    }
+
+    /* runs the tasks on numThreads threads and rethrows the first failure */
+    private void runAll(List<Runnable> tasks) throws IOException {
+        ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (Runnable r : tasks) {
+            futures.add(pool.submit(r));
+        }
+        pool.shutdown();
+        try {
+            for (Future<?> f : futures) {
+                f.get();
+            }
+        } catch (InterruptedException e) {
+            pool.shutdownNow();
+            throw new InterruptedIOException(e.toString());
+        } catch (ExecutionException e) {
+            pool.shutdownNow();
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException && cause.getCause() instanceof IOException) {
+                throw (IOException)cause.getCause();
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /** a file, or one reference sequence of an indexed BAM file */
+    private static class Unit {
+        final File file;
+        final String reference;
+        Unit(File f, String r) {file = f; reference = r;}
+        public String toString() {return reference == null ? file.toString() : (file + ":" + reference);}
+    }
+    private void addUnits(File f) {
+        SAMFileReader reader = new SAMFileReader(f);
+        reader.setValidationStringency(SAMFileReader.ValidationStringency.SILENT);
+        if (reader.isBinary() && reader.hasIndex()) {
+            for (SAMSequenceRecord seq : reader.getFileHeader().getSequenceDictionary().getSequences()) {
+                if (chromID(seq.getSequenceName()) != null) {
+                    units.add(new Unit(f, seq.getSequenceName()));
+                } else if (unknownChroms.add(seq.getSequenceName())) {
+                    System.err.println("Skipping chromosome " + seq.getSequenceName() + " of " + f);
+                }
+            }
+        } else {
+            units.add(new Unit(f, null));
+        }
+        reader.close();
+    }
+
+    private void decode(Unit u, RunBuffer buffer) throws IOException {
+        SAMFileReader reader = new SAMFileReader(u.file);
+        reader.setValidationStringency(SAMFileReader.ValidationStringency.SILENT);
+        CloseableIterator<SAMRecord> iter = u.reference == null ? reader.iterator() : reader.query(u.reference, 0, 0, false);
+        /* reference names are looked up once each */
+        Map<String,Integer> ids = new HashMap<String,Integer>();
+        long n = 0, skipped = 0;
+        try {
+            while (iter.hasNext()) {
+                SAMRecord record = iter.next();
+                if (record.getReadUnmappedFlag()) {continue; }
+                int count = 1;
+                if (record.getIntegerAttribute("NH") != null) {
+                    count = record.getIntegerAttribute("NH");
+                }
+                if (uniqueOnly && !(count == 1 && record.getMappingQuality() != 0)) {
+                    continue;
+                }
+                String name = record.getReferenceName();
+                Integer chrom = ids.get(name);
+                if (chrom == null && !ids.containsKey(name)) {
+                    chrom = chromID(name);
+                    ids.put(name, chrom);
+                    if (chrom == null && unknownChroms.add(name)) {
+                        System.err.println("Skipping hits on chromosome " + name);
+                    }
+                }
+                if (chrom == null) {
+                    skipped++;
+                    continue;
+                }
+                boolean neg = record.getReadNegativeStrandFlag();
+                buffer.add(chrom,
+                           neg ? record.getAlignmentEnd() : record.getAlignmentStart(),
+                           1 / (float)count,
+                           Hits.makeLAS((short)record.getReadLength(), !neg));
+                n++;
+            }
+        } finally {
+            iter.close();
+            reader.close();
+        }
+        numHits.addAndGet(n);
+        numSkipped.addAndGet(skipped);
+        System.err.println(String.format("Decoded %d hits from %s", n, u));
+    }
+
+    /** hits for one chromosome in arrival order */
+    private static class ChromBuffer {
+        int[] positions = new int[1024], las = new int[1024];
+        float[] weights = new float[1024];
+        int size = 0;
+        void add(int pos, float weight, int l) {
+            if (size == positions.length) {
+                positions = Arrays.copyOf(positions, size * 2);
+                weights = Arrays.copyOf(weights, size * 2);
+                las = Arrays.copyOf(las, size * 2);
+            }
+            positions[size] = pos;
+            weights[size] = weight;
+            las[size] = l;
+            size++;
+        }
+    }
+    /** one decoding thread's hits that haven't been spilled yet */
+    private class RunBuffer {
+        private Map<Integer,ChromBuffer> chroms = new HashMap<Integer,ChromBuffer>();
+        private int size = 0;
+
+        void add(int chrom, int pos, float weight, int l) throws IOException {
+            ChromBuffer b = chroms.get(chrom);
+            if (b == null) {
+                b = new ChromBuffer();
+                chroms.put(chrom, b);
+            }
+            b.add(pos, weight, l);
+            if (++size >= bufferHits) {
+                spill();
+            }
+        }
+        /* sorts each chromosome's hits and writes them as a run.  The buffers are dropped rather than
+           reused, since a worker's next hits may well be on other chromosomes */
+        void spill() throws IOException {
+            for (Map.Entry<Integer,ChromBuffer> e : chroms.entrySet()) {
+                writeRun(e.getKey(), e.getValue());
+            }
+            chroms.clear();
+            size = 0;
+        }
+    }
+    private void writeRun(int chrom, ChromBuffer b) throws IOException {
+        /* sorting position and index packed into a long keeps hits at the same position in arrival order */
+        long indices[] = new long[b.size];
+        for (int i = 0; i < indices.length; i++) {
+            long v = b.positions[i];
+            v <<= 32;
+            v |= i;
+            indices[i] = v;
+        }
+        Arrays.sort(indices);
+        IntBP positions = new IntBP(b.size);
+        FloatBP weights = new FloatBP(b.size);
+        IntBP las = new IntBP(b.size);
+        for (int i = 0; i < indices.length; i++) {
+            int index = (int)(indices[i] & 0xffffffffL);
+            positions.put(i, b.positions[index]);
+            weights.put(i, b.weights[index]);
+            las.put(i, b.las[index]);
+        }
+        int id = nextRun.getAndIncrement();
+        SingleHits.writeSegment(positions, weights, las, runPrefix, chrom, id);
+        synchronized(runs) {
+            List<Integer> l = runs.get(chrom);
+            if (l == null) {
+                l = new ArrayList<Integer>();
+                runs.put(chrom, l);
+            }
+            l.add(id);
+        }
+    }
+
+    /* merges a chromosome's runs into its main files in the import directory */
+    private void merge(int chrom) throws IOException {
+        List<Integer> ids;
+        synchronized(runs) {
+            ids = new ArrayList<Integer>(runs.get(chrom));
+        }
+        while (ids.size() > MAXFANIN) {
+            List<Integer> group = ids.subList(0, MAXFANIN);
+            int id = nextRun.getAndIncrement();
+            mergeRuns(chrom, group, runPrefix, id, false);
+            SingleHits.renameMerged(runPrefix, chrom, id, false);
+            group.clear();
+            ids.add(id);
+        }
+        mergeRuns(chrom, ids, importPrefix, 0, server.compress());
+        Header header = SingleHits.indexMerged(importPrefix, chrom, 0, server.compress());
+        SingleHits.renameMerged(importPrefix, chrom, 0, server.compress());
+        header.writeIndexFile(importPrefix + (new File(server.getSingleHeaderFileName(alignname, chrom))).getName());
+        System.err.println(String.format("Merged %d hits on chromosome %d", header.getNumHits(), chrom));
+    }
+    /* merges the runs with writeMerged() and deletes them */
+    private void mergeRuns(int chrom, List<Integer> ids, String prefix, int segment, boolean compressed) throws IOException {
+        Hits[] hits = new Hits[ids.size()];
+        try {
+            for (int i = 0; i < hits.length; i++) {
+                hits[i] = new SingleHits(runPrefix, chrom, ids.get(i));
+            }
+            SingleHits.writeMerged(hits, prefix, chrom, segment, compressed);
+        } finally {
+            for (int i = 0; i < hits.length; i++) {
+                if (hits[i] != null) {
+                    hits[i].close();
+                }
+                SingleHits.deleteSegment(runPrefix, chrom, ids.get(i));
+            }
+        }
+    }
+}
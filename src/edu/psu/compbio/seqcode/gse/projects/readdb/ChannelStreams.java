@@ -0,0 +1,168 @@
+package edu.psu.compbio.seqcode.gse.projects.readdb;
+
+import java.io.*;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+
+/**
+ * Blocking InputStream and OutputStream views of a non-blocking SocketChannel.
+ *
+ * NioDispatch keeps every client channel in non-blocking mode so that it can stay registered
+ * with the dispatch Selector.  ServerTask, however, is written against blocking streams
+ * (readLine(), the SASL exchange and the bulk reads in the store requests).  These streams bridge the
+ * two: reads and writes are attempted without blocking and, when the channel isn't ready, the calling
+ * worker thread waits on its own private Selector until it is (or until the timeout expires).
+ *
+ * Output can also send straight from a file to the channel (see transferFrom()).
+ *
+ * Input also keeps a small buffer that NioDispatch fills from the selector thread with fill(); the
+ * bytes are then handed out, in order, by the normal read methods.
+ */
+public class ChannelStreams {
+
+    /* one wait selector per worker thread; keys are cancelled after every wait */
+    private static final ThreadLocal<Selector> waitSelectors = new ThreadLocal<Selector>();
+
+    /**
+     * Blocks the current thread until the channel is ready for op or the timeout (millis) expires
+     */
+    protected static void await(SocketChannel channel, int op, int timeout) throws IOException {
+        Selector selector = waitSelectors.get();
+        if (selector == null) {
+            selector = Selector.open();
+            waitSelectors.set(selector);
+        }
+        SelectionKey key = channel.register(selector, op);
+        try {
+            if (selector.select(timeout) == 0) {
+                throw new SocketTimeoutException("Timed out waiting on " + channel);
+            }
+        } finally {
+            key.cancel();
+            selector.selectNow();
+        }
+    }
+
+    public static class Input extends InputStream {
+        private SocketChannel channel;
+        private ByteBuffer buffer;
+        private int timeout;
+        private boolean eof;
+
+        public Input(SocketChannel c, int bufferSize, int timeout) {
+            channel = c;
+            buffer = ByteBuffer.allocate(bufferSize);
+            buffer.flip();
+            this.timeout = timeout;
+            eof = false;
+        }
+        /**
+         * Reads whatever the channel has available into the buffer without blocking.
+         * Returns the number of bytes read (possibly 0) or -1 if the other end has closed
+         * the connection.
+         */
+        public synchronized int fill() throws IOException {
+            if (eof) {
+                return -1;
+            }
+            buffer.compact();
+            try {
+                int r = channel.read(buffer);
+                if (r == -1) {
+                    eof = true;
+                }
+                return r;
+            } finally {
+                buffer.flip();
+            }
+        }
+        public synchronized int available() throws IOException {
+            if (!buffer.hasRemaining() && !eof) {
+                fill();
+            }
+            return buffer.remaining();
+        }
+        public synchronized int read() throws IOException {
+            if (!waitForInput()) {
+                return -1;
+            }
+            return buffer.get() & 0xff;
+        }
+        public synchronized int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!waitForInput()) {
+                return -1;
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+        public void close() throws IOException {
+            channel.close();
+        }
+        /* returns false at end of stream */
+        private boolean waitForInput() throws IOException {
+            while (!buffer.hasRemaining()) {
+                int r = fill();
+                if (r == -1) {
+                    return false;
+                } else if (r == 0) {
+                    await(channel, SelectionKey.OP_READ, timeout);
+                }
+            }
+            return true;
+        }
+    }
+
+    public static class Output extends OutputStream {
+        private SocketChannel channel;
+        private int timeout;
+        private byte[] one;
+
+        public Output(SocketChannel c, int timeout) {
+            channel = c;
+            this.timeout = timeout;
+            one = new byte[1];
+        }
+        public synchronized void write(int b) throws IOException {
+            one[0] = (byte)b;
+            write(one, 0, 1);
+        }
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            write(ByteBuffer.wrap(b, off, len));
+        }
+        /**
+         * Writes all remaining bytes of the buffer, waiting for the channel to drain as needed
+         */
+        public synchronized void write(ByteBuffer b) throws IOException {
+            while (b.hasRemaining()) {
+                if (channel.write(b) == 0) {
+                    await(channel, SelectionKey.OP_WRITE, timeout);
+                }
+            }
+        }
+        /**
+         * Sends count bytes of the file, starting at position, with FileChannel.transferTo() so that
+         * the kernel can move them to the socket without copying them through the JVM.
+         */
+        public synchronized void transferFrom(FileChannel fc, long position, long count) throws IOException {
+            long end = position + count;
+            while (position < end) {
+                long sent = fc.transferTo(position, end - position, channel);
+                if (sent == 0) {
+                    if (position >= fc.size()) {
+                        throw new EOFException("hits file is shorter than expected");
+                    }
+                    await(channel, SelectionKey.OP_WRITE, timeout);
+                }
+                position += sent;
+            }
+        }
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -19,6 +19,9 @@ import javax.security.auth.callback.*;
  * <p>Client IS NOT REENTRANT.  Do not overlap calls to a single Client object.
  *
  * <p>The current version of Client keeps a separate thread for pinging the server to see if the connection is alive. 
+ *
+ * <p>Multi-threaded code should share a ClientPool rather than opening a Client per thread.  The pool
+ * reuses authenticated connections and can pipeline many reads on one connection (see Call and pipeline()).
  * 
  * <p>Most method parameters that are object types (eg Integer, Boolean) are optional.  If a null value
  * is passed then no filtering is done based on that parameter.  
@@ -52,6 +55,8 @@ public class Client implements ReadOnlyClient {
     /* temporary space for receiving data; contents not persistent between method calls */
     byte[] buffer;
     private static final int BUFFERLEN = 8192*20;
+    /** the most calls that pipeline() keeps outstanding on the connection */
+    public static final int MAXINFLIGHT = 32;
     private final int socketReadTimeout = 10000; //socket timeout in ms
     private final int threadSleepTime = 3000; //check alive thread sleep time in ms
     private Request request;
@@ -59,6 +64,8 @@ public class Client implements ReadOnlyClient {
     private boolean printErrors;
     private String hostname, username, password;
     private int portnum;
+    /* false for connections owned by a ClientPool, which checks its idle connections itself */
+    private boolean keepAlive = true;
     
     /** Connects to a Readdb server on the specified host and port using the specified 
      * username and password.
@@ -71,6 +78,17 @@ public class Client implements ReadOnlyClient {
                    String passwd) throws IOException, ClientException {
         init(hostname,portnum,username,passwd);
     }
+    /**
+     * Connects without starting the check alive thread.  Used by ClientPool.
+     */
+    Client (String hostname,
+            int portnum,
+            String username,
+            String passwd,
+            boolean keepAlive) throws IOException, ClientException {
+        this.keepAlive = keepAlive;
+        init(hostname,portnum,username,passwd);
+    }
     /**
      * Creates the default connection
      * as specified by ~/.readdb_passwd or a readdb_passwd found in the classpath
@@ -81,6 +99,18 @@ public class Client implements ReadOnlyClient {
      * @throws ClientException if the client cannot authenticate to the server
      */
     public Client() throws IOException, ClientException {
+        PropertyResourceBundle bundle = defaultProperties();
+        String hostname = bundle.getString("hostname");
+        String port = bundle.getString("port");
+        String username = bundle.getString("username");
+        String password = bundle.getString("passwd");
+        init(hostname, Integer.parseInt(port), username, password);
+    }
+    /**
+     * Reads the default connection properties from ~/.readdb_passwd or a readdb_passwd
+     * found in the classpath
+     */
+    static PropertyResourceBundle defaultProperties() throws IOException {
         String homedir = System.getenv("HOME");
         String basename = "readdb_passwd";
         if (System.getenv("READDBROLE") != null) {
@@ -106,11 +136,7 @@ public class Client implements ReadOnlyClient {
                 throw new IOException("Can't read connection properties from " + url);
             }
         }
-        String hostname = bundle.getString("hostname");
-        String port = bundle.getString("port");
-        String username = bundle.getString("username");
-        String password = bundle.getString("passwd");
-        init(hostname, Integer.parseInt(port), username, password);
+        return bundle;
     }
     
     private void init(String hostname,
@@ -150,8 +176,10 @@ public class Client implements ReadOnlyClient {
 	        printErrors = false;
 	        
 	        //Start a new check alive thread
-	        checkAliveThread = new Thread(new ClientCheckAliveThread(this));
-	        checkAliveThread.start();
+	        if (keepAlive) {
+	            checkAliveThread = new Thread(new ClientCheckAliveThread(this));
+	            checkAliveThread.start();
+	        }
     	}
     }
     
@@ -190,6 +218,10 @@ public class Client implements ReadOnlyClient {
         	return false;
         }
     }
+    /** true until the connection has been closed on this end */
+    boolean isOpen() {
+        return socket != null && !socket.isClosed();
+    }
     /**
      * Determines whether the client will print error messages to STDERR.  Useful for debugging 
      * but may produce unwanted screen output.
@@ -548,103 +580,54 @@ public class Client implements ReadOnlyClient {
      * Any of the object parameters can be set to null to specify "no value"
      */
     public int getCount(String alignid, int chromid, boolean paired, Integer start, Integer stop, Float minWeight, Boolean isLeft, Boolean plusStrand)  throws IOException, ClientException {
-    	synchronized(this){
-	    	request.clear();
-	        request.type="count";
-	        request.alignid=alignid;
-	        request.chromid=chromid;
-	        request.start = start;
-	        request.end = stop;
-	        request.minWeight = minWeight;
-	        request.isPlusStrand = plusStrand;
-	        request.isPaired = paired;
-	        request.isLeft = isLeft == null ? true : isLeft;
-	        sendString(request.toString());
-	        String response = readLine();
-	        if (!response.equals("OK")) {
-	            if (printErrors) {
-	                System.err.println("not-OK response to request: " + response);
-	                System.err.println("request was " + request);
-	            }
-	            throw new ClientException(response);
-	        }
-	        int numhits = Integer.parseInt(readLine());
-	        return numhits;
-    	}
+        return call(countCall(alignid, chromid, paired, start, stop, minWeight, isLeft, plusStrand));
     }
     /** returns the total weight on the specified chromosome in this alignment
      */
     public double getWeight(String alignid, int chromid, boolean paired, Integer start, Integer stop, Float minWeight, Boolean isLeft, Boolean plusStrand) throws IOException, ClientException {
-    	synchronized(this){
-	    	request.clear();
-	        request.type="weight";
-	        request.alignid=alignid;
-	        request.chromid=chromid;
-	        request.start = start;
-	        request.end = stop;
-	        request.minWeight = minWeight;
-	        request.isPlusStrand = plusStrand;
-	        request.isPaired = paired;
-	        request.isLeft = isLeft == null ? true : isLeft;
-	        sendString(request.toString());
-	        String response = readLine();
-	        if (!response.equals("OK")) {
-	            if (printErrors) {
-	                System.err.println("not-OK response to request: " + response);
-	                System.err.println("request was " + request);
-	            }
-	            throw new ClientException(response);
-	        }
-	        return Double.parseDouble(readLine());
-    	}
+        return call(weightCall(alignid, chromid, paired, start, stop, minWeight, isLeft, plusStrand));
     }
 
     /** 
      * returns the sorted (ascending order) hit positions in the specified range of a chromosome,alignment pair.
      */ 
     public int[] getPositions(String alignid, int chromid, boolean paired, Integer start, Integer stop, Float minWeight, Boolean isLeft, Boolean plusStrand) throws IOException, ClientException {
-    	synchronized(this){
-	    	request.clear();
-	        request.type="gethits";
-	        request.alignid=alignid;
-	        request.chromid=chromid;
-	        request.start = start;
-	        request.end = stop;
-	        request.minWeight = minWeight;
-	        request.isPlusStrand = plusStrand;
-	        request.isPaired = paired;
-	        request.isLeft = isLeft;
-	        request.map.put("wantpositions","1");
-	        sendString(request.toString());        
-	        String response = readLine();
-	        if (!response.equals("OK")) {
-	            if (printErrors) {
-	                System.err.println("not-OK response to request: " + response);
-	                System.err.println("request was " + request);
-	            }
-	            throw new ClientException(response);
-	        }
-	        int numhits = Integer.parseInt(readLine());
-	        return Bits.readInts(numhits, instream, buffer);
-    	}
+        return call(positionsCall(alignid, chromid, paired, start, stop, minWeight, isLeft, plusStrand));
     }
     /** 
      * returns the hit weights in the specified range of a chromosome,alignment pair.  The weights
      * will be in the same order as the sorted positions returned by getPositions()
      */ 
     public float[] getWeightsRange(String alignid, int chromid, boolean paired, Integer start, Integer stop, Float minWeight, Boolean isLeft, Boolean plusStrand) throws IOException, ClientException {
+        return call(weightsCall(alignid, chromid, paired, start, stop, minWeight, isLeft, plusStrand));
+    }
+    /**
+     * Fetches hits in many regions with a single request.  Region i is (chromids[i], starts[i], stops[i]) in
+     * alignment alignids.get(alignIndex[i]).  The filters (paired, isLeft, minWeight, plusStrand) apply to
+     * every region.  The results are indexed in the same order as the regions; a region on a chromosome
+     * with no hits is empty.  Each alignment id takes one request line, so a batch can name at most 
+     * about 90 alignments, and the server takes at most ServerTask.MAXBATCHREGIONS regions per batch.
+     * @throws ClientException if any alignment is missing or not readable, or if the server couldn't read a region
+     */
+    public BatchHits getBatch(List<String> alignids, int[] alignIndex, int[] chromids, int[] starts, int[] stops,
+                              boolean paired, Float minWeight, Boolean isLeft, Boolean plusStrand,
+                              boolean wantPositions, boolean wantWeights, boolean wantLAS) throws IOException, ClientException {
+        int numRegions = chromids.length;
+        if (alignIndex.length != numRegions || starts.length != numRegions || stops.length != numRegions) {
+            throw new IllegalArgumentException("region arrays must all be the same length");
+        }
     	synchronized(this){
 	    	request.clear();
-	        request.type="gethits";
-	        request.alignid=alignid;
-	        request.chromid=chromid;
-	        request.start = start;
-	        request.end = stop;
+	        request.type="getbatch";
 	        request.minWeight = minWeight;
 	        request.isPlusStrand = plusStrand;
 	        request.isPaired = paired;
 	        request.isLeft = isLeft;
-	        request.map.put("wantweights","1");
+	        request.map.put("numregions", Integer.toString(numRegions));
+	        if (wantPositions) {request.map.put("wantpositions","1");}
+	        if (wantWeights) {request.map.put("wantweights","1");}
+	        if (wantLAS) {request.map.put("wantlengthsandstrands","1");}
+	        request.list.addAll(alignids);
 	        sendString(request.toString());        
 	        String response = readLine();
 	        if (!response.equals("OK")) {
@@ -654,10 +637,63 @@ public class Client implements ReadOnlyClient {
 	            }
 	            throw new ClientException(response);
 	        }
-	        int numhits = Integer.parseInt(readLine());
-	        return Bits.readFloats(numhits, instream, buffer);
+	        BatchHits output = new BatchHits(numRegions, wantPositions, wantWeights, wantLAS);
+	        if (numRegions == 0) {
+	            return output;
+	        }
+	        int[] regions = new int[numRegions * 4];
+	        for (int i = 0; i < numRegions; i++) {
+	            regions[4*i] = alignIndex[i];
+	            regions[4*i+1] = chromids[i];
+	            regions[4*i+2] = starts[i];
+	            regions[4*i+3] = stops[i];
+	        }
+	        Bits.sendInts(regions, outstream, buffer);
+	        outstream.flush();
+	        boolean failed = false;
+	        for (int i = 0; i < numRegions; i++) {
+	            int numhits = Bits.readInts(1, instream, buffer)[0];
+	            output.setCount(i, numhits);
+	            if (numhits < 0) {
+	                failed = true;
+	                numhits = 0;
+	            }
+	            if (wantPositions) {output.setPositions(i, Bits.readInts(numhits, instream, buffer));}
+	            if (wantWeights) {output.setWeights(i, Bits.readFloats(numhits, instream, buffer));}
+	            if (wantLAS) {output.setLAS(i, Bits.readInts(numhits, instream, buffer));}
+	        }
+	        if (failed) {
+	            throw new ClientException("server couldn't read one or more regions of the batch");
+	        }
+	        return output;
     	}
     }
+    /** 
+     * Batched form of getPositions(): the sorted hit positions in each of the regions (chromids[i], starts[i], stops[i])
+     * of one alignment
+     */
+    public int[][] getPositions(String alignid, int[] chromids, int[] starts, int[] stops, boolean paired, Float minWeight, Boolean isLeft, Boolean plusStrand) throws IOException, ClientException {
+        BatchHits b = getBatch(Collections.singletonList(alignid), new int[chromids.length], chromids, starts, stops,
+                               paired, minWeight, isLeft, plusStrand, true, false, false);
+        int[][] output = new int[b.numRegions()][];
+        for (int i = 0; i < output.length; i++) {
+            output[i] = b.getPositions(i);
+        }
+        return output;
+    }
+    /** 
+     * Batched form of getWeightsRange(): the hit weights in each of the regions (chromids[i], starts[i], stops[i])
+     * of one alignment, in the same order as the positions returned by getPositions()
+     */
+    public float[][] getWeightsRange(String alignid, int[] chromids, int[] starts, int[] stops, boolean paired, Float minWeight, Boolean isLeft, Boolean plusStrand) throws IOException, ClientException {
+        BatchHits b = getBatch(Collections.singletonList(alignid), new int[chromids.length], chromids, starts, stops,
+                               paired, minWeight, isLeft, plusStrand, false, true, false);
+        float[][] output = new float[b.numRegions()][];
+        for (int i = 0; i < output.length; i++) {
+            output[i] = b.getWeights(i);
+        }
+        return output;
+    }
     public List<SingleHit> getSingleHits(String alignid, int chromid, Integer start, Integer stop, Float minWeight, Boolean plusStrand) throws IOException, ClientException {
     	synchronized(this){
     		request.clear();
@@ -840,83 +876,13 @@ public class Client implements ReadOnlyClient {
         return getHistogram(alignid, chromid, paired, doReadExtension,binsize,0,start,stop,minWeight,plusStrand,true);
     }
     public TreeMap<Integer,Integer> getHistogram(String alignid, int chromid, boolean paired, boolean doReadExtension, int binsize, int dedup, Integer start, Integer stop, Float minWeight, Boolean plusStrand, boolean isLeft) throws IOException, ClientException {
-    	synchronized(this){
-	    	request.clear();
-	        request.type="histogram";
-	        request.alignid=alignid;
-	        request.chromid=chromid;
-	        request.start = start;
-	        request.end = stop;
-	        request.isLeft = isLeft;
-	        request.minWeight = minWeight;
-	        request.isPlusStrand = plusStrand;
-	        request.isPaired = paired;
-	        request.map.put("binsize",Integer.toString(binsize));
-	        if (dedup > 0) {
-	            request.map.put("dedup",Integer.toString(dedup));
-	        }
-	        if (doReadExtension) {
-	            request.map.put("extension","1");
-	        }
-	        sendString(request.toString());        
-	        String response = readLine();
-	        if (!response.equals("OK")) {
-	            if (printErrors) {
-	                System.err.println("not-OK response to request: " + response);
-	                System.err.println("request was " + request);
-	            }
-	            throw new ClientException(response);
-	        }
-	        int numints = Integer.parseInt(readLine());
-	        int out[] = Bits.readInts(numints, instream, buffer);
-	        TreeMap<Integer,Integer> output = new TreeMap<Integer,Integer>();
-	        for (int i = 0; i < out.length; i += 2) {
-	            output.put(out[i], out[i+1]);
-	        }
-	        return output;
-    	}
+        return call(histogramCall(alignid, chromid, paired, doReadExtension, binsize, dedup, start, stop, minWeight, plusStrand, isLeft));
     }
     public TreeMap<Integer,Float> getWeightHistogram(String alignid, int chromid, boolean paired, boolean doReadExtension, int binsize, Integer start, Integer stop, Float minWeight, Boolean plusStrand) throws IOException, ClientException {
         return getWeightHistogram(alignid, chromid, paired, doReadExtension, binsize, 0, start,stop,minWeight,plusStrand, true);
     }
     public TreeMap<Integer,Float> getWeightHistogram(String alignid, int chromid, boolean paired, boolean doReadExtension, int binsize, int dedup, Integer start, Integer stop, Float minWeight, Boolean plusStrand, boolean isLeft) throws IOException, ClientException {
-    	synchronized(this){
-	    	request.clear();
-	        request.type="weighthistogram";
-	        request.alignid=alignid;
-	        request.chromid=chromid;
-	        request.start = start;
-	        request.end = stop;
-	        request.minWeight = minWeight;
-	        request.isPlusStrand = plusStrand;
-	        request.isLeft = isLeft;
-	        request.isPaired = paired;
-	        request.map.put("binsize",Integer.toString(binsize));
-	        if (dedup > 0) {
-	            request.map.put("dedup",Integer.toString(dedup));
-	        }
-	
-	        if (doReadExtension) {
-	            request.map.put("extension","1");
-	        }
-	        sendString(request.toString());        
-	        String response = readLine();
-	        if (!response.equals("OK")) {
-	            if (printErrors) {
-	                System.err.println("not-OK response to request: " + response);
-	                System.err.println("request was " + request);
-	            }
-	            throw new ClientException(response);
-	        }
-	        int numints = Integer.parseInt(readLine());
-	        int out[] = Bits.readInts(numints, instream, buffer);
-	        float weight[] = Bits.readFloats(numints, instream,buffer);
-	        TreeMap<Integer,Float> output = new TreeMap<Integer,Float>();
-	        for (int i = 0; i < out.length; i++) {
-	            output.put(out[i], weight[i]);
-	        }
-	        return output;
-    	}
+        return call(weightHistogramCall(alignid, chromid, paired, doReadExtension, binsize, dedup, start, stop, minWeight, plusStrand, isLeft));
     }
 
     public TreeMap<Integer,Integer> getHistogram(Collection<String> alignids, int chromid, boolean paired, boolean doReadExtension, int binsize, Integer start, Integer stop, Float minWeight, Boolean plusStrand) throws IOException, ClientException {
@@ -973,6 +939,93 @@ public class Client implements ReadOnlyClient {
         return output;
     }
 
+    /**
+     * Sliding-window hit counts over start to stop (inclusive) of one chromosome, summed over
+     * the alignments.  Window i covers start + i * stepsize to start + i * stepsize + windowsize - 1.
+     * The server computes the whole profile in one pass over each alignment's hits, so this is
+     * much cheaper than a histogram per alignment or fetching the hits.
+     *
+     * dedup > 0 counts at most dedup hits at any one position in each alignment.  doReadExtension counts
+     * a read in every window that it overlaps.  The first element of the output is the profile; 
+     * if strandSplit, it only holds the plus strand hits and the second element holds the minus strand.
+     */
+    public int[][] getWindowCounts(Collection<String> alignids, int chromid, boolean paired, boolean isLeft, int start, int stop,
+                                   int windowsize, int stepsize, int dedup, Float minWeight, Boolean plusStrand,
+                                   boolean doReadExtension, boolean strandSplit) throws IOException, ClientException {
+    	synchronized(this){
+            int n = sendProfileRequest(alignids, chromid, paired, isLeft, start, stop, windowsize, stepsize, dedup,
+                                       minWeight, plusStrand, doReadExtension, strandSplit, false);
+            int[][] output = new int[strandSplit ? 2 : 1][];
+            for (int i = 0; i < output.length; i++) {
+                output[i] = Bits.readInts(n, instream, buffer);
+            }
+            return output;
+    	}
+    }
+    /**
+     * As getWindowCounts() but sums the hits' weights
+     */
+    public float[][] getWindowWeights(Collection<String> alignids, int chromid, boolean paired, boolean isLeft, int start, int stop,
+                                      int windowsize, int stepsize, int dedup, Float minWeight, Boolean plusStrand,
+                                      boolean doReadExtension, boolean strandSplit) throws IOException, ClientException {
+    	synchronized(this){
+            int n = sendProfileRequest(alignids, chromid, paired, isLeft, start, stop, windowsize, stepsize, dedup,
+                                       minWeight, plusStrand, doReadExtension, strandSplit, true);
+            float[][] output = new float[strandSplit ? 2 : 1][];
+            for (int i = 0; i < output.length; i++) {
+                output[i] = Bits.readFloats(n, instream, buffer);
+            }
+            return output;
+    	}
+    }
+    /**
+     * Per-base read coverage (reads extended by their lengths) over start to stop of one chromosome, 
+     * summed over the alignments.  
+     */
+    public int[] getCoverage(Collection<String> alignids, int chromid, boolean paired, int start, int stop, int dedup, 
+                             Float minWeight, Boolean plusStrand) throws IOException, ClientException {
+        return getWindowCounts(alignids, chromid, paired, true, start, stop, 1, 1, dedup, minWeight, plusStrand, true, false)[0];
+    }
+    /* sends a profile request and returns the number of windows.  Caller must hold the lock on this */
+    private int sendProfileRequest(Collection<String> alignids, int chromid, boolean paired, boolean isLeft, int start, int stop,
+                                   int windowsize, int stepsize, int dedup, Float minWeight, Boolean plusStrand,
+                                   boolean doReadExtension, boolean strandSplit, boolean weighted) throws IOException, ClientException {
+        request.clear();
+        request.type="profile";
+        request.chromid=chromid;
+        request.start = start;
+        request.end = stop;
+        request.isLeft = isLeft;
+        request.minWeight = minWeight;
+        request.isPlusStrand = plusStrand;
+        request.isPaired = paired;
+        request.map.put("stepsize",Integer.toString(stepsize));
+        request.map.put("windowsize",Integer.toString(windowsize));
+        if (dedup > 0) {
+            request.map.put("dedup",Integer.toString(dedup));
+        }
+        if (doReadExtension) {
+            request.map.put("extension","1");
+        }
+        if (strandSplit) {
+            request.map.put("strandsplit","1");
+        }
+        if (weighted) {
+            request.map.put("weighted","1");
+        }
+        request.list.addAll(alignids);
+        sendString(request.toString());        
+        String response = readLine();
+        if (!response.equals("OK")) {
+            if (printErrors) {
+                System.err.println("not-OK response to request: " + response);
+                System.err.println("request was " + request);
+            }
+            throw new ClientException(response);
+        }
+        return Integer.parseInt(readLine());
+    }
+
     /**
      * Returns a Map from READ, WRITE, and ADMIN to lists of principals that have those privileges on the specified alignment.
      */
@@ -1082,7 +1135,179 @@ public class Client implements ReadOnlyClient {
         } catch (IOException e) {
             e.printStackTrace();
         }
-    }    
+    }
+
+    /**
+     * A read request whose reply can be read after other requests have been sent on the same
+     * connection.  send() writes the request without flushing and receive() reads its reply.  The server
+     * answers a connection's requests in the order they arrive, so replies are received in the order
+     * the calls were sent.  See call(), pipeline() and ClientPool.
+     */
+    public static abstract class Call<T> {
+        final Request request = new Request();
+        void send(Client c) throws IOException {
+            c.outstream.write(request.toString().getBytes());
+        }
+        abstract T receive(Client c) throws IOException, ClientException;
+        public String toString() {return request.toString();}
+    }
+    /* fills in the parameters shared by the count, weight and gethits requests */
+    private static void rangeRequest(Request request, String type, String alignid, int chromid, boolean paired, Integer start, Integer stop, Float minWeight, Boolean isLeft, Boolean plusStrand) {
+        request.type = type;
+        request.alignid = alignid;
+        request.chromid = chromid;
+        request.start = start;
+        request.end = stop;
+        request.minWeight = minWeight;
+        request.isPlusStrand = plusStrand;
+        request.isPaired = paired;
+        request.isLeft = isLeft;
+    }
+    /* fills in the parameters shared by the histogram requests */
+    private static void histogramRequest(Request request, String type, String alignid, int chromid, boolean paired, boolean doReadExtension, int binsize, int dedup, Integer start, Integer stop, Float minWeight, Boolean plusStrand, boolean isLeft) {
+        rangeRequest(request, type, alignid, chromid, paired, start, stop, minWeight, isLeft, plusStrand);
+        request.map.put("binsize",Integer.toString(binsize));
+        if (dedup > 0) {
+            request.map.put("dedup",Integer.toString(dedup));
+        }
+        if (doReadExtension) {
+            request.map.put("extension","1");
+        }
+    }
+    /** reads the first line of a reply and throws ClientException if it isn't OK */
+    private void readOK(Call<?> call) throws IOException, ClientException {
+        String response = readLine();
+        if (!response.equals("OK")) {
+            if (printErrors) {
+                System.err.println("not-OK response to request: " + response);
+                System.err.println("request was " + call);
+            }
+            throw new ClientException(response);
+        }
+    }
+    /** getCount() as a Call */
+    public static Call<Integer> countCall(String alignid, int chromid, boolean paired, Integer start, Integer stop, Float minWeight, Boolean isLeft, Boolean plusStrand) {
+        Call<Integer> call = new Call<Integer>() {
+            Integer receive(Client c) throws IOException, ClientException {
+                c.readOK(this);
+                return Integer.parseInt(c.readLine());
+            }
+        };
+        rangeRequest(call.request, "count", alignid, chromid, paired, start, stop, minWeight, isLeft == null ? true : isLeft, plusStrand);
+        return call;
+    }
+    /** getWeight() as a Call */
+    public static Call<Double> weightCall(String alignid, int chromid, boolean paired, Integer start, Integer stop, Float minWeight, Boolean isLeft, Boolean plusStrand) {
+        Call<Double> call = new Call<Double>() {
+            Double receive(Client c) throws IOException, ClientException {
+                c.readOK(this);
+                return Double.parseDouble(c.readLine());
+            }
+        };
+        rangeRequest(call.request, "weight", alignid, chromid, paired, start, stop, minWeight, isLeft == null ? true : isLeft, plusStrand);
+        return call;
+    }
+    /** getPositions() as a Call */
+    public static Call<int[]> positionsCall(String alignid, int chromid, boolean paired, Integer start, Integer stop, Float minWeight, Boolean isLeft, Boolean plusStrand) {
+        Call<int[]> call = new Call<int[]>() {
+            int[] receive(Client c) throws IOException, ClientException {
+                c.readOK(this);
+                int numhits = Integer.parseInt(c.readLine());
+                return Bits.readInts(numhits, c.instream, c.buffer);
+            }
+        };
+        rangeRequest(call.request, "gethits", alignid, chromid, paired, start, stop, minWeight, isLeft, plusStrand);
+        call.request.map.put("wantpositions","1");
+        return call;
+    }
+    /** getWeightsRange() as a Call */
+    public static Call<float[]> weightsCall(String alignid, int chromid, boolean paired, Integer start, Integer stop, Float minWeight, Boolean isLeft, Boolean plusStrand) {
+        Call<float[]> call = new Call<float[]>() {
+            float[] receive(Client c) throws IOException, ClientException {
+                c.readOK(this);
+                int numhits = Integer.parseInt(c.readLine());
+                return Bits.readFloats(numhits, c.instream, c.buffer);
+            }
+        };
+        rangeRequest(call.request, "gethits", alignid, chromid, paired, start, stop, minWeight, isLeft, plusStrand);
+        call.request.map.put("wantweights","1");
+        return call;
+    }
+    /** getHistogram() as a Call */
+    public static Call<TreeMap<Integer,Integer>> histogramCall(String alignid, int chromid, boolean paired, boolean doReadExtension, int binsize, int dedup, Integer start, Integer stop, Float minWeight, Boolean plusStrand, boolean isLeft) {
+        Call<TreeMap<Integer,Integer>> call = new Call<TreeMap<Integer,Integer>>() {
+            TreeMap<Integer,Integer> receive(Client c) throws IOException, ClientException {
+                c.readOK(this);
+                int numints = Integer.parseInt(c.readLine());
+                int out[] = Bits.readInts(numints, c.instream, c.buffer);
+                TreeMap<Integer,Integer> output = new TreeMap<Integer,Integer>();
+                for (int i = 0; i < out.length; i += 2) {
+                    output.put(out[i], out[i+1]);
+                }
+                return output;
+            }
+        };
+        histogramRequest(call.request, "histogram", alignid, chromid, paired, doReadExtension, binsize, dedup, start, stop, minWeight, plusStrand, isLeft);
+        return call;
+    }
+    /** getWeightHistogram() as a Call */
+    public static Call<TreeMap<Integer,Float>> weightHistogramCall(String alignid, int chromid, boolean paired, boolean doReadExtension, int binsize, int dedup, Integer start, Integer stop, Float minWeight, Boolean plusStrand, boolean isLeft) {
+        Call<TreeMap<Integer,Float>> call = new Call<TreeMap<Integer,Float>>() {
+            TreeMap<Integer,Float> receive(Client c) throws IOException, ClientException {
+                c.readOK(this);
+                int numints = Integer.parseInt(c.readLine());
+                int out[] = Bits.readInts(numints, c.instream, c.buffer);
+                float weight[] = Bits.readFloats(numints, c.instream, c.buffer);
+                TreeMap<Integer,Float> output = new TreeMap<Integer,Float>();
+                for (int i = 0; i < out.length; i++) {
+                    output.put(out[i], weight[i]);
+                }
+                return output;
+            }
+        };
+        histogramRequest(call.request, "weighthistogram", alignid, chromid, paired, doReadExtension, binsize, dedup, start, stop, minWeight, plusStrand, isLeft);
+        return call;
+    }
+    /**
+     * Sends one call and reads its reply
+     */
+    public <T> T call(Call<T> call) throws IOException, ClientException {
+        synchronized(this){
+            call.send(this);
+            outstream.flush();
+            return call.receive(this);
+        }
+    }
+    /**
+     * Sends the calls without waiting for each reply, keeping up to MAXINFLIGHT of them outstanding,
+     * so a list of small requests costs about one round trip rather than one per call.  The output holds
+     * the replies in the same order as the calls.  A call that the server refuses (eg, a chromosome
+     * with no hits) leaves null in its place rather than throwing, since the replies to the
+     * calls behind it still have to be read.
+     * @throws IOException on network errors, after which the connection shouldn't be used
+     */
+    public <T> List<T> pipeline(List<? extends Call<T>> calls) throws IOException {
+        synchronized(this){
+            List<T> output = new ArrayList<T>(calls.size());
+            int sent = 0;
+            for (int i = 0; i < calls.size(); i++) {
+                /* the requests are small, so MAXINFLIGHT of them always fit in the socket buffers
+                   and writing them can't block on the server writing replies that we haven't read */
+                if (sent < calls.size() && sent < i + MAXINFLIGHT) {
+                    while (sent < calls.size() && sent < i + MAXINFLIGHT) {
+                        calls.get(sent++).send(this);
+                    }
+                    outstream.flush();
+                }
+                try {
+                    output.add(calls.get(i).receive(this));
+                } catch (ClientException e) {
+                    output.add(null);
+                }
+            }
+            return output;
+        }
+    }
 
     /**
      * ClientCheckAliveThread pings the server to check if the connection is still open.
@@ -0,0 +1,441 @@
+package edu.psu.compbio.seqcode.gse.projects.readdb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * <p>A thread-safe pool of authenticated connections to one readdb server.
+ *
+ * <p>Opening a Client costs a TCP connection and a SASL exchange, and each Client keeps a thread
+ * pinging the server.  A ClientPool opens connections only as they're needed (up to maxConnections)
+ * and hands them out again once the thread using them is done, so eg the MultiGPS hit loaders
+ * or BindingMixture workers can share a few connections.  One daemon thread checks the pool: it
+ * pings connections that have been idle for a while, drops those that don't answer, and closes those
+ * that haven't been used for much longer (so the pool shrinks when it's quiet).
+ *
+ * <p>The read methods borrow a connection for one request.  pipeline() sends a list of requests
+ * on one connection without waiting for each reply.  A request that fails with an IOException is
+ * retried once on a fresh connection, since an idle connection may have been closed by the server
+ * since it was last checked.  For the other Client methods, borrow() a Client and give it back
+ * with release(), or with discard() if it threw an IOException:
+ * <pre>
+ *   Client c = pool.borrow();
+ *   try {
+ *       chroms = c.getChroms(alignid, false, null);
+ *   } catch (IOException e) {
+ *       pool.discard(c);
+ *       throw e;
+ *   } finally {
+ *       pool.release(c);
+ *   }
+ * </pre>
+ * release() and discard() ignore a Client that has already been given back.
+ */
+public class ClientPool implements ReadOnlyClient {
+
+    public static final int DEFAULTCONNECTIONS = 8;
+    /** how long a connection may sit idle before it is pinged */
+    public static final long CHECKMILLIS = 3000;
+    /** how long a connection may sit idle before it is closed */
+    public static final long MAXIDLEMILLIS = 300000;
+
+    private static ClientPool defaultPool = null;
+
+    private static class Idle {
+        final Client client;
+        final long since;
+        long checked;
+        Idle(Client c) {
+            client = c;
+            since = System.currentTimeMillis();
+            checked = since;
+        }
+    }
+
+    private final String hostname, username, password;
+    private final int portnum, maxConnections;
+    /* all guarded by this.  idle is in the order the connections were returned, so borrow()
+       takes the most recently used and the rest can age out */
+    private final LinkedList<Idle> idle = new LinkedList<Idle>();
+    private final Set<Client> busy = Collections.newSetFromMap(new IdentityHashMap<Client,Boolean>());
+    /* connections being opened or checked, which count towards maxConnections */
+    private int opening = 0, checking = 0;
+    private boolean closed = false, printErrors = false;
+    private Thread checkThread;
+
+    /**
+     * Creates a pool of up to maxConnections connections to the server on the specified host
+     * and port using the specified username and password.  No connection is opened until one is needed.
+     */
+    public ClientPool(String hostname,
+                      int portnum,
+                      String username,
+                      String passwd,
+                      int maxConnections) {
+        this.hostname = hostname;
+        this.portnum = portnum;
+        this.username = username;
+        this.password = passwd;
+        this.maxConnections = Math.max(1, maxConnections);
+        checkThread = new Thread(new CheckThread(), "ClientPool " + hostname + ":" + portnum);
+        checkThread.setDaemon(true);
+        checkThread.start();
+    }
+    /**
+     * Creates a pool for the default connection (see Client())
+     * @throws IOException if the connection properties can't be read
+     */
+    public ClientPool(int maxConnections) throws IOException {
+        this(Client.defaultProperties(), maxConnections);
+    }
+    private ClientPool(PropertyResourceBundle bundle, int maxConnections) {
+        this(bundle.getString("hostname"),
+             Integer.parseInt(bundle.getString("port")),
+             bundle.getString("username"),
+             bundle.getString("passwd"),
+             maxConnections);
+    }
+    /**
+     * Returns a pool of DEFAULTCONNECTIONS connections for the default connection, shared by all of the callers in this JVM.
+     * Don't close() it.
+     */
+    public static synchronized ClientPool getDefault() throws IOException {
+        if (defaultPool == null) {
+            defaultPool = new ClientPool(DEFAULTCONNECTIONS);
+        }
+        return defaultPool;
+    }
+
+    /**
+     * Determines whether the pool's connections print error messages to STDERR (see Client.printErrors())
+     */
+    public synchronized void printErrors(boolean b) {
+        printErrors = b;
+        for (Client c : busy) {
+            c.printErrors(b);
+        }
+        for (Idle i : idle) {
+            i.client.printErrors(b);
+        }
+    }
+
+    /**
+     * Returns an authenticated connection for the caller's exclusive use.  Reuses an idle connection
+     * if there is one, opens a new one if the pool isn't full, and otherwise waits for one to be given back.
+     * @throws IOException on network errors or if the pool has been closed
+     * @throws ClientException if the client cannot authenticate to the server
+     */
+    public Client borrow() throws IOException, ClientException {
+        synchronized(this) {
+            while (true) {
+                if (closed) {
+                    throw new IOException("ClientPool has been closed");
+                }
+                while (!idle.isEmpty()) {
+                    Client c = idle.removeLast().client;
+                    /* skips connections that a caller closed rather than giving back */
+                    if (c.isOpen()) {
+                        busy.add(c);
+                        return c;
+                    }
+                }
+                if (busy.size() + opening + checking < maxConnections) {
+                    opening++;
+                    break;
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted waiting for a connection");
+                }
+            }
+        }
+        Client c = null;
+        try {
+            c = new Client(hostname, portnum, username, password, false);
+            c.printErrors(printErrors);
+        } finally {
+            synchronized(this) {
+                opening--;
+                if (c != null) {
+                    busy.add(c);
+                }
+                notifyAll();
+            }
+        }
+        return c;
+    }
+    /**
+     * Gives back a connection from borrow() so that it can be reused
+     */
+    public void release(Client c) {
+        synchronized(this) {
+            if (!busy.remove(c)) {
+                return;
+            }
+            notifyAll();
+            if (!closed) {
+                idle.addLast(new Idle(c));
+                return;
+            }
+        }
+        c.close();
+    }
+    /**
+     * Gives back a connection from borrow() that shouldn't be reused, eg because it threw an IOException
+     */
+    public void discard(Client c) {
+        synchronized(this) {
+            if (!busy.remove(c)) {
+                return;
+            }
+            notifyAll();
+        }
+        abandon(c);
+    }
+    /* closes a connection that's probably broken without trying to say goodbye */
+    private static void abandon(Client c) {
+        try {
+            if (c.socket != null) {
+                c.socket.close();
+            }
+        } catch (IOException e) {
+            // it's going away regardless
+        }
+    }
+
+    /* one request on a borrowed connection, for withClient() */
+    private interface Operation<T> {
+        T run(Client c) throws IOException, ClientException;
+    }
+    /*
+     * Runs the operation on a borrowed connection, and once more on a fresh connection if it
+     * throws an IOException (see the class comment).  A connection that threw is discarded
+     * rather than given back.
+     */
+    private <T> T withClient(Operation<T> op) throws IOException, ClientException {
+        for (int attempt = 0; ; attempt++) {
+            Client c = borrow();
+            try {
+                return op.run(c);
+            } catch (IOException e) {
+                discard(c);
+                if (attempt > 0) {
+                    throw e;
+                }
+            } finally {
+                release(c);
+            }
+        }
+    }
+
+    /**
+     * Sends one call on a pooled connection and returns its reply
+     */
+    public <T> T call(final Client.Call<T> call) throws IOException, ClientException {
+        return withClient(new Operation<T>() {
+                public T run(Client c) throws IOException, ClientException {
+                    return c.call(call);
+                }
+            });
+    }
+    /**
+     * Sends the calls on one pooled connection, keeping up to Client.MAXINFLIGHT of them outstanding
+     * (see Client.pipeline()).  The output holds the replies in the same order as the calls, with null for any
+     * call that the server refused.  Threads that each pipeline their own calls use separate connections.
+     */
+    public <T> List<T> pipeline(final List<? extends Client.Call<T>> calls) throws IOException, ClientException {
+        return withClient(new Operation<List<T>>() {
+                public List<T> run(Client c) throws IOException, ClientException {
+                    return c.pipeline(calls);
+                }
+            });
+    }
+
+    /** see Client.getChroms() */
+    public Set<Integer> getChroms(final String alignid, final boolean isPaired, final Boolean isLeft) throws IOException, ClientException {
+        return withClient(new Operation<Set<Integer>>() {
+                public Set<Integer> run(Client c) throws IOException, ClientException {
+                    return c.getChroms(alignid, isPaired, isLeft);
+                }
+            });
+    }
+    /** see Client.getCount() */
+    public int getCount(String alignid, int chromid, boolean paired, Integer start, Integer stop, Float minWeight, Boolean isLeft, Boolean plusStrand)  throws IOException, ClientException {
+        return call(Client.countCall(alignid, chromid, paired, start, stop, minWeight, isLeft, plusStrand));
+    }
+    /** see Client.getWeight() */
+    public double getWeight(String alignid, int chromid, boolean paired, Integer start, Integer stop, Float minWeight, Boolean isLeft, Boolean plusStrand) throws IOException, ClientException {
+        return call(Client.weightCall(alignid, chromid, paired, start, stop, minWeight, isLeft, plusStrand));
+    }
+    /** see Client.getPositions() */
+    public int[] getPositions(String alignid, int chromid, boolean paired, Integer start, Integer stop, Float minWeight, Boolean isLeft, Boolean plusStrand) throws IOException, ClientException {
+        return call(Client.positionsCall(alignid, chromid, paired, start, stop, minWeight, isLeft, plusStrand));
+    }
+    /** see Client.getWeightsRange() */
+    public float[] getWeightsRange(String alignid, int chromid, boolean paired, Integer start, Integer stop, Float minWeight, Boolean isLeft, Boolean plusStrand) throws IOException, ClientException {
+        return call(Client.weightsCall(alignid, chromid, paired, start, stop, minWeight, isLeft, plusStrand));
+    }
+    /** see Client.getHistogram() */
+    public TreeMap<Integer,Integer> getHistogram(String alignid, int chromid, boolean paired, boolean doReadExtension, int binsize, Integer start, Integer stop, Float minWeight, Boolean plusStrand) throws IOException, ClientException {
+        return getHistogram(alignid, chromid, paired, doReadExtension, binsize, 0, start, stop, minWeight, plusStrand, true);
+    }
+    public TreeMap<Integer,Integer> getHistogram(String alignid, int chromid, boolean paired, boolean doReadExtension, int binsize, int dedup, Integer start, Integer stop, Float minWeight, Boolean plusStrand, boolean isLeft) throws IOException, ClientException {
+        return call(Client.histogramCall(alignid, chromid, paired, doReadExtension, binsize, dedup, start, stop, minWeight, plusStrand, isLeft));
+    }
+    /** see Client.getWeightHistogram() */
+    public TreeMap<Integer,Float> getWeightHistogram(String alignid, int chromid, boolean paired, boolean doReadExtension, int binsize, Integer start, Integer stop, Float minWeight, Boolean plusStrand) throws IOException, ClientException {
+        return getWeightHistogram(alignid, chromid, paired, doReadExtension, binsize, 0, start, stop, minWeight, plusStrand, true);
+    }
+    public TreeMap<Integer,Float> getWeightHistogram(String alignid, int chromid, boolean paired, boolean doReadExtension, int binsize, int dedup, Integer start, Integer stop, Float minWeight, Boolean plusStrand, boolean isLeft) throws IOException, ClientException {
+        return call(Client.weightHistogramCall(alignid, chromid, paired, doReadExtension, binsize, dedup, start, stop, minWeight, plusStrand, isLeft));
+    }
+    /**
+     * Histogram summed over the alignments (and over both sides of the pairs if paired), with the requests
+     * pipelined on one connection.  Unlike Client.getHistogram(), an alignment that has no hits on the
+     * chromosome is skipped rather than failing the whole request.
+     * @throws ClientException if none of the alignments could be read
+     */
+    public TreeMap<Integer,Integer> getHistogram(Collection<String> alignids, int chromid, boolean paired, boolean doReadExtension, int binsize, int dedup, Integer start, Integer stop, Float minWeight, Boolean plusStrand) throws IOException, ClientException {
+        List<Client.Call<TreeMap<Integer,Integer>>> calls = new ArrayList<Client.Call<TreeMap<Integer,Integer>>>();
+        for (String alignid : alignids) {
+            calls.add(Client.histogramCall(alignid, chromid, paired, doReadExtension, binsize, dedup, start, stop, minWeight, plusStrand, true));
+            if (paired) {
+                calls.add(Client.histogramCall(alignid, chromid, paired, doReadExtension, binsize, dedup, start, stop, minWeight, plusStrand, false));
+            }
+        }
+        TreeMap<Integer,Integer> output = null;
+        for (TreeMap<Integer,Integer> o : pipeline(calls)) {
+            if (o == null) {
+                continue;
+            }
+            if (output == null) {
+                output = o;
+            } else {
+                for (Map.Entry<Integer,Integer> e : o.entrySet()) {
+                    Integer old = output.get(e.getKey());
+                    output.put(e.getKey(), old == null ? e.getValue() : old + e.getValue());
+                }
+            }
+        }
+        if (output == null && calls.size() > 0) {
+            throw new ClientException("no readable alignments for chromosome " + chromid);
+        }
+        return output;
+    }
+    /**
+     * Weight histogram summed over the alignments; see getHistogram(Collection,...)
+     * @throws ClientException if none of the alignments could be read
+     */
+    public TreeMap<Integer,Float> getWeightHistogram(Collection<String> alignids, int chromid, boolean paired, boolean doReadExtension, int binsize, int dedup, Integer start, Integer stop, Float minWeight, Boolean plusStrand) throws IOException, ClientException {
+        List<Client.Call<TreeMap<Integer,Float>>> calls = new ArrayList<Client.Call<TreeMap<Integer,Float>>>();
+        for (String alignid : alignids) {
+            calls.add(Client.weightHistogramCall(alignid, chromid, paired, doReadExtension, binsize, dedup, start, stop, minWeight, plusStrand, true));
+            if (paired) {
+                calls.add(Client.weightHistogramCall(alignid, chromid, paired, doReadExtension, binsize, dedup, start, stop, minWeight, plusStrand, false));
+            }
+        }
+        TreeMap<Integer,Float> output = null;
+        for (TreeMap<Integer,Float> o : pipeline(calls)) {
+            if (o == null) {
+                continue;
+            }
+            if (output == null) {
+                output = o;
+            } else {
+                for (Map.Entry<Integer,Float> e : o.entrySet()) {
+                    Float old = output.get(e.getKey());
+                    output.put(e.getKey(), old == null ? e.getValue() : old + e.getValue());
+                }
+            }
+        }
+        if (output == null && calls.size() > 0) {
+            throw new ClientException("no readable alignments for chromosome " + chromid);
+        }
+        return output;
+    }
+
+    /**
+     * Closes the idle connections and stops the check thread.  Borrowed connections are closed as
+     * they're given back, and borrow() fails from now on.
+     */
+    public void close() {
+        List<Idle> toClose;
+        synchronized(this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            toClose = new ArrayList<Idle>(idle);
+            idle.clear();
+            notifyAll();
+        }
+        checkThread.interrupt();
+        for (Idle i : toClose) {
+            i.client.close();
+        }
+    }
+    public synchronized String toString() {
+        return String.format("ClientPool %s:%d (%d idle, %d busy, max %d)", hostname, portnum,
+                             idle.size(), busy.size(), maxConnections);
+    }
+
+    /**
+     * CheckThread takes idle connections out of the pool to ping them, so that borrow()
+     * doesn't hand out a connection that the server has already dropped.
+     */
+    class CheckThread implements Runnable {
+        public void run() {
+            while (true) {
+                try {
+                    Thread.sleep(CHECKMILLIS);
+                } catch (InterruptedException e) {
+                    break;
+                }
+                List<Idle> due = new ArrayList<Idle>();
+                long now = System.currentTimeMillis();
+                synchronized(ClientPool.this) {
+                    if (closed) {
+                        break;
+                    }
+                    Iterator<Idle> iter = idle.iterator();
+                    while (iter.hasNext()) {
+                        Idle i = iter.next();
+                        if (now - i.checked >= CHECKMILLIS) {
+                            iter.remove();
+                            due.add(i);
+                        }
+                    }
+                    checking += due.size();
+                }
+                List<Idle> alive = new ArrayList<Idle>();
+                for (Idle i : due) {
+                    if (now - i.since >= MAXIDLEMILLIS) {
+                        i.client.close();
+                    } else if (i.client.isOpen() && i.client.connectionAlive()) {
+                        i.checked = System.currentTimeMillis();
+                        alive.add(i);
+                    } else {
+                        abandon(i.client);
+                    }
+                }
+                boolean close;
+                synchronized(ClientPool.this) {
+                    checking -= due.size();
+                    close = closed;
+                    if (!closed) {
+                        /* these have been idle longest, so they go back at the front */
+                        idle.addAll(0, alive);
+                    }
+                    ClientPool.this.notifyAll();
+                }
+                if (close) {
+                    for (Idle i : alive) {
+                        i.client.close();
+                    }
+                }
+            }
+        }
+    }
+}
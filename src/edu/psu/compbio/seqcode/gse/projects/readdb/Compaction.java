@@ -0,0 +1,301 @@
+package edu.psu.compbio.seqcode.gse.projects.readdb;
+
+import java.io.*;
+import java.util.*;
+import java.util.logging.*;
+
+/**
+ * Compaction merges the segments of a single-ended chromosome (see SingleHits) so that
+ * queries don't have to merge too many of them.
+ *
+ * Stores only ever write a new segment, so their cost depends on the size of the store
+ * rather than the size of the alignment.  Compaction keeps the number of segments bounded:
+ * - once the segments hold a quarter as many hits as the main files, everything is merged
+ *   into new main files.  The main files are therefore rewritten only when they've grown by
+ *   a constant fraction.
+ * - otherwise, if there are more than MAXSEGMENTS segments, the FANIN smallest are merged
+ *   into one new segment.
+ *
+ * New main files are written in the compressed format if the server was started with --compress.
+ *
+ * The merge itself runs without holding the alignment's lock (segments are immutable and the
+ * inputs stay mapped for the duration), so queries and stores carry on.  The write lock is only
+ * taken to swap the merged files in.
+ *
+ * Swapping the files in takes several renames and deletes, so it is made crash-safe with a journal
+ * (see getJournalFileName()).  The merged data files and their index are written under temporary
+ * names and synced; the journal, listing the output and the inputs, is then written and renamed into
+ * place.  That rename is the commit point.  After it, the files are moved into place, the inputs
+ * deleted and finally the journal deleted.  If the server dies part way through, recover() (run by
+ * the server before it first touches the chromosome) finishes the compaction if the journal exists
+ * and otherwise throws the temporary files away, so hits are never lost or counted twice.
+ */
+public class Compaction implements Runnable {
+
+    public static final int MAXSEGMENTS = 8;
+    public static final int FANIN = 4;
+    public static final int MAINFRACTION = 4;
+
+    private Server server;
+    private String alignID;
+    private int chrom;
+    private String prefix;
+
+    public Compaction(Server s, String alignID, int chrom) {
+        server = s;
+        this.alignID = alignID;
+        this.chrom = chrom;
+        prefix = server.getAlignmentDir(alignID) + System.getProperty("file.separator");
+    }
+
+    public void run() {
+        /* stores that happen from here on queue another compaction */
+        server.compactionDone(alignID, chrom);
+        boolean more = true;
+        while (more) {
+            try {
+                more = compactOnce();
+            } catch (Exception e) {
+                server.getLogger().logp(Level.WARNING,"Compaction","run " + alignID + " " + chrom,e.toString(),e);
+                more = false;
+            } finally {
+                /* lets the replaced files be unmapped */
+                server.releaseCached();
+                Lock.releaseLocks();
+            }
+        }
+    }
+
+    /* returns true if it merged something */
+    private boolean compactOnce() throws IOException {
+        int[] inputs;
+        Hits[] hits;
+        Lock.readLock(alignID);
+        try {
+            if (!(new File(server.getAlignmentDir(alignID))).exists()) {
+                return false;
+            }
+            int[] segs = server.getSegments(alignID, chrom);
+            if (segs.length == 0) {
+                return false;
+            }
+            long[] sizes = new long[segs.length];
+            long total = 0;
+            for (int i = 0; i < segs.length; i++) {
+                sizes[i] = server.getSegmentHeader(alignID, chrom, segs[i]).getNumHits();
+                total += sizes[i];
+            }
+            if (total * MAINFRACTION >= server.getSingleHeader(alignID, chrom).getNumHits()) {
+                inputs = segs;
+                hits = new Hits[segs.length + 1];
+                hits[0] = server.getSingleHits(alignID, chrom);
+            } else if (segs.length > MAXSEGMENTS) {
+                inputs = smallest(segs, sizes, FANIN);
+                hits = new Hits[inputs.length];
+            } else {
+                return false;
+            }
+            for (int i = 0; i < inputs.length; i++) {
+                hits[hits.length - inputs.length + i] = server.getSegmentHits(alignID, chrom, inputs[i]);
+            }
+        } finally {
+            Lock.releaseLocks();
+        }
+        boolean toMain = hits.length > inputs.length;
+        int output = toMain ? 0 : server.newSegmentID(alignID, chrom);
+        prepare(hits, prefix, chrom, output, server.compress());
+
+        Lock.readLock(alignID);
+        Lock.writeLock(alignID);
+        try {
+            /* the alignment may have been deleted while we were merging */
+            List<Integer> current = new ArrayList<Integer>();
+            for (int id : server.getSegments(alignID, chrom)) {
+                current.add(id);
+            }
+            for (int id : inputs) {
+                if (!current.contains(id)) {
+                    SingleHits.deleteMerged(prefix, chrom, output);
+                    return false;
+                }
+            }
+            commit(prefix, chrom, output, server.compress(), inputs);
+            if (toMain) {
+                server.removeSingleHits(alignID, chrom);
+                server.removeSingleHeader(alignID, chrom);
+            } else {
+                server.addSegment(alignID, chrom, output);
+            }
+            server.removeSegments(alignID, chrom, inputs);
+            server.getLogger().log(Level.INFO,String.format("Compacted %d segments of %s %d into %s",
+                                                           inputs.length, alignID, chrom,
+                                                           toMain ? "the main files" : ("segment " + output)));
+        } finally {
+            Lock.releaseLocks();
+        }
+        return true;
+    }
+
+    /**
+     * Name of the journal of the chromosome's compaction.  It exists only between the commit point
+     * of a compaction and the end of its cleanup.
+     */
+    public static String getJournalFileName(String prefix, int chrom) {
+        return prefix + chrom + ".compaction";
+    }
+
+    /*
+     * Merges hits into the temporary files for segment output (0 for the main files), writes their
+     * index and syncs both to disk.  Nothing is visible to queries yet.
+     */
+    static void prepare(Hits[] hits, String prefix, int chrom, int output, boolean compressed) throws IOException {
+        try {
+            SingleHits.writeMerged(hits, prefix, chrom, output, compressed);
+            Header header = SingleHits.indexMerged(prefix, chrom, output, compressed);
+            String headerFile = SingleHits.getHeaderFname(prefix, chrom, output) + SingleHits.COMPACTSUFFIX;
+            header.writeIndexFile(headerFile);
+            for (String n : SingleHits.getMergedFnames(prefix, chrom, output, compressed)) {
+                sync(n + SingleHits.COMPACTSUFFIX);
+            }
+            sync(headerFile);
+        } catch (IOException e) {
+            SingleHits.deleteMerged(prefix, chrom, output);
+            throw e;
+        }
+    }
+
+    /* 
+     * Replaces the inputs with the files written by prepare().  Writing the journal is the 
+     * commit point; the rest is redone by recover() if the server dies before it's finished.
+     */
+    static void commit(String prefix, int chrom, int output, boolean compressed, int[] inputs) throws IOException {
+        writeJournal(prefix, chrom, output, compressed, inputs);
+        finish(prefix, chrom, output, compressed, inputs);
+    }
+
+    static void writeJournal(String prefix, int chrom, int output, boolean compressed, int[] inputs) throws IOException {
+        String fname = getJournalFileName(prefix, chrom);
+        FileOutputStream fos = new FileOutputStream(fname + ".tmp");
+        try {
+            PrintWriter pw = new PrintWriter(new OutputStreamWriter(fos, "UTF-8"));
+            pw.println("output " + output);
+            pw.println("compressed " + compressed);
+            StringBuilder sb = new StringBuilder("inputs");
+            for (int id : inputs) {
+                sb.append(" ").append(id);
+            }
+            pw.println(sb.toString());
+            pw.flush();
+            if (pw.checkError()) {
+                throw new IOException("Couldn't write " + fname + ".tmp");
+            }
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+        if (!(new File(fname + ".tmp")).renameTo(new File(fname))) {
+            throw new IOException("Couldn't rename " + fname + ".tmp");
+        }
+    }
+
+    /* the second half of commit().  Each step may already have been done by an earlier attempt. */
+    private static void finish(String prefix, int chrom, int output, boolean compressed, int[] inputs) throws IOException {
+        SingleHits.renameMerged(prefix, chrom, output, compressed);
+        String headerFile = SingleHits.getHeaderFname(prefix, chrom, output);
+        File tmp = new File(headerFile + SingleHits.COMPACTSUFFIX);
+        if (tmp.exists() && !tmp.renameTo(new File(headerFile))) {
+            throw new IOException("Couldn't rename " + tmp);
+        }
+        for (int id : inputs) {
+            /* the index goes first so that a partly deleted segment is never loaded */
+            (new File(SingleHits.getHeaderFname(prefix, chrom, id))).delete();
+            SingleHits.deleteSegment(prefix, chrom, id);
+        }
+        if (!(new File(getJournalFileName(prefix, chrom))).delete()) {
+            throw new IOException("Couldn't delete " + getJournalFileName(prefix, chrom));
+        }
+    }
+
+    /**
+     * Finishes the chromosome's compaction if the server died after its commit point, or removes
+     * the temporary files of one that died before it.  Must run before anything else reads the 
+     * chromosome's files.  Returns true if it finished a compaction.
+     */
+    public static boolean recover(String prefix, int chrom) throws IOException {
+        File journal = new File(getJournalFileName(prefix, chrom));
+        if (journal.exists()) {
+            int output = -1;
+            boolean compressed = false;
+            int[] inputs = null;
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journal), "UTF-8"));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] pieces = line.trim().split("\\s+");
+                    if (pieces[0].equals("output")) {
+                        output = Integer.parseInt(pieces[1]);
+                    } else if (pieces[0].equals("compressed")) {
+                        compressed = Boolean.parseBoolean(pieces[1]);
+                    } else if (pieces[0].equals("inputs")) {
+                        inputs = new int[pieces.length - 1];
+                        for (int i = 0; i < inputs.length; i++) {
+                            inputs[i] = Integer.parseInt(pieces[i+1]);
+                        }
+                    }
+                }
+            } catch (NumberFormatException e) {
+                throw new IOException("Bad compaction journal " + journal + ": " + e.getMessage());
+            } finally {
+                reader.close();
+            }
+            if (output < 0 || inputs == null) {
+                throw new IOException("Incomplete compaction journal " + journal);
+            }
+            finish(prefix, chrom, output, compressed, inputs);
+            return true;
+        }
+        /* no commit, so whatever a compaction left behind is garbage */
+        (new File(getJournalFileName(prefix, chrom) + ".tmp")).delete();
+        File dir = new File(prefix);
+        File[] files = dir.listFiles();
+        if (files != null) {
+            String p = chrom + ".";
+            for (File f : files) {
+                String name = f.getName();
+                if (name.startsWith(p) && name.endsWith(SingleHits.COMPACTSUFFIX)) {
+                    f.delete();
+                }
+            }
+        }
+        return false;
+    }
+
+    /* forces the file's contents to disk */
+    private static void sync(String fname) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(fname, "rw");
+        try {
+            raf.getFD().sync();
+        } finally {
+            raf.close();
+        }
+    }
+
+    /* ids of the n smallest segments */
+    private static int[] smallest(int[] segs, long[] sizes, int n) {
+        Integer[] order = new Integer[segs.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        final long[] s = sizes;
+        Arrays.sort(order, new Comparator<Integer>() {
+                public int compare(Integer a, Integer b) {
+                    return s[a] < s[b] ? -1 : (s[a] > s[b] ? 1 : 0);
+                }
+            });
+        int[] output = new int[Math.min(n, segs.length)];
+        for (int i = 0; i < output.length; i++) {
+            output[i] = segs[order[i]];
+        }
+        return output;
+    }
+}
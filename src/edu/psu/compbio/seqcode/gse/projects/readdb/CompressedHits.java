@@ -0,0 +1,362 @@
+package edu.psu.compbio.seqcode.gse.projects.readdb;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+/**
+ * Compressed, block-based storage for the main files of a single-ended chromosome.
+ *
+ * The plain format stores positions, weights, and lengths-and-strands as three arrays of
+ * four byte values.  For most data the positions are sorted and close together, the weights are
+ * nearly all 1.0 and there are only a handful of distinct LAS codes, so this format stores
+ * BLOCKSIZE hits at a time as
+ * - positions: the first position (in the block index) and then the gap to each next position as a varint
+ * - weights: runs of (varint run length, float)
+ * - LAS: a dictionary of the distinct codes followed by one index per hit (a byte if the
+ *   dictionary is small enough, otherwise a varint)
+ *
+ * The file is the blocks followed by a sparse index (first and last position, number of hits,
+ * and file offset of each block) and a fixed-size trailer with the version number.  Readers
+ * map the file and decode only the blocks that overlap the region being queried (see
+ * decodeBetween()), so the on-disk and page-cache footprint is that of the compressed data.
+ *
+ * The chromosome's .singleindex Header is written as usual and refers to the same hit numbering.
+ * Server.isCompressed() decides which format a chromosome is in by whether its .scol file exists,
+ * so the two formats can be mixed freely within a data directory.  main() converts existing
+ * alignments (with the server stopped).
+ */
+public class CompressedHits implements Closeable, Sized {
+
+    public static final int MAGIC = 0x52444243;  // "RDBC"
+    public static final int VERSION = 1;
+    public static final int BLOCKSIZE = 4096;
+    /* numHits, numBlocks, indexOffset (long), version, magic */
+    private static final int TRAILERLEN = 24;
+    /* firstPosition, lastPosition, count, offset (long) */
+    private static final int INDEXENTRYLEN = 20;
+
+    private ByteBuffer data;
+    private int numHits;
+    private int[] firstPositions, lastPositions, counts;
+    private long[] offsets;
+
+    public CompressedHits(String fname) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(fname,"r");
+        try {
+            FileChannel fc = raf.getChannel();
+            if (fc.size() < 12 + TRAILERLEN || fc.size() > Integer.MAX_VALUE) {
+                throw new IOException("Invalid compressed hits file " + fname);
+            }
+            data = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+        } finally {
+            raf.close();
+        }
+        int end = data.limit();
+        if (data.getInt(0) != MAGIC || data.getInt(end - 4) != MAGIC) {
+            throw new IOException("Not a compressed hits file : " + fname);
+        }
+        int version = data.getInt(end - 8);
+        if (version != VERSION) {
+            throw new IOException("Unsupported compressed hits version " + version + " in " + fname);
+        }
+        numHits = data.getInt(end - TRAILERLEN);
+        int numBlocks = data.getInt(end - TRAILERLEN + 4);
+        int indexOffset = (int)data.getLong(end - TRAILERLEN + 8);
+        firstPositions = new int[numBlocks];
+        lastPositions = new int[numBlocks];
+        counts = new int[numBlocks];
+        offsets = new long[numBlocks];
+        for (int i = 0; i < numBlocks; i++) {
+            int p = indexOffset + i * INDEXENTRYLEN;
+            firstPositions[i] = data.getInt(p);
+            lastPositions[i] = data.getInt(p + 4);
+            counts[i] = data.getInt(p + 8);
+            offsets[i] = data.getLong(p + 12);
+        }
+    }
+    public int getNumHits() {return numHits;}
+    public int getNumBlocks() {return counts.length;}
+
+    /**
+     * Returns the hits with positions between start and end (inclusive), decoded into memory.
+     * Only the blocks that overlap the region are read.
+     */
+    public SingleHits decodeBetween(int chrom, int start, int end) {
+        /* lastPositions is sorted, so find the first block that can hold start */
+        int lo = 0, hi = counts.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (lastPositions[mid] < start) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        int n = 0;
+        for (int b = lo; b < counts.length && firstPositions[b] <= end; b++) {
+            n += counts[b];
+        }
+        IntBP positions = new IntBP(n);
+        FloatBP weights = new FloatBP(n);
+        IntBP las = new IntBP(n);
+        int[] bp = new int[BLOCKSIZE], bl = new int[BLOCKSIZE];
+        float[] bw = new float[BLOCKSIZE];
+        ByteBuffer b = data.duplicate();
+        int k = 0;
+        for (int block = lo; block < counts.length && firstPositions[block] <= end; block++) {
+            int c = decodeBlock(b, block, bp, bw, bl);
+            for (int i = 0; i < c; i++) {
+                if (bp[i] >= start && bp[i] <= end) {
+                    positions.put(k, bp[i]);
+                    weights.put(k, bw[i]);
+                    las.put(k, bl[i]);
+                    k++;
+                }
+            }
+        }
+        if (k < n) {
+            positions = positions.slice(0, k);
+            weights = weights.slice(0, k);
+            las = las.slice(0, k);
+        }
+        return new SingleHits(chrom, positions, weights, las);
+    }
+    /** decodes every hit in the file */
+    public SingleHits decodeAll(int chrom) {
+        return decodeBetween(chrom, Integer.MIN_VALUE, Integer.MAX_VALUE);
+    }
+    /* decodes one block into the arrays and returns the number of hits in it */
+    private int decodeBlock(ByteBuffer b, int block, int[] positions, float[] weights, int[] las) {
+        int c = counts[block];
+        b.position((int)offsets[block]);
+        int p = firstPositions[block];
+        for (int i = 0; i < c; i++) {
+            p += readVarint(b);
+            positions[i] = p;
+        }
+        int i = 0;
+        while (i < c) {
+            int run = readVarint(b);
+            float w = b.getFloat();
+            for (int j = 0; j < run; j++) {
+                weights[i++] = w;
+            }
+        }
+        int dictSize = readVarint(b);
+        int[] dict = new int[dictSize];
+        for (int j = 0; j < dictSize; j++) {
+            dict[j] = b.getInt();
+        }
+        if (dictSize == 1) {
+            for (int j = 0; j < c; j++) {
+                las[j] = dict[0];
+            }
+        } else if (dictSize <= 256) {
+            for (int j = 0; j < c; j++) {
+                las[j] = dict[b.get() & 0xff];
+            }
+        } else {
+            for (int j = 0; j < c; j++) {
+                las[j] = dict[readVarint(b)];
+            }
+        }
+        return c;
+    }
+    public long sizeInBytes() {
+        return (data == null ? 0 : data.capacity()) + (long)INDEXENTRYLEN * counts.length;
+    }
+    /** unmaps the file.  Hits returned by decodeBetween() remain valid */
+    public void close() {
+        if (data != null) {
+            Hits.unmap(new ByteBP(data));
+            data = null;
+        }
+    }
+
+    private static int readVarint(ByteBuffer b) {
+        int v = 0, shift = 0;
+        byte x;
+        do {
+            x = b.get();
+            v |= (x & 0x7f) << shift;
+            shift += 7;
+        } while ((x & 0x80) != 0);
+        return v;
+    }
+    private static void writeVarint(ByteArrayOutputStream out, int v) {
+        while ((v & ~0x7f) != 0) {
+            out.write((v & 0x7f) | 0x80);
+            v >>>= 7;
+        }
+        out.write(v);
+    }
+    private static void writeInt(ByteArrayOutputStream out, int v) {
+        out.write(v >>> 24);
+        out.write(v >>> 16);
+        out.write(v >>> 8);
+        out.write(v);
+    }
+
+    /**
+     * Writes hits, which must be added in sorted order, to a compressed file
+     */
+    public static class Writer {
+        private DataOutputStream out;
+        private ByteArrayOutputStream blockBytes, indexBytes;
+        private int[] positions, las;
+        private float[] weights;
+        private int n, numHits, numBlocks, lastPosition;
+        private long offset;
+
+        public Writer(String fname) throws IOException {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fname), Server.BUFFERLEN));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(BLOCKSIZE);
+            offset = 12;
+            blockBytes = new ByteArrayOutputStream();
+            indexBytes = new ByteArrayOutputStream();
+            positions = new int[BLOCKSIZE];
+            weights = new float[BLOCKSIZE];
+            las = new int[BLOCKSIZE];
+            lastPosition = Integer.MIN_VALUE;
+        }
+        public void add(int position, float weight, int lenAndStrand) throws IOException {
+            if (position < lastPosition) {
+                throw new IOException(String.format("hits out of order at %d : %d vs %d", numHits, lastPosition, position));
+            }
+            lastPosition = position;
+            positions[n] = position;
+            weights[n] = weight;
+            las[n] = lenAndStrand;
+            n++;
+            numHits++;
+            if (n == BLOCKSIZE) {
+                flushBlock();
+            }
+        }
+        public void add(Hits hits) throws IOException {
+            IntBP p = hits.getPositionsBuffer();
+            FloatBP w = hits.getWeightsBuffer();
+            IntBP l = hits.getLASBuffer();
+            for (int i = 0; i < p.limit(); i++) {
+                add(p.get(i), w.get(i), l.get(i));
+            }
+        }
+        private void flushBlock() throws IOException {
+            if (n == 0) {
+                return;
+            }
+            blockBytes.reset();
+            for (int i = 0; i < n; i++) {
+                writeVarint(blockBytes, i == 0 ? 0 : positions[i] - positions[i-1]);
+            }
+            int i = 0;
+            while (i < n) {
+                int j = i + 1;
+                while (j < n && Float.floatToIntBits(weights[j]) == Float.floatToIntBits(weights[i])) {
+                    j++;
+                }
+                writeVarint(blockBytes, j - i);
+                writeInt(blockBytes, Float.floatToIntBits(weights[i]));
+                i = j;
+            }
+            /* dictionary in order of first appearance */
+            java.util.Map<Integer,Integer> dict = new java.util.LinkedHashMap<Integer,Integer>();
+            int[] codes = new int[n];
+            for (i = 0; i < n; i++) {
+                Integer code = dict.get(las[i]);
+                if (code == null) {
+                    code = dict.size();
+                    dict.put(las[i], code);
+                }
+                codes[i] = code;
+            }
+            writeVarint(blockBytes, dict.size());
+            for (int v : dict.keySet()) {
+                writeInt(blockBytes, v);
+            }
+            if (dict.size() > 256) {
+                for (i = 0; i < n; i++) {
+                    writeVarint(blockBytes, codes[i]);
+                }
+            } else if (dict.size() > 1) {
+                for (i = 0; i < n; i++) {
+                    blockBytes.write(codes[i]);
+                }
+            }
+            blockBytes.writeTo(out);
+
+            writeInt(indexBytes, positions[0]);
+            writeInt(indexBytes, positions[n-1]);
+            writeInt(indexBytes, n);
+            writeInt(indexBytes, (int)(offset >>> 32));
+            writeInt(indexBytes, (int)offset);
+            offset += blockBytes.size();
+            numBlocks++;
+            n = 0;
+        }
+        public void close() throws IOException {
+            try {
+                flushBlock();
+                indexBytes.writeTo(out);
+                out.writeInt(numHits);
+                out.writeInt(numBlocks);
+                out.writeLong(offset);
+                out.writeInt(VERSION);
+                out.writeInt(MAGIC);
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Writes a set of sorted hits to a compressed file
+     */
+    public static void write(Hits hits, String fname) throws IOException {
+        Writer w = new Writer(fname);
+        try {
+            w.add(hits);
+        } finally {
+            w.close();
+        }
+    }
+
+    /**
+     * Converts the main single-ended files of existing alignments to the compressed format.
+     * Arguments are alignment directories.  The server must not be running.
+     */
+    public static void main(String[] args) throws IOException {
+        String sep = System.getProperty("file.separator");
+        for (String dirname : args) {
+            File dir = new File(dirname);
+            File[] files = dir.listFiles();
+            if (files == null) {
+                System.err.println("Can't list " + dirname);
+                continue;
+            }
+            String prefix = dir.getPath() + sep;
+            long before = 0, after = 0;
+            for (File f : files) {
+                String name = f.getName();
+                if (!name.endsWith(".spositions") || name.indexOf(".seg") >= 0) {
+                    continue;
+                }
+                int chrom = Integer.parseInt(name.substring(0, name.indexOf('.')));
+                SingleHits hits = new SingleHits(prefix, chrom);
+                String fname = SingleHits.getCompressedFname(prefix, chrom);
+                write(hits, fname + ".tmp");
+                before += 12L * hits.getPositionsBuffer().limit();
+                hits.close();
+                if (!(new File(fname + ".tmp")).renameTo(new File(fname))) {
+                    throw new IOException("Couldn't rename " + fname + ".tmp");
+                }
+                after += (new File(fname)).length();
+                SingleHits.deleteSegment(prefix, chrom, 0);
+            }
+            System.err.println(String.format("%s : %d bytes -> %d bytes", dirname, before, after));
+        }
+    }
+}
@@ -8,7 +8,7 @@ import java.nio.ByteOrder;
 /**
  * index information for a set of hits
  */
-public class Header implements Closeable {
+public class Header implements Closeable, Sized {
 
     private int numHits;    
     /* indexPositions and indexPointers are paired arrays.  
@@ -135,6 +135,9 @@ public class Header implements Closeable {
         }
     }
     
+    public long sizeInBytes() {
+        return 8L * indexPositions.length;
+    }
     public void close() {}
 
 }
\ No newline at end of file
@@ -4,7 +4,7 @@ import java.io.*;
 import java.nio.*;
 import java.nio.channels.*;
 
-public abstract class Hits implements Closeable {
+public abstract class Hits implements Closeable, Sized {
 
     public static IntBP emptyIntBP = new IntBP(0);
     public static FloatBP emptyFloatBP = new FloatBP(0);
@@ -90,6 +90,40 @@ public abstract class Hits implements Closeable {
         return fb;
     }
 
+    /**
+     * Releases the memory mapping behind a buffer returned by openIntBP() or openFloatBP() 
+     * right away rather than whenever the garbage collector finalizes it.  The buffer must not
+     * be used afterwards.  Does nothing for heap buffers or if the JVM doesn't allow it.
+     */
+    public static void unmap(ByteBP b) {
+        if (b == null || b.bb == null || !b.bb.isDirect()) {
+            return;
+        }
+        try {
+            /* java 9 and later */
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            java.lang.reflect.Field f = unsafeClass.getDeclaredField("theUnsafe");
+            f.setAccessible(true);
+            unsafeClass.getMethod("invokeCleaner", ByteBuffer.class).invoke(f.get(null), b.bb);
+            return;
+        } catch (NoSuchMethodException e) {
+            // older JVM; fall through
+        } catch (Exception e) {
+            return;
+        }
+        try {
+            /* java 6 - 8 */
+            java.lang.reflect.Method cleanerMethod = b.bb.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(b.bb);
+            if (cleaner != null) {
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch (Exception e) {
+            // leave it to the garbage collector
+        }
+    }
+
     /** returns just the length from an int representing a
         length and strand */
     public static short getLengthOne(int las) {
@@ -117,6 +151,18 @@ public abstract class Hits implements Closeable {
     private IntBP lenAndStrand;
     private int chrom;
     private String fname;
+    /* files behind the positions, weights, and LAS columns (null for in-memory hits) and, once 
+       transferColumn() has needed them, channels open on those files */
+    private String[] columnFnames;
+    private FileChannel[] columnChannels;
+
+    /* longest read length in the LAS column, or -1 until getMaxLength() has looked */
+    private volatile int maxLength = -1;
+
+    /* column numbers for transferColumn() */
+    public static final int POSITIONS = 0, WEIGHTS = 1, LAS = 2;
+    /* the longest read length that a LAS can hold */
+    public static final int MAXLENGTH = 0x7FFF;
 
     public Hits (int chrom, String positionsFname, String weightsFname, String lasFname) throws FileNotFoundException, SecurityException, IOException {
         this.chrom = chrom;
@@ -124,6 +170,47 @@ public abstract class Hits implements Closeable {
         weights = openFloatBP(weightsFname);
         lenAndStrand = openIntBP(lasFname);
         fname = positionsFname;
+        columnFnames = new String[]{positionsFname, weightsFname, lasFname};
+    }
+    /**
+     * Hits over buffers that are already in memory, eg the merge of several sets of
+     * hits built by SingleHits.mergeBetween()
+     */
+    protected Hits (int chrom, IntBP positions, FloatBP weights, IntBP las) {
+        this.chrom = chrom;
+        this.positions = positions;
+        this.weights = weights;
+        lenAndStrand = las;
+        fname = null;
+    }
+    /**
+     * Sends the values of a column (POSITIONS, WEIGHTS, or LAS) for hits from up to (but not including) to
+     * straight from the hits file to the channel with FileChannel.transferTo(), so that the data doesn't 
+     * pass through the heap.  The bytes are exactly what the buffers hold, so the receiver sees the same
+     * big-endian values as it would from Bits.sendBytes().
+     * Returns false, having sent nothing, if these hits aren't backed by files (eg, merged or decoded hits).
+     */
+    public boolean transferColumn(int column, int from, int to, ChannelStreams.Output out) throws IOException {
+        if (columnFnames == null) {
+            return false;
+        }
+        FileChannel fc;
+        synchronized(this) {
+            if (positions == null) {
+                throw new IOException("Hits for " + fname + " have been closed");
+            }
+            if (columnChannels == null) {
+                columnChannels = new FileChannel[columnFnames.length];
+            }
+            if (columnChannels[column] == null) {
+                columnChannels[column] = new RandomAccessFile(columnFnames[column],"r").getChannel();
+            }
+            fc = columnChannels[column];
+        }
+        if (to > from) {
+            out.transferFrom(fc, 4L * from, 4L * (to - from));
+        }
+        return true;
     }
     /** gets the buffer of positions */
     public IntBP getPositionsBuffer() {
@@ -537,7 +624,137 @@ public abstract class Hits implements Closeable {
         }
         return output;
     }    
-    public void close() throws IOException {        
+    /** number of windows of stepsize between start and stop, as used by addToProfile() */
+    public static int numWindows(int start, int stop, int stepsize) {
+        return stop < start ? 0 : (stop - start) / stepsize + 1;
+    }
+    /**
+     * The positions whose hits can count in a profile of start to stop: the last window reaches
+     * windowsize - 1 past its start, and with extension reads up to maxLength long reach into 
+     * the profile from up to maxLength - 1 bases either side.  Returns {low, high}.
+     */
+    public static int[] profileRange(int start, int stop, int windowsize, int stepsize, int maxLength) {
+        int margin = Math.max(1, maxLength) - 1;
+        long lastWindowEnd = (long)start + (long)(numWindows(start, stop, stepsize) - 1) * stepsize + windowsize - 1;
+        return new int[]{(int)Math.max(Integer.MIN_VALUE, (long)start - margin),
+                         (int)Math.min(Integer.MAX_VALUE, Math.max(stop, lastWindowEnd) + margin)};
+    }
+    /**
+     * The longest read (first length of each hit).  Found with a pass over the hits the first
+     * time it's needed and then kept.
+     */
+    public int getMaxLength() {
+        int output = maxLength;
+        if (output < 0) {
+            output = 0;
+            for (int i = 0; i < lenAndStrand.size(); i++) {
+                output = Math.max(output, getLengthOne(lenAndStrand.get(i)));
+            }
+            maxLength = output;
+        }
+        return output;
+    }
+    /* floor(a / b) for b > 0 */
+    private static int floorDiv(int a, int b) {
+        return a >= 0 ? a / b : -((-a + b - 1) / b);
+    }
+    /**
+     * Adds the hits in the windows from start to stop (inclusive) to sliding-window profiles in a single pass.
+     * Window i covers start + i * stepsize to start + i * stepsize + windowsize - 1 (see numWindows()),
+     * so the last window can end past stop.  The hits read are those in profileRange(), which the
+     * header is used to find.
+     *
+     * plus and minus are difference arrays of length numWindows() + 1: each hit is added at the
+     * first window that contains it and subtracted after the last one, so that a running sum over
+     * the array gives the value of each window.  Summing several sets of hits (eg, several alignments)
+     * into the same arrays gives their combined profile.
+     *
+     * If minus is null, hits from both strands go into plus.  With extension, a hit counts in every
+     * window that its read overlaps rather than just the window(s) holding its position.  With weighted, 
+     * a hit adds its weight rather than one.  dedup > 0 counts at most dedup hits at any one position.
+     */
+    public void addToProfile(Header header,
+                             int start,
+                             int stop,
+                             int windowsize,
+                             int stepsize,
+                             int dedup,
+                             Float minweight,
+                             Boolean isPlus,
+                             boolean extension,
+                             boolean weighted,
+                             double[] plus,
+                             double[] minus) throws IOException {
+        int n = numWindows(start, stop, stepsize);
+        int[] range = profileRange(start, stop, windowsize, stepsize, extension ? getMaxLength() : 0);
+        int[] p = getIndices(header.getFirstIndex(range[0]), header.getLastIndex(range[1]), range[0], range[1]);
+        int lastpos = -1, lastposcount = 0;
+        for (int i = p[0]; i < p[1]; i++) {
+            int pos = positions.get(i);
+            float f = weights.get(i);
+            int l = lenAndStrand.get(i);
+            boolean strand = getStrandOne(l);
+            if ((minweight != null && f < minweight) ||
+                (isPlus != null && strand != isPlus)) {
+                continue;
+            }
+            if (dedup > 0) {
+                if (pos == lastpos) {
+                    if (++lastposcount >= dedup) {
+                        continue;
+                    }
+                } else {
+                    lastpos = pos;
+                    lastposcount = 0;
+                }
+            }
+            int left = pos, right = pos;
+            if (extension) {
+                int len = Math.max(1, getLengthOne(l));
+                if (strand) {
+                    right = pos + len - 1;
+                } else {
+                    left = pos - len + 1;
+                }
+            }
+            /* windows whose start is in [left - windowsize + 1, right] */
+            int first = Math.max(0, -floorDiv(start - (left - windowsize + 1), stepsize));
+            int last = Math.min(n - 1, floorDiv(right - start, stepsize));
+            if (first > last) {
+                continue;
+            }
+            double[] profile = (minus != null && !strand) ? minus : plus;
+            double v = weighted ? f : 1;
+            profile[first] += v;
+            profile[last + 1] -= v;
+        }
+    }
+    /** number of bytes of hits data mapped by this object */
+    public long sizeInBytes() {
+        return size(positions) + size(weights) + size(lenAndStrand);
+    }
+    protected static long size(ByteBP b) {
+        return (b == null || b.bb == null) ? 0 : b.bb.capacity();
+    }
+    /**
+     * Unmaps the hits files.  The buffers must not be used after this (see LRUCache for how
+     * the server makes sure of that).
+     */
+    public synchronized void close() throws IOException {        
+        if (positions == null) {
+            return;
+        }
+        if (columnChannels != null) {
+            for (FileChannel fc : columnChannels) {
+                if (fc != null) {
+                    fc.close();
+                }
+            }
+            columnChannels = null;
+        }
+        unmap(positions);
+        unmap(weights);
+        unmap(lenAndStrand);
         positions.ib = null;
         positions.bb = null;
         positions = null;
@@ -1,70 +1,299 @@
 package edu.psu.compbio.seqcode.gse.projects.readdb;
 
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Cache of Closeable objects.   Each object
  * is associated with a key.  When an object falls
  * out of the cache, its close() method is called.
+ *
+ * The cache is bounded both by a number of entries and by a byte budget.  Objects
+ * that implement Sized are charged sizeInBytes() against the budget (for Hits, the
+ * size of the memory-mapped files); other objects only count against the number of entries.
+ * When either bound is exceeded, the least recently used entries are evicted.
+ *
+ * The keys are split across several stripes, each of which is an access-ordered map
+ * with its own lock, so get() is O(1) and threads working on different keys rarely contend.
+ * Eviction picks the least recently used entry across all the stripes.
+ *
+ * Objects returned by get() and add() are pinned for the calling thread until it calls
+ * release().  An entry that is evicted or removed while pinned stays usable and is only
+ * closed once every thread has released it, so close() can safely unmap buffers.
  */
-
 public class LRUCache<X extends Closeable> {
 
-    private static int removed = 0;
+    private static final int STRIPES = 16;
 
-    private List<String> ordered;
-    private Map<String,X> map;
-    private int size;
+    private class Entry {
+        String key;
+        X value;
+        long size;
+        /* last access, from clock.  Used to compare entries across stripes */
+        volatile long lastUsed;
+        /* number of threads that have this entry pinned */
+        int pins;
+        boolean retired, closed;
+        Entry(String k, X v, long s) {
+            key = k;
+            value = v;
+            size = s;
+        }
+    }
 
+    private List<LinkedHashMap<String,Entry>> stripes;
+    private ReentrantLock[] stripeLocks;
+    private ReentrantLock evictLock;
+    private ThreadLocal<Set<Entry>> pinned;
+    private AtomicLong clock, bytes, hits, misses, evictions;
+    private AtomicInteger entries;
+    private int maxEntries;
+    private long maxBytes;
+
+    /**
+     * Creates a cache that holds at most size entries, with no byte budget
+     */
     public LRUCache(int size) {
-        ordered = Collections.synchronizedList(new ArrayList<String>());
-        map = Collections.synchronizedMap(new HashMap<String,X>());
-        this.size = size;
+        this(size, Long.MAX_VALUE);
+    }
+    /**
+     * Creates a cache that holds at most size entries and at most maxBytes bytes
+     * of Sized objects.
+     */
+    public LRUCache(int size, long maxBytes) {
+        maxEntries = Math.max(1, size);
+        this.maxBytes = maxBytes;
+        stripes = new ArrayList<LinkedHashMap<String,Entry>>(STRIPES);
+        stripeLocks = new ReentrantLock[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            stripes.add(new LinkedHashMap<String,Entry>(16, .75f, true));
+            stripeLocks[i] = new ReentrantLock();
+        }
+        evictLock = new ReentrantLock();
+        pinned = new ThreadLocal<Set<Entry>>() {
+            protected Set<Entry> initialValue() {
+                return new HashSet<Entry>();
+            }
+        };
+        clock = new AtomicLong();
+        bytes = new AtomicLong();
+        hits = new AtomicLong();
+        misses = new AtomicLong();
+        evictions = new AtomicLong();
+        entries = new AtomicInteger();
+    }
+
+    private int stripe(String k) {
+        int h = k.hashCode();
+        h ^= (h >>> 16);
+        return (h & 0x7fffffff) % STRIPES;
     }
 
     public boolean contains(String k) {
-        return map.containsKey(k);
+        int s = stripe(k);
+        stripeLocks[s].lock();
+        try {
+            return stripes.get(s).containsKey(k);
+        } finally {
+            stripeLocks[s].unlock();
+        }
     }
     public void printKeys() {
-        System.err.println(ordered.toString());
+        List<String> keys = new ArrayList<String>();
+        for (int i = 0; i < STRIPES; i++) {
+            stripeLocks[i].lock();
+            try {
+                keys.addAll(stripes.get(i).keySet());
+            } finally {
+                stripeLocks[i].unlock();
+            }
+        }
+        System.err.println(keys.toString());
     }
+    /**
+     * Returns the object for k, pinned for the current thread, or null if k isn't cached.
+     */
     public X get(String k) {
-        synchronized(map) {
-            if (map.containsKey(k)) {
-                //                System.err.println("GETTING " +k);
-                ordered.remove(k);
-                ordered.add(k);
-                return map.get(k);                
-            } else {
+        int s = stripe(k);
+        Entry e;
+        stripeLocks[s].lock();
+        try {
+            e = stripes.get(s).get(k);
+            if (e == null) {
+                misses.incrementAndGet();
                 return null;
             }
+            pin(e);
+        } finally {
+            stripeLocks[s].unlock();
         }
+        hits.incrementAndGet();
+        return e.value;
     }
+    /**
+     * Adds o to the cache under key k, replacing any previous object for k.  o
+     * is pinned for the current thread.
+     */
     public void add(String k, X o) {
-        synchronized(map) {
-            //            System.err.println("ADDING " +k);
-            if (map.containsKey(k)) {
-                remove(k);
+        Entry e = new Entry(k, o, (o instanceof Sized) ? ((Sized)o).sizeInBytes() : 0);
+        int s = stripe(k);
+        Entry old;
+        stripeLocks[s].lock();
+        try {
+            old = stripes.get(s).put(k, e);
+            pin(e);
+        } finally {
+            stripeLocks[s].unlock();
+        }
+        entries.incrementAndGet();
+        bytes.addAndGet(e.size);
+        if (old != null) {
+            retire(old);
+        }
+        evict();
+    }
+    public void remove(String k) {
+        int s = stripe(k);
+        Entry e;
+        stripeLocks[s].lock();
+        try {
+            e = stripes.get(s).remove(k);
+        } finally {
+            stripeLocks[s].unlock();
+        }
+        if (e != null) {
+            retire(e);
+        }
+    }
+    /**
+     * Unpins everything the current thread got from this cache.  Evicted or removed
+     * entries are closed once no thread has them pinned.
+     */
+    public void release() {
+        Set<Entry> p = pinned.get();
+        if (p.isEmpty()) {
+            return;
+        }
+        for (Entry e : p) {
+            boolean close;
+            synchronized(e) {
+                e.pins--;
+                close = e.retired && e.pins == 0 && !e.closed;
+                if (close) {
+                    e.closed = true;
+                }
             }
-            if (ordered.size() >= size) {
-                String toRemove = ordered.get(0);
-                remove(toRemove);
+            if (close) {
+                close(e);
             }
-            ordered.add(k);
-            map.put(k,o);
         }
+        p.clear();
     }
-    public void remove(String k) {
-        synchronized(map) {
-            if (map.containsKey(k)) {
-                //                System.err.println("REMOVING " +k);
-                ordered.remove(k);
-                map.remove(k);
-                removed++;
+
+    /* called with the entry's stripe locked, so the entry can't be retired underneath us */
+    private void pin(Entry e) {
+        e.lastUsed = clock.incrementAndGet();
+        if (pinned.get().add(e)) {
+            synchronized(e) {
+                e.pins++;
+            }
+        }
+    }
+    /* entry has been taken out of its stripe.  Close it now unless a thread still has it pinned */
+    private void retire(Entry e) {
+        entries.decrementAndGet();
+        bytes.addAndGet(-e.size);
+        boolean close;
+        synchronized(e) {
+            e.retired = true;
+            close = e.pins == 0 && !e.closed;
+            if (close) {
+                e.closed = true;
+            }
+        }
+        if (close) {
+            close(e);
+        }
+    }
+    private void close(Entry e) {
+        try {
+            e.value.close();
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+    }
+    /* evicts least recently used entries until the cache is within its bounds.  Only one thread
+       evicts at a time; the others carry on since the evicting thread will catch their additions.
+       An addition made just as the evicting thread finishes is caught by the recheck after unlocking */
+    private void evict() {
+        while (overBounds()) {
+            if (!evictLock.tryLock()) {
+                return;
+            }
+            try {
+                if (!evictLocked()) {
+                    return;
+                }
+            } finally {
+                evictLock.unlock();
+            }
+        }
+    }
+    private boolean overBounds() {
+        return entries.get() > 1 && (entries.get() > maxEntries || bytes.get() > maxBytes);
+    }
+    /* caller holds evictLock.  Returns false if there was nothing to evict */
+    private boolean evictLocked() {
+        while (overBounds()) {
+            int oldest = -1;
+            long oldestUsed = Long.MAX_VALUE;
+            for (int i = 0; i < STRIPES; i++) {
+                stripeLocks[i].lock();
+                try {
+                    if (!stripes.get(i).isEmpty()) {
+                        long u = stripes.get(i).values().iterator().next().lastUsed;
+                        if (u < oldestUsed) {
+                            oldestUsed = u;
+                            oldest = i;
+                        }
+                    }
+                } finally {
+                    stripeLocks[i].unlock();
+                }
+            }
+            if (oldest == -1) {
+                return false;
+            }
+            Entry e = null;
+            stripeLocks[oldest].lock();
+            try {
+                Iterator<Entry> iter = stripes.get(oldest).values().iterator();
+                if (iter.hasNext()) {
+                    e = iter.next();
+                    iter.remove();
+                }
+            } finally {
+                stripeLocks[oldest].unlock();
+            }
+            if (e != null) {
+                evictions.incrementAndGet();
+                retire(e);
             }
         }
+        return true;
     }
-    public static int removed() {return removed;}
-    public static void resetRemoved() {removed = 0;}
 
-}
\ No newline at end of file
+    public int size() {return entries.get();}
+    /** bytes of Sized objects currently in the cache */
+    public long bytes() {return bytes.get();}
+    public long maxBytes() {return maxBytes;}
+    public long hits() {return hits.get();}
+    public long misses() {return misses.get();}
+    public long evictions() {return evictions.get();}
+    public String stats() {
+        return String.format("%d entries, %d bytes, %d hits, %d misses, %d evictions",
+                             size(), bytes(), hits(), misses(), evictions());
+    }
+}
@@ -1,6 +1,9 @@
 package edu.psu.compbio.seqcode.gse.projects.readdb;
 
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.util.concurrent.locks .*;
 
 /**
@@ -8,12 +11,66 @@ import java.util.concurrent.locks .*;
  * - multiple threads can have a read lock on an object at once; synchronized doesn't
  *   do this
  * - the java.io locking stuff only locks between processes, not within the JVM
+ *
+ * Each name gets its own ReentrantReadWriteLock from a ConcurrentHashMap, so finding the
+ * lock never takes a global monitor and a thread blocked on one name (eg, a reader waiting
+ * for an import to finish) never holds up threads locking other names.  Entries are reference
+ * counted and dropped from the map once no thread holds or waits for them.  The locks that
+ * each thread holds are kept in a ThreadLocal until releaseLocks().
+ *
+ * If setTimeout() has been given a timeout, readLock() and writeLock() throw LockTimeoutException
+ * rather than wait longer than that.  stats() reports how often threads had to wait and for how long.
  */
 public class Lock {
 
-    private static Map<String,ReentrantReadWriteLock> locks = Collections.synchronizedMap(new HashMap<String,ReentrantReadWriteLock>());
-    private static Map<Thread,Set<java.util.concurrent.locks.Lock>> threadlocks = Collections.synchronizedMap(new HashMap<Thread,Set<java.util.concurrent.locks.Lock>>());
-    private static int rlcount = 0;
+    /**
+     * Thrown when a lock can't be acquired within the timeout
+     */
+    public static class LockTimeoutException extends IOException {
+        private static final long serialVersionUID = 1L;
+        public LockTimeoutException(String message) {
+            super(message);
+        }
+    }
+
+    private static class Entry {
+        final String name;
+        final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        /* threads holding or waiting for the lock.  Guarded by the entry's monitor, which is never held while blocking */
+        int users = 0;
+        boolean removed = false;
+        Entry(String n) {name = n;}
+    }
+    private static class Held {
+        final Entry entry;
+        final java.util.concurrent.locks.Lock lock;
+        final boolean write;
+        Held(Entry e, boolean w) {
+            entry = e;
+            write = w;
+            lock = w ? e.lock.writeLock() : e.lock.readLock();
+        }
+    }
+
+    private static final ConcurrentHashMap<String,Entry> locks = new ConcurrentHashMap<String,Entry>(256, 0.75f, 64);
+    private static final ThreadLocal<List<Held>> threadlocks = new ThreadLocal<List<Held>>() {
+        protected List<Held> initialValue() {
+            return new ArrayList<Held>();
+        }
+    };
+    /* milliseconds; 0 waits forever */
+    private static volatile long timeout = 0;
+
+    private static final AtomicLong acquired = new AtomicLong(), waited = new AtomicLong(),
+        waitNanos = new AtomicLong(), maxWaitNanos = new AtomicLong(), timeouts = new AtomicLong();
+
+    /**
+     * Sets how long readLock() and writeLock() may wait before giving up.  0 means forever.
+     */
+    public static void setTimeout(long millis) {
+        timeout = millis;
+    }
+    public static long getTimeout() {return timeout;}
 
     /**
      * blocks to acquire a shared lock to the specified file.
@@ -21,74 +78,120 @@ public class Lock {
      * good for keeping out other threads.  It's keyed off the file name
      * you provide, so make sure you always generate the filename in the same way.
      */
-    protected static  java.util.concurrent.locks.Lock readLock(String fname) {
-        Thread t = Thread.currentThread();
-        synchronized(threadlocks) {
-            if (!threadlocks.containsKey(t)) {
-                threadlocks.put(t, new HashSet<java.util.concurrent.locks.Lock>());
+    protected static java.util.concurrent.locks.Lock readLock(String fname) throws LockTimeoutException {
+        return acquire(fname, false);
+    }
+    /**
+     * blocks to acquire an exclusive lock to the specified file.  Any read locks that this thread
+     * holds on the file are released first (a thread can't upgrade a ReentrantReadWriteLock), so
+     * callers must not assume that nothing changed between their read lock and the write lock.
+     */
+    protected static java.util.concurrent.locks.Lock writeLock(String fname) throws LockTimeoutException {
+        List<Held> held = threadlocks.get();
+        for (int i = held.size() - 1; i >= 0; i--) {
+            Held h = held.get(i);
+            if (!h.write && h.entry.name.equals(fname)) {
+                held.remove(i);
+                release(h);
             }
         }
-        java.util.concurrent.locks.Lock lock = null;
-        synchronized(locks) {
-            if (!locks.containsKey(fname)) {
-                locks.put(fname, new ReentrantReadWriteLock());
-            }
-            lock = locks.get(fname).readLock();
-            lock.lock();
+        return acquire(fname, true);
+    }
+    /* call to ensure that all a thread's locks have been released */
+    protected static void releaseLocks() {
+        List<Held> held = threadlocks.get();
+        for (int i = held.size() - 1; i >= 0; i--) {
+            release(held.get(i));
         }
-        threadlocks.get(t).add(lock);
-        //        System.err.println("READLOCK by " + t + " of " + fname + " as " + lock);
-        return lock;
+        held.clear();
+    }
+    /**
+     * Summary of the lock-wait metrics
+     */
+    public static String stats() {
+        long w = waited.get();
+        return String.format("acquired %d, waited %d (%.2f ms avg, %.2f ms max), timed out %d, names held %d",
+                             acquired.get(), w,
+                             w == 0 ? 0.0 : waitNanos.get() / (w * 1e6),
+                             maxWaitNanos.get() / 1e6,
+                             timeouts.get(), locks.size());
     }
-    protected static java.util.concurrent.locks.Lock writeLock(String fname) {
-        Thread t = Thread.currentThread();
-        synchronized(threadlocks) {
-            if (!threadlocks.containsKey(t)) {
-                threadlocks.put(t, new HashSet<java.util.concurrent.locks.Lock>());
+    public static long getAcquired() {return acquired.get();}
+    public static long getWaited() {return waited.get();}
+    public static long getWaitNanos() {return waitNanos.get();}
+    public static long getTimeouts() {return timeouts.get();}
+
+    private static java.util.concurrent.locks.Lock acquire(String fname, boolean write) throws LockTimeoutException {
+        Entry e = reference(fname);
+        Held h = new Held(e, write);
+        boolean ok = false;
+        try {
+            if (h.lock.tryLock()) {
+                ok = true;
+            } else {
+                long start = System.nanoTime();
+                long t = timeout;
+                try {
+                    if (t > 0) {
+                        ok = h.lock.tryLock(t, TimeUnit.MILLISECONDS);
+                    } else {
+                        h.lock.lock();
+                        ok = true;
+                    }
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                long elapsed = System.nanoTime() - start;
+                waited.incrementAndGet();
+                waitNanos.addAndGet(elapsed);
+                long max;
+                while (elapsed > (max = maxWaitNanos.get()) && !maxWaitNanos.compareAndSet(max, elapsed)) {
+                }
+                if (!ok) {
+                    timeouts.incrementAndGet();
+                    throw new LockTimeoutException(String.format("timed out after %d ms waiting for %s lock on %s",
+                                                                 t, write ? "write" : "read", fname));
+                }
             }
-        }
-        java.util.concurrent.locks.Lock rl = null, lock = null;
-        synchronized(locks) {
-            if (!locks.containsKey(fname)) {
-                locks.put(fname, new ReentrantReadWriteLock());
+        } finally {
+            if (!ok) {
+                dereference(e);
             }
-            rl = locks.get(fname).readLock();
-            rl.unlock();
-            threadlocks.get(t).remove(rl);
-            lock = locks.get(fname).writeLock();
-            lock.lock();
         }
-        threadlocks.get(t).add(lock);
-        //        System.err.println("WRITELOCK by " + t + " of " + fname + " as " + lock);
-        return lock;
+        acquired.incrementAndGet();
+        threadlocks.get().add(h);
+        return h.lock;
     }
-    /* call to ensure that all a thread's locks have been released */
-    protected static void releaseLocks() {
-        Thread t = Thread.currentThread();
-        if (threadlocks.containsKey(t)) {
-            for (java.util.concurrent.locks.Lock l : threadlocks.get(t)) {
-                //                System.err.println("UNLOCK of " + l + " by " + t);
-                l.unlock();
+    private static void release(Held h) {
+        h.lock.unlock();
+        dereference(h.entry);
+    }
+    /* returns the entry for the name with its user count incremented */
+    private static Entry reference(String fname) {
+        while (true) {
+            Entry e = locks.get(fname);
+            if (e == null) {
+                Entry n = new Entry(fname);
+                e = locks.putIfAbsent(fname, n);
+                if (e == null) {
+                    e = n;
+                }
             }
-            threadlocks.get(t).clear();
-        }
-        if (rlcount++ > 1000) {
-            rlcount = 0;
-            if (locks.size() > 10000) {
-                synchronized(locks) {
-                    /* cleanup loop so that we don't have an ever-expanding data structure */
-                    Collection<String> keys = locks.keySet();
-                    for (String k : keys) {
-                        ReentrantReadWriteLock l = locks.get(k);
-                        if (l.getReadLockCount() == 0 && !l.isWriteLocked()) {
-                            locks.remove(k);
-                        }
-                    }
+            synchronized(e) {
+                if (!e.removed) {
+                    e.users++;
+                    return e;
                 }
             }
+            /* lost a race with the last user removing it; try again */
         }
     }
-    
-
-
-}
\ No newline at end of file
+    private static void dereference(Entry e) {
+        synchronized(e) {
+            if (--e.users == 0) {
+                e.removed = true;
+                locks.remove(e.name, e);
+            }
+        }
+    }
+}
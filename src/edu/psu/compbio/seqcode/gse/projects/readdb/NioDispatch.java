@@ -0,0 +1,191 @@
+package edu.psu.compbio.seqcode.gse.projects.readdb;
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.*;
+
+/**
+ * NioDispatch is the selector-based alternative to Server.listen() + Dispatch.
+ *
+ * A single thread owns a Selector over the listening socket and every idle client connection, so
+ * thousands of connections cost no threads and no polling.  When a connection becomes readable, its
+ * waiting bytes are moved into the ServerTask, the connection is taken out of the selector (interest set 0)
+ * and the task is run on a fixed pool of worker threads.  When run() returns, the task either goes
+ * straight back to the pool (if it already has unconsumed input) or is handed back to the selector thread.
+ *
+ * Backpressure: a connection is never read while one of its requests is being processed, so a client
+ * that sends faster than the workers can serve it is held back by TCP flow control.  Once maxConnections
+ * connections are open, the selector stops accepting and further clients wait in the listen backlog until
+ * a connection closes.
+ *
+ * The wire protocol is unchanged: ServerTask.run() handles the requests exactly as it does for Dispatch.
+ */
+public class NioDispatch implements Runnable {
+
+    private Server server;
+    private int port, maxConnections, openConnections;
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private SelectionKey acceptKey;
+    private ExecutorService workers;
+    /* tasks that workers have finished with, waiting to be re-registered by the selector thread */
+    private ConcurrentLinkedQueue<ServerTask> returned;
+    private int warnedMaxConn = 0;
+
+    public NioDispatch(Server s, int port, int numThreads, int maxC) throws IOException {
+        server = s;
+        this.port = port;
+        maxConnections = maxC;
+        openConnections = 0;
+        returned = new ConcurrentLinkedQueue<ServerTask>();
+        workers = Executors.newFixedThreadPool(Math.max(1, numThreads));
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().setReuseAddress(true);
+        serverChannel.socket().setReceiveBufferSize(Server.BUFFERLEN);
+        /* clients held back by the connection limit wait in the backlog, so make it at least as deep as the limit */
+        serverChannel.socket().bind(new InetSocketAddress(port), Math.max(50, maxConnections));
+        serverChannel.configureBlocking(false);
+        acceptKey = serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    /**
+     * Wakes the selector thread, eg so that it notices that the server should stop
+     */
+    public void wakeup() {
+        selector.wakeup();
+    }
+
+    public void run() {
+        server.getLogger().log(Level.INFO,String.format("NioDispatch listening on port %d",port));
+        while (server.keepRunning()) {
+            try {
+                selector.select(1000);
+                reregisterReturned();
+                Iterator<SelectionKey> iter = selector.selectedKeys().iterator();
+                while (iter.hasNext()) {
+                    SelectionKey key = iter.next();
+                    iter.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else if (key.isReadable()) {
+                        ready(key);
+                    }
+                }
+                updateAccepting();
+            } catch (IOException e) {
+                server.getLogger().logp(Level.WARNING,"NioDispatch","run",e.toString(),e);
+            }
+        }
+        workers.shutdown();
+        try {
+            workers.awaitTermination(60, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof ServerTask) {
+                ((ServerTask)key.attachment()).close();
+            }
+        }
+        try {
+            serverChannel.close();
+            selector.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /* accept as many pending connections as the connection limit allows */
+    private void accept() throws IOException {
+        while (openConnections < maxConnections) {
+            SocketChannel c = serverChannel.accept();
+            if (c == null) {
+                return;
+            }
+            server.getLogger().log(Level.INFO,"accepted from " + c.socket().getInetAddress());
+            try {
+                c.socket().setSoLinger(false,0);
+                ServerTask st = new ServerTask(server, c);
+                if (server.debug()) {
+                    System.err.println("New Task is " + st);
+                }
+                c.register(selector, SelectionKey.OP_READ, st);
+                openConnections++;
+            } catch (IOException e) {
+                e.printStackTrace();
+                c.close();
+            }
+        }
+    }
+
+    /* stop accepting while at the connection limit; resume once connections close */
+    private void updateAccepting() {
+        if (openConnections >= maxConnections) {
+            if (acceptKey.interestOps() != 0) {
+                if (warnedMaxConn++ % 100 == 0) {
+                    server.getLogger().log(Level.WARNING,(String.format("Hit maxconnections (%d)",maxConnections)));
+                }
+                acceptKey.interestOps(0);
+            }
+        } else if (acceptKey.interestOps() == 0) {
+            acceptKey.interestOps(SelectionKey.OP_ACCEPT);
+        }
+    }
+
+    /* a connection has input: take it out of the selector and give it to a worker */
+    private void ready(SelectionKey key) {
+        ServerTask task = (ServerTask)key.attachment();
+        if (!task.fillInput()) {
+            close(key, task);
+            return;
+        }
+        key.interestOps(0);
+        submit(task);
+    }
+
+    private void submit(final ServerTask task) {
+        workers.execute(new Runnable() {
+                public void run() {
+                    try {
+                        task.run();
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                    if (!task.shouldClose() && task.hasBufferedInput()) {
+                        submit(task);
+                    } else {
+                        returned.add(task);
+                        selector.wakeup();
+                    }
+                }
+            });
+    }
+
+    /* called on the selector thread: close finished connections and watch the rest for input again */
+    private void reregisterReturned() {
+        ServerTask task;
+        while ((task = returned.poll()) != null) {
+            SelectionKey key = task.getChannel().keyFor(selector);
+            if (task.shouldClose() || key == null || !key.isValid()) {
+                close(key, task);
+            } else {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+    }
+
+    private void close(SelectionKey key, ServerTask task) {
+        if (key != null) {
+            key.cancel();
+        }
+        task.close();
+        openConnections--;
+    }
+}
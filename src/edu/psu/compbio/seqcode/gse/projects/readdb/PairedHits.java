@@ -38,6 +38,20 @@ public class PairedHits extends Hits {
         pairCode = openIntBP(getPairCodeFname(prefix,chrom,isLeft));
     }
     public boolean isLeft () {return isLeft;}
+    public long sizeInBytes() {
+        return super.sizeInBytes() + size(chroms) + size(otherPositions) + size(pairCode);
+    }
+    public void close() throws IOException {
+        if (chroms != null) {
+            unmap(chroms);
+            unmap(otherPositions);
+            unmap(pairCode);
+            chroms = null;
+            otherPositions = null;
+            pairCode = null;
+        }
+        super.close();
+    }
     public IntBP getChromsBuffer() {return chroms;}
     public IntBP getOtherPosBuffer() {return otherPositions;}
     public IntBP getPairCodeBuffer() {return pairCode;}
@@ -4,6 +4,7 @@ import java.net.*;
 import java.util.*;
 import java.util.logging.*;
 import java.io.*;
+import java.util.concurrent.*;
 import org.apache.commons.cli.*;
 
 /**
@@ -16,8 +17,12 @@ import org.apache.commons.cli.*;
  * <li>--port 52000     port to listen on
  * <li>--threads 5      number of threads to start to handle client requests
  * <li>--cachesize 100  number of chromosomes to keep files open for
+ * <li>--cachemb 4096   megabytes of hits files to keep memory-mapped
  * <li>--maxconn 200    maximum number of client connections
  * <li>--sleepiness 2   how sleepy the server should be waiting for input.  Lower values use more CPU but improve responsiveness
+ * <li>--nio            multiplex all client connections over one selector thread (see NioDispatch) instead of polling them
+ * <li>--locktimeout 0 seconds a request may wait for an alignment's lock before it fails.  0 waits forever
+ * <li>--compress       write the main files of new and compacted single-ended chromosomes in the compressed format (see CompressedHits)
  * <li>--help           print the usage message and exit
  *
  */
@@ -29,7 +34,8 @@ public class Server {
 	private Logger logger;
     private int port;
     private int numThreads, cacheSize, maxConnections, sleepiness;
-    private boolean debug;
+    private long cacheBytes;
+    private boolean debug, nio, compress;
     /* topdir is the top-level directory for our data files.
       pwfile is "${topdir}/users.txt" and groupfile is 
       "${topdir}/groups.txt"
@@ -37,15 +43,24 @@ public class Server {
     private String topdir, pwfile, groupfile;
     private boolean keepRunning;
     private Dispatch dispatch;
+    private NioDispatch nioDispatch;
     private Map<String,Set<String>> groups;
     // BUFFERLEN should be a multiple of 8 to avoid problems with partial ints, floats, or doubles
     // in buffers when the buffer is allocated in bytes.
     public static final int BUFFERLEN = 8192 * 16;
 
+    /* single and paired hits share one cache so that all the mapped files count against one byte budget */
+    private LRUCache<Hits> hits;
     private LRUCache<Header> headers;
-    private LRUCache<SingleHits> singleHits;
-    private LRUCache<PairedHits> pairedHits;
     private LRUCache<AlignmentACL> acls;    
+    private LRUCache<CompressedHits> compressed;
+    /* segment ids of each single-ended chromosome (see SingleHits), keyed by alignment dir + chrom.  
+       nextSegment holds the next id to hand out */
+    private Map<String,List<Integer>> segments;
+    private Map<String,Integer> nextSegment;
+    /* compactions run one at a time in the background */
+    private ExecutorService compactor;
+    private Set<String> pendingCompactions;
 
     private ServerSocket socket;
 
@@ -54,6 +69,7 @@ public class Server {
         sleepiness = 4;
         numThreads = 5;
         cacheSize = numThreads * 10;
+        cacheBytes = 4096L * 1024 * 1024;
         maxConnections = 250;
         topdir = "/tmp";
         keepRunning = true;
@@ -68,8 +84,12 @@ public class Server {
         options.addOption("d","datadir",true,"directory to use for data");
         options.addOption("D","debug",false,"provide debugging output");
         options.addOption("C","cachesize",true,"how many files to keep open (this value times three)");
+        options.addOption("B","cachemb",true,"how many megabytes of hits files to keep mapped");
         options.addOption("M","maxconn",true,"how many connections are allowed");
         options.addOption("S","sleepiness",true,"how sleepy the server should be while waiting for input.  1-100");
+        options.addOption("N","nio",false,"use the selector-based connection handler");
+        options.addOption("Z","compress",false,"write single-ended hits in the compressed format");
+        options.addOption("L","locktimeout",true,"seconds to wait for a lock before failing the request");
         options.addOption("h","help",false,"print help message");
         CommandLineParser parser = new GnuParser();
         CommandLine line = parser.parse( options, args, false );            
@@ -91,6 +111,9 @@ public class Server {
         if (line.hasOption("cachesize")) {
             cacheSize = Integer.parseInt(line.getOptionValue("cachesize"));
         }
+        if (line.hasOption("cachemb")) {
+            cacheBytes = Long.parseLong(line.getOptionValue("cachemb")) * 1024 * 1024;
+        }
         if (line.hasOption("maxconn")) {
             maxConnections = Integer.parseInt(line.getOptionValue("maxconn"));
         }
@@ -105,11 +128,20 @@ public class Server {
         }
 
 
-        singleHits = new LRUCache<SingleHits>(cacheSize);
-        pairedHits = new LRUCache<PairedHits>(cacheSize);
+        hits = new LRUCache<Hits>(2 * cacheSize, cacheBytes);
         headers = new LRUCache<Header>(cacheSize);
         acls = new LRUCache<AlignmentACL>(cacheSize);
+        compressed = new LRUCache<CompressedHits>(cacheSize);
+        segments = new HashMap<String,List<Integer>>();
+        nextSegment = new HashMap<String,Integer>();
+        pendingCompactions = new HashSet<String>();
+        compactor = Executors.newSingleThreadExecutor();
         debug = line.hasOption("debug");
+        nio = line.hasOption("nio");
+        compress = line.hasOption("compress");
+        if (line.hasOption("locktimeout")) {
+            Lock.setTimeout(Long.parseLong(line.getOptionValue("locktimeout")) * 1000);
+        }
         logger.log(Level.INFO,String.format("Server parsed args: port %d, threads %d, directory %s",port,numThreads,topdir));
         pwfile = topdir + System.getProperty("file.separator") + "users.txt";
         groupfile = topdir + System.getProperty("file.separator") + "groups.txt";
@@ -120,9 +152,16 @@ public class Server {
         System.out.println(" [--threads 4]   use three worker threads to process requests.");
         System.out.println(" [--cachesize 400]  number of datasets to keep open.  Actual number of open files will be");
         System.out.println("                  three times this value");
+        System.out.println(" [--cachemb 4096]  megabytes of hits files to keep memory-mapped.  Least recently used files");
+        System.out.println("                  are unmapped once this is exceeded");
         System.out.println(" [--maxconn 250]   maximum number of open connections");
         System.out.println(" [--debug]  print debugging output");
         System.out.println(" [--sleepiness 4]  (1-100) higher values use less CPU when idle but may incur more delay in processing requests");
+        System.out.println(" [--nio]  handle connections with a selector and a pool of --threads workers.  Suits many");
+        System.out.println("          mostly-idle clients; --maxconn then limits open connections rather than queued tasks");
+        System.out.println(" [--locktimeout 0]  seconds a request may wait for an alignment's lock before it fails.  0 waits forever");
+        System.out.println(" [--compress]  store single-ended hits in the compressed format as they are created or compacted.");
+        System.out.println("          Existing files in either format are read as they are");
     }
     public static void main(String args[]) throws Exception {
         Server server = new Server();
@@ -143,15 +182,25 @@ public class Server {
                 e.printStackTrace();
             }
         }
+        if (keepRunning == false && nioDispatch != null) {
+            nioDispatch.wakeup();
+        }
 
     }
     public boolean debug() {return debug;}
+    public boolean compress() {return compress;}
     public int getSleepiness() {return sleepiness;}
     public void listen() throws IOException {
-        Thread t = new Thread(new CacheGCHook(logger));
-        t.start();
+        if (nio) {
+            nioDispatch = new NioDispatch(this, port, numThreads, maxConnections);
+            nioDispatch.run();
+            compactor.shutdown();
+            logger.log(Level.INFO,"cache statistics: " + getCacheStats());
+            logger.log(Level.INFO,"lock statistics: " + Lock.stats());
+            return;
+        }
         dispatch = new Dispatch(this,numThreads, maxConnections);
-        t = new Thread(dispatch);
+        Thread t = new Thread(dispatch);
         t.start();
         socket = new ServerSocket(port);
         socket.setReuseAddress(true);
@@ -171,6 +220,9 @@ public class Server {
                 e.printStackTrace();
             }
         }
+        compactor.shutdown();
+        logger.log(Level.INFO,"cache statistics: " + getCacheStats());
+        logger.log(Level.INFO,"lock statistics: " + Lock.stats());
     }
     public Logger getLogger() {return logger;}
     public String getTopDir() {
@@ -201,6 +253,11 @@ public class Server {
                                           boolean isLeft) {
         return getAlignmentDir(alignID) + System.getProperty("file.separator") + chromID + ".paired" + (isLeft ? "left" : "right") + "index";
     }
+    public String getSegmentHeaderFileName(String alignID,
+                                           int chromID,
+                                           int segment) {
+        return SingleHits.getHeaderFname(getAlignmentDir(alignID) + System.getProperty("file.separator"), chromID, segment);
+    }
     public Set<Integer> getChroms(String alignID,
                                  boolean isPaired,
                                  boolean isLeft) {
@@ -223,27 +280,55 @@ public class Server {
     /**
      * Returns the requested Hits object.  Creates it or retrieves from cache.
      * Client code is responsible for locking the file as necessary.
+     * A compressed chromosome is decoded in full; queries on a region should use getMergedSingleHits().
      */
     public SingleHits getSingleHits(String alignID,
                                     int chrom) throws IOException, SecurityException, FileNotFoundException {
-        String key = alignID + chrom;
-        SingleHits output = singleHits.get(key);
+        String key = alignID + "/" + chrom;
+        SingleHits output = (SingleHits)hits.get(key);
         if (output == null) {
-            String prefix = getAlignmentDir(alignID) + System.getProperty("file.separator");
-            output = new SingleHits(prefix,chrom);
-            singleHits.add(key, output);
+            /* finishes any interrupted compaction before the main files are opened */
+            getSegments(alignID, chrom);
+            if (isCompressed(alignID, chrom)) {
+                output = getCompressedHits(alignID, chrom).decodeAll(chrom);
+            } else {
+                String prefix = getAlignmentDir(alignID) + System.getProperty("file.separator");
+                output = new SingleHits(prefix,chrom);
+            }
+            hits.add(key, output);
+        }
+        return output;
+    }
+    /** true if the main files of the single-ended chromosome are in the compressed format */
+    public boolean isCompressed(String alignID, int chrom) {
+        return (new File(SingleHits.getCompressedFname(getAlignmentDir(alignID) + System.getProperty("file.separator"), chrom))).exists();
+    }
+    public CompressedHits getCompressedHits(String alignID, int chrom) throws IOException {
+        String key = alignID + "/" + chrom;
+        CompressedHits output = compressed.get(key);
+        if (output == null) {
+            output = new CompressedHits(SingleHits.getCompressedFname(getAlignmentDir(alignID) + System.getProperty("file.separator"), chrom));
+            compressed.add(key, output);
         }
         return output;
     }
+    /**
+     * true if queries on the single-ended chromosome have to read their region through 
+     * getMergedSingleHits() rather than from getSingleHits(), ie because it has segments
+     * or is compressed.
+     */
+    public boolean usesMergedView(String alignID, int chrom) {
+        return getSegments(alignID, chrom).length > 0 || isCompressed(alignID, chrom);
+    }
     public PairedHits getPairedHits(String alignID,
                                     int chrom,
                                     boolean isLeft) throws IOException, SecurityException, FileNotFoundException {
-        String key = alignID + chrom + isLeft;
-        PairedHits output = pairedHits.get(key);
+        String key = alignID + "/" + chrom + "/" + isLeft;
+        PairedHits output = (PairedHits)hits.get(key);
         if (output == null) {
             String prefix = getAlignmentDir(alignID) + System.getProperty("file.separator");
             output = new PairedHits(prefix, chrom, isLeft);
-            pairedHits.add(key, output);
+            hits.add(key, output);
         }
         return output;
     }
@@ -252,16 +337,17 @@ public class Server {
      * Client code is responsible for locking the file as necessary.
      */
     public Header getSingleHeader(String alignID, int chromID) throws IOException {
-        String key = alignID + chromID;
+        String key = alignID + "/" + chromID;
         Header output = headers.get(key);
         if (output == null) {
+            getSegments(alignID, chromID);
             output = Header.readIndexFile(getSingleHeaderFileName(alignID,chromID));
             headers.add(key, output);
         }
         return output;
     }
     public Header getPairedHeader(String alignID, int chromID, boolean isLeft) throws IOException {
-        String key = alignID + chromID + isLeft;
+        String key = alignID + "/" + chromID + "/" + isLeft;
         Header output = headers.get(key);
         if (output == null) {
             output = Header.readIndexFile(getPairedHeaderFileName(alignID,chromID,isLeft));
@@ -282,23 +368,216 @@ public class Server {
         return output;
     }
     public void removeSingleHits(String alignID, int chromID) {
-        singleHits.remove(alignID + chromID);
+        hits.remove(alignID + "/" + chromID);
+        compressed.remove(alignID + "/" + chromID);
     }
     public void removePairedHits(String alignID, int chromID, boolean isLeft) {
-        pairedHits.remove(alignID + chromID + isLeft);
+        hits.remove(alignID + "/" + chromID + "/" + isLeft);
     }
     public void removeSingleHeader(String alignID, int chromID) {
-        headers.remove(alignID + chromID);
+        headers.remove(alignID + "/" + chromID);
     }
     public void removePairedHeader(String alignID, int chromID, boolean isLeft) {
-        headers.remove(alignID + chromID + isLeft);
+        headers.remove(alignID + "/" + chromID + "/" + isLeft);
     }
     public void removeACL(String alignID) {acls.remove(alignID);}
+
+    private String segmentKey(String alignID, int chrom) {
+        return cleanStringForFilename(alignID) + "/" + chrom;
+    }
+    /* must hold the lock on segments.  The first call for a chromosome also finishes or rolls 
+       back a compaction that was interrupted, eg by a crash (see Compaction.recover()) */
+    private List<Integer> loadSegments(String alignID, int chrom) {
+        String key = segmentKey(alignID, chrom);
+        List<Integer> ids = segments.get(key);
+        if (ids == null) {
+            try {
+                if (Compaction.recover(getAlignmentDir(alignID) + System.getProperty("file.separator"), chrom)) {
+                    logger.log(Level.INFO,"Finished interrupted compaction of " + alignID + " " + chrom);
+                }
+            } catch (IOException e) {
+                /* the journal is still there, so the next server start tries again */
+                logger.logp(Level.SEVERE,"Server","loadSegments","Couldn't recover compaction of " + alignID + " " + chrom,e);
+            }
+            ids = new ArrayList<Integer>();
+            int next = 1;
+            File[] files = (new File(getAlignmentDir(alignID))).listFiles();
+            String p = chrom + ".seg";
+            if (files != null) {
+                for (int i = 0; i < files.length; i++) {
+                    String name = files[i].getName();
+                    if (name.startsWith(p) && name.endsWith(".segindex")) {
+                        int id = Integer.parseInt(name.substring(p.length(), name.length() - ".segindex".length()));
+                        ids.add(id);
+                        next = Math.max(next, id + 1);
+                    }
+                }
+            }
+            Collections.sort(ids);
+            segments.put(key, ids);
+            nextSegment.put(key, next);
+        }
+        return ids;
+    }
+    /**
+     * Returns the ids of the segments that hold hits for this chromosome in addition to
+     * the main files.  Client code should hold at least a read lock on the alignment.
+     */
+    public int[] getSegments(String alignID, int chrom) {
+        synchronized(segments) {
+            List<Integer> ids = loadSegments(alignID, chrom);
+            int[] output = new int[ids.size()];
+            for (int i = 0; i < output.length; i++) {
+                output[i] = ids.get(i);
+            }
+            return output;
+        }
+    }
+    /**
+     * Reserves an id for a new segment.  The segment isn't visible to queries until addSegment()
+     */
+    public int newSegmentID(String alignID, int chrom) {
+        synchronized(segments) {
+            loadSegments(alignID, chrom);
+            String key = segmentKey(alignID, chrom);
+            int id = nextSegment.get(key);
+            nextSegment.put(key, id + 1);
+            return id;
+        }
+    }
+    /** Client code must hold the write lock on the alignment */
+    public void addSegment(String alignID, int chrom, int segment) {
+        synchronized(segments) {
+            loadSegments(alignID, chrom).add(segment);
+        }
+    }
+    /** Client code must hold the write lock on the alignment */
+    public void removeSegments(String alignID, int chrom, int[] ids) {
+        synchronized(segments) {
+            List<Integer> current = loadSegments(alignID, chrom);
+            for (int id : ids) {
+                current.remove(Integer.valueOf(id));
+            }
+        }
+        for (int id : ids) {
+            hits.remove(alignID + "/" + chrom + "/s" + id);
+            headers.remove(alignID + "/" + chrom + "/s" + id);
+        }
+    }
+    /** forgets all segments of the alignment, eg because it has been deleted */
+    public void removeAllSegments(String alignID) {
+        Map<Integer,int[]> toRemove = new HashMap<Integer,int[]>();
+        String prefix = cleanStringForFilename(alignID) + "/";
+        synchronized(segments) {
+            Iterator<String> iter = segments.keySet().iterator();
+            while (iter.hasNext()) {
+                String key = iter.next();
+                if (key.startsWith(prefix)) {
+                    List<Integer> ids = segments.get(key);
+                    int[] a = new int[ids.size()];
+                    for (int i = 0; i < a.length; i++) {
+                        a[i] = ids.get(i);
+                    }
+                    toRemove.put(Integer.parseInt(key.substring(prefix.length())), a);
+                    iter.remove();
+                    nextSegment.remove(key);
+                }
+            }
+        }
+        for (int chrom : toRemove.keySet()) {
+            for (int id : toRemove.get(chrom)) {
+                hits.remove(alignID + "/" + chrom + "/s" + id);
+                headers.remove(alignID + "/" + chrom + "/s" + id);
+            }
+        }
+    }
+    public SingleHits getSegmentHits(String alignID, int chrom, int segment) throws IOException {
+        String key = alignID + "/" + chrom + "/s" + segment;
+        SingleHits output = (SingleHits)hits.get(key);
+        if (output == null) {
+            String prefix = getAlignmentDir(alignID) + System.getProperty("file.separator");
+            output = new SingleHits(prefix, chrom, segment);
+            hits.add(key, output);
+        }
+        return output;
+    }
+    public Header getSegmentHeader(String alignID, int chrom, int segment) throws IOException {
+        String key = alignID + "/" + chrom + "/s" + segment;
+        Header output = headers.get(key);
+        if (output == null) {
+            output = Header.readIndexFile(getSegmentHeaderFileName(alignID, chrom, segment));
+            headers.add(key, output);
+        }
+        return output;
+    }
+    /**
+     * Returns the hits between start and end from the main files and all of the segments of 
+     * a chromosome, merged in memory.  Client code should hold at least a read lock on the alignment.
+     * Compressed main files are decoded only for the blocks that overlap the region.
+     */
+    public SingleHits getMergedSingleHits(String alignID, int chrom, int start, int end) throws IOException {
+        int[] segs = getSegments(alignID, chrom);
+        Hits[] h = new Hits[segs.length + 1];
+        Header[] hd = new Header[segs.length + 1];
+        if (isCompressed(alignID, chrom)) {
+            SingleHits main = getCompressedHits(alignID, chrom).decodeBetween(chrom, start, end);
+            if (segs.length == 0) {
+                return main;
+            }
+            h[0] = main;
+            hd[0] = new Header(main.getPositionsBuffer().ib);
+        } else {
+            h[0] = getSingleHits(alignID, chrom);
+            hd[0] = getSingleHeader(alignID, chrom);
+        }
+        for (int i = 0; i < segs.length; i++) {
+            h[i+1] = getSegmentHits(alignID, chrom, segs[i]);
+            hd[i+1] = getSegmentHeader(alignID, chrom, segs[i]);
+        }
+        return SingleHits.mergeBetween(chrom, h, hd, start, end);
+    }
+    /**
+     * Queues a background compaction of the chromosome's segments unless one is already queued
+     */
+    public void scheduleCompaction(String alignID, int chrom) {
+        String key = alignID + "/" + chrom;
+        synchronized(pendingCompactions) {
+            if (!pendingCompactions.add(key)) {
+                return;
+            }
+        }
+        try {
+            compactor.execute(new Compaction(this, alignID, chrom));
+        } catch (RejectedExecutionException e) {
+            // shutting down
+            compactionDone(alignID, chrom);
+        }
+    }
+    protected void compactionDone(String alignID, int chrom) {
+        synchronized(pendingCompactions) {
+            pendingCompactions.remove(alignID + "/" + chrom);
+        }
+    }
+    /**
+     * Releases everything the current thread got from the caches.  ServerTask calls this
+     * at the end of each request, after which it must not use those Hits, Headers, or ACLs.
+     */
+    public void releaseCached() {
+        hits.release();
+        headers.release();
+        acls.release();
+        compressed.release();
+    }
+    public String getCacheStats() {
+        return String.format("hits [%s] compressed [%s] headers [%s] acls [%s]",
+                             hits.stats(), compressed.stats(), headers.stats(), acls.stats());
+    }
     protected void printCacheContents() {
         headers.printKeys();
-        singleHits.printKeys();
-        pairedHits.printKeys();
+        hits.printKeys();
+        compressed.printKeys();
         acls.printKeys();
+        System.err.println(getCacheStats());
     }
 
     /**
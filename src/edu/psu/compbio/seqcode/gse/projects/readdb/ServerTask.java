@@ -13,6 +13,10 @@ import javax.security.auth.callback.*;
  * ServerTask represents a client connection.  Server creates ServerTasks when it receives
  * a connection and passes them to Dispatch.  Dispatch manages a pool of WorkerThreads and
  * assigns them to ServerTasks as the tasks appear to be available.  
+ *
+ * In NIO mode, NioDispatch creates ServerTasks over non-blocking SocketChannels instead.  
+ * The streams are then ChannelStreams and NioDispatch uses fillInput() and hasBufferedInput()
+ * in place of inputAvailable().
  */
 
 public class ServerTask {
@@ -35,12 +39,18 @@ public class ServerTask {
     private BufferedInputStream instream;
     private OutputStream outstream;
     private WritableByteChannel outchannel;
+    /* non-null only for tasks created over a SocketChannel (NIO mode) */
+    private ChannelStreams.Input channelIn;
     /* if authenticate was successful, this holds a username.  Null otherwise */
     private String username;
     /* buffer for readLine */
     private int bufferpos;
     private byte[] buffer;
     private static final int MAXPARAMLINES = 100;
+    /* most regions in one getbatch request.  The server reads them all into memory before answering */
+    public static final int MAXBATCHREGIONS = 1 << 20;
+    /* most windows in one profile request.  The server holds the whole profile in memory */
+    public static final int MAXPROFILEWINDOWS = 1 << 22;
     /* other variables maintained across calls to Run but reset between connections */
     private Request request;
     private List<String> args;
@@ -49,18 +59,7 @@ public class ServerTask {
     private String uname; // temporary, used by authenticate
 
     public ServerTask(Server serv, Socket s) throws IOException {
-        buffer = new byte[8192];
-        request = new Request();
-        args = new ArrayList<String>();
-        saslprops = new HashMap<String,String>();
-        saslprops.put("Sasl.POLICY_NOPLAINTEXT","true");
-        saslprops.put("Sasl.POLICY_NOANONYMOUS","true");
-        server = serv;
-        socket = s;
-        shouldClose = false;
-        username = null;
-        uname = null;
-        haventTriedRead = 0;
+        init(serv, s);
         socket.setReceiveBufferSize(Server.BUFFERLEN);
         socket.setSendBufferSize(Server.BUFFERLEN);
         socket.setSoTimeout(1000000);
@@ -74,6 +73,41 @@ public class ServerTask {
         //             System.err.println("New ServerTask " + this + " on socket " + socket);
         //         }
     }
+    /**
+     * Creates a task over a SocketChannel.  The channel is put in non-blocking mode; 
+     * the task's streams block on their own when a request needs more data.
+     */
+    public ServerTask(Server serv, SocketChannel c) throws IOException {
+        init(serv, c.socket());
+        c.configureBlocking(false);
+        socket.setReceiveBufferSize(Server.BUFFERLEN);
+        socket.setSendBufferSize(Server.BUFFERLEN);
+        socket.setTcpNoDelay(true);
+        channelIn = new ChannelStreams.Input(c, Server.BUFFERLEN, 1000000);
+        instream = new BufferedInputStream(channelIn);
+        outstream = new ChannelStreams.Output(c, 1000000);
+        outchannel = Channels.newChannel(outstream);
+        bufferpos = 0;
+        sasl = null;
+    }
+    private void init(Server serv, Socket s) {
+        buffer = new byte[8192];
+        request = new Request();
+        args = new ArrayList<String>();
+        saslprops = new HashMap<String,String>();
+        saslprops.put("Sasl.POLICY_NOPLAINTEXT","true");
+        saslprops.put("Sasl.POLICY_NOANONYMOUS","true");
+        server = serv;
+        socket = s;
+        shouldClose = false;
+        username = null;
+        uname = null;
+        haventTriedRead = 0;
+    }
+    /** returns the SocketChannel for tasks created in NIO mode, null otherwise */
+    public SocketChannel getChannel() {
+        return socket.getChannel();
+    }
     public boolean shouldClose() {
         //         if (shouldClose && server.debug()) {
         //             System.err.println("Should close " + socket + " for " + this);
@@ -135,6 +169,37 @@ public class ServerTask {
         }
         return avail;
     }
+    /**
+     * NIO mode only: called by NioDispatch when the selector reports the channel readable.
+     * Moves the waiting bytes into the task's input buffer without blocking.  Sets shouldClose and
+     * returns false if the client has closed the connection.
+     */
+    public boolean fillInput() {
+        try {
+            if (channelIn.fill() == -1) {
+                shouldClose = true;
+                return false;
+            }
+            return true;
+        } catch (IOException e) {
+            server.getLogger().logp(Level.INFO,"serverTask","fillInput " + toString(),e.toString(),e);
+            shouldClose = true;
+            return false;
+        }
+    }
+    /**
+     * NIO mode only: true if input has already been read from the channel but not yet consumed
+     * by run().  Such a task must be run again rather than waiting on the selector, since the 
+     * selector won't report data that has already left the socket.
+     */
+    public boolean hasBufferedInput() {
+        try {
+            return instream.available() > 0;
+        } catch (IOException e) {
+            shouldClose = true;
+            return false;
+        }
+    }
     /** prints the response header signifying a valid request.  Only happens after
      *  the ServerTask has read enough information from the socket and done
      *  whatever else needs doing to be sure that it can satisfy the request.
@@ -380,6 +445,10 @@ public class ServerTask {
                 processDeleteAlignment();
             } else if (request.type.equals("addtogroup")) {
                 processAddToGroup();
+            } else if (request.type.equals("getbatch")) {
+                processBatch();
+            } else if (request.type.equals("profile")) {
+                processProfile();
             } else if (request.type.equals("shutdown")) {
                 server.getLogger().logp(Level.INFO,"ServerTask","processRequest " + toString(),"Received shutdown from " + username);
                 if (server.isAdmin(username)) {
@@ -392,6 +461,16 @@ public class ServerTask {
             } else {
                 processFileRequest();
             }
+        } catch (Lock.LockTimeoutException e) {
+            server.getLogger().logp(Level.WARNING,"ServerTask","processRequest " + toString(),"Lock timeout in request " + request.toString() + " : " + e.getMessage());
+            /* the request may have been part way through its exchange with the client, so 
+               report the error and drop the connection rather than guess where the client is */
+            try {
+                printString(e.getMessage() + "\n");
+            } catch (IOException e2) {
+                // closing anyway
+            }
+            shouldClose = true;
         } catch (Exception e) {
             server.getLogger().logp(Level.INFO,"ServerTask","processRequest " + toString(),"Error in request " + request.toString());
             server.getLogger().logp(Level.INFO,"ServerTask","processRequest " + toString(),"Exception " + e.toString(),e);
@@ -414,6 +493,7 @@ public class ServerTask {
             server.getLogger().logp(Level.INFO,"ServerTask","processRequest " + toString(),"Trace " + sb.toString());   
 
         } finally {
+            server.releaseCached();
             Lock.releaseLocks();
         }
     }
@@ -464,6 +544,13 @@ public class ServerTask {
             if (request.isPaired) {
                 hits = server.getPairedHits(request.alignid, request.chromid, request.isLeft);
                 header = server.getPairedHeader(request.alignid, request.chromid, request.isLeft);
+            } else if (server.usesMergedView(request.alignid, request.chromid)) {
+                /* hits are spread over several segments or compressed: merge or decode the ones in the 
+                   region so that the request can be answered exactly as for a single set of hits */
+                hits = server.getMergedSingleHits(request.alignid, request.chromid,
+                                                  request.start == null ? 0 : request.start,
+                                                  request.end == null ? Integer.MAX_VALUE : request.end);
+                header = new Header(hits.getPositionsBuffer().ib);
             } else {
                 hits = server.getSingleHits(request.alignid, request.chromid);
                 header = server.getSingleHeader(request.alignid, request.chromid);
@@ -692,6 +779,9 @@ public class ServerTask {
                 server.removeSingleHeader(request.alignid, c);
             }
         }
+        if (request.isPaired == null || !request.isPaired) {
+            server.removeAllSegments(request.alignid);
+        }
 
         /* now do the deletes */
         boolean allDeleted = true;
@@ -715,9 +805,11 @@ public class ServerTask {
                     name.indexOf(".pairedrightindex") > 0 ||
                     name.indexOf(".paircode") > 0;  
                 boolean singlefile = name.indexOf("singleindex") > 0||
+                    name.indexOf("segindex") > 0 ||
                     name.indexOf("spositions") > 0 ||
                     name.indexOf("sweights") > 0 ||
-                    name.indexOf("slas") > 0;
+                    name.indexOf("slas") > 0 ||
+                    name.indexOf("scol") > 0;
                 if (request.isPaired && pairedfile) {
                     toDelete.add(prefix + name);
                 } else if (!request.isPaired && singlefile) {
@@ -754,8 +846,9 @@ public class ServerTask {
     /** creates or appends to a set of hits.  
      *
      * If the chromosome file doesn't exist yet, then create a new one and dump in positions and weights.
-     * If it does exist, then create a new file and merge the old file with the new
-     * set of hits.
+     * If it does exist, then the new hits are written as a new segment (see SingleHits) and a 
+     * background Compaction merges the segments later.  Either way, the cost of the store depends
+     * only on the number of new hits.
      */
     public void processSingleStore() throws IOException {
         assert(request != null);
@@ -785,28 +878,15 @@ public class ServerTask {
         Bits.readBytes(weights.bb, rbc);
         Bits.readBytes(las.bb, rbc);
         
-        SingleHit[] newhits = new SingleHit[numHits];
-        for (int i = 0; i < numHits; i++) {
-            newhits[i] = new SingleHit(request.chromid,
-                                       positions.get(i),
-                                       weights.get(i),
-                                       Hits.getStrandOne(las.get(i)),
-                                       Hits.getLengthOne(las.get(i)));
-        }
-        for (int i = 1; i < newhits.length; i++) {
-            if (newhits[i-1].compareTo(newhits[i]) > 0) {
+        for (int i = 1; i < numHits; i++) {
+            if (positions.get(i-1) > positions.get(i)) {
                 throw new RuntimeException(String.format("at %d : %d vs %d",
-                                                         i, newhits[i-1].pos, newhits[i].pos));
+                                                         i, positions.get(i-1), positions.get(i)));
             }
         }
+        String prefix = server.getAlignmentDir(request.alignid) + System.getProperty("file.separator");
 
-        positions = null;
-        weights = null;
-        las = null;
-
-        SingleHit[] hits = null;
-
-        /* if the alignment already exists, read in the old hits */
+        /* if the alignment already exists, add a segment */
         Set<Integer> chroms = server.getChroms(request.alignid, false,false);
         try {
             if (chroms != null && chroms.contains(request.chromid)) {
@@ -823,15 +903,20 @@ public class ServerTask {
                     return;
                 }
                 try {
-                    server.getSingleHits(request.alignid,
-                                         request.chromid).appendSingleHits(newhits,
-                                                                           server.getAlignmentDir(request.alignid) + System.getProperty("file.separator"),
-                                                                           request.chromid);
+                    int segment = server.newSegmentID(request.alignid, request.chromid);
+                    SingleHits.writeSegment(positions, weights, las, prefix, request.chromid, segment);
+                    /* the index is written last: a segment whose index exists is complete */
+                    Header header = new Header(positions.ib);
+                    header.writeIndexFile(server.getSegmentHeaderFileName(request.alignid, request.chromid, segment));
+                    server.addSegment(request.alignid, request.chromid, segment);
                 } catch (Exception e) {
                     server.getLogger().logp(Level.INFO,"ServerTask","processSingleStore "+toString(),"error writing hits",e);
                     printInvalid(e.toString());
                     return;
                 }
+                printOK();
+                server.scheduleCompaction(request.alignid, request.chromid);
+                return;
             } else {
                 /* this is a new alignment, so set a default ACL */
                 AlignmentACL acl = new AlignmentACL();
@@ -851,13 +936,13 @@ public class ServerTask {
                 acl.getReadACL().add(username);
                 acl.writeToFile(server.getACLFileName(request.alignid));        
                 server.removeACL(request.alignid); // make sure the server doesn't have this ACL cached
-                SingleHits.writeSingleHits(newhits,
-                                           server.getAlignmentDir(request.alignid) + System.getProperty("file.separator"),
-                                           request.chromid);
+                if (server.compress()) {
+                    SingleHits.writeCompressed(positions, weights, las, prefix, request.chromid);
+                } else {
+                    SingleHits.writeSingleHits(positions, weights, las, prefix, request.chromid);
+                }
             }
-            SingleHits singlehits = new SingleHits(server.getAlignmentDir(request.alignid) + System.getProperty("file.separator"),
-                                                   request.chromid);
-            Header header = new Header(singlehits.getPositionsBuffer().ib);
+            Header header = new Header(positions.ib);
             header.writeIndexFile(server.getSingleHeaderFileName(request.alignid,
                                                                  request.chromid));
         } catch (IOException e) {
@@ -1007,6 +1092,7 @@ public class ServerTask {
             header.writeIndexFile(server.getPairedHeaderFileName(request.alignid,
                                                                  chromid,
                                                                  isLeft));
+            pairedhits.close();
             server.removePairedHits(request.alignid, chromid, isLeft);
             server.removePairedHeader(request.alignid, chromid, isLeft);
         }
@@ -1096,11 +1182,17 @@ public class ServerTask {
         }
         printOK();
         printString(Integer.toString(count) + "\n");
-        if (request.map.containsKey("wantpositions")) {
+        /* without filters, the hits to send are a contiguous range of the files, so the columns
+           can go straight from the files to the socket */
+        int[] range = null;
+        if (request.minWeight == null && request.isPlusStrand == null && outstream instanceof ChannelStreams.Output) {
+            range = hits.getIndices(first, last, request.start, request.end);
+        }
+        if (request.map.containsKey("wantpositions") && !transferColumn(hits, Hits.POSITIONS, range)) {
             IntBP p = hits.getHitsBetween(first,last,request.start,request.end,request.minWeight,request.isPlusStrand);
             Bits.sendBytes(p.bb, outchannel);
         }
-        if (request.map.containsKey("wantweights")) {
+        if (request.map.containsKey("wantweights") && !transferColumn(hits, Hits.WEIGHTS, range)) {
             FloatBP p = hits.getWeightsBetween(first,last,request.start,request.end,request.minWeight,request.isPlusStrand);
             Bits.sendBytes(p.bb, outchannel);
         }
@@ -1108,7 +1200,7 @@ public class ServerTask {
         	IntBP p = ((PairedHits)hits).getPairCodesBetween(first,last,request.start,request.end,request.minWeight,request.isPlusStrand);
             Bits.sendBytes(p.bb, outchannel);
         }
-        if (request.map.containsKey("wantlengthsandstrands")) {
+        if (request.map.containsKey("wantlengthsandstrands") && !transferColumn(hits, Hits.LAS, range)) {
             IntBP p = hits.getLASBetween(first,last,request.start,request.end,request.minWeight,request.isPlusStrand);
             Bits.sendBytes(p.bb, outchannel);
         }
@@ -1121,6 +1213,264 @@ public class ServerTask {
             Bits.sendBytes(p.bb, outchannel);
         }        
     }
+    /* zero-copy send of a column for processGetHits(); false if the caller has to send it the usual way */
+    private boolean transferColumn(Hits hits, int column, int[] range) throws IOException {
+        if (range == null) {
+            return false;
+        }
+        return hits.transferColumn(column, range[0], Math.max(range[0], range[1]), (ChannelStreams.Output)outstream);
+    }
+    /**
+     * Batched gethits over many regions, possibly in several alignments.
+     * The alignment ids are the request's bare (list) lines and numregions gives the number of regions.
+     * After OK, the client sends numregions * 4 ints: alignment index (into the list), chromid, start, end.
+     * For each region, in order, the server then sends an int hit count followed by the requested columns 
+     * (wantpositions, wantweights, wantlengthsandstrands), as binary data exactly as in gethits.
+     * A chromosome with no hits gives a count of 0; a region that can't be read gives -1.
+     * isPaired, isLeft, minWeight and isPlusStrand apply to every region.
+     * A batch can have at most MAXBATCHREGIONS regions.
+     */
+    public void processBatch() throws IOException {
+        int numRegions = 0;
+        try {
+            numRegions = Integer.parseInt(request.map.get("numregions"));
+        } catch (NumberFormatException e) {
+            printString("Invalid numregions value : " + request.map.get("numregions") + "\n");
+            return;
+        }
+        if (numRegions > MAXBATCHREGIONS) {
+            printString("too many regions in batch : " + numRegions + " > " + MAXBATCHREGIONS + "\n");
+            return;
+        }
+        if (request.list.size() == 0) {
+            printString("no alignments in batch\n");
+            return;
+        }
+        String[] alignids = request.list.toArray(new String[request.list.size()]);
+        if (!readLockAlignments(alignids)) {
+            return;
+        }
+        printOK();
+        if (numRegions <= 0) {
+            return;
+        }
+        IntBP regions = new IntBP(numRegions * 4);
+        Bits.readBytes(regions.bb, Channels.newChannel(instream));
+
+        boolean wantPositions = request.map.containsKey("wantpositions");
+        boolean wantWeights = request.map.containsKey("wantweights");
+        boolean wantLAS = request.map.containsKey("wantlengthsandstrands");
+        OutputStream out = new BufferedOutputStream(outstream, Server.BUFFERLEN);
+        WritableByteChannel channel = Channels.newChannel(out);
+        IntBP countbuf = new IntBP(1);
+        for (int i = 0; i < numRegions; i++) {
+            int a = regions.get(4*i);
+            int chromid = regions.get(4*i+1);
+            int start = regions.get(4*i+2);
+            int end = regions.get(4*i+3);
+            Header header = null;
+            Hits hits = null;
+            int count = -1;
+            if (a >= 0 && a < alignids.length) {
+                try {
+                    if (request.isPaired) {
+                        hits = server.getPairedHits(alignids[a], chromid, request.isLeft);
+                        header = server.getPairedHeader(alignids[a], chromid, request.isLeft);
+                    } else if (server.usesMergedView(alignids[a], chromid)) {
+                        hits = server.getMergedSingleHits(alignids[a], chromid, start, end);
+                        header = new Header(hits.getPositionsBuffer().ib);
+                    } else {
+                        hits = server.getSingleHits(alignids[a], chromid);
+                        header = server.getSingleHeader(alignids[a], chromid);
+                    }
+                } catch (IOException e) {
+                    String headerFile = request.isPaired ? server.getPairedHeaderFileName(alignids[a], chromid, request.isLeft) :
+                        server.getSingleHeaderFileName(alignids[a], chromid);
+                    if (!(new File(headerFile)).exists()) {
+                        count = 0;
+                    } else {
+                        server.getLogger().logp(Level.INFO,"ServerTask","processBatch " + toString(),
+                                                String.format("read error on header or hits for %s, %d : %s",
+                                                              alignids[a], chromid, e.toString()));
+                    }
+                    hits = null;
+                }
+            }
+            int first = 0, last = 0;
+            if (hits != null) {
+                first = header.getFirstIndex(start);
+                last = header.getLastIndex(end);
+                count = hits.getCountBetween(first,last,start,end,request.minWeight, request.isPlusStrand);
+            }
+            countbuf.put(0, count);
+            Bits.sendBytes(countbuf.bb, channel);
+            if (count <= 0) {
+                continue;
+            }
+            if (wantPositions) {
+                Bits.sendBytes(hits.getHitsBetween(first,last,start,end,request.minWeight,request.isPlusStrand).bb, channel);
+            }
+            if (wantWeights) {
+                Bits.sendBytes(hits.getWeightsBetween(first,last,start,end,request.minWeight,request.isPlusStrand).bb, channel);
+            }
+            if (wantLAS) {
+                Bits.sendBytes(hits.getLASBetween(first,last,start,end,request.minWeight,request.isPlusStrand).bb, channel);
+            }
+        }
+        out.flush();
+    }
+    /**
+     * Checks that each of the alignments exists and that the user may read it, and takes
+     * a read lock on each.  On failure, sends the error to the client and returns false.
+     */
+    private boolean readLockAlignments(String[] alignids) throws IOException {
+        Set<String> locked = new HashSet<String>();
+        if (request.alignid != null) {
+            /* processRequest() has already locked it */
+            locked.add(request.alignid);
+        }
+        for (String alignid : alignids) {
+            File directory = new File(server.getAlignmentDir(alignid));
+            if (!directory.exists()) {
+                printString("No Such Alignment " + alignid + "\n");
+                return false;
+            } 
+            AlignmentACL acl = null;        
+            try {
+                acl = server.getACL(alignid);
+            } catch (IOException e) {
+                printInvalid(e.toString());
+                return false;
+            }
+            if (!authorizeRead(acl)) {
+                printAuthError();
+                return false;
+            }
+            if (locked.add(alignid)) {
+                Lock.readLock(alignid);
+            }
+        }
+        return true;
+    }
+    /**
+     * Sliding-window profile of one chromosome, summed over one or more alignments.
+     * The alignment ids are the request's bare (list) lines or, if there are none, the alignid.
+     * start, end, and stepsize are required; windowsize defaults to stepsize.  Window i covers
+     * start + i * stepsize to start + i * stepsize + windowsize - 1.
+     * Options: dedup (max hits counted at one position), extension (count a read in every window that it
+     * overlaps), weighted (sum weights rather than counting hits), and strandsplit (separate
+     * plus and minus strand profiles).  minWeight, isPlusStrand, isPaired and isLeft apply as usual.
+     *
+     * Sends OK, the number of windows, and then the profile (ints, or floats if weighted) followed,
+     * for strandsplit, by the minus strand profile.  Each alignment is read in a single pass over the
+     * hits in the region, so the cost of the request doesn't depend on the number of windows.
+     * A profile can have at most MAXPROFILEWINDOWS windows.
+     */
+    public void processProfile() throws IOException {
+        if (request.chromid == null || request.start == null || request.end == null) {
+            printString("profile needs chromosome, start, and end\n");
+            return;
+        }
+        int stepsize, windowsize;
+        try {
+            stepsize = Integer.parseInt(request.map.get("stepsize"));
+            windowsize = request.map.containsKey("windowsize") ? Integer.parseInt(request.map.get("windowsize")) : stepsize;
+        } catch (NumberFormatException e) {
+            printString("missing or invalid step or window size : " + request.map.get("stepsize") + ", " +
+                        request.map.get("windowsize") + "\n");
+            return;
+        }
+        if (stepsize <= 0 || windowsize <= 0 || request.end < request.start) {
+            printString("invalid profile dimensions\n");
+            return;
+        }
+        if (((long)request.end - request.start) / stepsize + 1 > MAXPROFILEWINDOWS) {
+            printString("too many windows in profile : more than " + MAXPROFILEWINDOWS + "\n");
+            return;
+        }
+        int dedup = 0;
+        if (request.map.containsKey("dedup")) {
+            dedup = Integer.parseInt(request.map.get("dedup"));
+        }
+        boolean extension = request.map.containsKey("extension");
+        boolean weighted = request.map.containsKey("weighted");
+        boolean strandSplit = request.map.containsKey("strandsplit");
+        String[] alignids;
+        if (request.list.size() > 0) {
+            alignids = request.list.toArray(new String[request.list.size()]);
+        } else if (request.alignid != null) {
+            alignids = new String[]{request.alignid};
+        } else {
+            printString("no alignments in profile request\n");
+            return;
+        }
+        if (!readLockAlignments(alignids)) {
+            return;
+        }
+        int chromid = request.chromid, start = request.start, end = request.end;
+        int n = Hits.numWindows(start, end, stepsize);
+        double[] plus = new double[n + 1];
+        double[] minus = strandSplit ? new double[n + 1] : null;
+        for (String alignid : alignids) {
+            Header header;
+            Hits hits;
+            try {
+                if (request.isPaired) {
+                    hits = server.getPairedHits(alignid, chromid, request.isLeft);
+                    header = server.getPairedHeader(alignid, chromid, request.isLeft);
+                } else if (server.usesMergedView(alignid, chromid)) {
+                    /* the merged view only holds the hits in its range, so it covers the longest reads possible */
+                    int[] range = Hits.profileRange(start, end, windowsize, stepsize, extension ? Hits.MAXLENGTH : 0);
+                    hits = server.getMergedSingleHits(alignid, chromid, range[0], range[1]);
+                    header = new Header(hits.getPositionsBuffer().ib);
+                } else {
+                    hits = server.getSingleHits(alignid, chromid);
+                    header = server.getSingleHeader(alignid, chromid);
+                }
+            } catch (IOException e) {
+                String headerFile = request.isPaired ? server.getPairedHeaderFileName(alignid, chromid, request.isLeft) :
+                    server.getSingleHeaderFileName(alignid, chromid);
+                if (!(new File(headerFile)).exists()) {
+                    /* no hits on this chromosome */
+                    continue;
+                }
+                server.getLogger().logp(Level.INFO,"ServerTask","processProfile " + toString(),
+                                        String.format("read error on header or hits for %s, %d : %s",
+                                                      alignid, chromid, e.toString()));
+                printInvalid(e.toString());
+                return;
+            }
+            hits.addToProfile(header,
+                              start, end, windowsize, stepsize, dedup,
+                              request.minWeight, request.isPlusStrand,
+                              extension, weighted, plus, minus);
+        }
+        printOK();
+        printString(Integer.toString(n) + "\n");
+        sendProfile(plus, n, weighted);
+        if (strandSplit) {
+            sendProfile(minus, n, weighted);
+        }
+    }
+    /* running sum of a difference array from Hits.addToProfile() */
+    private void sendProfile(double[] diffs, int n, boolean weighted) throws IOException {
+        double sum = 0;
+        if (weighted) {
+            float[] output = new float[n];
+            for (int i = 0; i < n; i++) {
+                sum += diffs[i];
+                output[i] = (float)sum;
+            }
+            Bits.sendFloats(output, outstream, buffer);
+        } else {
+            int[] output = new int[n];
+            for (int i = 0; i < n; i++) {
+                sum += diffs[i];
+                output[i] = (int)Math.round(sum);
+            }
+            Bits.sendInts(output, outstream, buffer);
+        }
+    }
     public void processHistogram(Header header, Hits hits) throws IOException {
         int binsize = 10;
         if (request.start == null) {
@@ -9,8 +9,19 @@ import java.util.Arrays;
 
 /** 
  * Represents the list of sorted reads on disk
+ *
+ * A chromosome's hits may be split across the main files and any number of segments.
+ * Each segment is an immutable, sorted set of hits written by one store request (see
+ * ServerTask.processSingleStore()); queries merge the segments with mergeBetween() and 
+ * Compaction merges them back together in the background.  Segment 0 is the main files.
+ * The main files may instead be a single compressed file (see CompressedHits); segments
+ * are always in the plain format.
  */
 public class SingleHits extends Hits {
+
+    /* suffix for files being written by a compaction (see Compaction) */
+    public static final String COMPACTSUFFIX = ".compact";
+
     /**
      * Initializes a Hits object from a file
      */
@@ -20,14 +31,54 @@ public class SingleHits extends Hits {
               getWeightsFname(prefix,chrom), 
               getLaSFname(prefix,chrom));
     }
+    /**
+     * Initializes a Hits object from the files of one segment
+     */
+    public SingleHits (String prefix, int chrom, int segment) throws FileNotFoundException, SecurityException, IOException {
+        super(chrom,
+              getPositionsFname(prefix,chrom,segment),
+              getWeightsFname(prefix,chrom,segment), 
+              getLaSFname(prefix,chrom,segment));
+    }
+    /**
+     * Initializes a Hits object from in-memory buffers
+     */
+    public SingleHits (int chrom, IntBP positions, FloatBP weights, IntBP las) {
+        super(chrom, positions, weights, las);
+    }
     public static void writeSingleHits(IntBP positions,
                                        FloatBP weights,
                                        IntBP las,
                                        String prefix,
                                        int chrom) throws IOException {
-        String postmp = getPositionsFname(prefix,chrom) + ".tmp";
-        String weightstmp = getWeightsFname(prefix,chrom) + ".tmp";
-        String lastmp = getLaSFname(prefix,chrom) + ".tmp";
+        writeSegment(positions, weights, las, prefix, chrom, 0);
+    }
+    /**
+     * Writes a new chromosome's hits in the compressed format (see CompressedHits)
+     */
+    public static void writeCompressed(IntBP positions,
+                                       FloatBP weights,
+                                       IntBP las,
+                                       String prefix,
+                                       int chrom) throws IOException {
+        String fname = getCompressedFname(prefix,chrom);
+        CompressedHits.write(new SingleHits(chrom, positions, weights, las), fname + ".tmp");
+        if (!(new File(fname + ".tmp")).renameTo(new File(fname))) {
+            throw new IOException("Couldn't rename " + fname + ".tmp");
+        }
+    }
+    /**
+     * Writes a set of sorted hits as a new segment of the chromosome
+     */
+    public static void writeSegment(IntBP positions,
+                                    FloatBP weights,
+                                    IntBP las,
+                                    String prefix,
+                                    int chrom,
+                                    int segment) throws IOException {
+        String postmp = getPositionsFname(prefix,chrom,segment) + ".tmp";
+        String weightstmp = getWeightsFname(prefix,chrom,segment) + ".tmp";
+        String lastmp = getLaSFname(prefix,chrom,segment) + ".tmp";
         RandomAccessFile positionsRAF = new RandomAccessFile(postmp,"rw");
         RandomAccessFile weightsRAF = new RandomAccessFile(weightstmp,"rw");
         RandomAccessFile lasRAF = new RandomAccessFile(lastmp,"rw");
@@ -40,9 +91,219 @@ public class SingleHits extends Hits {
         lasRAF.close();
 
         /* ideally this part with the renames would atomic... */
-        (new File(postmp)).renameTo(new File(getPositionsFname(prefix,chrom)));
-        (new File(weightstmp)).renameTo(new File(getWeightsFname(prefix,chrom)));
-        (new File(lastmp)).renameTo(new File(getLaSFname(prefix,chrom)));
+        (new File(postmp)).renameTo(new File(getPositionsFname(prefix,chrom,segment)));
+        (new File(weightstmp)).renameTo(new File(getWeightsFname(prefix,chrom,segment)));
+        (new File(lastmp)).renameTo(new File(getLaSFname(prefix,chrom,segment)));
+    }
+    /**
+     * Returns the hits between start and end (inclusive) from several sorted sets of hits, 
+     * merged into one sorted set in memory.  headers[i] is the index for hits[i].
+     */
+    public static SingleHits mergeBetween(int chrom, Hits[] hits, Header[] headers, int start, int end) throws IOException {
+        int[] from = new int[hits.length];
+        int[] to = new int[hits.length];
+        int n = 0;
+        for (int i = 0; i < hits.length; i++) {
+            int[] p = hits[i].getIndices(headers[i].getFirstIndex(start),
+                                         headers[i].getLastIndex(end),
+                                         start, end);
+            from[i] = p[0];
+            to[i] = Math.max(p[0], p[1]);
+            n += to[i] - from[i];
+        }
+        IntBP positions = new IntBP(n);
+        FloatBP weights = new FloatBP(n);
+        IntBP las = new IntBP(n);
+        for (int k = 0; k < n; k++) {
+            /* few segments, so a linear scan for the smallest head is cheaper than a heap */
+            int best = -1, bestpos = 0;
+            for (int i = 0; i < hits.length; i++) {
+                if (from[i] < to[i]) {
+                    int pos = hits[i].getPositionsBuffer().get(from[i]);
+                    if (best == -1 || pos < bestpos) {
+                        best = i;
+                        bestpos = pos;
+                    }
+                }
+            }
+            positions.put(k, bestpos);
+            weights.put(k, hits[best].getWeightsBuffer().get(from[best]));
+            las.put(k, hits[best].getLASBuffer().get(from[best]));
+            from[best]++;
+        }
+        return new SingleHits(chrom, positions, weights, las);
+    }
+    /**
+     * Merges several sorted sets of hits into the files for a segment (0 for the main files).
+     * The main files may be written in the compressed format (see CompressedHits).
+     * The files are written under temporary names; renameMerged() moves them into place.
+     */
+    public static void writeMerged(Hits[] hits,
+                                   String prefix,
+                                   int chrom,
+                                   int segment,
+                                   boolean compressed) throws IOException {
+        MergeHeap merge = new MergeHeap(hits);
+        int best;
+        if (compressed && segment == 0) {
+            CompressedHits.Writer out = new CompressedHits.Writer(getCompressedFname(prefix,chrom) + COMPACTSUFFIX);
+            try {
+                while ((best = merge.peek()) != -1) {
+                    int i = merge.next[best];
+                    out.add(hits[best].getPositionsBuffer().get(i),
+                            hits[best].getWeightsBuffer().get(i),
+                            hits[best].getLASBuffer().get(i));
+                    merge.advance();
+                }
+            } finally {
+                out.close();
+            }
+            return;
+        }
+        DataOutputStream positionsOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(getPositionsFname(prefix,chrom,segment) + COMPACTSUFFIX), Server.BUFFERLEN));
+        DataOutputStream weightsOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(getWeightsFname(prefix,chrom,segment) + COMPACTSUFFIX), Server.BUFFERLEN));
+        DataOutputStream lasOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(getLaSFname(prefix,chrom,segment) + COMPACTSUFFIX), Server.BUFFERLEN));
+        try {
+            while ((best = merge.peek()) != -1) {
+                int i = merge.next[best];
+                positionsOut.writeInt(hits[best].getPositionsBuffer().get(i));
+                weightsOut.writeFloat(hits[best].getWeightsBuffer().get(i));
+                lasOut.writeInt(hits[best].getLASBuffer().get(i));
+                merge.advance();
+            }
+        } finally {
+            positionsOut.close();
+            weightsOut.close();
+            lasOut.close();
+        }
+    }
+    /**
+     * Merge order for several sorted sets of hits: a binary heap of the sets that have hits left,
+     * keyed on the position of each set's next hit.  Ties go to the lower numbered set, so hits at the
+     * same position keep the order of the inputs.  Compactions only merge a few sets, but a bulk
+     * import (see BulkImport) may merge many.
+     */
+    private static class MergeHeap {
+        private final Hits[] hits;
+        /* index of the next hit in each set */
+        final int[] next;
+        private final int[] heap;
+        private int size;
+
+        MergeHeap(Hits[] hits) {
+            this.hits = hits;
+            next = new int[hits.length];
+            heap = new int[hits.length];
+            size = 0;
+            for (int i = 0; i < hits.length; i++) {
+                if (hits[i].getPositionsBuffer().limit() > 0) {
+                    heap[size++] = i;
+                }
+            }
+            for (int i = size / 2 - 1; i >= 0; i--) {
+                siftDown(i);
+            }
+        }
+        /* the set whose next hit has the smallest position, or -1 when all are used up */
+        int peek() {
+            return size == 0 ? -1 : heap[0];
+        }
+        /* moves past the next hit of the set returned by peek() */
+        void advance() {
+            int set = heap[0];
+            if (++next[set] >= hits[set].getPositionsBuffer().limit()) {
+                heap[0] = heap[--size];
+            }
+            siftDown(0);
+        }
+        private boolean less(int a, int b) {
+            int pa = hits[a].getPositionsBuffer().get(next[a]);
+            int pb = hits[b].getPositionsBuffer().get(next[b]);
+            return pa < pb || (pa == pb && a < b);
+        }
+        private void siftDown(int i) {
+            while (true) {
+                int smallest = i;
+                int l = 2 * i + 1, r = l + 1;
+                if (l < size && less(heap[l], heap[smallest])) {
+                    smallest = l;
+                }
+                if (r < size && less(heap[r], heap[smallest])) {
+                    smallest = r;
+                }
+                if (smallest == i) {
+                    return;
+                }
+                int t = heap[i];
+                heap[i] = heap[smallest];
+                heap[smallest] = t;
+                i = smallest;
+            }
+        }
+    }
+    /**
+     * Moves the files written by writeMerged() into place.  For the main files, also removes 
+     * the files of the other format, if any.
+     */
+    public static void renameMerged(String prefix, int chrom, int segment, boolean compressed) throws IOException {
+        for (String n : getMergedFnames(prefix, chrom, segment, compressed)) {
+            /* a compaction being finished by recovery may already have moved some of them */
+            if (!(new File(n + COMPACTSUFFIX)).exists() && (new File(n)).exists()) {
+                continue;
+            }
+            if (!(new File(n + COMPACTSUFFIX)).renameTo(new File(n))) {
+                throw new IOException("Couldn't rename " + n + COMPACTSUFFIX);
+            }
+        }
+        if (segment == 0) {
+            if (compressed) {
+                deleteSegment(prefix, chrom, 0);
+            } else {
+                (new File(getCompressedFname(prefix,chrom))).delete();
+            }
+        }
+    }
+    /** 
+     * names of the data files of a segment (0 for the main files) as written by writeMerged(), 
+     * without COMPACTSUFFIX
+     */
+    public static String[] getMergedFnames(String prefix, int chrom, int segment, boolean compressed) {
+        if (compressed && segment == 0) {
+            return new String[]{getCompressedFname(prefix,chrom)};
+        } else {
+            return new String[]{getPositionsFname(prefix,chrom,segment),
+                                getWeightsFname(prefix,chrom,segment),
+                                getLaSFname(prefix,chrom,segment)};
+        }
+    }
+    /** builds the index for the positions written by writeMerged() */
+    public static Header indexMerged(String prefix, int chrom, int segment, boolean compressed) throws IOException {
+        if (compressed && segment == 0) {
+            CompressedHits c = new CompressedHits(getCompressedFname(prefix,chrom) + COMPACTSUFFIX);
+            Header header = new Header(c.decodeAll(chrom).getPositionsBuffer().ib);
+            c.close();
+            return header;
+        }
+        IntBP positions = openIntBP(getPositionsFname(prefix,chrom,segment) + COMPACTSUFFIX);
+        Header header = new Header(positions.ib);
+        unmap(positions);
+        return header;
+    }
+    /** removes the files written for a compaction (see Compaction) after it is abandoned */
+    public static void deleteMerged(String prefix, int chrom, int segment) {
+        (new File(getHeaderFname(prefix,chrom,segment) + COMPACTSUFFIX)).delete();
+        (new File(getPositionsFname(prefix,chrom,segment) + COMPACTSUFFIX)).delete();
+        (new File(getWeightsFname(prefix,chrom,segment) + COMPACTSUFFIX)).delete();
+        (new File(getLaSFname(prefix,chrom,segment) + COMPACTSUFFIX)).delete();
+        if (segment == 0) {
+            (new File(getCompressedFname(prefix,chrom) + COMPACTSUFFIX)).delete();
+        }
+    }
+    /** removes the data files of a segment */
+    public static void deleteSegment(String prefix, int chrom, int segment) {
+        (new File(getPositionsFname(prefix,chrom,segment))).delete();
+        (new File(getWeightsFname(prefix,chrom,segment))).delete();
+        (new File(getLaSFname(prefix,chrom,segment))).delete();
     }
     public static void writeSingleHits(SingleHit[] hits,
                                        String prefix, 
@@ -210,5 +471,28 @@ public class SingleHits extends Hits {
     private static String getLaSFname(String prefix, int chrom) {
         return prefix + chrom + ".slas";
     }
+    /** name of the main file of a chromosome stored in the compressed format */
+    public static String getCompressedFname(String prefix, int chrom) {
+        return prefix + chrom + ".scol";
+    }
+    /** 
+     * name of the index (see Header) of a segment.  Segment 0 is the main files, whose 
+     * index is Server.getSingleHeaderFileName()
+     */
+    public static String getHeaderFname(String prefix, int chrom, int segment) {
+        return segment == 0 ? (prefix + chrom + ".singleindex") : (prefix + chrom + ".seg" + segment + ".segindex");
+    }
+    private static String getSegmentPrefix(int chrom, int segment) {
+        return segment == 0 ? Integer.toString(chrom) : (chrom + ".seg" + segment);
+    }
+    private static String getPositionsFname(String prefix, int chrom, int segment) {
+        return prefix + getSegmentPrefix(chrom,segment) + ".spositions";
+    }
+    private static String getWeightsFname(String prefix, int chrom, int segment) {
+        return prefix + getSegmentPrefix(chrom,segment) + ".sweights";
+    }
+    private static String getLaSFname(String prefix, int chrom, int segment) {
+        return prefix + getSegmentPrefix(chrom,segment) + ".slas";
+    }
 
 }
\ No newline at end of file
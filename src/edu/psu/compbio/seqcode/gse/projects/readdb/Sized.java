@@ -0,0 +1,11 @@
+package edu.psu.compbio.seqcode.gse.projects.readdb;
+
+/**
+ * Objects that can report how much memory they hold.  LRUCache
+ * charges each entry this many bytes against its budget.
+ */
+public interface Sized {
+
+    public long sizeInBytes();
+
+}
@@ -0,0 +1,186 @@
+package edu.psu.compbio.seqcode.gse.projects.readdb;
+
+import java.util.*;
+import java.io.*;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Round trip tests for the compressed format of single-ended hits (see CompressedHits):
+ * everything written must decode to the same hits, in full and by region.
+ *
+ * Usage: TestCompressedHits directory chrom.  Files for the chromosome in the directory are removed.
+ */
+public class TestCompressedHits {
+
+    private static String prefix;
+    private static int chrom;
+
+    private Random rand = new Random(2);
+
+    @Before public void clean() {
+        File[] files = (new File(prefix)).listFiles();
+        for (File f : files) {
+            if (f.getName().startsWith(chrom + ".")) {
+                f.delete();
+            }
+        }
+    }
+
+    /*
+     * n sorted hits with gaps of up to maxgap (so some take several varint bytes), runs of
+     * equal weights, and numcodes distinct LAS values
+     */
+    private SingleHits randomHits(int n, int maxgap, int numcodes) {
+        IntBP positions = new IntBP(n);
+        FloatBP weights = new FloatBP(n);
+        IntBP las = new IntBP(n);
+        int[] codes = new int[numcodes];
+        for (int i = 0; i < numcodes; i++) {
+            codes[i] = Hits.makeLAS((short)(i % 1000), i % 2 == 0, (short)(i / 1000), rand.nextBoolean());
+        }
+        int p = rand.nextInt(1000);
+        float w = 1f;
+        for (int i = 0; i < n; i++) {
+            /* plenty of duplicate positions */
+            if (rand.nextInt(3) != 0) {
+                p += rand.nextInt(maxgap);
+            }
+            if (rand.nextInt(20) == 0) {
+                w = rand.nextBoolean() ? 1f : rand.nextFloat() * 4;
+            }
+            positions.put(i, p);
+            weights.put(i, w);
+            las.put(i, codes[rand.nextInt(numcodes)]);
+        }
+        return new SingleHits(chrom, positions, weights, las);
+    }
+    private static void assertHits(Hits expected, int from, int to, Hits hits) {
+        assertEquals(to - from, hits.getPositionsBuffer().limit());
+        for (int i = from; i < to; i++) {
+            assertEquals("position " + i, expected.getPositionsBuffer().get(i), hits.getPositionsBuffer().get(i - from));
+            assertEquals("weight " + i, Float.floatToIntBits(expected.getWeightsBuffer().get(i)),
+                         Float.floatToIntBits(hits.getWeightsBuffer().get(i - from)));
+            assertEquals("las " + i, expected.getLASBuffer().get(i), hits.getLASBuffer().get(i - from));
+        }
+    }
+    /* checks decodeBetween() against a scan of the original hits */
+    private static void assertBetween(Hits expected, CompressedHits c, int start, int end) {
+        IntBP p = expected.getPositionsBuffer();
+        int from = 0;
+        while (from < p.limit() && p.get(from) < start) {
+            from++;
+        }
+        int to = from;
+        while (to < p.limit() && p.get(to) <= end) {
+            to++;
+        }
+        assertHits(expected, from, to, c.decodeBetween(chrom, start, end));
+    }
+    private void roundTrip(SingleHits hits) throws IOException {
+        String fname = SingleHits.getCompressedFname(prefix, chrom);
+        CompressedHits.write(hits, fname);
+        CompressedHits c = new CompressedHits(fname);
+        try {
+            int n = hits.getPositionsBuffer().limit();
+            assertEquals(n, c.getNumHits());
+            assertEquals((n + CompressedHits.BLOCKSIZE - 1) / CompressedHits.BLOCKSIZE, c.getNumBlocks());
+            assertHits(hits, 0, n, c.decodeAll(chrom));
+            if (n == 0) {
+                return;
+            }
+            int first = hits.getPositionsBuffer().get(0), last = hits.getPositionsBuffer().get(n - 1);
+            for (int q = 0; q < 100; q++) {
+                int start = first + rand.nextInt(last - first + 1);
+                int end = start + rand.nextInt(Math.max(1, (last - first) / 4));
+                assertBetween(hits, c, start, end);
+            }
+            /* regions that start or end exactly on block boundaries */
+            for (int b = 1; b < c.getNumBlocks(); b++) {
+                int pos = hits.getPositionsBuffer().get(b * CompressedHits.BLOCKSIZE);
+                assertBetween(hits, c, pos, pos);
+                assertBetween(hits, c, pos - 1, pos);
+                assertBetween(hits, c, pos, pos + 1);
+            }
+            assertBetween(hits, c, first - 100, first - 1);
+            assertBetween(hits, c, last + 1, last + 100);
+            assertBetween(hits, c, Integer.MIN_VALUE, Integer.MAX_VALUE);
+        } finally {
+            c.close();
+        }
+    }
+
+    @Test public void testSingleBlock() throws IOException {
+        roundTrip(randomHits(100, 10, 3));
+    }
+    @Test public void testManyBlocks() throws IOException {
+        roundTrip(randomHits(5 * CompressedHits.BLOCKSIZE + 17, 50, 10));
+    }
+    @Test public void testWideGaps() throws IOException {
+        roundTrip(randomHits(3 * CompressedHits.BLOCKSIZE, 1 << 16, 2));
+    }
+    @Test public void testOneLAS() throws IOException {
+        roundTrip(randomHits(2 * CompressedHits.BLOCKSIZE + 1, 20, 1));
+    }
+    @Test public void testLargeLASDictionary() throws IOException {
+        /* more than 256 codes per block, so the codes are varints */
+        roundTrip(randomHits(2 * CompressedHits.BLOCKSIZE, 20, 2000));
+    }
+    @Test public void testEmpty() throws IOException {
+        roundTrip(new SingleHits(chrom, new IntBP(0), new FloatBP(0), new IntBP(0)));
+    }
+
+    @Test public void testOutOfOrder() throws IOException {
+        String fname = SingleHits.getCompressedFname(prefix, chrom);
+        CompressedHits.Writer w = new CompressedHits.Writer(fname);
+        w.add(100, 1f, 0);
+        try {
+            w.add(99, 1f, 0);
+            fail("hits out of order were accepted");
+        } catch (IOException e) {
+            // expected
+        } finally {
+            w.close();
+        }
+    }
+
+    @Test public void testNotCompressed() throws IOException {
+        SingleHits hits = randomHits(1000, 10, 3);
+        SingleHits.writeSingleHits(hits.getPositionsBuffer(), hits.getWeightsBuffer(), hits.getLASBuffer(), prefix, chrom);
+        try {
+            new CompressedHits(SingleHits.getMergedFnames(prefix, chrom, 0, false)[0]);
+            fail("read plain positions as compressed hits");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test public void testConvert() throws IOException {
+        /* main() converts every chromosome in the directory, so give it one of its own */
+        File dir = new File(prefix + "convert" + chrom);
+        dir.mkdir();
+        String p = dir.getPath() + System.getProperty("file.separator");
+        SingleHits hits = randomHits(3 * CompressedHits.BLOCKSIZE, 30, 5);
+        SingleHits.writeSingleHits(hits.getPositionsBuffer(), hits.getWeightsBuffer(), hits.getLASBuffer(), p, chrom);
+        CompressedHits.main(new String[]{dir.getPath()});
+        for (String n : SingleHits.getMergedFnames(p, chrom, 0, false)) {
+            assertFalse(n, (new File(n)).exists());
+        }
+        CompressedHits c = new CompressedHits(SingleHits.getCompressedFname(p, chrom));
+        assertHits(hits, 0, hits.getPositionsBuffer().limit(), c.decodeAll(chrom));
+        c.close();
+        (new File(SingleHits.getCompressedFname(p, chrom))).delete();
+        dir.delete();
+    }
+
+    public static void main(String args[]) {
+        prefix = args[0];
+        if (!prefix.endsWith(System.getProperty("file.separator"))) {
+            prefix = prefix + System.getProperty("file.separator");
+        }
+
+        chrom = Integer.parseInt(args[1]);
+        org.junit.runner.JUnitCore.main("edu.psu.compbio.seqcode.gse.projects.readdb.TestCompressedHits");
+    }
+
+}
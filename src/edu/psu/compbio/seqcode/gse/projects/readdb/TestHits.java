@@ -357,6 +357,46 @@ public class TestHits {
     }
 
 
+    @Test public void testProfile() throws IOException {
+        for (int q = 0; q < 300; q++) {
+            int start = (int)Math.round(Math.random() * MAXVALUE) - 500;
+            int end = start + (int)Math.round(Math.random() * 1000);
+            int stepsize = 1 + (int)Math.round(Math.random() * 20);
+            int windowsize = 1 + (int)Math.round(Math.random() * 40);
+            boolean extension = q % 2 == 0;
+            int n = Hits.numWindows(start, end, stepsize);
+            double[] diffs = new double[n + 1];
+            hitsfile.addToProfile(header, start, end, windowsize, stepsize, 0, null, null, extension, false, diffs, null);
+            double sum = 0;
+            for (int w = 0; w < n; w++) {
+                sum += diffs[w];
+                int wstart = start + w * stepsize;
+                int wend = wstart + windowsize - 1;
+                int count = 0;
+                for (int i = 0; i < hits.size(); i++) {
+                    int left = hits.get(i), right = hits.get(i);
+                    if (extension) {
+                        int len = Math.max(1, Hits.getLengthOne(las.get(i)));
+                        if (Hits.getStrandOne(las.get(i))) {
+                            right = left + len - 1;
+                        } else {
+                            left = right - len + 1;
+                        }
+                    }
+                    if (left <= wend && right >= wstart) {
+                        count++;
+                    }
+                }
+                if (count != Math.round(sum)) {
+                    System.err.println(String.format("profile %d-%d step %d window %d ext %b : window %d has %d, expected %d",
+                                                     start, end, stepsize, windowsize, extension, w, Math.round(sum), count));
+                }
+                assertEquals(count, Math.round(sum));
+            }
+        }
+    }
+
+
     public static void main(String args[]) {
         prefix = args[0];
         if (!prefix.endsWith(System.getProperty("file.separator"))) {
@@ -0,0 +1,219 @@
+package edu.psu.compbio.seqcode.gse.projects.readdb;
+
+import java.util.*;
+import java.io.IOException;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for LRUCache: eviction by entry count and by byte budget, and that
+ * entries pinned by a thread aren't closed until that thread releases them.
+ */
+public class TestLRUCache {
+
+    /* records whether close() has been called */
+    private static class Item implements Closeable, Sized {
+        long size;
+        int closes = 0;
+        Item(long size) {
+            this.size = size;
+        }
+        public long sizeInBytes() {return size;}
+        public synchronized void close() throws IOException {
+            closes++;
+        }
+        public synchronized int closes() {return closes;}
+    }
+
+    @Test public void testEvictByCount() {
+        LRUCache<Item> cache = new LRUCache<Item>(10);
+        Item[] items = new Item[20];
+        for (int i = 0; i < 20; i++) {
+            items[i] = new Item(0);
+            cache.add("k" + i, items[i]);
+            cache.release();
+        }
+        assertEquals(10, cache.size());
+        for (int i = 0; i < 20; i++) {
+            assertEquals("k" + i + " cached", i >= 10, cache.contains("k" + i));
+            assertEquals("k" + i + " closed", i < 10 ? 1 : 0, items[i].closes());
+        }
+        assertEquals(10, cache.evictions());
+    }
+
+    @Test public void testLeastRecentlyUsed() {
+        LRUCache<Item> cache = new LRUCache<Item>(3);
+        Item a = new Item(0), b = new Item(0), c = new Item(0), d = new Item(0);
+        cache.add("a", a);
+        cache.add("b", b);
+        cache.add("c", c);
+        cache.release();
+        /* a is now more recent than b */
+        assertTrue(cache.get("a") == a);
+        cache.release();
+        cache.add("d", d);
+        cache.release();
+        assertTrue(cache.contains("a"));
+        assertFalse(cache.contains("b"));
+        assertTrue(cache.contains("c"));
+        assertTrue(cache.contains("d"));
+        assertEquals(1, b.closes());
+        assertEquals(0, a.closes());
+        assertNull(cache.get("b"));
+        assertEquals(1, cache.misses());
+    }
+
+    @Test public void testEvictByBytes() {
+        LRUCache<Item> cache = new LRUCache<Item>(100, 1000);
+        Item[] items = new Item[10];
+        for (int i = 0; i < 10; i++) {
+            items[i] = new Item(300);
+            cache.add("k" + i, items[i]);
+            cache.release();
+            assertTrue(cache.bytes() <= 1000);
+        }
+        assertEquals(3, cache.size());
+        assertEquals(900, cache.bytes());
+        for (int i = 0; i < 10; i++) {
+            assertEquals("k" + i + " cached", i >= 7, cache.contains("k" + i));
+        }
+        /* a single entry over the budget is still kept */
+        Item big = new Item(5000);
+        cache.add("big", big);
+        cache.release();
+        assertEquals(1, cache.size());
+        assertTrue(cache.contains("big"));
+        assertEquals(0, big.closes());
+    }
+
+    @Test public void testReplace() {
+        LRUCache<Item> cache = new LRUCache<Item>(10, 1000);
+        Item one = new Item(100), two = new Item(200);
+        cache.add("k", one);
+        cache.add("k", two);
+        /* still pinned by this thread */
+        assertEquals(0, one.closes());
+        cache.release();
+        assertEquals(1, one.closes());
+        assertEquals(0, two.closes());
+        assertEquals(1, cache.size());
+        assertEquals(200, cache.bytes());
+        assertTrue(cache.get("k") == two);
+        cache.release();
+    }
+
+    @Test public void testPinnedNotClosed() {
+        LRUCache<Item> cache = new LRUCache<Item>(1);
+        Item a = new Item(0), b = new Item(0);
+        cache.add("a", a);
+        cache.release();
+        assertTrue(cache.get("a") == a);
+        /* evicts a, which this thread still has pinned */
+        cache.add("b", b);
+        assertFalse(cache.contains("a"));
+        assertEquals(0, a.closes());
+        cache.release();
+        assertEquals(1, a.closes());
+        /* releasing again doesn't close anything twice */
+        cache.release();
+        assertEquals(1, a.closes());
+        cache.remove("b");
+        assertEquals(1, b.closes());
+        assertEquals(0, cache.size());
+    }
+
+    @Test public void testPinnedByOtherThread() throws InterruptedException {
+        final LRUCache<Item> cache = new LRUCache<Item>(1);
+        final Item a = new Item(0);
+        cache.add("a", a);
+        cache.release();
+        final Object lock = new Object();
+        final boolean[] state = new boolean[2]; // pinned, done
+        Thread t = new Thread() {
+                public void run() {
+                    cache.get("a");
+                    synchronized(lock) {
+                        state[0] = true;
+                        lock.notifyAll();
+                        while (!state[1]) {
+                            try {
+                                lock.wait();
+                            } catch (InterruptedException e) {
+                                return;
+                            }
+                        }
+                    }
+                    cache.release();
+                }
+            };
+        t.start();
+        synchronized(lock) {
+            while (!state[0]) {
+                lock.wait();
+            }
+        }
+        /* a is pinned by the other thread only */
+        cache.remove("a");
+        cache.release();
+        assertEquals(0, a.closes());
+        synchronized(lock) {
+            state[1] = true;
+            lock.notifyAll();
+        }
+        t.join();
+        assertEquals(1, a.closes());
+    }
+
+    @Test public void testConcurrentUse() throws InterruptedException {
+        final LRUCache<Item> cache = new LRUCache<Item>(8, 4000);
+        final List<Item> all = Collections.synchronizedList(new ArrayList<Item>());
+        final boolean[] failed = new boolean[1];
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int seed = t;
+            threads[t] = new Thread() {
+                    public void run() {
+                        Random rand = new Random(seed);
+                        for (int i = 0; i < 20000; i++) {
+                            String k = "k" + rand.nextInt(32);
+                            Item item = cache.get(k);
+                            if (item == null) {
+                                item = new Item(100 + rand.nextInt(400));
+                                all.add(item);
+                                cache.add(k, item);
+                            }
+                            /* nothing this thread holds may be closed before it releases */
+                            if (item.closes() != 0) {
+                                synchronized(failed) {
+                                    failed[0] = true;
+                                }
+                            }
+                            if (i % 3 == 0) {
+                                cache.release();
+                            }
+                        }
+                        cache.release();
+                    }
+                };
+            threads[t].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertFalse("an item was closed while pinned", failed[0]);
+        assertTrue(cache.size() <= 8);
+        assertTrue(cache.bytes() <= 4000);
+        int open = 0;
+        for (Item item : all) {
+            assertTrue(item.closes() <= 1);
+            if (item.closes() == 0) {
+                open++;
+            }
+        }
+        assertEquals(cache.size(), open);
+    }
+
+    public static void main(String args[]) {
+        org.junit.runner.JUnitCore.main("edu.psu.compbio.seqcode.gse.projects.readdb.TestLRUCache");
+    }
+}
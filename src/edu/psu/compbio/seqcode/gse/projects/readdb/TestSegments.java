@@ -0,0 +1,261 @@
+package edu.psu.compbio.seqcode.gse.projects.readdb;
+
+import java.util.*;
+import java.io.*;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Round trip tests for the segment files of single-ended chromosomes (see SingleHits) and for
+ * compaction, including recovery from a compaction that was interrupted before or after its
+ * commit point (see Compaction).  Works on the files directly, so no server is needed.
+ *
+ * Usage: TestSegments directory chrom.  Files for the chromosome in the directory are removed.
+ */
+public class TestSegments {
+
+    private static String prefix;
+    private static int chrom;
+    private static int MAXVALUE = 20000;
+
+    private Random rand = new Random(1);
+
+    @Before public void clean() {
+        File[] files = (new File(prefix)).listFiles();
+        for (File f : files) {
+            if (f.getName().startsWith(chrom + ".")) {
+                f.delete();
+            }
+        }
+    }
+
+    /* hits as rows of {position, float bits of weight, las}, sorted by position */
+    private int[][] randomHits(int n) {
+        int[][] output = new int[n][];
+        int[] positions = new int[n];
+        for (int i = 0; i < n; i++) {
+            positions[i] = rand.nextInt(MAXVALUE);
+        }
+        Arrays.sort(positions);
+        for (int i = 0; i < n; i++) {
+            output[i] = new int[]{positions[i],
+                                  Float.floatToIntBits(rand.nextInt(4) == 0 ? rand.nextFloat() * 4 : 1f),
+                                  Hits.makeLAS((short)(20 + rand.nextInt(30)), rand.nextBoolean())};
+        }
+        return output;
+    }
+    /* writes hits as the given segment, 0 for the main files, along with its index */
+    private void write(int[][] hits, int segment) throws IOException {
+        IntBP positions = new IntBP(hits.length);
+        FloatBP weights = new FloatBP(hits.length);
+        IntBP las = new IntBP(hits.length);
+        for (int i = 0; i < hits.length; i++) {
+            positions.put(i, hits[i][0]);
+            weights.put(i, Float.intBitsToFloat(hits[i][1]));
+            las.put(i, hits[i][2]);
+        }
+        SingleHits.writeSegment(positions, weights, las, prefix, chrom, segment);
+        (new Header(positions.ib)).writeIndexFile(SingleHits.getHeaderFname(prefix, chrom, segment));
+    }
+    /* what merging the sets in this order should produce: ties on position keep the order of the sets */
+    private static int[][] merged(int[][]... sets) {
+        List<int[]> all = new ArrayList<int[]>();
+        for (int[][] s : sets) {
+            all.addAll(Arrays.asList(s));
+        }
+        /* Collections.sort is stable */
+        Collections.sort(all, new Comparator<int[]>() {
+                public int compare(int[] a, int[] b) {
+                    return a[0] < b[0] ? -1 : (a[0] > b[0] ? 1 : 0);
+                }
+            });
+        return all.toArray(new int[all.size()][]);
+    }
+    private static int[][] between(int[][] hits, int start, int end) {
+        List<int[]> output = new ArrayList<int[]>();
+        for (int[] h : hits) {
+            if (h[0] >= start && h[0] <= end) {
+                output.add(h);
+            }
+        }
+        return output.toArray(new int[output.size()][]);
+    }
+    private static void assertHits(int[][] expected, Hits hits) {
+        assertEquals(expected.length, hits.getPositionsBuffer().limit());
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals("position " + i, expected[i][0], hits.getPositionsBuffer().get(i));
+            assertEquals("weight " + i, expected[i][1], Float.floatToIntBits(hits.getWeightsBuffer().get(i)));
+            assertEquals("las " + i, expected[i][2], hits.getLASBuffer().get(i));
+        }
+    }
+    private static boolean exists(String fname) {
+        return (new File(fname)).exists();
+    }
+    private static boolean segmentExists(int segment) {
+        for (String n : SingleHits.getMergedFnames(prefix, chrom, segment, false)) {
+            if (exists(n)) {
+                return true;
+            }
+        }
+        return exists(SingleHits.getHeaderFname(prefix, chrom, segment));
+    }
+    /* nothing left over from a compaction */
+    private static void assertNoCompactionFiles() {
+        assertFalse(exists(Compaction.getJournalFileName(prefix, chrom)));
+        for (File f : (new File(prefix)).listFiles()) {
+            if (f.getName().startsWith(chrom + ".")) {
+                assertFalse(f.getName(), f.getName().endsWith(SingleHits.COMPACTSUFFIX));
+            }
+        }
+    }
+
+    @Test public void testSegmentRoundTrip() throws IOException {
+        int[][][] sets = new int[4][][];
+        Hits[] hits = new Hits[sets.length];
+        Header[] headers = new Header[sets.length];
+        for (int s = 0; s < sets.length; s++) {
+            sets[s] = randomHits(s == 0 ? 5000 : 500 + s * 100);
+            write(sets[s], s);
+            hits[s] = new SingleHits(prefix, chrom, s);
+            headers[s] = Header.readIndexFile(SingleHits.getHeaderFname(prefix, chrom, s));
+            assertHits(sets[s], hits[s]);
+            assertEquals(sets[s].length, headers[s].getNumHits());
+        }
+        assertHits(sets[0], new SingleHits(prefix, chrom));
+        int[][] all = merged(sets);
+        assertHits(all, SingleHits.mergeBetween(chrom, hits, headers, 0, MAXVALUE));
+        for (int i = 0; i < 50; i++) {
+            int start = rand.nextInt(MAXVALUE);
+            int end = start + rand.nextInt(2000);
+            assertHits(between(all, start, end), SingleHits.mergeBetween(chrom, hits, headers, start, end));
+        }
+        assertHits(new int[0][], SingleHits.mergeBetween(chrom, hits, headers, MAXVALUE + 1, MAXVALUE + 100));
+    }
+
+    @Test public void testCompactToSegment() throws IOException {
+        int[][][] sets = new int[6][][];
+        for (int s = 0; s < sets.length; s++) {
+            sets[s] = randomHits(s == 0 ? 3000 : 200 * s);
+            write(sets[s], s);
+        }
+        int[] inputs = {2, 3, 5};
+        Hits[] hits = new Hits[inputs.length];
+        for (int i = 0; i < inputs.length; i++) {
+            hits[i] = new SingleHits(prefix, chrom, inputs[i]);
+        }
+        Compaction.prepare(hits, prefix, chrom, 6, false);
+        /* nothing is visible before the commit */
+        assertFalse(exists(SingleHits.getHeaderFname(prefix, chrom, 6)));
+        Compaction.commit(prefix, chrom, 6, false, inputs);
+
+        assertHits(merged(sets[2], sets[3], sets[5]), new SingleHits(prefix, chrom, 6));
+        assertEquals(sets[2].length + sets[3].length + sets[5].length,
+                     Header.readIndexFile(SingleHits.getHeaderFname(prefix, chrom, 6)).getNumHits());
+        for (int id : inputs) {
+            assertFalse(segmentExists(id));
+        }
+        assertHits(sets[0], new SingleHits(prefix, chrom));
+        assertHits(sets[1], new SingleHits(prefix, chrom, 1));
+        assertHits(sets[4], new SingleHits(prefix, chrom, 4));
+        assertNoCompactionFiles();
+    }
+
+    private void compactToMain(boolean compressed) throws IOException {
+        int[][][] sets = new int[4][][];
+        Hits[] hits = new Hits[sets.length];
+        for (int s = 0; s < sets.length; s++) {
+            sets[s] = randomHits(s == 0 ? 10000 : 1000);
+            write(sets[s], s);
+            hits[s] = new SingleHits(prefix, chrom, s);
+        }
+        int[] inputs = {1, 2, 3};
+        Compaction.prepare(hits, prefix, chrom, 0, compressed);
+        Compaction.commit(prefix, chrom, 0, compressed, inputs);
+
+        int[][] all = merged(sets);
+        if (compressed) {
+            CompressedHits c = new CompressedHits(SingleHits.getCompressedFname(prefix, chrom));
+            assertHits(all, c.decodeAll(chrom));
+            c.close();
+            /* the plain main files are replaced */
+            for (String n : SingleHits.getMergedFnames(prefix, chrom, 0, false)) {
+                assertFalse(exists(n));
+            }
+        } else {
+            assertHits(all, new SingleHits(prefix, chrom));
+            assertFalse(exists(SingleHits.getCompressedFname(prefix, chrom)));
+        }
+        assertEquals(all.length, Header.readIndexFile(SingleHits.getHeaderFname(prefix, chrom, 0)).getNumHits());
+        for (int id : inputs) {
+            assertFalse(segmentExists(id));
+        }
+        assertNoCompactionFiles();
+    }
+    @Test public void testCompactToMain() throws IOException {
+        compactToMain(false);
+    }
+    @Test public void testCompactToCompressedMain() throws IOException {
+        compactToMain(true);
+    }
+
+    @Test public void testRecoverRollsBack() throws IOException {
+        int[][] main = randomHits(2000), one = randomHits(300), two = randomHits(400);
+        write(main, 0);
+        write(one, 1);
+        write(two, 2);
+        Compaction.prepare(new Hits[]{new SingleHits(prefix, chrom, 0),
+                                      new SingleHits(prefix, chrom, 1),
+                                      new SingleHits(prefix, chrom, 2)},
+                           prefix, chrom, 0, false);
+        /* died before the commit point */
+        assertFalse(Compaction.recover(prefix, chrom));
+        assertNoCompactionFiles();
+        assertHits(main, new SingleHits(prefix, chrom));
+        assertEquals(main.length, Header.readIndexFile(SingleHits.getHeaderFname(prefix, chrom, 0)).getNumHits());
+        assertHits(one, new SingleHits(prefix, chrom, 1));
+        assertHits(two, new SingleHits(prefix, chrom, 2));
+    }
+
+    @Test public void testRecoverRollsForward() throws IOException {
+        /* died just after the commit point, or after moving the data files but before the index */
+        for (int renamed = 0; renamed < 2; renamed++) {
+            clean();
+            int[][] main = randomHits(2000), one = randomHits(300), two = randomHits(400), three = randomHits(500);
+            write(main, 0);
+            write(one, 1);
+            write(two, 2);
+            write(three, 3);
+            int[] inputs = {1, 3};
+            Compaction.prepare(new Hits[]{new SingleHits(prefix, chrom, 1),
+                                          new SingleHits(prefix, chrom, 3)},
+                               prefix, chrom, 4, false);
+            Compaction.writeJournal(prefix, chrom, 4, false, inputs);
+            if (renamed == 1) {
+                SingleHits.renameMerged(prefix, chrom, 4, false);
+            }
+            assertTrue(Compaction.recover(prefix, chrom));
+            assertNoCompactionFiles();
+            assertHits(merged(one, three), new SingleHits(prefix, chrom, 4));
+            assertEquals(one.length + three.length,
+                         Header.readIndexFile(SingleHits.getHeaderFname(prefix, chrom, 4)).getNumHits());
+            assertFalse(segmentExists(1));
+            assertFalse(segmentExists(3));
+            assertHits(main, new SingleHits(prefix, chrom));
+            assertHits(two, new SingleHits(prefix, chrom, 2));
+            /* a second recovery has nothing to do */
+            assertFalse(Compaction.recover(prefix, chrom));
+            assertHits(merged(one, three), new SingleHits(prefix, chrom, 4));
+        }
+    }
+
+    public static void main(String args[]) {
+        prefix = args[0];
+        if (!prefix.endsWith(System.getProperty("file.separator"))) {
+            prefix = prefix + System.getProperty("file.separator");
+        }
+
+        chrom = Integer.parseInt(args[1]);
+        org.junit.runner.JUnitCore.main("edu.psu.compbio.seqcode.gse.projects.readdb.TestSegments");
+    }
+
+}
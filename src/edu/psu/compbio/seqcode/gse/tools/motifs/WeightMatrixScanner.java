@@ -2,13 +2,11 @@ package edu.psu.compbio.seqcode.gse.tools.motifs;
 
 import java.io.*;
 import java.util.*;
-import java.util.Date;
 import java.sql.*;
-import java.text.DateFormat;
 import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.regex.Pattern;
 import java.util.regex.Matcher;
+import java.util.concurrent.*;
 
 import edu.psu.compbio.seqcode.gse.datasets.general.Region;
 import edu.psu.compbio.seqcode.gse.datasets.motifs.*;
@@ -16,6 +14,8 @@ import edu.psu.compbio.seqcode.gse.datasets.species.Genome;
 import edu.psu.compbio.seqcode.gse.datasets.species.Organism;
 import edu.psu.compbio.seqcode.gse.ewok.verbs.SequenceGenerator;
 import edu.psu.compbio.seqcode.gse.ewok.verbs.Sink;
+import edu.psu.compbio.seqcode.gse.ewok.verbs.motifs.CompiledWeightMatrix;
+import edu.psu.compbio.seqcode.gse.ewok.verbs.motifs.EncodedSequence;
 import edu.psu.compbio.seqcode.gse.ewok.verbs.motifs.PerBaseMotifMatch;
 import edu.psu.compbio.seqcode.gse.tools.utils.Args;
 import edu.psu.compbio.seqcode.gse.utils.*;
@@ -23,12 +23,15 @@ import edu.psu.compbio.seqcode.gse.utils.database.DatabaseException;
 import edu.psu.compbio.seqcode.gse.utils.database.DatabaseFactory;
 import edu.psu.compbio.seqcode.gse.utils.database.UnknownRoleException;
 import edu.psu.compbio.seqcode.gse.utils.io.parsing.FASTAStream;
-import edu.psu.compbio.seqcode.gse.utils.sequence.SequenceUtils;
 
 /** Scans a genome for a previously loaded weight matrix.  Can read either from FASTA files or from the database.  Can put results
  * into the database or print to the screen.  Can also load scan results from a file.  All matrices are converted to log-odds
  * before scanning.
  *
+ * Matrices are compiled (see CompiledWeightMatrix) and scanned as a batch: each sequence is read and encoded once, cut into
+ * pieces, and every matrix is run over a piece by one of the --threads worker threads.  Hits are handed to the
+ * consumers in order on the calling thread.
+ *
  * --species "$MM;mm9"
  * --scanname "90%"  [required only when storing to db]
  *
@@ -36,6 +39,7 @@ import edu.psu.compbio.seqcode.gse.utils.sequence.SequenceUtils;
  * [--print]  print results rather than storing to db
  * [--loadfile foo.txt]  load results from file rather than doing a new scan
  * [--cutoff .9] as a fraction of maximum log-odds score
+ * [--threads 8] worker threads for scanning; defaults to the number of processors
  */
 
 public class WeightMatrixScanner {
@@ -53,7 +57,14 @@ public class WeightMatrixScanner {
     private String loadfile, scanname;
     private boolean print;
     private WMConsumer consumer;
+    private List<WMConsumer> consumers = new ArrayList<WMConsumer>();
+    private List<PreparedStatement> insertHits = new ArrayList<PreparedStatement>();
     private String outfile;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private ExecutorService executor;
+
+    /* windows per scanning task */
+    public static final int PIECE = 1 << 20;
 
     public static void main(String args[]) throws Exception {
         WeightMatrixScanner scanner = new WeightMatrixScanner();
@@ -74,12 +85,20 @@ public class WeightMatrixScanner {
         getScanned.close();
         getScannedGenome.close();
         insertScannedGenome.close();
-        if (insertHit != null) {
-            insertHit.close();
+        for (PreparedStatement ps : insertHits) {
+            ps.close();
         }
         core.close();
         cxn.close();
-        consumer.close();
+        if (consumer != null) {
+            consumer.close();
+        }
+        for (WMConsumer c : consumers) {
+            c.close();
+        }
+        if (executor != null) {
+            executor.shutdown();
+        }
     }
     public void parseArgs(String args[]) throws Exception {
         boolean scan = true;
@@ -95,6 +114,7 @@ public class WeightMatrixScanner {
         print = Args.parseFlags(args).contains("print");
         regions = Args.parseRegionsOrDefault(args);
         outfile = Args.parseString(args, "outfile", "");
+        threads = Math.max(1, Args.parseInteger(args, "threads", threads));
 
         if (!print) {            
             if (scanname == null) {
@@ -148,31 +168,34 @@ public class WeightMatrixScanner {
         }
     } 
     public void scanMatrices() throws SQLException, FileNotFoundException {
-    	DateFormat dfm = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-    	if (print) {
-    		if (!outfile.equals("")) {
-    			consumer = new PrintConsumer(genome, null, outfile);
-    		}
-    	}
-    	int count = 0;
-        for (WeightMatrix matrix : matrices) {
-            int scanid;
-            float cutoffscore =(float) (matrix.getMaxScore() * cutoff);
+        List<CompiledWeightMatrix> compiled = new ArrayList<CompiledWeightMatrix>();
+        float[] cutoffscores = new float[matrices.size()];
+        int[] scanids = new int[matrices.size()];
+        PrintStream out = null;
+        if (print && !outfile.equals("")) {
+            out = new PrintStream(outfile);
+        }
+        for (int i = 0; i < matrices.size(); i++) {
+            WeightMatrix matrix = matrices.get(i);
+            compiled.add(new CompiledWeightMatrix(matrix));
+            cutoffscores[i] = (float) (matrix.getMaxScore() * cutoff);
 
             if (print) {
-                scanid = -1;
-                if (outfile.equals("")) {
-                	consumer = new PrintConsumer(genome, matrix);
+                scanids[i] = -1;
+                if (out == null) {
+                	consumers.add(new PrintConsumer(genome, matrix));
                 } else {
-                	consumer.setMatrix(matrix);
+                	consumers.add(new PrintConsumer(genome, matrix, out));
                 }
             } else {
-                scanid = getScanID(matrix.dbid,scanname,cutoffscore);
+                int scanid = getScanID(matrix.dbid,scanname,cutoffscores[i]);
+                scanids[i] = scanid;
                 System.err.println("SCAN ID is " + scanid);
                 insertHit = cxn.prepareStatement("insert into wms_hits(scan,chromosome,startpos,stoppos,strand,score) " +
                                                  " values (" + scanid + ",?,?,?,?,?)");
-                consumer = new StoreConsumer(cxn,
-                                             insertHit);
+                insertHits.add(insertHit);
+                consumers.add(new StoreConsumer(cxn,
+                                                insertHit));
                 getScannedGenome.setInt(1,scanid);
                 getScannedGenome.setInt(2,genome.getDBID());
                 ResultSet rs = getScannedGenome.executeQuery();
@@ -184,36 +207,33 @@ public class WeightMatrixScanner {
                 }
                 rs.close();
             }
+        }
         
-            if (fastafiles.size() != 0) {
-                regions.clear();
-                for (String fastafile : fastafiles) {
-                    scanFasta(genome,
-                              matrix,
-                              consumer,
-                              cutoffscore,
-                              fastafile,
-                              regions);
-                    
-                }                
-            } else {
-                try {
-                    scanFromDB(genome,
-                               matrix,
-                               consumer,
-                               (float)cutoff,
-                               regions);
-                } catch (NotFoundException ex) {
-                    ex.printStackTrace();
-                }
+        if (fastafiles.size() != 0) {
+            regions.clear();
+            for (String fastafile : fastafiles) {
+                scanFasta(genome,
+                          compiled,
+                          cutoffscores,
+                          consumers,
+                          fastafile,
+                          regions);
+            }                
+        } else {
+            try {
+                scanFromDB(genome,
+                           compiled,
+                           cutoffscores,
+                           consumers,
+                           regions);
+            } catch (NotFoundException ex) {
+                ex.printStackTrace();
             }
-            if (!print) {
+        }
+        if (!print) {
+            for (int scanid : scanids) {
                 storeRegionList(genome,scanid,regions);
             }
-            count++;
-            if (count % (matrices.size()/100)==0) {
-            	System.err.println(count+" "+dfm.format(new Date()));
-            }
         }
     }
     
@@ -354,6 +374,23 @@ public class WeightMatrixScanner {
                                  float cutoffscore,
                                  String fastafile,
                                  List<Region> regions) {
+        scanFasta(genome,
+                  Collections.singletonList(new CompiledWeightMatrix(matrix)),
+                  new float[]{cutoffscore},
+                  Collections.singletonList(consumer),
+                  fastafile,
+                  regions);
+        return new ArrayList<WMHit>();
+    }
+
+    /* scans a FASTA file for a batch of matrices.  consumers.get(i) gets the hits of matrices.get(i) that
+       score at least cutoffscores[i].  Each sequence is read and encoded once for all of them. */
+    public void scanFasta(Genome genome,
+                          List<CompiledWeightMatrix> matrices,
+                          float[] cutoffscores,
+                          List<WMConsumer> consumers,
+                          String fastafile,
+                          List<Region> regions) {
         try {
             File file = new File(fastafile);
             FASTAStream stream = new FASTAStream(file);
@@ -361,9 +398,8 @@ public class WeightMatrixScanner {
             while (stream.hasNext()) {
                 Pair<String,String> pair = stream.next();
                 String name = pair.getFirst();
-                String seq = pair.getLast();
+                EncodedSequence seq = new EncodedSequence(pair.getLast());
                 pair = null;
-                char[] aschars = seq.toCharArray();
 
                 int chromid = -1;
                 int offset = 0, end = -1;
@@ -375,9 +411,6 @@ public class WeightMatrixScanner {
                     	name = tmp.getChrom();
                     	offset = tmp.getStart();
                     	end = tmp.getEnd();
-						//name = m.group(0);
-						//offset = Integer.parseInt(m.group(1));
-						//end = Integer.parseInt(m.group(2));
 					} catch (Exception e) {
 						System.err.println(name);
 					}
@@ -394,7 +427,7 @@ public class WeightMatrixScanner {
                     if (end == -1) {
                         regions.add(new Region(genome,
                                                name,
-                                               0,aschars.length));
+                                               0,seq.length()));
                     } else {
                         regions.add(new Region(genome,
                                                name,
@@ -402,38 +435,17 @@ public class WeightMatrixScanner {
                     }                    
                 }
 
-                for (int i = 0; i < aschars.length; i++) {
-                    if (aschars[i] == 'a') {aschars[i]='A';}
-                    if (aschars[i] == 'c') {aschars[i]='C';}
-                    if (aschars[i] == 'g') {aschars[i]='G';}
-                    if (aschars[i] == 't') {aschars[i]='T';}
-                }
-                List<WMHit> hits = scanSequence(matrix,
-                                                cutoffscore,
-                                                aschars);
-
-                if (chromid > 0) {
-                    for (WMHit hit : hits) {
-                        hit.start += offset;
-                        hit.chromid = chromid;
-                    }
-                } else {
-                    for (WMHit hit : hits) {
-                        hit.chromid = chromid;
-                    }                    
-                }
-
-                consumer.consume(hits);
+                long started = System.currentTimeMillis();
+                scanSequence(matrices, cutoffscores, consumers, seq, seq.length(), chromid, offset);
+                System.err.println(String.format("Scanned %s (%d bp) with %d matrices in %.1f s",
+                                                 name, seq.length(), matrices.size(),
+                                                 (System.currentTimeMillis() - started) / 1000.0));
             }            
             stream.close();
-        } catch (FileNotFoundException ex) {
+        } catch (IOException ex) {
             System.err.println(ex.toString());
             ex.printStackTrace();
-        } catch (Exception ex) {
-            //System.err.println(ex.toString());
-            //ex.printStackTrace();
         }
-        return new ArrayList<WMHit>();
     }
 
     /* Scans a list of regions for a weight matrix using the given cutoff. */
@@ -442,34 +454,89 @@ public class WeightMatrixScanner {
                            WMConsumer consumer,
                            float scorecutoff,
                            List<Region> regions) throws NotFoundException {
+        scanFromDB(genome,
+                   Collections.singletonList(new CompiledWeightMatrix(matrix)),
+                   new float[]{scorecutoff},
+                   Collections.singletonList(consumer),
+                   regions);
+    }
+
+    /* Scans a list of regions for a batch of matrices, as in scanFasta */
+    public void scanFromDB(Genome genome,
+                           List<CompiledWeightMatrix> matrices,
+                           float[] cutoffscores,
+                           List<WMConsumer> consumers,
+                           List<Region> regions) throws NotFoundException {
         SequenceGenerator seqgen = new SequenceGenerator();
+        int longest = 1;
+        for (CompiledWeightMatrix m : matrices) {
+            longest = Math.max(longest, m.length());
+        }
+        int chunksize = 8000000;
         for (Region region : regions) {
-            int rstart = region.getStart();
-            int chunksize = 8000000;
             int chromid = region.getGenome().getChromID(region.getChrom());
-            int length = matrix.length();
-
-            ArrayList<WMHit> results = new ArrayList<WMHit>();
-            // work over the target region in pieces
-            while (rstart < region.getEnd()) {
-                int rend = rstart + chunksize;
-                if (rend > region.getEnd()) {
-                    rend = region.getEnd();
-                }
+            // work over the target region in pieces.  Each piece holds the windows that start in its
+            // first chunksize bases, plus enough sequence after them for the longest matrix
+            for (int rstart = region.getStart(); rstart <= region.getEnd(); rstart += chunksize) {
+                int rend = Math.min(rstart + chunksize + longest - 2, region.getEnd());
                 System.err.println("Working on " + rstart + " to " + rend);
-                if (rend - rstart < length) {break;}
-                char[] bytes = seqgen.execute(new Region(region.getGenome(), region.getChrom(), rstart,rend)).toCharArray();
-                for (WMHit hit : scanSequence(matrix,
-                                              scorecutoff,
-                                              bytes)) {
+                EncodedSequence seq = new EncodedSequence(seqgen.execute(new Region(region.getGenome(), region.getChrom(), rstart, rend)));
+                scanSequence(matrices, cutoffscores, consumers, seq, chunksize, chromid, rstart);
+            }
+        }
+    }
+
+    /* scans the windows starting at 0..windows-1 of the sequence for all the matrices.  Pieces of PIECE windows
+       are scanned in parallel with a bounded number in flight, and each piece's hits are moved to chromid and offset
+       and handed to the consumers in order. */
+    private void scanSequence(final List<CompiledWeightMatrix> matrices,
+                              final float[] cutoffscores,
+                              List<WMConsumer> consumers,
+                              final EncodedSequence seq,
+                              int windows,
+                              int chromid,
+                              int offset) {
+        synchronized(this) {
+            if (executor == null) {
+                executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "WeightMatrixScanner");
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+            }
+        }
+        windows = Math.min(windows, seq.length());
+        LinkedList<Future<List<List<WMHit>>>> inflight = new LinkedList<Future<List<List<WMHit>>>>();
+        int next = 0;
+        while (next < windows || !inflight.isEmpty()) {
+            while (next < windows && inflight.size() < 2 * threads) {
+                final int from = next;
+                final int to = Math.min(next + PIECE, windows);
+                inflight.add(executor.submit(new Callable<List<List<WMHit>>>() {
+                        public List<List<WMHit>> call() {
+                            return CompiledWeightMatrix.scanHits(matrices, cutoffscores, seq, from, to);
+                        }
+                    }));
+                next = to;
+            }
+            List<List<WMHit>> hits;
+            try {
+                hits = inflight.removeFirst().get();
+            } catch (InterruptedException ex) {
+                throw new RuntimeException(ex.toString(), ex);
+            } catch (ExecutionException ex) {
+                throw new RuntimeException(ex.getCause().toString(), ex.getCause());
+            }
+            for (int i = 0; i < hits.size(); i++) {
+                for (WMHit hit : hits.get(i)) {
                     hit.chromid = chromid;
-                    hit.start += rstart;
-                    hit.end += rstart;
-                    results.add(hit);
+                    hit.start += offset;
+                    hit.end += offset;
                 }
-                rstart = rend - length + 1;
+                consumers.get(i).consume(hits.get(i));
             }
-            consumer.consume(results);
         }
     }
 
@@ -528,58 +595,13 @@ public class WeightMatrixScanner {
     
     /* returns a list of WMHits.  Since this doesn't know the chromosome or
        scanid, it just fills those in with -1 for someone else to fix later.
+       Both strands are scored in one pass over the sequence (see CompiledWeightMatrix),
+       so the sequence is left alone and may be used by other threads.
     */
     public static List<WMHit> scanSequence(WeightMatrix matrix,
                                            float scorecutoff,
                                            char[] sequence) {
-        ArrayList<WMHit> results = new ArrayList<WMHit>();
-        float[] scoreleft = new float[matrix.matrix.length + 1];
-        scoreleft[scoreleft.length - 1] = 0;
-        for (int i = scoreleft.length - 2; i >= 0; i--) {
-            double maxval = Double.NEGATIVE_INFINITY;
-            if (matrix.matrix[i]['A'] > maxval) {
-                maxval = matrix.matrix[i]['A'];
-            }
-            if (matrix.matrix[i]['C'] > maxval) {
-                maxval = matrix.matrix[i]['C'];
-            }
-            if (matrix.matrix[i]['T'] > maxval) {
-                maxval = matrix.matrix[i]['T'];
-            }
-            if (matrix.matrix[i]['G'] > maxval) {
-                maxval = matrix.matrix[i]['G'];
-            }
-            scoreleft[i] = scoreleft[i+1] + (float)maxval;
-        }
-
-        /* scan through the sequence */
-        int length = matrix.length();
-        for (int i = 0; i < sequence.length - length; i++) {
-            float score = 0;
-            for (int j = 0; j < length && scoreleft[j] + score > scorecutoff; j++) {
-                score += matrix.matrix[j][sequence[i+j]];
-            }
-            // save the hit
-            if (score >= scorecutoff) {
-                results.add(new WMHit(-1,-1,i,i + length - 1,"+",score));
-            }
-        }
-        /* now reverse complement the sequence and scan that.
-           basically the same as before but with slightly different
-           computation of the hit coordinates */
-        SequenceUtils.reverseComplement(sequence);
-        for (int i = 0; i < sequence.length - length; i++) {
-            float score = 0;
-            for (int j = 0; j < length && scoreleft[j] + score > scorecutoff; j++) {
-                score += matrix.matrix[j][sequence[i+j]];
-            }
-            if (score >= scorecutoff) {
-                results.add(new WMHit(-1,-1,sequence.length - i - length,sequence.length - i -1,"-",score));
-            }
-        }
-        SequenceUtils.reverseComplement(sequence); // put the sequence back the way we found it
-
-        return results;
+        return (new CompiledWeightMatrix(matrix)).scanHits(new EncodedSequence(sequence), scorecutoff);
     }
 
     /* returns an array of scores that describe how well the matrix
@@ -619,9 +641,14 @@ class PrintConsumer extends WMConsumer {
     }
     
     public PrintConsumer(Genome g, WeightMatrix m, String outfile) throws FileNotFoundException {
+    	this(g, m, new PrintStream(outfile));
+    }
+    
+    /* for several matrices writing to the same file */
+    public PrintConsumer(Genome g, WeightMatrix m, PrintStream out) {
     	this.genome = g;
     	this.matrix = m;
-    	this.out = new PrintStream(outfile);
+    	this.out = out;
     	this.fileout = true;
     }
     
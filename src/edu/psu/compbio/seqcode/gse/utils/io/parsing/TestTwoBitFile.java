@@ -0,0 +1,221 @@
+package edu.psu.compbio.seqcode.gse.utils.io.parsing;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import edu.psu.compbio.seqcode.gse.utils.Pair;
+
+/**
+ * Tests for TwoBitFile.  Small .2bit fixtures are built byte by byte from the format description
+ * (version 0 with 32 bit offsets and version 1 with 64 bit offsets, in both byte orders), and
+ * FASTA files converted by TwoBitFile.main() must read back as the original sequence.
+ *
+ * Usage: TestTwoBitFile directory.  The fixtures are written to the directory.
+ */
+public class TestTwoBitFile {
+
+    private static String dir;
+
+    private static final String[] NAMES = {"chr1", "chrM", "2"};
+    /* N runs at the ends and in the middle, soft-masked runs that overlap them, IUPAC codes
+       that are stored as N, and lengths that aren't a multiple of four */
+    private static final String[] SEQS = {
+        "NNNNACGTacgtTTGGCCAANNNNNNNNgatcGATCrykATTTnnnnCCCGGGA",
+        "ACG",
+        "ttttAAAACCCCGGGGnacgtNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNN"
+    };
+
+    /* what TwoBitFile returns for each base of the input */
+    private static String expected(String seq) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < seq.length(); i++) {
+            char c = seq.charAt(i);
+            if ("ACGTacgt".indexOf(c) >= 0) {
+                sb.append(c);
+            } else {
+                sb.append(Character.isLowerCase(c) ? 'n' : 'N');
+            }
+        }
+        return sb.toString();
+    }
+
+    /* start and size of each maximal run of positions for which in is true */
+    private static List<int[]> runs(boolean[] in) {
+        List<int[]> output = new ArrayList<int[]>();
+        for (int i = 0; i < in.length; i++) {
+            if (in[i] && (i == 0 || !in[i-1])) {
+                int j = i;
+                while (j < in.length && in[j]) {
+                    j++;
+                }
+                output.add(new int[]{i, j - i});
+            }
+        }
+        return output;
+    }
+    private static void putRuns(ByteBuffer b, List<int[]> runs) {
+        b.putInt(runs.size());
+        for (int[] r : runs) {
+            b.putInt(r[0]);
+        }
+        for (int[] r : runs) {
+            b.putInt(r[1]);
+        }
+    }
+    /* a .2bit file, laid out as described at genome.ucsc.edu/FAQ/FAQformat.html#format7 */
+    private static File fixture(String fname, int version, ByteOrder order) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(1 << 16);
+        b.order(order);
+        b.putInt(TwoBitFile.SIGNATURE);
+        b.putInt(version);
+        b.putInt(NAMES.length);
+        b.putInt(0);
+        int[] offsetAt = new int[NAMES.length];
+        for (int i = 0; i < NAMES.length; i++) {
+            b.put((byte)NAMES[i].length());
+            b.put(NAMES[i].getBytes("US-ASCII"));
+            offsetAt[i] = b.position();
+            b.position(b.position() + (version == 0 ? 4 : 8));
+        }
+        for (int i = 0; i < NAMES.length; i++) {
+            if (version == 0) {
+                b.putInt(offsetAt[i], b.position());
+            } else {
+                b.putLong(offsetAt[i], b.position());
+            }
+            String seq = SEQS[i];
+            boolean[] isN = new boolean[seq.length()], isLower = new boolean[seq.length()];
+            for (int j = 0; j < seq.length(); j++) {
+                isN[j] = "ACGTacgt".indexOf(seq.charAt(j)) < 0;
+                isLower[j] = Character.isLowerCase(seq.charAt(j));
+            }
+            b.putInt(seq.length());
+            putRuns(b, runs(isN));
+            putRuns(b, runs(isLower));
+            b.putInt(0);
+            for (int j = 0; j < seq.length(); j += 4) {
+                int packed = 0;
+                for (int k = 0; k < 4; k++) {
+                    int code = j + k < seq.length() ? "TCAG".indexOf(Character.toUpperCase(seq.charAt(j + k))) : 0;
+                    packed = (packed << 2) | Math.max(code, 0);
+                }
+                b.put((byte)packed);
+            }
+        }
+        File f = new File(dir, fname);
+        FileOutputStream out = new FileOutputStream(f);
+        out.write(b.array(), 0, b.position());
+        out.close();
+        return f;
+    }
+
+    private static void check(TwoBitFile t) throws IOException {
+        assertEquals(Arrays.asList(NAMES), t.getNames());
+        for (int i = 0; i < NAMES.length; i++) {
+            String e = expected(SEQS[i]);
+            assertEquals(e.length(), t.getLength(NAMES[i]));
+            assertEquals(e, t.getSequence(NAMES[i]));
+            /* every range, 1-based and inclusive */
+            for (int start = 1; start <= e.length(); start++) {
+                for (int end = start; end <= e.length(); end++) {
+                    assertEquals(NAMES[i] + ":" + start + "-" + end, e.substring(start - 1, end), t.getSequence(NAMES[i], start, end));
+                }
+            }
+            /* clipped at the ends */
+            assertEquals(e.substring(0, 2), t.getSequence(NAMES[i], -5, 2));
+            assertEquals(e.substring(e.length() - 1), t.getSequence(NAMES[i], e.length(), e.length() + 10));
+            assertEquals("", t.getSequence(NAMES[i], e.length() + 1, e.length() + 10));
+            assertEquals(e, new String(t.getBytes(NAMES[i], 1, e.length()), "US-ASCII"));
+        }
+        /* names match with or without chr */
+        assertEquals(expected(SEQS[0]), t.getSequence("1"));
+        assertEquals(expected(SEQS[2]), t.getSequence("chr2"));
+        assertTrue(t.contains("M"));
+        assertFalse(t.contains("chrX"));
+        assertNull(t.getSequence("chrX"));
+        assertEquals(-1, t.getLength("chrX"));
+    }
+
+    @Test public void testVersion0() throws IOException {
+        for (ByteOrder order : new ByteOrder[]{ByteOrder.LITTLE_ENDIAN, ByteOrder.BIG_ENDIAN}) {
+            TwoBitFile t = new TwoBitFile(fixture("v0.2bit", 0, order));
+            check(t);
+            t.close();
+        }
+    }
+
+    @Test public void testVersion1() throws IOException {
+        for (ByteOrder order : new ByteOrder[]{ByteOrder.LITTLE_ENDIAN, ByteOrder.BIG_ENDIAN}) {
+            TwoBitFile t = new TwoBitFile(fixture("v1.2bit", 1, order));
+            check(t);
+            t.close();
+        }
+    }
+
+    @Test public void testFromFASTA() throws IOException {
+        File fasta = new File(dir, "test.fa");
+        PrintWriter pw = new PrintWriter(new FileWriter(fasta));
+        for (int i = 0; i < NAMES.length; i++) {
+            pw.println(">" + NAMES[i] + " description that is dropped");
+            /* wrapped lines, as FASTA files usually are */
+            for (int j = 0; j < SEQS[i].length(); j += 10) {
+                pw.println(SEQS[i].substring(j, Math.min(j + 10, SEQS[i].length())));
+            }
+        }
+        pw.close();
+        File twobit = new File(dir, "test.2bit");
+        TwoBitFile.main(new String[]{twobit.getPath(), fasta.getPath()});
+        TwoBitFile t = new TwoBitFile(twobit);
+        check(t);
+        FASTAStream stream = new FASTAStream(fasta);
+        while (stream.hasNext()) {
+            Pair<String,String> p = stream.next();
+            assertEquals(expected(p.cdr()), t.getSequence(p.car().split("\\s+")[0]));
+        }
+        t.close();
+        /* the written file is identical to a fixture with the same contents */
+        File fixture = fixture("expected.2bit", 0, ByteOrder.LITTLE_ENDIAN);
+        assertTrue(Arrays.equals(readAll(fixture), readAll(twobit)));
+    }
+
+    @Test public void testShared() throws IOException {
+        File f = fixture("shared.2bit", 0, ByteOrder.LITTLE_ENDIAN);
+        TwoBitFile t = TwoBitFile.get(f);
+        assertTrue(t == TwoBitFile.get(f));
+        t.close();
+        TwoBitFile u = TwoBitFile.get(f);
+        assertFalse(t == u);
+        check(u);
+        u.close();
+    }
+
+    @Test public void testNotTwoBit() throws IOException {
+        File f = new File(dir, "bad.2bit");
+        PrintWriter pw = new PrintWriter(new FileWriter(f));
+        pw.println(">chr1");
+        pw.println("ACGT");
+        pw.close();
+        try {
+            new TwoBitFile(f);
+            fail("read a FASTA file as .2bit");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    private static byte[] readAll(File f) throws IOException {
+        byte[] output = new byte[(int)f.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(f));
+        in.readFully(output);
+        in.close();
+        return output;
+    }
+
+    public static void main(String args[]) {
+        dir = args[0];
+        org.junit.runner.JUnitCore.main("edu.psu.compbio.seqcode.gse.utils.io.parsing.TestTwoBitFile");
+    }
+}
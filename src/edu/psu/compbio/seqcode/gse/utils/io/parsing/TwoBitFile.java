@@ -0,0 +1,435 @@
+package edu.psu.compbio.seqcode.gse.utils.io.parsing;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+import edu.psu.compbio.seqcode.gse.utils.Pair;
+
+/**
+ * <code>TwoBitFile</code> reads and writes genome sequence in UCSC's .2bit format: two bits
+ * per base, plus a table of N runs and a table of lower-case (soft-masked) runs for each
+ * sequence.  A mammalian genome takes well under 1GB this way rather than the ~6GB it takes
+ * as Java Strings, and files made by UCSC's faToTwoBit can be used as they are.
+ *
+ * The packed bases of each sequence are memory mapped the first time they're needed, and
+ * getBytes(), getChars() and getSequence() decode only the requested range, so nothing
+ * chromosome sized ever lands on the heap.  Reads are thread-safe.
+ *
+ * Coordinates are 1-based and inclusive, as in SequenceGenerator; ranges that run off either end
+ * of a sequence are clipped.  Sequence names are matched with or without a leading "chr".
+ *
+ * main() converts FASTA files:
+ *   java edu.psu.compbio.seqcode.gse.utils.io.parsing.TwoBitFile genome.2bit chr1.fa chr2.fa ...
+ */
+public class TwoBitFile implements edu.psu.compbio.seqcode.gse.utils.Closeable {
+
+    public static final int SIGNATURE = 0x1A412743;
+
+    private static final byte[] BASES = {'T','C','A','G'};
+    /* the four bases packed into each possible byte, first base in the high bits */
+    private static final byte[][] DECODE = new byte[256][4];
+    static {
+        for (int b = 0; b < 256; b++) {
+            for (int j = 0; j < 4; j++) {
+                DECODE[b][j] = BASES[(b >> (6 - 2 * j)) & 3];
+            }
+        }
+    }
+
+    /* files opened through get(), keyed by canonical path */
+    private static final Map<String,TwoBitFile> open = new HashMap<String,TwoBitFile>();
+
+    private static class Sequence {
+        final String name;
+        final long offset;
+        int size;
+        int[] nStarts, nSizes, maskStarts, maskSizes;
+        volatile ByteBuffer dna;
+        Sequence(String n, long o) {name = n; offset = o;}
+    }
+
+    private String label;
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    private ByteOrder order;
+    private List<String> names;
+    /* keyed by name and by name without a leading chr */
+    private Map<String,Sequence> sequences;
+
+    /**
+     * Returns a shared reader for the file, opening it if no one has yet.
+     */
+    public static TwoBitFile get(File f) throws IOException {
+        String key = f.getCanonicalPath();
+        synchronized(open) {
+            TwoBitFile t = open.get(key);
+            if (t == null || t.isClosed()) {
+                t = new TwoBitFile(f);
+                open.put(key, t);
+            }
+            return t;
+        }
+    }
+
+    public TwoBitFile(File f) throws IOException {
+        label = f.getAbsolutePath();
+        raf = new RandomAccessFile(f, "r");
+        channel = raf.getChannel();
+        try {
+            readIndex();
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    private void readIndex() throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(raf.getFD())));
+        int sig = in.readInt();
+        if (sig == SIGNATURE) {
+            order = ByteOrder.BIG_ENDIAN;
+        } else if (Integer.reverseBytes(sig) == SIGNATURE) {
+            order = ByteOrder.LITTLE_ENDIAN;
+        } else {
+            throw new IOException(label + " isn't a .2bit file");
+        }
+        int version = readInt(in);
+        if (version != 0 && version != 1) {
+            throw new IOException("Unknown .2bit version " + version + " in " + label);
+        }
+        int count = readInt(in);
+        readInt(in);
+        names = new ArrayList<String>(count);
+        sequences = new HashMap<String,Sequence>();
+        for (int i = 0; i < count; i++) {
+            byte[] name = new byte[in.readUnsignedByte()];
+            in.readFully(name);
+            long offset = version == 0 ? (readInt(in) & 0xffffffffL) : readLong(in);
+            Sequence s = new Sequence(new String(name, "US-ASCII"), offset);
+            names.add(s.name);
+            sequences.put(s.name, s);
+            String stripped = s.name.replaceFirst("^chr","");
+            if (!sequences.containsKey(stripped)) {
+                sequences.put(stripped, s);
+            }
+        }
+    }
+    private int readInt(DataInputStream in) throws IOException {
+        int i = in.readInt();
+        return order == ByteOrder.BIG_ENDIAN ? i : Integer.reverseBytes(i);
+    }
+    private long readLong(DataInputStream in) throws IOException {
+        long l = in.readLong();
+        return order == ByteOrder.BIG_ENDIAN ? l : Long.reverseBytes(l);
+    }
+    private int[] readInts(long position, int n) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(n * 4);
+        buf.order(order);
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, position + buf.position()) < 0) {
+                throw new EOFException("Truncated sequence record in " + label);
+            }
+        }
+        buf.flip();
+        int[] output = new int[n];
+        buf.asIntBuffer().get(output);
+        return output;
+    }
+
+    /* finds the sequence and reads its record and maps its bases if that hasn't happened yet */
+    private Sequence load(String name) throws IOException {
+        Sequence s = sequences.get(name);
+        if (s == null) {
+            s = sequences.get(name.replaceFirst("^chr",""));
+            if (s == null) {
+                return null;
+            }
+        }
+        if (s.dna != null) {
+            return s;
+        }
+        synchronized(s) {
+            if (s.dna == null) {
+                long pos = s.offset;
+                int[] counts = readInts(pos, 2);
+                pos += 8;
+                s.size = counts[0];
+                s.nStarts = readInts(pos, counts[1]);
+                pos += 4L * counts[1];
+                s.nSizes = readInts(pos, counts[1]);
+                pos += 4L * counts[1];
+                int masks = readInts(pos, 1)[0];
+                pos += 4;
+                s.maskStarts = readInts(pos, masks);
+                pos += 4L * masks;
+                s.maskSizes = readInts(pos, masks);
+                pos += 4L * masks + 4;
+                s.dna = channel.map(FileChannel.MapMode.READ_ONLY, pos, (s.size + 3) / 4);
+            }
+        }
+        return s;
+    }
+
+    public List<String> getNames() {return Collections.unmodifiableList(names);}
+    public boolean contains(String name) {
+        return sequences.containsKey(name) || sequences.containsKey(name.replaceFirst("^chr",""));
+    }
+    /**
+     * Length of the named sequence, or -1 if the file doesn't have it
+     */
+    public int getLength(String name) throws IOException {
+        Sequence s = load(name);
+        return s == null ? -1 : s.size;
+    }
+
+    /**
+     * Returns the bases from start to end (1-based, inclusive) of the named sequence as
+     * ASCII, or null if the file doesn't have the sequence.
+     */
+    public byte[] getBytes(String name, int start, int end) throws IOException {
+        Sequence s = load(name);
+        if (s == null) {
+            return null;
+        }
+        int from = Math.max(start, 1) - 1;
+        int to = Math.min(end, s.size);
+        if (to <= from) {
+            return new byte[0];
+        }
+        byte[] output = new byte[to - from];
+        ByteBuffer dna = s.dna;
+        int i = from, k = 0;
+        while (i < to) {
+            byte[] d = DECODE[dna.get(i >> 2) & 0xff];
+            for (int j = i & 3; j < 4 && i < to; j++, i++) {
+                output[k++] = d[j];
+            }
+        }
+        applyRuns(output, from, to, s.nStarts, s.nSizes, false);
+        applyRuns(output, from, to, s.maskStarts, s.maskSizes, true);
+        return output;
+    }
+    public char[] getChars(String name, int start, int end) throws IOException {
+        byte[] bytes = getBytes(name, start, end);
+        if (bytes == null) {
+            return null;
+        }
+        char[] output = new char[bytes.length];
+        for (int i = 0; i < bytes.length; i++) {
+            output[i] = (char)bytes[i];
+        }
+        return output;
+    }
+    public String getSequence(String name, int start, int end) throws IOException {
+        char[] chars = getChars(name, start, end);
+        return chars == null ? null : new String(chars);
+    }
+    public String getSequence(String name) throws IOException {
+        return getSequence(name, 1, Integer.MAX_VALUE);
+    }
+
+    /* overwrites output, which holds [from,to) of the sequence, with N's or lower-cases
+       it wherever the runs overlap it.  Runs are sorted and don't overlap each other */
+    private static void applyRuns(byte[] output, int from, int to, int[] starts, int[] sizes, boolean mask) {
+        int r = Arrays.binarySearch(starts, from);
+        if (r < 0) {
+            r = Math.max(-r - 2, 0);
+        }
+        for (; r < starts.length && starts[r] < to; r++) {
+            int a = Math.max(starts[r], from);
+            int b = Math.min(starts[r] + sizes[r], to);
+            for (int p = a; p < b; p++) {
+                if (mask) {
+                    output[p - from] |= 0x20;
+                } else {
+                    output[p - from] = 'N';
+                }
+            }
+        }
+    }
+
+    public void close() {
+        if (isClosed()) {return;}
+        try {
+            raf.close();
+        } catch (IOException ie) {
+            ie.printStackTrace(System.err);
+        }
+        raf = null;
+        channel = null;
+    }
+    public boolean isClosed() {
+        return raf == null;
+    }
+    public String toString() {
+        return "TwoBitFile(" + label + ")";
+    }
+
+    private static class Runs {
+        int[] starts = new int[16], sizes = new int[16];
+        int count = 0;
+        int open = -1;
+        /* call with the state of each position in turn */
+        void next(int pos, boolean in) {
+            if (in && open < 0) {
+                open = pos;
+            } else if (!in && open >= 0) {
+                if (count == starts.length) {
+                    starts = Arrays.copyOf(starts, count * 2);
+                    sizes = Arrays.copyOf(sizes, count * 2);
+                }
+                starts[count] = open;
+                sizes[count++] = pos - open;
+                open = -1;
+            }
+        }
+    }
+
+    /**
+     * Writes the sequences (pairs of name and bases, as from FASTAStream) to a .2bit file.
+     * Only the first word of each name is kept.  Anything other than ACGT is stored as N, and
+     * lower-case letters are recorded as masked.  The records are staged in a temporary file
+     * next to out, since the index at the front needs their offsets.
+     */
+    public static void write(Iterator<Pair<String,String>> seqs, File out) throws IOException {
+        File tmp = new File(out.getPath() + ".tmp");
+        List<byte[]> names = new ArrayList<byte[]>();
+        List<Long> sizes = new ArrayList<Long>();
+        DataOutputStream records = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 20));
+        try {
+            while (seqs.hasNext()) {
+                Pair<String,String> p = seqs.next();
+                byte[] name = p.car().trim().split("\\s+")[0].getBytes("US-ASCII");
+                if (name.length > 255) {
+                    throw new IOException("Sequence name is too long: " + p.car());
+                }
+                names.add(name);
+                sizes.add(writeRecord(records, p.cdr()));
+            }
+            records.close();
+
+            long indexSize = 16;
+            long total = 0;
+            for (int i = 0; i < names.size(); i++) {
+                indexSize += 1 + names.get(i).length + 4;
+                total += sizes.get(i);
+            }
+            /* version 1 has 64 bit offsets for files over 4GB */
+            int version = indexSize + 4L * names.size() + total > 0xffffffffL ? 1 : 0;
+            if (version == 1) {
+                indexSize += 4L * names.size();
+            }
+            DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(out), 1 << 20));
+            try {
+                dos.writeInt(Integer.reverseBytes(SIGNATURE));
+                dos.writeInt(Integer.reverseBytes(version));
+                dos.writeInt(Integer.reverseBytes(names.size()));
+                dos.writeInt(0);
+                long offset = indexSize;
+                for (int i = 0; i < names.size(); i++) {
+                    dos.writeByte(names.get(i).length);
+                    dos.write(names.get(i));
+                    if (version == 0) {
+                        dos.writeInt(Integer.reverseBytes((int)offset));
+                    } else {
+                        dos.writeLong(Long.reverseBytes(offset));
+                    }
+                    offset += sizes.get(i);
+                }
+                InputStream in = new BufferedInputStream(new FileInputStream(tmp));
+                try {
+                    byte[] buf = new byte[1 << 16];
+                    int n;
+                    while ((n = in.read(buf)) > 0) {
+                        dos.write(buf, 0, n);
+                    }
+                } finally {
+                    in.close();
+                }
+            } finally {
+                dos.close();
+            }
+        } finally {
+            records.close();
+            tmp.delete();
+        }
+    }
+    /* little-endian, like faToTwoBit on the usual hardware.  Returns the record's size in bytes */
+    private static long writeRecord(DataOutputStream out, String seq) throws IOException {
+        int n = seq.length();
+        Runs nruns = new Runs(), masks = new Runs();
+        byte[] packed = new byte[(n + 3) / 4];
+        for (int i = 0; i < n; i++) {
+            char c = seq.charAt(i);
+            int code;
+            switch (c) {
+            case 'T': case 't': code = 0; break;
+            case 'C': case 'c': code = 1; break;
+            case 'A': case 'a': code = 2; break;
+            case 'G': case 'g': code = 3; break;
+            default: code = -1;
+            }
+            nruns.next(i, code < 0);
+            masks.next(i, Character.isLowerCase(c));
+            if (code > 0) {
+                packed[i >> 2] |= code << (6 - 2 * (i & 3));
+            }
+        }
+        nruns.next(n, false);
+        masks.next(n, false);
+        out.writeInt(Integer.reverseBytes(n));
+        for (Runs r : new Runs[]{nruns, masks}) {
+            out.writeInt(Integer.reverseBytes(r.count));
+            for (int i = 0; i < r.count; i++) {
+                out.writeInt(Integer.reverseBytes(r.starts[i]));
+            }
+            for (int i = 0; i < r.count; i++) {
+                out.writeInt(Integer.reverseBytes(r.sizes[i]));
+            }
+        }
+        out.writeInt(0);
+        out.write(packed);
+        return 4L * (4 + 2 * nruns.count + 2 * masks.count) + packed.length;
+    }
+
+    /**
+     * TwoBitFile out.2bit in.fa [in2.fa ...]
+     */
+    public static void main(String args[]) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: TwoBitFile out.2bit in.fa [in2.fa ...]");
+            System.exit(1);
+        }
+        final List<String> inputs = new ArrayList<String>(Arrays.asList(args).subList(1, args.length));
+        Iterator<Pair<String,String>> seqs = new Iterator<Pair<String,String>>() {
+            private FASTAStream stream = null;
+            public boolean hasNext() {
+                while ((stream == null || !stream.hasNext()) && inputs.size() > 0) {
+                    if (stream != null) {
+                        stream.close();
+                    }
+                    try {
+                        stream = new FASTAStream(new File(inputs.remove(0)));
+                    } catch (IOException e) {
+                        throw new RuntimeException(e.toString(), e);
+                    }
+                }
+                return stream != null && stream.hasNext();
+            }
+            public Pair<String,String> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Pair<String,String> p = stream.next();
+                System.err.println("Packing " + p.car() + " (" + p.cdr().length() + " bp)");
+                return p;
+            }
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+        write(seqs, new File(args[0]));
+    }
+}
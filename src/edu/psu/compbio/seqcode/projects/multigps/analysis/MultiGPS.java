@@ -245,6 +245,9 @@ public class MultiGPS {
 				"\t--probshared <probability that events are shared across conditions (default=0.9)>\n" +
 				"\t--nomotifs [flag to turn off motif-finding & motif priors]\n" +
 				"\t--nomotifprior [flag to turn off motif priors only]\n" +
+				"\t--kmin <minimum k-mer length for KMAC motif-finding (default=5)>\n" +
+				"\t--kmax <maximum k-mer length for KMAC motif-finding (default=8)>\n" +
+				"\t--meme [flag to find motifs with MEME instead of KMAC]\n" +
 				"\t--memepath <path to the meme bin dir (default: meme is in $PATH)>\n" +
 				"\t--memenmotifs <number of motifs MEME should find for each condition (default=3)>\n" +
 				"\t--mememinw <minw arg for MEME (default=6)>\n"+
@@ -8,6 +8,11 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 
 import edu.psu.compbio.seqcode.gse.datasets.motifs.WeightMatrix;
 import edu.psu.compbio.seqcode.gse.datasets.seqdata.SeqLocator;
@@ -34,6 +39,7 @@ import edu.psu.compbio.seqcode.projects.multigps.hitloaders.TophatFileHitLoader;
  */
 public class ExperimentManager {
 
+	private static final long MB = 1<<20;
 	protected Config config;
 	protected Genome gen;
 	protected HashMap<String, HitLoader> loaders = new HashMap<String,HitLoader>();
@@ -80,7 +86,8 @@ public class ExperimentManager {
 			}
 		}
 		
-		//Secondly, load the samples
+		//Secondly, initialize the samples
+		List<Sample> sampleList = new ArrayList<Sample>();
 		for(ExptDescriptor e : descriptors){
 			String sampleName;
 			if(e.signal)
@@ -90,15 +97,18 @@ public class ExperimentManager {
 			if(!allSamples.containsKey(sampleName)){
 				Sample samp = new Sample(sampCount, config, sampleName, e.perBaseMaxReads);
 				allSamples.put(sampleName, samp);
+				sampleList.add(samp);
 				sampCount++;
 			}
 			for(Pair<String,String> source : e.sources){
 				String name = source.car();
 				allSamples.get(sampleName).addHitLoader(loaders.get(name));
 			}
-			if(loadReads)
-				allSamples.get(sampleName).loadHits();
 		}
+		//...and load them in parallel
+		if(loadReads)
+			loadSamples(sampleList);
+		
 		//Merge estimated genomes if necessary
 		if(gen == null){
 			List<Genome> estGenomes = new ArrayList<Genome>();
@@ -164,6 +174,60 @@ public class ExperimentManager {
 		experiments = new ExperimentSet(conditionList, replicateList);
 	}
 	
+	/**
+	 * Load the hits for all samples. 
+	 * Independent samples are loaded concurrently, and the number of concurrent I/O streams 
+	 * (across all samples and chromosomes) is limited by config.getIOThreads(). 
+	 * Each sample also holds its estimated share of a heap budget while loading, so the samples 
+	 * loaded at once fit in memory together. A sample that is too big for the budget loads on its own, 
+	 * and samples of unknown size are charged an equal share per I/O thread. 
+	 * @param samples List of Samples
+	 */
+	protected void loadSamples(List<Sample> samples){
+		long start = System.currentTimeMillis();
+		Semaphore ioPermits = new Semaphore(config.getIOThreads());
+		for(HitLoader hl : loaders.values())
+			hl.setIOLimit(ioPermits, config.getIOThreads());
+		
+		//Heap budget in MB: half of the heap that is free now
+		Runtime rt = Runtime.getRuntime();
+		final int budgetMB = (int)Math.max(1, (rt.maxMemory()-(rt.totalMemory()-rt.freeMemory()))/2/MB);
+		final Semaphore memPermits = new Semaphore(budgetMB, true);
+		
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(config.getMaxThreads(), samples.size())));
+		try{
+			List<Future<?>> futures = new ArrayList<Future<?>>();
+			for(final Sample samp : samples){
+				long est = samp.estimateLoadBytes();
+				final int needMB = est<0 ? Math.max(1, budgetMB/config.getIOThreads()) : (int)Math.min(budgetMB, Math.max(1, est/MB));
+				futures.add(pool.submit(new Runnable(){
+					public void run(){
+						memPermits.acquireUninterruptibly(needMB);
+						try{
+							samp.loadHits();
+						}finally{
+							memPermits.release(needMB);
+						}
+					}
+				}));
+			}
+			for(Future<?> f : futures)
+				f.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("ExperimentManager: interrupted while loading samples", e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException("ExperimentManager: error loading samples", e.getCause());
+		}finally{
+			pool.shutdownNow();
+		}
+		
+		//Report load timings
+		for(Sample samp : samples)
+			System.err.println("Loaded "+samp.getName()+":\t"+String.format("%.1f", samp.getHitCount())+" hits in "+String.format("%.1f", samp.getLoadTime()/1000.0)+"s");
+		System.err.println("All samples loaded in "+String.format("%.1f", (System.currentTimeMillis()-start)/1000.0)+"s");
+	}
+	
 	//Accessors
 	public ExperimentSet getExperimentSet(){return experiments;}
 	public int getNumConditions(){return experiments.getConditions().size();}
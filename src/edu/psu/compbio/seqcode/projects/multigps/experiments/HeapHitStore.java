@@ -0,0 +1,59 @@
+package edu.psu.compbio.seqcode.projects.multigps.experiments;
+
+import java.util.Arrays;
+
+import edu.psu.compbio.seqcode.projects.multigps.framework.StrandedBaseBuffer;
+
+/**
+ * HeapHitStore: hits held in primitive on-heap arrays ([chrom][strand][hit]). 
+ * Null chromosome/strand entries hold no hits. 
+ * 
+ * @author mahony
+ *
+ */
+public class HeapHitStore extends HitStore {
+
+	private int[][][] pos;
+	private float[][][] counts;
+	
+	public HeapHitStore(int[][][] pos, float[][][] counts){
+		this.pos = pos;
+		this.counts = counts;
+	}
+	
+	public int numChroms(){return pos.length;}
+	public int size(int chrID, int strand){
+		return pos[chrID][strand]==null ? 0 : pos[chrID][strand].length;
+	}
+	public int getPosition(int chrID, int strand, int k){return pos[chrID][strand][k];}
+	public float getCount(int chrID, int strand, int k){return counts[chrID][strand][k];}
+	
+	/**
+	 * Binary search directly on the position array
+	 */
+	public int firstIndex(int chrID, int strand, int start){
+		int[] p = pos[chrID][strand];
+		if(p==null || p.length==0)
+			return 0;
+		int ind = Arrays.binarySearch(p, start);
+		if(ind<0) ind = -ind - 1; //positions are distinct, so an exact match is the first hit >= start
+		return ind;
+	}
+	/**
+	 * Binary search directly on the position array
+	 */
+	public int endIndex(int chrID, int strand, int end){
+		int[] p = pos[chrID][strand];
+		if(p==null || p.length==0)
+			return 0;
+		int ind = Arrays.binarySearch(p, end);
+		return ind<0 ? -ind - 1 : ind+1;
+	}
+	/**
+	 * Bulk array copy into the buffer
+	 */
+	public void copyTo(int chrID, int strand, int from, int to, StrandedBaseBuffer buf){
+		if(to>from)
+			buf.addAll(pos[chrID][strand], counts[chrID][strand], from, to, strand==0 ? '+' : '-');
+	}
+}
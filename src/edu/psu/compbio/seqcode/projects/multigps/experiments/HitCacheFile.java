@@ -0,0 +1,216 @@
+package edu.psu.compbio.seqcode.projects.multigps.experiments;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import edu.psu.compbio.seqcode.gse.projects.readdb.FloatBP;
+import edu.psu.compbio.seqcode.gse.projects.readdb.IntBP;
+
+/**
+ * HitCacheFile: compact binary cache of a Sample's collapsed & capped hit arrays.
+ *
+ * Layout (big-endian):
+ *   int magic, int version, UTF key,
+ *   int numChroms, then per chromosome: UTF name, int length, int nPlus, int nMinus,
+ *   followed by the data section: per chromosome, per strand: int[n] positions then float[n] weights.
+ *
+ * The key describes everything the arrays depend on (input file paths, sizes & modification times, --nonunique, per-base limits, genome).
+ * A cache file whose key does not match is ignored.
+ * read() memory-maps the data section and bulk-copies each chromosome/strand segment into primitive arrays, 
+ * while map() leaves the segments mapped (off-heap) for a MappedHitStore.
+ *
+ * @author mahony
+ *
+ */
+public class HitCacheFile {
+
+	public static final int MAGIC = 0x4D475043; //"MGPC"
+	public static final int VERSION = 1;
+	private static final int WRITE_BUFFER_BYTES = 1<<20;
+
+	private File file;
+
+	//Contents (populated by read() or map())
+	private String[] chromNames;
+	private int[] chromLengths;
+	private int[][][] pos;
+	private float[][][] counts;
+	private IntBP[][] mappedPos;
+	private FloatBP[][] mappedCounts;
+
+	public HitCacheFile(File f){
+		file = f;
+	}
+
+	/**
+	 * Build the cache file for a sample in a cache directory.
+	 * File name is the sample name plus a hash of the key, so different settings do not overwrite each other.
+	 */
+	public HitCacheFile(File cacheDir, String sampleName, String key){
+		CRC32 crc = new CRC32();
+		crc.update(key.getBytes());
+		file = new File(cacheDir, sampleName.replaceAll("[^A-Za-z0-9_.-]", "_")+"_"+Long.toHexString(crc.getValue())+".hits");
+	}
+
+	//Accessors
+	public File getFile(){return file;}
+	public String[] getChromNames(){return chromNames;}
+	public int[] getChromLengths(){return chromLengths;}
+	public int[][][] getPositions(){return pos;}
+	public float[][][] getCounts(){return counts;}
+	public IntBP[][] getMappedPositions(){return mappedPos;}
+	public FloatBP[][] getMappedCounts(){return mappedCounts;}
+
+	/**
+	 * Write the arrays to the cache. Written to a temporary file first, then renamed into place.
+	 * @param key String describing the inputs
+	 * @param chroms chromosome names, indexed as in the arrays
+	 * @param lengths chromosome lengths
+	 * @param pos positions [chrom][strand][]
+	 * @param counts weights [chrom][strand][]
+	 */
+	public void write(String key, List<String> chroms, int[] lengths, int[][][] pos, float[][][] counts) throws IOException{
+		File parent = file.getAbsoluteFile().getParentFile();
+		if(parent!=null && !parent.exists())
+			parent.mkdirs();
+		File tmp = new File(file.getPath()+".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), WRITE_BUFFER_BYTES));
+		try{
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeUTF(key);
+			out.writeInt(chroms.size());
+			for(int c=0; c<chroms.size(); c++){
+				out.writeUTF(chroms.get(c));
+				out.writeInt(lengths[c]);
+				for(int j=0; j<2; j++)
+					out.writeInt(pos[c][j]==null ? 0 : pos[c][j].length);
+			}
+			byte[] buf = new byte[WRITE_BUFFER_BYTES];
+			ByteBuffer bb = ByteBuffer.wrap(buf);
+			for(int c=0; c<chroms.size(); c++){
+				for(int j=0; j<2; j++){
+					if(pos[c][j]==null)
+						continue;
+					for(int x : pos[c][j]){
+						if(!bb.hasRemaining()){ out.write(buf, 0, bb.position()); bb.clear(); }
+						bb.putInt(x);
+					}
+					for(float x : counts[c][j]){
+						if(!bb.hasRemaining()){ out.write(buf, 0, bb.position()); bb.clear(); }
+						bb.putFloat(x);
+					}
+				}
+			}
+			out.write(buf, 0, bb.position());
+		}finally{
+			out.close();
+		}
+		if(file.exists())
+			file.delete();
+		if(!tmp.renameTo(file))
+			throw new IOException("HitCacheFile: could not rename "+tmp+" to "+file);
+	}
+
+	/**
+	 * Read the cache if it exists and its key matches.
+	 * @param key String describing the inputs
+	 * @return true if the cache was loaded
+	 */
+	public boolean read(String key) throws IOException{
+		if(!file.exists())
+			return false;
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try{
+			int[][] sizes = readHeader(raf, key);
+			if(sizes==null)
+				return false;
+			int numChroms = sizes.length;
+			pos = new int[numChroms][2][];
+			counts = new float[numChroms][2][];
+			FileChannel channel = raf.getChannel();
+			long offset = raf.getFilePointer();
+			for(int c=0; c<numChroms; c++){
+				for(int j=0; j<2; j++){
+					int n = sizes[c][j];
+					pos[c][j] = new int[n];
+					counts[c][j] = new float[n];
+					if(n==0)
+						continue;
+					MappedByteBuffer mb = channel.map(FileChannel.MapMode.READ_ONLY, offset, (long)n*8);
+					mb.asIntBuffer().get(pos[c][j]);
+					mb.position(n*4);
+					mb.asFloatBuffer().get(counts[c][j]);
+					offset += (long)n*8;
+				}
+			}
+			return true;
+		}finally{
+			raf.close();
+		}
+	}
+	
+	/**
+	 * Memory-map the cache if it exists and its key matches, without copying the hits onto the heap. 
+	 * Mappings stay valid after the file is closed (and after a deleted file's directory entry is gone).
+	 * @param key String describing the inputs
+	 * @return true if the cache was mapped
+	 */
+	public boolean map(String key) throws IOException{
+		if(!file.exists())
+			return false;
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try{
+			int[][] sizes = readHeader(raf, key);
+			if(sizes==null)
+				return false;
+			int numChroms = sizes.length;
+			mappedPos = new IntBP[numChroms][2];
+			mappedCounts = new FloatBP[numChroms][2];
+			FileChannel channel = raf.getChannel();
+			long offset = raf.getFilePointer();
+			for(int c=0; c<numChroms; c++){
+				for(int j=0; j<2; j++){
+					int n = sizes[c][j];
+					if(n==0)
+						continue;
+					mappedPos[c][j] = new IntBP(channel.map(FileChannel.MapMode.READ_ONLY, offset, (long)n*4));
+					mappedCounts[c][j] = new FloatBP(channel.map(FileChannel.MapMode.READ_ONLY, offset+(long)n*4, (long)n*4));
+					offset += (long)n*8;
+				}
+			}
+			return true;
+		}finally{
+			raf.close();
+		}
+	}
+	
+	/**
+	 * Read the header, leaving the file pointer at the start of the data section.
+	 * @return hit counts [chrom][strand], or null if the file is not a cache for this key
+	 */
+	private int[][] readHeader(RandomAccessFile raf, String key) throws IOException{
+		if(raf.readInt()!=MAGIC || raf.readInt()!=VERSION || !raf.readUTF().equals(key))
+			return null;
+		int numChroms = raf.readInt();
+		chromNames = new String[numChroms];
+		chromLengths = new int[numChroms];
+		int[][] sizes = new int[numChroms][2];
+		for(int c=0; c<numChroms; c++){
+			chromNames[c] = raf.readUTF();
+			chromLengths[c] = raf.readInt();
+			sizes[c][0] = raf.readInt();
+			sizes[c][1] = raf.readInt();
+		}
+		return sizes;
+	}
+}
@@ -0,0 +1,85 @@
+package edu.psu.compbio.seqcode.projects.multigps.experiments;
+
+import edu.psu.compbio.seqcode.projects.multigps.framework.StrandedBaseBuffer;
+
+/**
+ * HitStore: read-only storage of a Sample's collapsed hit positions and weights. 
+ * 
+ * Hits are indexed by chromosome ID, strand (0 for '+', 1 for '-'), and hit index. 
+ * Within each chromosome/strand, positions are sorted and distinct, so region lookups 
+ * are binary searches over the positions.
+ * 
+ * @author mahony
+ *
+ */
+public abstract class HitStore {
+
+	/**
+	 * Number of hits stored for a chromosome/strand (0 if none)
+	 */
+	public abstract int size(int chrID, int strand);
+	/**
+	 * Position of the k-th hit of a chromosome/strand
+	 */
+	public abstract int getPosition(int chrID, int strand, int k);
+	/**
+	 * Weight of the k-th hit of a chromosome/strand
+	 */
+	public abstract float getCount(int chrID, int strand, int k);
+	
+	/**
+	 * Index of the first hit with position >= start
+	 */
+	public int firstIndex(int chrID, int strand, int start){
+		int lo=0, hi=size(chrID, strand);
+		while(lo<hi){
+			int mid = (lo+hi)>>>1;
+			if(getPosition(chrID, strand, mid) < start)
+				lo = mid+1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+	
+	/**
+	 * Index after the last hit with position <= end
+	 */
+	public int endIndex(int chrID, int strand, int end){
+		int lo=0, hi=size(chrID, strand);
+		while(lo<hi){
+			int mid = (lo+hi)>>>1;
+			if(getPosition(chrID, strand, mid) <= end)
+				lo = mid+1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+	
+	/**
+	 * Append the hits with indices [from, to) of a chromosome/strand to a buffer
+	 */
+	public void copyTo(int chrID, int strand, int from, int to, StrandedBaseBuffer buf){
+		char str = strand==0 ? '+' : '-';
+		buf.ensureCapacity(buf.size()+Math.max(0, to-from));
+		for(int k=from; k<to; k++)
+			buf.add(getPosition(chrID, strand, k), str, getCount(chrID, strand, k));
+	}
+	
+	/**
+	 * Sum of all hit weights on a strand
+	 */
+	public double getStrandedTotalCount(int strand){
+		double count=0;
+		for(int c=0; c<numChroms(); c++)
+			for(int k=0; k<size(c, strand); k++)
+				count += getCount(c, strand, k);
+		return count;
+	}
+	
+	/**
+	 * Number of chromosomes
+	 */
+	public abstract int numChroms();
+}
@@ -0,0 +1,33 @@
+package edu.psu.compbio.seqcode.projects.multigps.experiments;
+
+import edu.psu.compbio.seqcode.gse.projects.readdb.FloatBP;
+import edu.psu.compbio.seqcode.gse.projects.readdb.IntBP;
+
+/**
+ * MappedHitStore: hits held outside the Java heap in memory-mapped buffers 
+ * (the data section of a HitCacheFile), wrapped in readdb's IntBP/FloatBP. 
+ * 
+ * The OS page cache backs the buffers, so heap use does not grow with the number of samples, 
+ * and pages of rarely-queried chromosomes can be evicted under memory pressure. 
+ * Null chromosome/strand entries hold no hits. 
+ * 
+ * @author mahony
+ *
+ */
+public class MappedHitStore extends HitStore {
+
+	private IntBP[][] pos;
+	private FloatBP[][] counts;
+	
+	public MappedHitStore(IntBP[][] pos, FloatBP[][] counts){
+		this.pos = pos;
+		this.counts = counts;
+	}
+	
+	public int numChroms(){return pos.length;}
+	public int size(int chrID, int strand){
+		return pos[chrID][strand]==null ? 0 : pos[chrID][strand].size();
+	}
+	public int getPosition(int chrID, int strand, int k){return pos[chrID][strand].get(k);}
+	public float getCount(int chrID, int strand, int k){return counts[chrID][strand].get(k);}
+}
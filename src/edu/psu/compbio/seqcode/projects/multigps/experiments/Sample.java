@@ -1,5 +1,7 @@
 package edu.psu.compbio.seqcode.projects.multigps.experiments;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -11,11 +13,13 @@ import cern.jet.random.engine.DRand;
 
 import edu.psu.compbio.seqcode.gse.datasets.general.Region;
 import edu.psu.compbio.seqcode.gse.datasets.species.Genome;
+import edu.psu.compbio.seqcode.gse.projects.readdb.FloatBP;
+import edu.psu.compbio.seqcode.gse.projects.readdb.IntBP;
 import edu.psu.compbio.seqcode.gse.utils.probability.NormalDistribution;
-import edu.psu.compbio.seqcode.gse.utils.stats.StatUtil;
 import edu.psu.compbio.seqcode.projects.multigps.framework.BackgroundCollection;
 import edu.psu.compbio.seqcode.projects.multigps.framework.Config;
 import edu.psu.compbio.seqcode.projects.multigps.framework.PoissonBackgroundModel;
+import edu.psu.compbio.seqcode.projects.multigps.framework.StrandedBaseBuffer;
 import edu.psu.compbio.seqcode.projects.multigps.framework.StrandedBaseCount;
 import edu.psu.compbio.seqcode.projects.multigps.hitloaders.*;
 
@@ -39,6 +43,14 @@ import edu.psu.compbio.seqcode.projects.multigps.hitloaders.*;
  * - the second dimension corresponds to the strand. 0 for '+' (Watson), 1 for '-' (Crick). <br>
  * - the third dimension contains information for a hit (e.g. its fivePrimes or counts)
  * 
+ * Once loading is finished, region queries go through a read-only HitStore: either the primitive arrays 
+ * themselves (HeapHitStore, default), or the same layout memory-mapped outside the heap (MappedHitStore, --offheap). 
+ * Both use a binary search over the sorted positions. 
+ * 
+ * Thread safety: the hit arrays are only written during loadHits() (including per-base capping). 
+ * Once loadHits() returns, they are treated as an immutable snapshot, and all region query methods 
+ * are read-only. Queries can therefore be issued concurrently from many threads without locking.
+ * 
  * @author mahony
  *
  */
@@ -53,6 +65,7 @@ public class Sample {
 	private int numChroms;
 	protected BackgroundCollection perBaseBack=new BackgroundCollection();
 	protected float maxReadsPerBP=-1;
+	protected long loadTime=0; //Milliseconds spent in loadHits()
 	
 	/**
 	 * Five prime ends of the read hits. <br>
@@ -60,14 +73,19 @@ public class Sample {
 	 * Second dimension represents the strand. 0 for '+', 1 for '-' <br>
 	 * Third dimension contains the coordinates of the hits
 	 */
-	private int[][][] fivePrimePos=null;
+	private volatile int[][][] fivePrimePos=null;
 	/**
 	 * Sum of read hit weights that corresponds to the 5' position
 	 * First dimension represents the corresponding chromosome ID. <br>
 	 * Second dimension represents the strand. 0 for '+', 1 for '-' <br>
 	 * Third dimension contains the number of hits at corresponding start position 
 	 */
-	private float[][][] fivePrimeCounts=null;
+	private volatile float[][][] fivePrimeCounts=null;
+	/**
+	 * Read-only view of the hits used by region queries once loading is finished. 
+	 * With off-heap storage, the arrays above are released and this is the only copy of the hits.
+	 */
+	private volatile HitStore hits=null;
 	
 	private HashMap<String, Integer> chrom2ID=new HashMap<String,Integer>();
 	private HashMap<Integer,String> id2Chrom=new HashMap<Integer,String>();
@@ -93,9 +111,25 @@ public class Sample {
 	public Genome getGenome(){return(gen);}
 	public String getName(){return name;}
 	public double getHitCount(){return(totalHits);}
+	public long getLoadTime(){return loadTime;}
 	public void setGenome(Genome g){gen=g;}
 	public BackgroundCollection getPerBaseBackground(){return perBaseBack;}
 
+	/**
+	 * Rough upper bound on the heap needed to load this sample, in bytes (see HitLoader.estimateLoadBytes()). 
+	 * Returns -1 if any loader can't estimate its size.
+	 */
+	public long estimateLoadBytes(){
+		long bytes=0;
+		for(HitLoader l : loaders){
+			long b = l.estimateLoadBytes();
+			if(b<0)
+				return -1;
+			bytes+=b;
+		}
+		return bytes;
+	}
+	
 	/**
 	 * Add a HitLoader to the set
 	 * @param h HitLoader
@@ -104,51 +138,52 @@ public class Sample {
 	
 	/**
 	 * Load hits from the loaders. Store everything in the primitive arrays.
-	 * Hits from all sources are added to lists before converting to the primitive arrays 
-	 * to facilitate collecting multiple sources in a single experiment. 
+	 * Each loader streams hits into per-chromosome/strand primitive buffers. 
+	 * Buffers from multiple sources are appended to those of the first source, 
+	 * then sorted and collapsed in place and handed over to the primitive arrays. 
+	 * 
+	 * If a hit cache directory is configured, the final (collapsed & capped) arrays are reloaded from 
+	 * a matching binary cache file when one exists, and written to one otherwise.
 	 */
 	public void loadHits(){
-		//These lists are temporary stores while collecting reads from all sources
-		HashMap<String, ArrayList<Integer>[]> posList = new HashMap<String, ArrayList<Integer>[]>();
-		HashMap<String, ArrayList<Float>[]> countsList = new HashMap<String, ArrayList<Float>[]>();
+		long loadStart = System.currentTimeMillis();
 		
-		for(HitLoader currLoader : loaders){
-			//Get the reads
-			currLoader.sourceReads();
+		//Reuse the binary hit cache if one exists for exactly these inputs & settings
+		String cacheKey = getCacheKey();
+		HitCacheFile cache = cacheKey==null ? null : new HitCacheFile(config.getHitCacheDir(), name, cacheKey);
+		if(cache!=null && (config.useOffHeapHits() ? mapFromCache(cache, cacheKey) : loadFromCache(cache, cacheKey))){
+			loadTime = System.currentTimeMillis()-loadStart;
+			return;
+		}
 		
-			//Add the reads to the temporary stores
-			for(String chr: currLoader.getFivePrimePositions().keySet()){
-				if(!posList.containsKey(chr)){
-					ArrayList<Integer>[] currIArrayList = new ArrayList[2];
-					currIArrayList[0]=new ArrayList<Integer>();
-					currIArrayList[1]=new ArrayList<Integer>();
-					posList.put(chr, currIArrayList);
-				}
-				posList.get(chr)[0].addAll(currLoader.getFivePrimePositions().get(chr)[0]);
-				posList.get(chr)[1].addAll(currLoader.getFivePrimePositions().get(chr)[1]);
-			}
-			for(String chr: currLoader.getFivePrimeCounts().keySet()){
-				if(!countsList.containsKey(chr)){
-					ArrayList<Float>[] currFArrayList = new ArrayList[2];
-					currFArrayList[0]=new ArrayList<Float>();
-					currFArrayList[1]=new ArrayList<Float>();
-					countsList.put(chr, currFArrayList);
+		//Buffers collecting reads from all sources
+		HashMap<String, HitBuffer[]> buffers = new HashMap<String, HitBuffer[]>();
+		
+		for(HitLoader currLoader : loaders){
+			//Loaders can be shared between samples that are loaded concurrently, so hold the loader while using its buffers
+			synchronized(currLoader){
+				//Get the reads
+				currLoader.sourceReadsWithIOLimit();
+			
+				//Take ownership of the loader's buffers (appending if the chromosome was seen in an earlier source)
+				for(String chr: currLoader.getHitBuffers().keySet()){
+					HitBuffer[] loaded = currLoader.getHitBuffers().get(chr);
+					if(!buffers.containsKey(chr)){
+						buffers.put(chr, loaded);
+					}else{
+						buffers.get(chr)[0].addAll(loaded[0]);
+						buffers.get(chr)[1].addAll(loaded[1]);
+					}
 				}
-				countsList.get(chr)[0].addAll(currLoader.getFivePrimeCounts().get(chr)[0]);
-				countsList.get(chr)[1].addAll(currLoader.getFivePrimeCounts().get(chr)[1]);
+				
+				//Reset loader to release its references
+				currLoader.resetLoader();
 			}
-			
-			//Reset loader to free memory
-			currLoader.resetLoader();
 		}
 		
 		//Make the primitive arrays (null genome is estimated here if necessary)
-		populateArrays(posList, countsList);
-		
-		//Free memory
-		posList=null;
-		countsList=null;
-		System.gc();
+		populateArrays(buffers);
+		buffers=null;
 		
 		//Initialize a per-base background model
 		initializeBackground();
@@ -165,6 +200,187 @@ public class Sample {
 			capPerBaseCount(maxReadsPerBP);
 		}
 		initializeBackground(); //Reinitialize given updated hit count (again - just the per-base background model)
+		
+		if(cache!=null)
+			writeCache(cache, cacheKey);
+		
+		//Set up the storage used by region queries
+		if(config.useOffHeapHits())
+			moveOffHeap(cache, cacheKey);
+		else
+			hits = new HeapHitStore(fivePrimePos, fivePrimeCounts);
+		loadTime = System.currentTimeMillis()-loadStart;
+	}
+	
+	/**
+	 * Key describing everything the final hit arrays depend on: 
+	 * each loader's input (including file sizes & modification times, and --nonunique), the per-base limits, and the genome.
+	 * @return key String, or null if caching is off or any loader is not cacheable
+	 */
+	protected String getCacheKey(){
+		if(config.getHitCacheDir()==null)
+			return null;
+		StringBuilder key = new StringBuilder();
+		for(HitLoader l : loaders){
+			String lkey = l.getCacheKey();
+			if(lkey==null)
+				return null;
+			key.append(lkey).append(";");
+		}
+		key.append("perbasemax=").append(maxReadsPerBP);
+		key.append(";poissongausspb=").append(config.doPoissonGaussWinPerBaseFiltering());
+		key.append(";pblogconf=").append(config.getPerBaseLogConf());
+		key.append(";mappable=").append(config.getMappableGenomeProp());
+		key.append(";genome=").append(gen==null ? "estimated" : gen.getVersion()+":"+gen.getGenomeLength());
+		return key.toString();
+	}
+	
+	/**
+	 * Load the final hit arrays from a cache file
+	 * @return true if a matching cache was found and loaded
+	 */
+	protected boolean loadFromCache(HitCacheFile cache, String key){
+		try {
+			if(!cache.read(key))
+				return false;
+		} catch (IOException e) {
+			System.err.println("Sample "+name+": could not read hit cache "+cache.getFile()+" ("+e.getMessage()+")");
+			return false;
+		}
+		int[] cacheIDs = initChromosomesFromCache(cache);
+		int[][][] pos  = new int[numChroms][][];
+		float[][][] counts = new float[numChroms][][];
+		for(int c=0; c<cacheIDs.length; c++){
+			if(cacheIDs[c]>=0){
+				pos[cacheIDs[c]] = cache.getPositions()[c];
+				counts[cacheIDs[c]] = cache.getCounts()[c];
+			}
+		}
+		for(int c=0; c<numChroms; c++)
+			if(pos[c]==null){
+				pos[c] = new int[2][];
+				counts[c] = new float[2][];
+			}
+		fivePrimePos = pos;
+		fivePrimeCounts = counts;
+		updateTotalHits();
+		initializeBackground();
+		hits = new HeapHitStore(fivePrimePos, fivePrimeCounts);
+		System.err.println("Sample "+name+": loaded from hit cache "+cache.getFile());
+		return true;
+	}
+	
+	/**
+	 * Memory-map the final hits from a cache file, leaving them off the heap
+	 * @return true if a matching cache was found and mapped
+	 */
+	protected boolean mapFromCache(HitCacheFile cache, String key){
+		try {
+			if(!cache.map(key))
+				return false;
+		} catch (IOException e) {
+			System.err.println("Sample "+name+": could not map hit cache "+cache.getFile()+" ("+e.getMessage()+")");
+			return false;
+		}
+		useMappedStore(cache);
+		updateTotalHits();
+		initializeBackground();
+		System.err.println("Sample "+name+": mapped hit cache "+cache.getFile());
+		return true;
+	}
+	
+	/**
+	 * Replace the on-heap arrays with a memory-mapped copy. 
+	 * The hit cache file is mapped if there is one; otherwise the hits are written to a temporary file that is deleted on exit.
+	 */
+	protected void moveOffHeap(HitCacheFile cache, String key){
+		try {
+			if(cache==null || !cache.getFile().exists()){
+				key = "offheap:"+name;
+				File tmp = File.createTempFile("multigps_"+name.replaceAll("[^A-Za-z0-9_.-]", "_")+"_", ".hits", config.getHitCacheDir());
+				tmp.deleteOnExit();
+				cache = new HitCacheFile(tmp);
+				writeCache(cache, key);
+			}
+			if(!cache.map(key))
+				throw new IOException("unexpected contents in "+cache.getFile());
+		} catch (IOException e) {
+			System.err.println("Sample "+name+": could not move hits off-heap; keeping them on the heap ("+e.getMessage()+")");
+			hits = new HeapHitStore(fivePrimePos, fivePrimeCounts);
+			return;
+		}
+		chrom2ID.clear(); id2Chrom.clear();
+		useMappedStore(cache);
+	}
+	
+	/**
+	 * Point queries at the memory-mapped contents of a cache and release the on-heap arrays
+	 */
+	private void useMappedStore(HitCacheFile cache){
+		int[] cacheIDs = initChromosomesFromCache(cache);
+		IntBP[][] pos  = new IntBP[numChroms][];
+		FloatBP[][] counts = new FloatBP[numChroms][];
+		for(int c=0; c<cacheIDs.length; c++){
+			if(cacheIDs[c]>=0){
+				pos[cacheIDs[c]] = cache.getMappedPositions()[c];
+				counts[cacheIDs[c]] = cache.getMappedCounts()[c];
+			}
+		}
+		for(int c=0; c<numChroms; c++)
+			if(pos[c]==null){
+				pos[c] = new IntBP[2];
+				counts[c] = new FloatBP[2];
+			}
+		hits = new MappedHitStore(pos, counts);
+		fivePrimePos = null;
+		fivePrimeCounts = null;
+	}
+	
+	/**
+	 * Initialize the chromosome ID maps for a cache's contents (restoring an estimated genome if necessary)
+	 * @return the chromosome ID of each cached chromosome (-1 if not in the genome)
+	 */
+	private int[] initChromosomesFromCache(HitCacheFile cache){
+		String[] names = cache.getChromNames();
+		
+		//Estimated genomes are restored from the cached chromosome lengths
+		if(gen==null){
+			HashMap<String, Integer> chrLenMap = new HashMap<String, Integer>();
+			for(int c=0; c<names.length; c++)
+				chrLenMap.put(names[c], cache.getChromLengths()[c]);
+			gen = new Genome("Genome", chrLenMap);
+		}
+		
+		numChroms=0;
+		for(String chr : gen.getChromList()){
+			chrom2ID.put(chr, numChroms);
+			id2Chrom.put(numChroms, chr);
+			numChroms++;
+		}
+		int[] cacheIDs = new int[names.length];
+		for(int c=0; c<names.length; c++)
+			cacheIDs[c] = chrom2ID.containsKey(names[c]) ? chrom2ID.get(names[c]) : -1;
+		return cacheIDs;
+	}
+	
+	/**
+	 * Write the final hit arrays to a cache file
+	 */
+	protected void writeCache(HitCacheFile cache, String key){
+		List<String> chroms = new ArrayList<String>(gen.getChromList());
+		int[] lengths = new int[chroms.size()];
+		int[][][] pos  = new int[chroms.size()][][];
+		float[][][] counts = new float[chroms.size()][][];
+		for(int c=0; c<chroms.size(); c++){
+			lengths[c] = gen.getChromLength(chroms.get(c));
+			pos[c] = fivePrimePos[chrom2ID.get(chroms.get(c))];
+			counts[c] = fivePrimeCounts[chrom2ID.get(chroms.get(c))];
+		}
+		try {
+			cache.write(key, chroms, lengths, pos, counts);
+		} catch (IOException e) {
+			System.err.println("Sample "+name+": could not write hit cache "+cache.getFile()+" ("+e.getMessage()+")");
+		}
 	}
 	
 	
@@ -175,10 +391,20 @@ public class Sample {
 	 */
 	public List<StrandedBaseCount> getUnstrandedBases(Region r) {
 		List<StrandedBaseCount> bases = new ArrayList<StrandedBaseCount>();
-		bases.addAll(getStrandedBases(r,'+'));
-		bases.addAll(getStrandedBases(r,'-'));
+		getStrandedBases(r, '+', bases);
+		getStrandedBases(r, '-', bases);
 		return bases;
 	}
+	/**
+	 * Load all base counts in a region, regardless of strand, appending to a caller-supplied list.
+	 * Allows worker threads to reuse one buffer across many queries.
+	 * @param r Region
+	 * @param bases List to which StrandedBaseCounts are appended
+	 */
+	public void getUnstrandedBases(Region r, List<StrandedBaseCount> bases) {
+		getStrandedBases(r, '+', bases);
+		getStrandedBases(r, '-', bases);
+	}
 	/**
 	 * Loads hits in the region
 	 * @param r Region
@@ -186,43 +412,56 @@ public class Sample {
 	 */
 	public List<StrandedBaseCount> getStrandedBases(Region r, char strand) {
 		List<StrandedBaseCount> bases = new ArrayList<StrandedBaseCount>();
-		String chr = r.getChrom();
-		int chrID = chrom2ID.get(chr);
+		getStrandedBases(r, strand, bases);
+		return bases;
+	}
+	/**
+	 * Loads hits in the region, appending to a caller-supplied list
+	 * @param r Region
+	 * @param strand char
+	 * @param bases List to which StrandedBaseCounts are appended
+	 */
+	public void getStrandedBases(Region r, char strand, List<StrandedBaseCount> bases) {
+		HitStore store = hits;
+		int chrID = chrom2ID.get(r.getChrom());
 		int j = (strand=='+') ? 0 : 1;
-		if(fivePrimePos[chrID][j] != null){
-			int[] tempStarts = fivePrimePos[chrID][j];		
-			if(tempStarts.length != 0) {
-				int start_ind = Arrays.binarySearch(tempStarts, r.getStart());
-				int end_ind   = Arrays.binarySearch(tempStarts, r.getEnd());
-				
-				if( start_ind < 0 ) { start_ind = -start_ind - 1; }
-				if( end_ind < 0 )   { end_ind   = -end_ind - 1; }
-				
-	            while (start_ind > 0 && tempStarts[start_ind - 1] >= r.getStart() ) {
-	                start_ind--;
-	            }
-	            while (end_ind < tempStarts.length && tempStarts[end_ind] <= r.getEnd()) {
-	                end_ind++;
-	            }
-				for(int k = start_ind; k < end_ind; k++) {
-					bases.add(new StrandedBaseCount(strand, tempStarts[k], fivePrimeCounts[chrID][j][k]));
-				}	
-			}
+		int end_ind = store.endIndex(chrID, j, r.getEnd());
+		for(int k = store.firstIndex(chrID, j, r.getStart()); k < end_ind; k++) {
+			bases.add(new StrandedBaseCount(strand, store.getPosition(chrID, j, k), store.getCount(chrID, j, k)));
 		}
-		return bases;
 	}//end of getStrandedBases method
 	
+	/**
+	 * Load all base counts in a region, regardless of strand, into a reusable primitive buffer. 
+	 * '+' strand hits are appended first, then '-' strand hits, each in coordinate order. 
+	 * No objects are created per hit.
+	 * @param r Region
+	 * @param buf StrandedBaseBuffer to which hits are appended
+	 */
+	public void getUnstrandedBases(Region r, StrandedBaseBuffer buf) {
+		getStrandedBases(r, '+', buf);
+		getStrandedBases(r, '-', buf);
+	}
+	/**
+	 * Loads hits in the region into a reusable primitive buffer
+	 * @param r Region
+	 * @param strand char
+	 * @param buf StrandedBaseBuffer to which hits are appended
+	 */
+	public void getStrandedBases(Region r, char strand, StrandedBaseBuffer buf) {
+		HitStore store = hits;
+		int chrID = chrom2ID.get(r.getChrom());
+		int j = (strand=='+') ? 0 : 1;
+		store.copyTo(chrID, j, store.firstIndex(chrID, j, r.getStart()), store.endIndex(chrID, j, r.getEnd()), buf);
+	}
+	
 	/**
 	 * Sum of all hit weights in a region
 	 * @param r Region
 	 * @return float 
 	 */
 	public float countHits(Region r) {
-		float count = 0;
-		for (StrandedBaseCount b: getUnstrandedBases(r)){
-			count += b.getCount();
-		}
-		return count;
+		return countStrandedBases(r, '+') + countStrandedBases(r, '-');
 	}
 	/**
 	 * Sum of hit weights in one strand of a region
@@ -230,31 +469,16 @@ public class Sample {
 	 * @return float 
 	 */
     public float countStrandedBases(Region r, char strand) {
-		String chr = r.getChrom();
-		int chrID = chrom2ID.get(chr);
+		HitStore store = hits;
+		int chrID = chrom2ID.get(r.getChrom());
 		int j = (strand=='+') ? 0 : 1;
 		float count = 0;
-		if(fivePrimePos[chrID][j] != null){
-			int[] tempStarts = fivePrimePos[chrID][j];		
-	        if(tempStarts.length != 0) {
-				int start_ind = Arrays.binarySearch(tempStarts, r.getStart());
-				int end_ind   = Arrays.binarySearch(tempStarts, r.getEnd());
-				if( start_ind < 0 ) { start_ind = -start_ind - 1; }
-				if( end_ind < 0 )   { end_ind   = -end_ind - 1; }
-				
-	            while (start_ind > 0 && tempStarts[start_ind - 1] >= r.getStart() ) {
-	                start_ind--;
-	            }
-	            while (end_ind < tempStarts.length && tempStarts[end_ind] <= r.getEnd()) {
-	                end_ind++;
-	            }
-				for(int k = start_ind; k < end_ind; k++) {
-	                count += fivePrimeCounts[chrID][j][k];
-	            }
-	        }
+		int end_ind = store.endIndex(chrID, j, r.getEnd());
+		for(int k = store.firstIndex(chrID, j, r.getStart()); k < end_ind; k++) {
+			count += store.getCount(chrID, j, k);
 		}
-        return count;
-    }
+		return count;
+	}
 
 	/**
 	 * Gets the stranded count of all hits (of all chromosomes) for the specified strand
@@ -262,26 +486,17 @@ public class Sample {
 	 * @return
 	 */
 	protected double getStrandedTotalCount(char strand) {
-		int strandInd = strand == '+' ? 0 : 1;
-		double count = 0;
-		for(int i = 0; i < fivePrimeCounts.length; i++) {
-			if(fivePrimeCounts[i][strandInd]!=null){
-				float[] hitCountsTemp = fivePrimeCounts[i][strandInd];
-				for(float el:hitCountsTemp)
-					count += (double)el;
-			}
-		}
-		return count;
+		return hits.getStrandedTotalCount(strand == '+' ? 0 : 1);
 	}//end of getStrandedTotalCount method
 	
 	/**
-	 * Converts lists of Integers to integer arrays, deletes the lists for saving memory
-	 * Sorts array elements by position
+	 * Sorts and collapses the hit buffers in place and adopts their arrays. 
+	 * Duplicate positions are merged by summing weights. 
 	 */
-	protected void populateArrays(HashMap<String, ArrayList<Integer>[]> posList, HashMap<String, ArrayList<Float>[]> countsList) {
+	protected void populateArrays(HashMap<String, HitBuffer[]> buffers) {
 		//Estimate the genome if none was provided
 		if(gen==null){
-			gen = estimateGenome(posList);
+			gen = estimateGenome(buffers);
 		}
 		
 		//Initialize chromosome name to id maps
@@ -293,93 +508,41 @@ public class Sample {
 		}
 		
 		//Initialize the data structures
-		fivePrimePos  = new int[numChroms][2][];
-		fivePrimeCounts = new float[numChroms][2][];
+		int[][][] pos  = new int[numChroms][2][];
+		float[][][] counts = new float[numChroms][2][];
 		
-		//Copy over the data
+		//Sort, collapse duplicate positions, and hand over the arrays
 		for(String chr : gen.getChromList()){
-			if(posList.containsKey(chr)){
-				for(int j = 0; j < posList.get(chr).length; j++)
-					fivePrimePos[chrom2ID.get(chr)][j] = list2int(posList.get(chr)[j]);
-			}else{
-				fivePrimePos[chrom2ID.get(chr)][0]=null;
-				fivePrimePos[chrom2ID.get(chr)][1]=null;
-			}
-		}
-		for(String chr : gen.getChromList()){
-			if(countsList.containsKey(chr)){
-				for(int j = 0; j < countsList.get(chr).length; j++)
-					fivePrimeCounts[chrom2ID.get(chr)][j] = list2float(countsList.get(chr)[j]);
-			}else{
-				fivePrimeCounts[chrom2ID.get(chr)][0]=null;
-				fivePrimeCounts[chrom2ID.get(chr)][1]=null;
-			}
-		}
-		//Sort the arrays 
-		for(int i = 0; i < fivePrimePos.length; i++) {  // chr
-			for(int j = 0; j < fivePrimePos[i].length; j++) { // strand
-				if(fivePrimePos[i][j]!=null && fivePrimeCounts[i][j]!=null){
-					int[] inds = StatUtil.findSort(fivePrimePos[i][j]);
-					fivePrimeCounts[i][j] = StatUtil.permute(fivePrimeCounts[i][j], inds);
-				}
-			}
-		}
-		
-		//Collapse duplicate positions
-		//Testing if the finished set of positions contains duplicates
-		for(int i = 0; i < fivePrimePos.length; i++){
-			for(int j = 0; j < fivePrimePos[i].length; j++){
-				if(fivePrimePos[i][j]!=null && fivePrimePos[i][j].length>0){
-					int uniquePos=1;
-					for(int k = 0; k < fivePrimePos[i][j].length-1; k++)
-						if(fivePrimePos[i][j][k+1]!=fivePrimePos[i][j][k]){uniquePos++;}
-							
-					int[] tmpPos = new int[uniquePos];
-					float[] tmpCnt = new float[uniquePos];
-					for(int x=0; x<uniquePos; x++){tmpCnt[x]=0;}
-					int x=0;
-					tmpPos[x] = fivePrimePos[i][j][0];
-					tmpCnt[x] += fivePrimeCounts[i][j][0];
-					for(int k = 1; k < fivePrimePos[i][j].length; k++){
-						if(fivePrimePos[i][j][k]!=fivePrimePos[i][j][k-1]){x++;}
-						tmpPos[x] = fivePrimePos[i][j][k];
-						tmpCnt[x] += fivePrimeCounts[i][j][k];
-					}
-					fivePrimeCounts[i][j] = tmpCnt;
-					fivePrimePos[i][j] = tmpPos;
+			int c = chrom2ID.get(chr);
+			if(buffers.containsKey(chr)){
+				for(int j = 0; j < buffers.get(chr).length; j++){
+					HitBuffer buf = buffers.get(chr)[j];
+					buf.sortAndCollapse();
+					pos[c][j] = buf.positions();
+					counts[c][j] = buf.weights();
 				}
+			}else{
+				pos[c][0]=null; pos[c][1]=null;
+				counts[c][0]=null; counts[c][1]=null;
 			}
 		}
+		fivePrimePos = pos;
+		fivePrimeCounts = counts;
 		
 		updateTotalHits();
-		
-		//Testing if the finished set of positions contains duplicates
-		/*for(int i = 0; i < fivePrimePos.length; i++)
-			for(int j = 0; j < fivePrimePos[i].length; j++)
-				for(int k = 0; k < fivePrimePos[i][j].length-1; k++){
-					if(fivePrimePos[i][j][k+1]==fivePrimePos[i][j][k])
-						System.err.println("Duplicate position:\t"+i+"\t"+j+"\t"+k);
-					else if(fivePrimeCounts[i][j][k]>1)
-						System.err.println("Multi-position:\t"+i+"\t"+j+"\t"+fivePrimePos[i][j][k]+"\t"+fivePrimeCounts[i][j][k]);
-				}
-		*/
 	}//end of populateArrays method
 	
 	/**
-	 * Estimate a genome from the observed read positions that are collected into the list
-	 * @param posList HashMap indexed by chr containing ArrayLists of hit positions
+	 * Estimate a genome from the observed read positions that are collected into the buffers
+	 * @param buffers HashMap indexed by chr containing HitBuffers of hit positions
 	 * @return Genome
 	 */
-	protected Genome estimateGenome(HashMap<String, ArrayList<Integer>[]> posList){
+	protected Genome estimateGenome(HashMap<String, HitBuffer[]> buffers){
 		HashMap<String, Integer> chrLenMap = new HashMap<String, Integer>();
-		for(String c : posList.keySet()){
+		for(String c : buffers.keySet()){
 			int max = 0;
-			for(int j=0; j<posList.get(c).length; j++){
-				for(Integer i : posList.get(c)[j]){
-					if(i>max)
-						max=i;
-				}
-			}
+			for(int j=0; j<buffers.get(c).length; j++)
+				max = Math.max(max, buffers.get(c)[j].maxPosition());
 			chrLenMap.put(c, max);
 		}
 		Genome g =new Genome("Genome", chrLenMap);
@@ -390,6 +553,10 @@ public class Sample {
 	 * Recount hit weights
 	 */
 	protected void updateTotalHits(){
+		if(fivePrimeCounts==null){ //off-heap
+			totalHits = hits.getStrandedTotalCount(0) + hits.getStrandedTotalCount(1);
+			return;
+		}
 		totalHits = 0.0;
 		for(int i = 0; i < fivePrimeCounts.length; i++)
 			for(int j = 0; j < fivePrimeCounts[i].length; j++)
@@ -408,33 +575,10 @@ public class Sample {
 	}
 	
 	/**
-	 * Simple convertor
-	 * @param list
-	 * @return
-	 */
-	protected int[] list2int(List<Integer> list) {
-		int[] out = new int[list.size()];
-		for(int i = 0; i < out.length; i++)
-			out[i] = list.get(i);
-		return out;
-	}
-	/**
-	 * Simple convertor
-	 * @param list
-	 * @return
-	 */
-	protected float[] list2float(List<Float> list) {
-		float[] out = new float[list.size()];
-		for(int i = 0; i < out.length; i++)
-			out[i] = list.get(i);
-		return out;
-	}
-	
-	/**
-	 * Enforces a per-base weight threshold
+	 * Enforces a per-base weight threshold. Only called during loadHits().
 	 * @param maxReadperBP float threshold
 	 */
-	public void capPerBaseCount(float maxReadperBP){
+	protected void capPerBaseCount(float maxReadperBP){
 		for(int i = 0; i < fivePrimeCounts.length; i++)
 			for(int j = 0; j < fivePrimeCounts[i].length; j++)
 				if(fivePrimeCounts[i][j]!=null)
@@ -451,8 +595,9 @@ public class Sample {
 	 * Reset duplicate reads that pass Poisson threshold. 
 	 * The Poisson lambda parameter is calculated by an Gaussian average
 	 * that puts more weight for nearby bases (same chrom, same strand)
+	 * Only called during loadHits().
 	 */
-	public void capPerBaseCountWithPoissonGaussianFilter(double threshold, int width){
+	protected void capPerBaseCountWithPoissonGaussianFilter(double threshold, int width){
         double g[] = new double[width*4+1];
 		NormalDistribution gaussianDist = new NormalDistribution(0, width*width);
 		for (int i=0;i<g.length;i++)
@@ -1,7 +1,6 @@
 package edu.psu.compbio.seqcode.projects.multigps.framework;
 
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
@@ -78,35 +77,16 @@ public class BackgroundDetector {
 	public HashMap<Sample, Double> execute(){
 		Iterator<Region> testRegions = new ChromosomeGenerator().execute(config.getGenome());
 		
-		Thread[] threads = new Thread[config.getMaxThreads()];
-        ArrayList<Region> threadRegions[] = new ArrayList[config.getMaxThreads()];
-        int i = 0;
-        for (i = 0 ; i < threads.length; i++) {
-            threadRegions[i] = new ArrayList<Region>();
-        }
-        while(testRegions.hasNext()){
-        	Region r = testRegions.next(); 
-            threadRegions[(i++) % config.getMaxThreads()].add(r);
-        }
-
-        for (i = 0 ; i < threads.length; i++) {
-            Thread t = new Thread(new PotentialRegionFinderThread(threadRegions[i]));
-            t.start();
-            threads[i] = t;
-        }
-        boolean anyrunning = true;
-        while (anyrunning) {
-            anyrunning = false;
-            try {
-                Thread.sleep(5000);
-            } catch (InterruptedException e) { }
-            for (i = 0; i < threads.length; i++) {
-                if (threads[i].isAlive()) {
-                    anyrunning = true;
-                    break;
-                }
-            }
-        }
+		List<Region> chroms = new ArrayList<Region>();
+		while(testRegions.hasNext())
+			chroms.add(testRegions.next());
+		
+		RegionScheduler scheduler = new RegionScheduler(config.getMaxThreads());
+		scheduler.execute(chroms, new RegionScheduler.ReadCountCostEstimator(manager), new RegionScheduler.RegionWorkerFactory(){
+			public Runnable createWorker(Iterable<Region> regions){
+				return new PotentialRegionFinderThread(regions);
+			}
+		});
         
         //Fit the Poissons
         HashMap<Sample, Double> backProps = new HashMap<Sample, Double>();
@@ -200,12 +180,16 @@ public class BackgroundDetector {
 	}
 		
     class PotentialRegionFinderThread implements Runnable {
-        private Collection<Region> regions;
+        private Iterable<Region> regions;
         private double[][] starts=null;
         private List<Region> threadPotentials = new ArrayList<Region>();
+        //Per-thread hit buffers, indexed by sample and reused for every MAXSECTION chunk
+        private List<StrandedBaseBuffer> hits = new ArrayList<StrandedBaseBuffer>();
         
-        public PotentialRegionFinderThread(Collection<Region> r) {
+        public PotentialRegionFinderThread(Iterable<Region> r) {
             regions = r;
+            for(Sample samp : manager.getExperimentSet().getSamples())
+            	hits.add(new StrandedBaseBuffer());
         }
         
         public void run() {
@@ -226,18 +210,11 @@ public class BackgroundDetector {
                     if(y>currentRegion.getEnd()){y=currentRegion.getEnd();}
                     Region currSubRegion = new Region(gen, currentRegion.getChrom(), x, y);
                     
-                    List<List<StrandedBaseCount>> hits = new ArrayList<List<StrandedBaseCount>>();
-                    
-                    synchronized(manager){
-	                    //Initialize the read lists
-                    	for(Sample samp : manager.getExperimentSet().getSamples()){
-                    		hits.add(new ArrayList<StrandedBaseCount>());
-                    	}
-                    	//Load reads by replicate
-                    	for(Sample samp : manager.getExperimentSet().getSamples()){
-                    		if(samp!=null)
-                    			hits.get(samp.getIndex()).addAll(samp.getUnstrandedBases(currSubRegion));
-                    	}
+                    //Load reads by sample into the reusable thread buffers (Sample queries are lock-free)
+                    for(StrandedBaseBuffer b : hits){ b.clear(); }
+                    for(Sample samp : manager.getExperimentSet().getSamples()){
+                    	if(samp!=null)
+                    		samp.getUnstrandedBases(currSubRegion, hits.get(samp.getIndex()));
                     }
             		int numStrandIter = stranded ? 2 : 1;
                     for(int stranditer=1; stranditer<=numStrandIter; stranditer++){
@@ -280,20 +257,20 @@ public class BackgroundDetector {
 
 		//Makes integer array corresponding to the binned read start landscape over the current region.
         //No needlefiltering here as that is taken care of during read loading (i.e. in Sample)
-    	protected void makeStartLandscape(List<List<StrandedBaseCount>> hits, Region currReg, float binWidth, float binStep, char strand){
+    	protected void makeStartLandscape(List<StrandedBaseBuffer> hits, Region currReg, float binWidth, float binStep, char strand){
     		int numBins = (int)(currReg.getWidth()/binStep);
     		starts = new double[hits.size()][numBins+1];
     		for(Sample samp : manager.getExperimentSet().getSamples()){
     			if(samp!=null){
-	            	List<StrandedBaseCount> currHits = hits.get(samp.getIndex());
+	            	StrandedBaseBuffer currHits = hits.get(samp.getIndex());
 		    		for(int i=0; i<=numBins; i++){ starts[samp.getIndex()][i]=0; }
-		    		for(StrandedBaseCount r : currHits){
-		    			if(strand=='.' || r.getStrand()==strand){
-		    				int offset=inBounds(r.getCoordinate()-currReg.getStart(),0,currReg.getWidth());
+		    		for(int h=0; h<currHits.size(); h++){
+		    			if(strand=='.' || currHits.getStrand(h)==strand){
+		    				int offset=inBounds(currHits.getCoordinate(h)-currReg.getStart(),0,currReg.getWidth());
 		    				int binstart = inBounds((int)((double)offset/binStep)-1, 0, numBins);
 		    				int binend = inBounds((int)((double)offset/binStep), 0, numBins);
 		    				for(int b=binstart; b<=binend; b++)
-		    					starts[samp.getIndex()][b]+=r.getCount();
+		    					starts[samp.getIndex()][b]+=currHits.getCount(h);
 		    			}
 		    		}
     			}
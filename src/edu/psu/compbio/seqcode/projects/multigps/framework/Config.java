@@ -54,6 +54,9 @@ public class Config {
 	protected List<Integer> localBackgroundWindows=new ArrayList<Integer>(); 
 	protected float perBaseReadLimit = -1;
 	protected int maxThreads=8;
+	protected int ioThreads=4; //Maximum number of concurrent read-loading streams
+	protected File hitCacheDir=null; //Directory for binary Sample hit caches (null = no caching)
+	protected boolean offHeapHits=false; //Keep Sample hits in memory-mapped buffers instead of on the heap
 	protected double alphaScalingFactor = 1.0; //Scale the condition-specific alpha value by this factor
 	protected boolean multicondition_posprior=true; //Multiple condition positional prior
 	protected double prob_shared_binding=0.9; //Prior probability that binding sites are shared between conditions (Constant used to build positional priors between conditions)
@@ -89,6 +92,9 @@ public class Config {
 	protected String MEMEargs=" -dna -mod zoops -revcomp -nostatus ";
 	public int MEMEminw=6;
 	public int MEMEmaxw=18;
+	protected boolean useMEME = false; //Use MEME for motif-finding (default is in-process KMAC)
+	public int KMACkmin=5;
+	public int KMACkmax=8;
 	protected boolean runDiffTests = true; //Run differential enrichment testing
 	protected String Rpath="";
 	protected double edger_overdispersion = 0.15; //Overdispersion used by EdgeR differential enrichment tests
@@ -380,6 +386,11 @@ public class Config {
 				if(localBackgroundWindows.size()==0){localBackgroundWindows.add(10000);}
 				//Threads
 				maxThreads = Args.parseInteger(args,"threads",maxThreads);
+				ioThreads = Args.parseInteger(args,"iothreads",Math.min(ioThreads, maxThreads));
+				//Binary hit cache
+				if(ap.hasKey("hitcache"))
+					hitCacheDir = new File(Args.parseString(args, "hitcache", null));
+				offHeapHits = Args.parseFlags(args).contains("offheap");
 				//Alpha scaling factor
 				alphaScalingFactor = Args.parseDouble(args,"alphascale",alphaScalingFactor);
 				//Event Fold-change minimum
@@ -414,6 +425,11 @@ public class Config {
 					System.err.println("No genome sequence data was provided with --seq, so motif-finding and the motif prior are switched off.");
 				}
 				
+				//Motif-finder: MEME or KMAC
+				useMEME = Args.parseFlags(args).contains("meme");
+				//KMAC k-mer lengths
+				KMACkmin = Args.parseInteger(args, "kmin", KMACkmin);
+				KMACkmax = Math.max(KMACkmin, Args.parseInteger(args, "kmax", KMACkmax));
 				//MEME path
 				MEMEpath = Args.parseString(args, "memepath", MEMEpath);
 				if(!MEMEpath.equals("") && !MEMEpath.endsWith("/")){ MEMEpath= MEMEpath+"/";}
@@ -486,6 +502,9 @@ public class Config {
 	public double getMappableGenomeLength(){return mappableGenome*gen.getGenomeLength();}
 	public List<Integer> getLocalBackgroundWindows(){return localBackgroundWindows;}
 	public int getMaxThreads(){return maxThreads;}
+	public int getIOThreads(){return ioThreads;}
+	public File getHitCacheDir(){return hitCacheDir;}
+	public boolean useOffHeapHits(){return offHeapHits;}
 	public double getAlphaScalingFactor(){return alphaScalingFactor;}
 	public boolean useMultiConditionPosPrior(){return multicondition_posprior;}
 	public double getProbSharedBinding(){return prob_shared_binding;}
@@ -517,6 +536,7 @@ public class Config {
 	public String getGenomeSequencePath(){return genomeSequencePath;}
 	public boolean getFindingMotifs(){return findMotifs;}
 	public boolean useMotifPrior(){return motif_posprior;}
+	public boolean getUseMEME(){return useMEME;}
 	public String getMEMEpath(){return MEMEpath;}
 	public String getMEMEargs(){return MEMEargs;}
 	public boolean getRunDiffTests(){return runDiffTests;}
@@ -581,12 +601,15 @@ public class Config {
 				"Genome:" +
 				"\t--species <Organism;Genome>\n" +
 				"\tOR\n" +
-				"\t--geninfo <genome info file> AND --seq <fasta seq directory>\n" +
+				"\t--geninfo <genome info file> AND --seq <fasta seq directory or .2bit file>\n" +
 				"\t--d <read distribution model file>\n" +
 				"\t--r <max. model update rounds>\n" +
 				"\t--out <out name>\n" +
 				"\t--nonunique [flag to use non-unique reads]\n" +
 				"\t--threads <number of threads to use>\n" +
+				"\t--iothreads <max. number of concurrent read-loading streams (default="+Math.min(ioThreads, maxThreads)+")>\n" +
+				"\t--hitcache <directory for binary read caches; reused by later runs with the same inputs>\n" +
+				"\t--offheap [flag to keep reads in memory-mapped files instead of the Java heap (large designs)]\n" +
 				"Experiments:\n" +
 				"\t--expt <read file name> AND --format <SAM/BED/IDX/BOWTIE/NOVO/ELAND>\n" +
 				"AND/OR" +
@@ -623,6 +646,9 @@ public class Config {
 				"\t--probshared <probability that events are shared across conditions (pos prior)>\n" +
 				"\t--nomotifs [flag to turn off motif-finding & motif priors]\n" +
 				"\t--nomotifprior [flag to turn off motif priors only]\n" +
+				"\t--kmin <minimum k-mer length for KMAC motif-finding (default="+KMACkmin+")>\n" +
+				"\t--kmax <maximum k-mer length for KMAC motif-finding (default="+KMACkmax+")>\n" +
+				"\t--meme [flag to find motifs with MEME instead of KMAC]\n" +
 				"\t--memepath <path to the meme bin dir (default: meme is in $PATH)>\n" +
 				"\t--memenmotifs <number of motifs MEME should find for each condition>\n" +
 				"\t--mememinw <minw arg for MEME (default="+MEMEminw+")>\n"+
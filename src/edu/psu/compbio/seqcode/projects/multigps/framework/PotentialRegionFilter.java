@@ -4,7 +4,6 @@ import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
@@ -99,35 +98,16 @@ public class PotentialRegionFilter {
 		//TODO: check config for defined subset of regions
 		Iterator<Region> testRegions = new ChromosomeGenerator().execute(config.getGenome());
 		
-		Thread[] threads = new Thread[config.getMaxThreads()];
-        ArrayList<Region> threadRegions[] = new ArrayList[config.getMaxThreads()];
-        int i = 0;
-        for (i = 0 ; i < threads.length; i++) {
-            threadRegions[i] = new ArrayList<Region>();
-        }
-        while(testRegions.hasNext()){
-        	Region r = testRegions.next(); 
-            threadRegions[(i++) % config.getMaxThreads()].add(r);
-        }
-
-        for (i = 0 ; i < threads.length; i++) {
-            Thread t = new Thread(new PotentialRegionFinderThread(threadRegions[i]));
-            t.start();
-            threads[i] = t;
-        }
-        boolean anyrunning = true;
-        while (anyrunning) {
-            anyrunning = false;
-            try {
-                Thread.sleep(5000);
-            } catch (InterruptedException e) { }
-            for (i = 0; i < threads.length; i++) {
-                if (threads[i].isAlive()) {
-                    anyrunning = true;
-                    break;
-                }
-            }
-        }
+		List<Region> chroms = new ArrayList<Region>();
+		while(testRegions.hasNext())
+			chroms.add(testRegions.next());
+		
+		RegionScheduler scheduler = new RegionScheduler(config.getMaxThreads());
+		scheduler.execute(chroms, new RegionScheduler.ReadCountCostEstimator(manager), new RegionScheduler.RegionWorkerFactory(){
+			public Runnable createWorker(Iterable<Region> regions){
+				return new PotentialRegionFinderThread(regions);
+			}
+		});
         
 		//Initialize signal & noise counts based on potential region calls
         for(ExperimentCondition cond : manager.getExperimentSet().getConditions()){
@@ -161,13 +141,22 @@ public class PotentialRegionFilter {
     }
 	
     class PotentialRegionFinderThread implements Runnable {
-        private Collection<Region> regions;
+        private Iterable<Region> regions;
         private double[][] landscape=null;
         private double[][] starts=null;
         private List<Region> threadPotentials = new ArrayList<Region>();
+        //Per-thread hit buffers, indexed by replicate and reused for every MAXSECTION chunk
+        private List<StrandedBaseBuffer> ipHits = new ArrayList<StrandedBaseBuffer>();
+        private List<StrandedBaseBuffer> backHits = new ArrayList<StrandedBaseBuffer>();
         
-        public PotentialRegionFinderThread(Collection<Region> r) {
+        public PotentialRegionFinderThread(Iterable<Region> r) {
             regions = r;
+            for(ExperimentCondition cond : manager.getExperimentSet().getConditions()){
+            	for(ControlledExperiment rep : cond.getReplicates()){
+            		ipHits.add(new StrandedBaseBuffer());
+            		backHits.add(new StrandedBaseBuffer());
+            	}
+            }
         }
         
         public void run() {
@@ -181,24 +170,14 @@ public class PotentialRegionFilter {
                     Region currSubRegion = new Region(gen, currentRegion.getChrom(), x, y);
                     
                     List<Region> currPotRegions = new ArrayList<Region>();
-                    List<List<StrandedBaseCount>> ipHits = new ArrayList<List<StrandedBaseCount>>();
-                    List<List<StrandedBaseCount>> backHits = new ArrayList<List<StrandedBaseCount>>();
-                    
-                    synchronized(manager){
-	                    //Initialize the read lists
-                    	for(ExperimentCondition cond : manager.getExperimentSet().getConditions()){
-                    		for(ControlledExperiment rep : cond.getReplicates()){
-                    			ipHits.add(new ArrayList<StrandedBaseCount>());
-                    			backHits.add(new ArrayList<StrandedBaseCount>());
-                    		}
-                    	}
-                    	//Load reads by replicate
-                    	for(ExperimentCondition cond : manager.getExperimentSet().getConditions()){
-                    		for(ControlledExperiment rep : cond.getReplicates()){
-                    			ipHits.get(rep.getIndex()).addAll(rep.getSignal().getUnstrandedBases(currSubRegion));
-                    			if(loadControl && rep.hasControl())
-                    				backHits.get(rep.getIndex()).addAll(rep.getControl().getUnstrandedBases(currSubRegion));
-                    		}
+                    //Load reads by replicate into the reusable thread buffers (Sample queries are lock-free)
+                    for(StrandedBaseBuffer b : ipHits){ b.clear(); }
+                    for(StrandedBaseBuffer b : backHits){ b.clear(); }
+                    for(ExperimentCondition cond : manager.getExperimentSet().getConditions()){
+                    	for(ControlledExperiment rep : cond.getReplicates()){
+                    		rep.getSignal().getUnstrandedBases(currSubRegion, ipHits.get(rep.getIndex()));
+                    		if(loadControl && rep.hasControl())
+                    			rep.getControl().getUnstrandedBases(currSubRegion, backHits.get(rep.getIndex()));
                     	}
                     }
             		int numStrandIter = stranded ? 2 : 1;
@@ -283,7 +262,7 @@ public class PotentialRegionFilter {
         //Break up a long window into parts
         //For now, we just choose the break points as the bins with the lowest total signal read count around the desired length.
         //TODO: improve?
-        protected List<Region> breakWindow(Region lastPotential, List<List<StrandedBaseCount>> ipHits, int preferredWinLen, char str) {
+        protected List<Region> breakWindow(Region lastPotential, List<StrandedBaseBuffer> ipHits, int preferredWinLen, char str) {
 			List<Region> parts = new ArrayList<Region>();
 			makeHitLandscape(ipHits, lastPotential, maxBinWidth, binStep, str);
             double ipHitCounts[][] = landscape.clone();
@@ -340,7 +319,7 @@ public class PotentialRegionFilter {
 		//Makes integer arrays corresponding to the read landscape over the current region.
         //Reads are semi-extended out to bin width
         //No needlefiltering here as that is taken care of during read loading (i.e. in Sample)
-    	protected void makeHitLandscape(List<List<StrandedBaseCount>> hits, Region currReg, float binWidth, float binStep, char strand){
+    	protected void makeHitLandscape(List<StrandedBaseBuffer> hits, Region currReg, float binWidth, float binStep, char strand){
     		int numBins = (int)(currReg.getWidth()/binStep);
     		landscape = new double[hits.size()][numBins+1];
     		starts = new double[hits.size()][numBins+1];
@@ -348,17 +327,18 @@ public class PotentialRegionFilter {
 
     		for(ExperimentCondition cond : manager.getExperimentSet().getConditions()){
             	for(ControlledExperiment rep : cond.getReplicates()){
-            		List<StrandedBaseCount> currHits = hits.get(rep.getIndex());
+            		StrandedBaseBuffer currHits = hits.get(rep.getIndex());
 	    			for(int i=0; i<=numBins; i++){landscape[rep.getIndex()][i]=0; starts[rep.getIndex()][i]=0; }
-		    		for(StrandedBaseCount r : currHits){
-		    			if(strand=='.' || r.getStrand()==strand){
-		    				int offset=inBounds(r.getCoordinate()-currReg.getStart(),0,currReg.getWidth());
+		    		for(int h=0; h<currHits.size(); h++){
+		    			if(strand=='.' || currHits.getStrand(h)==strand){
+		    				float count = currHits.getCount(h);
+		    				int offset=inBounds(currHits.getCoordinate(h)-currReg.getStart(),0,currReg.getWidth());
 		    				int binoff = inBounds((int)(offset/binStep), 0, numBins);
-		    				starts[rep.getIndex()][binoff]+=r.getCount();
+		    				starts[rep.getIndex()][binoff]+=count;
 		    				int binstart = inBounds((int)((double)(offset-halfWidth)/binStep), 0, numBins);
 		    				int binend = inBounds((int)((double)(offset+halfWidth)/binStep), 0, numBins);
 		    				for(int b=binstart; b<=binend; b++)
-		    					landscape[rep.getIndex()][b]+=r.getCount();
+		    					landscape[rep.getIndex()][b]+=count;
 		    			}
 		    		}
             	}
@@ -382,18 +362,20 @@ public class PotentialRegionFilter {
     	 * @param ctrlHits
     	 * @param endCoord
     	 */
-    	protected void countReadsInRegions(List<Region> regs, List<List<StrandedBaseCount>> ipHits, List<List<StrandedBaseCount>> ctrlHits, int endCoord){
+    	protected void countReadsInRegions(List<Region> regs, List<StrandedBaseBuffer> ipHits, List<StrandedBaseBuffer> ctrlHits, int endCoord){
     		//Iterate through experiments
     		for(ExperimentCondition cond : manager.getExperimentSet().getConditions()){
         		for(ControlledExperiment rep : cond.getReplicates()){
         			double currPotWeightSig=0, currNonPotWeightSig=0, currPotWeightCtrl=0, currNonPotWeightCtrl=0;
         			//Iterate through signal hits
-        			for(StrandedBaseCount hit : ipHits.get(rep.getIndex())){
+        			StrandedBaseBuffer sigHits = ipHits.get(rep.getIndex());
+        			for(int h=0; h<sigHits.size(); h++){
+        				float hitCount = sigHits.getCount(h);
         				if(regs.size()==0)
-        					currNonPotWeightSig+=hit.getCount();
+        					currNonPotWeightSig+=hitCount;
         				else{
 	    					//Binary search for closest region start
-	        				int hpoint = hit.getCoordinate();
+	        				int hpoint = sigHits.getCoordinate(h);
 	        				if(hpoint<endCoord){ //Throw this check in for the overhang
 		        				int l = 0, r = regs.size()-1;
 		        	            while (r - l > 1) {
@@ -407,21 +389,23 @@ public class PotentialRegionFilter {
 		        	            boolean inPot = false;
 		        	            for(int x=l; x<=r; x++){
 		        	            	if(hpoint >= regs.get(x).getStart() && hpoint <= regs.get(x).getEnd()){
-		        	            		currPotWeightSig+=hit.getCount(); inPot=true; break;
+		        	            		currPotWeightSig+=hitCount; inPot=true; break;
 		        	            	}
 		        	            }
 		        	            if(!inPot)
-		        	            	currNonPotWeightSig+=hit.getCount();
+		        	            	currNonPotWeightSig+=hitCount;
 	        				}
         				}
         			}
         			//Iterate through control hits
-        			for(StrandedBaseCount hit : ctrlHits.get(rep.getIndex())){
+        			StrandedBaseBuffer backgroundHits = ctrlHits.get(rep.getIndex());
+        			for(int h=0; h<backgroundHits.size(); h++){
+        				float hitCount = backgroundHits.getCount(h);
         				if(regs.size()==0)
-        					currNonPotWeightCtrl+=hit.getCount();
+        					currNonPotWeightCtrl+=hitCount;
         				else{
 	        				//Binary search for closest region start
-	        				int hpoint = hit.getCoordinate();
+	        				int hpoint = backgroundHits.getCoordinate(h);
 	        				if(hpoint<endCoord){ //Throw this check in for the overhang
 		        				int l = 0, r = regs.size()-1;
 		        	            while (r - l > 1) {
@@ -435,11 +419,11 @@ public class PotentialRegionFilter {
 		        	            boolean inPot = false;
 		        	            for(int x=l; x<=r; x++){
 		        	            	if(hpoint >= regs.get(x).getStart() && hpoint <= regs.get(x).getEnd()){
-		        	            		currPotWeightCtrl+=hit.getCount(); inPot=true; break;
+		        	            		currPotWeightCtrl+=hitCount; inPot=true; break;
 		        	            	}
 		        	            }
 		        	            if(!inPot)
-		        	            	currNonPotWeightCtrl+=hit.getCount();
+		        	            	currNonPotWeightCtrl+=hitCount;
 	        				}
         				}
         			}
@@ -0,0 +1,166 @@
+package edu.psu.compbio.seqcode.projects.multigps.framework;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import edu.psu.compbio.seqcode.gse.datasets.general.Region;
+import edu.psu.compbio.seqcode.projects.multigps.experiments.ExperimentManager;
+import edu.psu.compbio.seqcode.projects.multigps.experiments.Sample;
+
+/**
+ * RegionScheduler: runs region-based workers over a fixed-size thread pool.
+ *
+ * Regions are ordered largest-first by an estimated cost and placed on a single shared queue.
+ * Each worker pulls its next region from the queue as soon as it finishes the last one,
+ * so dense regions no longer pile up on a few threads as they did with round-robin assignment.
+ * The caller blocks until all workers have finished (no polling).
+ *
+ * @author Shaun Mahony
+ * @version	%I%, %G%
+ */
+public class RegionScheduler {
+
+	protected int numThreads;
+
+	public RegionScheduler(int numThreads){
+		this.numThreads = Math.max(1, numThreads);
+	}
+
+	/**
+	 * Run workers over the regions.
+	 * One worker is created per pool thread; each worker iterates over the shared region queue.
+	 * @param regions Regions to process
+	 * @param estimator Cost estimator used to order regions (largest first). Can be null to keep input order.
+	 * @param factory Creates the worker Runnables
+	 */
+	public void execute(Collection<Region> regions, RegionCostEstimator estimator, RegionWorkerFactory factory){
+		RegionQueue queue = new RegionQueue(orderRegions(regions, estimator));
+		int poolSize = Math.min(numThreads, Math.max(1, regions.size()));
+
+		ExecutorService pool = Executors.newFixedThreadPool(poolSize);
+		try{
+			List<Future<?>> futures = new ArrayList<Future<?>>();
+			for(int t=0; t<poolSize; t++)
+				futures.add(pool.submit(factory.createWorker(queue)));
+			for(Future<?> f : futures){
+				try {
+					f.get();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new RuntimeException("RegionScheduler interrupted", e);
+				} catch (ExecutionException e) {
+					throw new RuntimeException("RegionScheduler worker failed", e.getCause());
+				}
+			}
+		}finally{
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * Sort regions by decreasing estimated cost. Costs are estimated once per region.
+	 */
+	protected List<Region> orderRegions(Collection<Region> regions, RegionCostEstimator estimator){
+		List<Region> ordered = new ArrayList<Region>(regions);
+		if(estimator==null)
+			return ordered;
+
+		final List<Double> costs = new ArrayList<Double>(ordered.size());
+		List<Integer> idx = new ArrayList<Integer>(ordered.size());
+		for(int i=0; i<ordered.size(); i++){
+			costs.add(estimator.cost(ordered.get(i)));
+			idx.add(i);
+		}
+		Collections.sort(idx, new Comparator<Integer>(){
+			public int compare(Integer a, Integer b) {
+				return Double.compare(costs.get(b), costs.get(a));
+			}
+		});
+		List<Region> sorted = new ArrayList<Region>(ordered.size());
+		for(Integer i : idx)
+			sorted.add(ordered.get(i));
+		return sorted;
+	}
+
+	/**
+	 * Creates a worker for a given shared region queue
+	 */
+	public interface RegionWorkerFactory {
+		public Runnable createWorker(Iterable<Region> regions);
+	}
+
+	/**
+	 * Estimates the relative cost of processing a region
+	 */
+	public interface RegionCostEstimator {
+		public double cost(Region r);
+	}
+
+	/**
+	 * ReadCountCostEstimator: cost = (total hit weight in the region across all samples) x (region width).
+	 * Hit counts are taken from the Sample arrays directly, so estimation does not allocate per-base objects.
+	 */
+	public static class ReadCountCostEstimator implements RegionCostEstimator {
+		private ExperimentManager manager;
+
+		public ReadCountCostEstimator(ExperimentManager man){
+			manager = man;
+		}
+
+		public double cost(Region r){
+			double reads=0;
+			for(Sample samp : manager.getExperimentSet().getSamples())
+				if(samp!=null)
+					reads += samp.countStrandedBases(r, '+') + samp.countStrandedBases(r, '-');
+			return (reads+1) * (double)r.getWidth();
+		}
+	}
+
+	/**
+	 * Thread-safe queue over an ordered region list.
+	 * Each call to iterator() returns a view that hands out regions not yet taken by any other iterator.
+	 */
+	protected static class RegionQueue implements Iterable<Region> {
+		private final List<Region> regions;
+		private final AtomicInteger next = new AtomicInteger(0);
+
+		public RegionQueue(List<Region> regs){
+			regions = regs;
+		}
+
+		public Iterator<Region> iterator(){
+			return new Iterator<Region>(){
+				private Region pending = null;
+
+				public boolean hasNext(){
+					if(pending==null){
+						int i = next.getAndIncrement();
+						if(i<regions.size())
+							pending = regions.get(i);
+					}
+					return pending!=null;
+				}
+				public Region next(){
+					if(!hasNext())
+						throw new NoSuchElementException();
+					Region r = pending;
+					pending = null;
+					return r;
+				}
+				public void remove(){
+					throw new UnsupportedOperationException();
+				}
+			};
+		}
+	}
+}
@@ -0,0 +1,104 @@
+package edu.psu.compbio.seqcode.projects.multigps.framework;
+
+import java.util.Arrays;
+
+/**
+ * StrandedBaseBuffer holds the same information as a list of StrandedBaseCounts 
+ * (5' coordinate, strand, and summed hit weight), but in reusable primitive arrays. 
+ * 
+ * Sample fills these buffers directly from its hit storage, so a worker thread can query 
+ * many regions with one buffer per replicate and no per-hit object allocation. 
+ * Call clear() before reusing a buffer; capacity is retained.
+ * 
+ * @author mahony
+ *
+ */
+public class StrandedBaseBuffer {
+	private static final int INITIAL_CAPACITY = 256;
+	
+	private int[] coords;
+	private float[] counts;
+	private boolean[] plusStrand;
+	private int size=0;
+	
+	public StrandedBaseBuffer(){
+		this(INITIAL_CAPACITY);
+	}
+	public StrandedBaseBuffer(int capacity){
+		capacity = Math.max(1, capacity);
+		coords = new int[capacity];
+		counts = new float[capacity];
+		plusStrand = new boolean[capacity];
+	}
+	
+	//Accessors
+	public int size(){return size;}
+	public int getCoordinate(int i){return coords[i];}
+	public float getCount(int i){return counts[i];}
+	public boolean isPlusStrand(int i){return plusStrand[i];}
+	public char getStrand(int i){return plusStrand[i] ? '+' : '-';}
+	
+	/**
+	 * Empty the buffer (keeps the allocated arrays)
+	 */
+	public void clear(){size=0;}
+	
+	/**
+	 * Append a single stranded base
+	 */
+	public void add(int coord, char strand, float count){
+		ensureCapacity(size+1);
+		coords[size]=coord;
+		plusStrand[size]= strand=='+';
+		counts[size]=count;
+		size++;
+	}
+	
+	/**
+	 * Append a run of hits on one strand. 
+	 * @param coordSrc source coordinates
+	 * @param countSrc source weights
+	 * @param from first index in the sources
+	 * @param to index after the last hit to copy
+	 * @param strand char
+	 */
+	public void addAll(int[] coordSrc, float[] countSrc, int from, int to, char strand){
+		int n = to-from;
+		if(n<=0)
+			return;
+		ensureCapacity(size+n);
+		System.arraycopy(coordSrc, from, coords, size, n);
+		System.arraycopy(countSrc, from, counts, size, n);
+		Arrays.fill(plusStrand, size, size+n, strand=='+');
+		size+=n;
+	}
+	
+	/**
+	 * Sum of all weights in the buffer
+	 */
+	public double getTotalCount(){
+		double total=0;
+		for(int i=0; i<size; i++)
+			total+=counts[i];
+		return total;
+	}
+	
+	/**
+	 * Make sure the buffer can hold at least the requested number of hits without growing.
+	 */
+	public void ensureCapacity(int minCapacity){
+		if(minCapacity<=coords.length)
+			return;
+		int newCap = Math.max(minCapacity, coords.length + (coords.length >> 1));
+		coords = Arrays.copyOf(coords, newCap);
+		counts = Arrays.copyOf(counts, newCap);
+		plusStrand = Arrays.copyOf(plusStrand, newCap);
+	}
+	
+	public String toString(){
+		StringBuilder sb = new StringBuilder();
+		for(int i=0; i<size; i++)
+			sb.append(coords[i]+" "+getStrand(i)+" "+counts[i]+"\n");
+		return sb.toString();
+	}
+}
@@ -5,8 +5,6 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 
-import edu.psu.compbio.seqcode.projects.multigps.framework.*;
-
 public class BEDFileHitLoader extends FileHitLoader {
 
 	public BEDFileHitLoader(File f, boolean nonUnique) {
@@ -15,7 +13,7 @@ public class BEDFileHitLoader extends FileHitLoader {
 	
 	/**
 	 * Get the reads from the appropriate source (implementation-specific).
-	 * Loads data to the fivePrimesList and hitsCountList
+	 * Streams data into the hit buffers
 	 */
 	public void sourceReads() {
 		this.initialize();
@@ -23,22 +21,12 @@ public class BEDFileHitLoader extends FileHitLoader {
 			totalHits=0;
 			BufferedReader reader = new BufferedReader(new FileReader(file));
 			String line;
-			float currReadHitCount=0;
-			Read currRead=null;
 	        while ((line = reader.readLine()) != null) {
 	        	line = line.trim();
 	        	if(line.charAt(0)!='#'){
 		            String[] words = line.split("\\s+");
 		            String chr="."; char strand = '.';
 		            int start=0, end=0;
-		           
-		            if(currRead!=null){
-		            	currRead.setNumHits(currReadHitCount);
-	            		//Add the hits to the data structure
-	            		addHits(currRead);
-	           			currRead=null;
-	           		}
-	            	currReadHitCount=1;            			
 	            	try{
             			chr = words[0];
             			String[] tmp = chr.split("\\.");
@@ -48,22 +36,16 @@ public class BEDFileHitLoader extends FileHitLoader {
 	//BED format is half open - The chromEnd base is not included  
 	// For example, the first 100 bases of a chromosome are defined as chromStart=0, chromEnd=100, and span the bases numbered 0-99.
     //BED format is also 0-based, and we want 1-based
-	            		start = new Integer(words[1]).intValue()+1;
-	            		end = new Integer(words[2]).intValue();
+	            		start = Integer.parseInt(words[1])+1;
+	            		end = Integer.parseInt(words[2]);
 	           			strand = words[5].charAt(0);
-	    				ReadHit currHit = new ReadHit(chr, start, end, strand);
-	    				currRead = new Read();
-	    				currRead.addHit(currHit);
+	           			//Each BED line is a single hit with unit weight
+	           			addHit(chr, strand, strand=='+' ? start : end, 1);
 	            	} catch (NumberFormatException e){
 	            		// skip reading this line for header or comment lines
 	           		}
 	    		}
             }
-	        if(currRead!=null){
-    			currRead.setNumHits(currReadHitCount);
-    			//Add the hits to the data structure
-    			addHits(currRead);
-    		}
 	        reader.close();
 		}
 		catch (IOException e) {
@@ -1,6 +1,7 @@
 package edu.psu.compbio.seqcode.projects.multigps.hitloaders;
 
 import java.io.File;
+import java.io.IOException;
 
 /**
  * FileHitLoader: Loads reads from a collection of files. 
@@ -14,6 +15,7 @@ public abstract class FileHitLoader extends HitLoader{
 
 	protected File file;
 	protected boolean useNonUnique=true;
+	protected String cacheKey=null;
 		
 	/**
 	 * Constructor
@@ -28,6 +30,33 @@ public abstract class FileHitLoader extends HitLoader{
 		this.useNonUnique=useNonUnique;
 	}
 	
+	/**
+	 * Cache key: format, canonical file path, file size & modification time, and the --nonunique setting. 
+	 * The input is identified by its metadata rather than a checksum, so checking the cache doesn't read the whole file. 
+	 * Loaders can be shared by samples that are loaded concurrently, hence synchronized. 
+	 * Returns null (no caching for this sample) if the file can't be resolved.
+	 */
+	public synchronized String getCacheKey(){
+		if(cacheKey==null){
+			try {
+				cacheKey = getClass().getSimpleName()+":"+file.getCanonicalPath()+":size="+file.length()+":mtime="+file.lastModified()+":nonunique="+useNonUnique;
+			} catch (IOException e) {
+				System.err.println("FileHitLoader: could not resolve "+file+" ("+e.getMessage()+"); hit caching is off for this input");
+				return null;
+			}
+		}
+		return cacheKey;
+	}
+	
+	/**
+	 * Each hit is buffered as a position and a weight (8 bytes, plus growth slack), 
+	 * which is no more than an alignment record takes in any of the supported formats (including BAM), 
+	 * so the file size is used as the estimate.
+	 */
+	public long estimateLoadBytes(){
+		return file.length();
+	}
+	
 	/**
 	 * No cleanup for file loaders
 	 */
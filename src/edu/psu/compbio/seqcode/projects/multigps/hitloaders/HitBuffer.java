@@ -0,0 +1,197 @@
+package edu.psu.compbio.seqcode.projects.multigps.hitloaders;
+
+import java.util.Arrays;
+
+/**
+ * HitBuffer: a growable pair of primitive arrays holding five-prime positions and weights
+ * for a single chromosome/strand.
+ *
+ * HitLoaders stream hits into a HitBuffer one at a time. Once loading is finished,
+ * sortAndCollapse() sorts the positions (carrying the weights along) and sums the weights of
+ * duplicate positions, all within the buffer's own arrays.
+ * A full buffer is also collapsed before it grows, and only grows if that doesn't free enough room, 
+ * so while loading a buffer holds about one entry per distinct position rather than one per read.
+ * The trimmed arrays can then be handed to a Sample without any further copying of boxed values.
+ *
+ * @author mahony
+ *
+ */
+public class HitBuffer {
+
+	private static final int INITIAL_CAPACITY = 1024;
+	private static final int INSERTION_SORT_THRESHOLD = 16;
+	private static final int MIN_COLLAPSE_SIZE = 1<<16; //Smaller buffers just grow
+
+	private int[] pos;
+	private float[] weights;
+	private int size=0;
+	private boolean collapsed=true;
+
+	public HitBuffer(){
+		this(INITIAL_CAPACITY);
+	}
+	public HitBuffer(int capacity){
+		pos = new int[Math.max(1, capacity)];
+		weights = new float[Math.max(1, capacity)];
+	}
+
+	//Accessors
+	public int size(){return size;}
+	public int getPosition(int i){return pos[i];}
+	public float getWeight(int i){return weights[i];}
+
+	/**
+	 * Append a single hit
+	 * @param p five-prime position
+	 * @param w weight
+	 */
+	public void add(int p, float w){
+		if(size==pos.length)
+			makeRoom(size+1);
+		if(size>0 && p<=pos[size-1])
+			collapsed=false;
+		pos[size]=p;
+		weights[size]=w;
+		size++;
+	}
+
+	/**
+	 * Append all hits from another buffer
+	 * @param other HitBuffer
+	 */
+	public void addAll(HitBuffer other){
+		if(other.size==0)
+			return;
+		if(size+other.size > pos.length)
+			makeRoom(size+other.size);
+		if(!other.collapsed || (size>0 && other.pos[0]<=pos[size-1]))
+			collapsed=false;
+		System.arraycopy(other.pos, 0, pos, size, other.size);
+		System.arraycopy(other.weights, 0, weights, size, other.size);
+		size+=other.size;
+	}
+
+	/**
+	 * Largest position in the buffer (0 if empty)
+	 */
+	public int maxPosition(){
+		int max=0;
+		for(int i=0; i<size; i++)
+			if(pos[i]>max)
+				max=pos[i];
+		return max;
+	}
+
+	/**
+	 * Sort hits by position and merge duplicate positions by summing their weights.
+	 * Operates in place; the buffer is left holding one entry per distinct position.
+	 */
+	public void sortAndCollapse(){
+		if(collapsed)
+			return;
+		if(!isSorted())
+			sort(0, size-1);
+		int x=0;
+		for(int k=1; k<size; k++){
+			if(pos[k]==pos[x]){
+				weights[x]+=weights[k];
+			}else{
+				x++;
+				pos[x]=pos[k];
+				weights[x]=weights[k];
+			}
+		}
+		size = size==0 ? 0 : x+1;
+		collapsed=true;
+	}
+
+	/**
+	 * Positions trimmed to the current size. Call sortAndCollapse() first if sorted distinct positions are required.
+	 * The buffer's own array is returned if it is already the correct length.
+	 */
+	public int[] positions(){
+		if(pos.length!=size)
+			pos = Arrays.copyOf(pos, size);
+		return pos;
+	}
+	/**
+	 * Weights trimmed to the current size, aligned with positions()
+	 */
+	public float[] weights(){
+		if(weights.length!=size)
+			weights = Arrays.copyOf(weights, size);
+		return weights;
+	}
+
+	/**
+	 * Collapse the hits so far if that leaves a quarter of the buffer free (and at least minCapacity), otherwise grow. 
+	 * Growing by half whenever a collapse frees too little keeps the total sorting cost at O(n log n).
+	 */
+	private void makeRoom(int minCapacity){
+		if(!collapsed && size>=MIN_COLLAPSE_SIZE){
+			sortAndCollapse();
+			if(minCapacity <= pos.length && size <= pos.length-(pos.length>>2))
+				return;
+		}
+		grow(minCapacity);
+	}
+
+	private void grow(int minCapacity){
+		int newCap = Math.max(minCapacity, pos.length + (pos.length >> 1));
+		pos = Arrays.copyOf(pos, newCap);
+		weights = Arrays.copyOf(weights, newCap);
+	}
+
+	private boolean isSorted(){
+		for(int i=1; i<size; i++)
+			if(pos[i]<pos[i-1])
+				return false;
+		return true;
+	}
+
+	/**
+	 * Quicksort on positions (median-of-three pivot), swapping weights alongside.
+	 * Recurses on the smaller partition to bound the stack depth.
+	 */
+	private void sort(int lo, int hi){
+		while(hi-lo > INSERTION_SORT_THRESHOLD){
+			int mid = (lo+hi)>>>1;
+			if(pos[mid]<pos[lo]) swap(mid, lo);
+			if(pos[hi]<pos[lo]) swap(hi, lo);
+			if(pos[hi]<pos[mid]) swap(hi, mid);
+			int pivot = pos[mid];
+			int i=lo, j=hi;
+			while(i<=j){
+				while(pos[i]<pivot) i++;
+				while(pos[j]>pivot) j--;
+				if(i<=j){
+					swap(i, j);
+					i++; j--;
+				}
+			}
+			if(j-lo < hi-i){
+				sort(lo, j);
+				lo=i;
+			}else{
+				sort(i, hi);
+				hi=j;
+			}
+		}
+		for(int i=lo+1; i<=hi; i++){
+			int p = pos[i]; float w = weights[i];
+			int j=i-1;
+			while(j>=lo && pos[j]>p){
+				pos[j+1]=pos[j];
+				weights[j+1]=weights[j];
+				j--;
+			}
+			pos[j+1]=p;
+			weights[j+1]=w;
+		}
+	}
+
+	private void swap(int a, int b){
+		int tp=pos[a]; pos[a]=pos[b]; pos[b]=tp;
+		float tw=weights[a]; weights[a]=weights[b]; weights[b]=tw;
+	}
+}
@@ -1,22 +1,19 @@
 package edu.psu.compbio.seqcode.projects.multigps.hitloaders;
 
-import java.util.ArrayList;
-import java.util.Collection;
 import java.util.HashMap;
+import java.util.concurrent.Semaphore;
 
 import edu.psu.compbio.seqcode.projects.multigps.framework.Read;
 import edu.psu.compbio.seqcode.projects.multigps.framework.ReadHit;
 
 /**
  * HitLoaders load alignment hits from various sources, including ReadDB and various files.
- * Five-prime positions and associated weight sums are loaded into ArrayLists. 
+ * Five-prime positions and associated weight sums are streamed into primitive HitBuffers. 
  * Where/how those hits are sourced is implementation-specific. 
  * This class combines functionality from ReadLoaders, AlignmentFileReaders, and ReadCache in the old setup.  
  * 
- * Five prime positions and weights are loaded into two collections of ArrayLists, where the collections are indexed by chromosome name. 
- * Within each chromosome's set, a 2D array of ArrayLists collects data for each strand.
- * However, the ArrayLists are temporary -- once a Sample loads the hits into primitive arrays, the ArrayLists are reset and the 
- * garbage collector is called. 
+ * Hits are collected in a map of HitBuffers indexed by chromosome name, with one buffer per strand.
+ * Once a Sample has taken ownership of the buffers, the loader is reset. 
  * 
  * @author shaun
  *
@@ -25,17 +22,19 @@ public abstract class HitLoader {
 
 	protected double totalHits; //totalHits is the sum of alignment weights
 	/**
-	 * Five prime ends of the read hits. <br>
+	 * Five prime ends of the read hits and their weights. <br>
 	 * HashMap is indexed by chromosome name. <br>
-	 * Dimension in the array of ArrayLists represents the strand. 0 for '+', 1 for '-' 
+	 * Dimension in the array of HitBuffers represents the strand. 0 for '+', 1 for '-' 
 	 */
-	private HashMap<String, ArrayList<Integer>[]> fivePrimePosList = null;
+	private HashMap<String, HitBuffer[]> hitBuffers = null;
 	/**
-	 * Sum of read hit weights that corresponds to the 5' position
-	 * HashMap is indexed by chromosome name. <br>
-	 * Dimension in the array of ArrayLists represents the strand. 0 for '+', 1 for '-' 
+	 * Shared limit on the number of concurrent I/O streams across all loaders (null = unlimited)
+	 */
+	protected Semaphore ioPermits = null;
+	/**
+	 * Maximum number of threads used to source chromosomes in parallel (where the format allows it)
 	 */
-	private HashMap<String, ArrayList<Float>[]> fivePrimeCountsList = null;
+	protected int ioThreads = 1;
 		
 	/**
 	 * Constructor
@@ -47,80 +46,139 @@ public abstract class HitLoader {
 
 //Accessors
 	public double getHitCount(){return(totalHits);}
-	public HashMap<String, ArrayList<Integer>[]> getFivePrimePositions(){return fivePrimePosList;}
-	public HashMap<String, ArrayList<Float>[]> getFivePrimeCounts(){return fivePrimeCountsList;}
+	public HashMap<String, HitBuffer[]> getHitBuffers(){return hitBuffers;}
+	
+	/**
+	 * Set the I/O concurrency limit
+	 * @param permits Semaphore shared by all loaders; one permit is held per open stream
+	 * @param threads maximum number of chromosomes sourced in parallel by this loader
+	 */
+	public void setIOLimit(Semaphore permits, int threads){
+		ioPermits = permits;
+		ioThreads = Math.max(1, threads);
+	}
+	
+	/**
+	 * Returns true if this loader sources chromosomes in parallel (and therefore manages its own I/O permits).
+	 * Default: false
+	 */
+	public boolean sourcesChromosomesInParallel(){return false;}
+	
+	/**
+	 * Rough upper bound on the heap needed to source this loader's hits, in bytes. 
+	 * Used to limit how many samples are loaded at once. Returns -1 if unknown (default).
+	 */
+	public long estimateLoadBytes(){return -1;}
+	
+	/**
+	 * String identifying the exact input of this loader, used as part of a Sample's hit cache key. 
+	 * Returns null if the source cannot be cached (default). 
+	 */
+	public String getCacheKey(){return null;}
 	
 //Abstract methods
 	/**
 	 * Get the reads from the appropriate source (implementation-specific).
-	 * Loads data to the fivePrimesList and hitsCountList
+	 * Streams data into the hit buffers
 	 */
 	public abstract void sourceReads();
 
 	
 //Shared methods
 	/**
-	 * Initialize the genome and data structures. Source hits for the lists
+	 * Initialize the data structures. Source hits for the buffers
 	 */
 	public void initialize(){
 		resetLoader();
-		
-		fivePrimePosList = new HashMap<String, ArrayList<Integer>[]>();
-		fivePrimeCountsList = new HashMap<String, ArrayList<Float>[]>();
+		hitBuffers = new HashMap<String, HitBuffer[]>();
 	}
 	
 	/**
-	 * Reset the loaders -- destroy the lists and call the garbage collector
+	 * Source the reads while respecting the I/O concurrency limit.
+	 * Loaders that source chromosomes in parallel acquire permits per chromosome instead. 
+	 */
+	public void sourceReadsWithIOLimit(){
+		if(sourcesChromosomesInParallel()){
+			sourceReads();
+		}else{
+			acquireIO();
+			try{
+				sourceReads();
+			}finally{
+				releaseIO();
+			}
+		}
+	}
+	
+	protected void acquireIO(){
+		if(ioPermits!=null)
+			ioPermits.acquireUninterruptibly();
+	}
+	protected void releaseIO(){
+		if(ioPermits!=null)
+			ioPermits.release();
+	}
+	
+	/**
+	 * Reset the loader -- release the buffers
 	 */
 	public void resetLoader(){
-		fivePrimePosList=null;
-		fivePrimeCountsList=null; 
-		System.gc();
+		hitBuffers=null;
 	}
 	
 	/**
-	 * 	Add hits to the list data structures.
-	 * 	It may be called multiple times to retrieve all the data, then populateArrays() is called 
-	 */
-	protected void addHits(String chrom, char strand, Collection<Integer> coords, Collection<Float> counts){
-		int strandInd = strand == '+' ? 0 : 1;
-		if(!fivePrimePosList.containsKey(chrom))
-			addChr(chrom);
-		fivePrimePosList.get(chrom)[strandInd].addAll(coords);
-		fivePrimeCountsList.get(chrom)[strandInd].addAll(counts);
-		for (float c: counts)
-			totalHits += c;
-	}//end of addHits method
+	 * Add a single hit to the buffers. Weight is added to the total hit count. 
+	 * @param chrom String
+	 * @param strand char
+	 * @param fivePrime int
+	 * @param weight float
+	 */
+	protected void addHit(String chrom, char strand, int fivePrime, float weight){
+		getBuffer(chrom, strand).add(fivePrime, weight);
+		totalHits += weight;
+	}
 	
 	/**
-	 * Add hits to the list data structures from a Read
+	 * Add hits to the buffers from a Read
 	 * @param r Read
 	 */
 	protected void addHits(Read r){
 		for(ReadHit h : r.getHits()){
 			char strand = h.getStrand();
-			int strandInd = strand == '+' ? 0 : 1;
-			if(!fivePrimePosList.containsKey(h.getChrom()))
-				addChr(h.getChrom());
-			fivePrimePosList.get(h.getChrom())[strandInd].add(strand == '+' ?h.getStart():h.getEnd());
-			fivePrimeCountsList.get(h.getChrom())[strandInd].add(h.getWeight());
+			getBuffer(h.getChrom(), strand).add(strand == '+' ?h.getStart():h.getEnd(), h.getWeight());
 			totalHits++;
 		}
 	}//end of addHits method
 		
 	/**
-	 * Add a chromosome to the hit lists
+	 * Merge per-chromosome buffers filled by a worker thread into the loader's buffers.
+	 * @param chrom String
+	 * @param bufs HitBuffers indexed by strand
+	 */
+	protected synchronized void addBuffers(String chrom, HitBuffer[] bufs){
+		for(int j=0; j<bufs.length; j++)
+			for(int i=0; i<bufs[j].size(); i++)
+				totalHits += bufs[j].getWeight(i);
+		if(!hitBuffers.containsKey(chrom)){
+			hitBuffers.put(chrom, bufs);
+		}else{
+			hitBuffers.get(chrom)[0].addAll(bufs[0]);
+			hitBuffers.get(chrom)[1].addAll(bufs[1]);
+		}
+	}
+	
+	/**
+	 * Get the buffer for a chromosome & strand, adding the chromosome if necessary
 	 * @param chr String
+	 * @param strand char
 	 */
-	protected void addChr(String chr){
-		ArrayList<Integer>[] currIArrayList = new ArrayList[2];
-		currIArrayList[0]=new ArrayList<Integer>();
-		currIArrayList[1]=new ArrayList<Integer>();
-		fivePrimePosList.put(chr, currIArrayList);
-		ArrayList<Float>[] currFArrayList = new ArrayList[2];
-		currFArrayList[0]=new ArrayList<Float>();
-		currFArrayList[1]=new ArrayList<Float>();
-		fivePrimeCountsList.put(chr, currFArrayList);
+	protected HitBuffer getBuffer(String chr, char strand){
+		HitBuffer[] bufs = hitBuffers.get(chr);
+		if(bufs==null){
+			bufs = new HitBuffer[]{new HitBuffer(), new HitBuffer()};
+			hitBuffers.put(chr, bufs);
+		}
+		return bufs[strand == '+' ? 0 : 1];
 	}
 	
 	/**
@@ -6,6 +6,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 
@@ -17,7 +18,7 @@ import edu.psu.compbio.seqcode.gse.datasets.seqdata.SeqLocator;
 import edu.psu.compbio.seqcode.gse.datasets.species.Genome;
 import edu.psu.compbio.seqcode.gse.projects.readdb.*;
 import edu.psu.compbio.seqcode.gse.utils.NotFoundException;
-import edu.psu.compbio.seqcode.gse.utils.Pair;
+import edu.psu.compbio.seqcode.projects.multigps.framework.RegionScheduler;
 
 /**
  * ReadDBHitLoader: load read alignment five primes from a collection of ReadDB alignments (ChipSeqLocators)
@@ -27,7 +28,6 @@ import edu.psu.compbio.seqcode.gse.utils.Pair;
 public class ReadDBHitLoader extends HitLoader{
 	
 	private Genome gen=null;
-	private Client client=null; //ReadDB client
 	private List<SeqLocator> exptLocs;
 	private List<String> exptNames =new ArrayList<String>();
 	private List<SeqAlignment> aligns = new ArrayList<SeqAlignment>();
@@ -123,86 +123,135 @@ public class ReadDBHitLoader extends HitLoader{
 	}
 
 	/**
-	 * Load the five primes from ReadDB
+	 * Load the five primes from ReadDB.
+	 * Chromosomes are sourced in parallel (up to the loader's I/O thread limit), the workers sharing the default ReadDB client pool.
+	 * If any chromosome fails to load, a RuntimeException is thrown once the workers have stopped, 
+	 * so that a sample is never analyzed with chromosomes missing.
 	 */
 	public void sourceReads(){
 		this.initialize();
-		try {
-			//Start a new ReadDB client
-			if(client==null)
-				client = new Client();
-			
-			//Find the available chromosomes for each alignment
-			HashMap<SeqAlignment, Set<Integer>> availChroms = new HashMap<SeqAlignment, Set<Integer>>();
-			for(SeqAlignment alignment : aligns) {
-				availChroms.put(alignment, client.getChroms(Integer.toString(alignment.getDBID()), false, null));
+		List<Region> chroms = new ArrayList<Region>();
+		for (String chrom: gen.getChromList())
+			chroms.add(new Region(gen, chrom, 1, gen.getChromLength(chrom)));
+		
+		RegionScheduler scheduler = new RegionScheduler(ioThreads);
+		scheduler.execute(chroms, new RegionScheduler.RegionCostEstimator(){
+			public double cost(Region r){return r.getWidth();}
+		}, new RegionScheduler.RegionWorkerFactory(){
+			public Runnable createWorker(Iterable<Region> regions){
+				return new ChromosomeLoaderThread(regions);
 			}
-			
-			//Iterate over each chromosome
-			for (String chrom: gen.getChromList()){
-				// load  data for this chromosome.
-				int length = gen.getChromLength(chrom);
-				Region wholeChrom = new Region(gen, chrom, 1, length);
-				int count = 0;
-				for(SeqAlignment alignment : aligns) { 
-					if(availChroms.get(alignment).contains(gen.getChromID(wholeChrom.getChrom()))){
-		                count += client.getCount(Integer.toString(alignment.getDBID()),
-		                				gen.getChromID(wholeChrom.getChrom()),
-		                                false,
-		                                wholeChrom.getStart(),
-		                                wholeChrom.getEnd(),
-		                                null,
-		                                null,
-		                                null);
-					}
+		});
+	}
+	
+	/**
+	 * Always true: ReadDB chromosomes are sourced by ID, so the loader manages its own I/O permits
+	 */
+	public boolean sourcesChromosomesInParallel(){return true;}
+	
+	/**
+	 * ChromosomeLoaderThread: loads a set of chromosomes over the shared ReadDB client pool
+	 */
+	class ChromosomeLoaderThread implements Runnable{
+		private Iterable<Region> chroms;
+		
+		public ChromosomeLoaderThread(Iterable<Region> c){
+			chroms = c;
+		}
+		
+		public void run(){
+			try {
+				//Connections are borrowed from the pool request by request
+				ClientPool client = ClientPool.getDefault();
+				
+				//Find the available chromosomes for each alignment
+				HashMap<SeqAlignment, Set<Integer>> availChroms = new HashMap<SeqAlignment, Set<Integer>>();
+				for(SeqAlignment alignment : aligns) {
+					availChroms.put(alignment, client.getChroms(Integer.toString(alignment.getDBID()), false, null));
 				}
-				ArrayList<Region> chunks = new ArrayList<Region>();
-				// if there are too many reads in a chrom, read smaller chunks
-				if (count>MAXRDBLOAD){
-					int chunkNum = count/MAXRDBLOAD*2+1;
-					int chunkLength = length/chunkNum;
-					int start = 0;
-					while (start<=length){
-						int end = Math.min(length, start+chunkLength-1);
-						Region r = new Region(gen, chrom, start, end);
-						start = end+1;
-						chunks.add(r);
+				
+				//Iterate over each chromosome
+				for (Region wholeChrom : chroms){
+					acquireIO();
+					try{
+						loadChromosome(client, availChroms, wholeChrom);
+					} catch (IOException e) {
+						throw new RuntimeException("ReadDBHitLoader: error loading chromosome "+wholeChrom.getChrom()+" of "+exptNames, e);
+					} catch (ClientException e) {
+						throw new RuntimeException("ReadDBHitLoader: error loading chromosome "+wholeChrom.getChrom()+" of "+exptNames, e);
+					}finally{
+						releaseIO();
 					}
-				}else
-					chunks.add(wholeChrom);
-
-				for (Region chunk: chunks){
-					Pair<ArrayList<Integer>,ArrayList<Float>> hits = loadStrandedBaseCounts(chunk, '+');
-					addHits(chrom, '+', hits.car(), hits.cdr());
-					hits = loadStrandedBaseCounts(chunk, '-');
-					addHits(chrom, '-', hits.car(), hits.cdr());
 				}
+			} catch (IOException e) {
+				throw new RuntimeException("ReadDBHitLoader: error listing the chromosomes of "+exptNames, e);
+			} catch (ClientException e) {
+				throw new RuntimeException("ReadDBHitLoader: error listing the chromosomes of "+exptNames, e);
 			}
-			
-			client.close();
-			client=null;
-		} catch (IOException e) {
-			e.printStackTrace();
-		} catch (ClientException e) {
-			e.printStackTrace();
+		}
+		
+		/**
+		 * Load data for one chromosome, splitting into chunks if there are many reads
+		 */
+		private void loadChromosome(ClientPool client, HashMap<SeqAlignment, Set<Integer>> availChroms, Region wholeChrom) throws IOException, ClientException{
+			String chrom = wholeChrom.getChrom();
+			int length = wholeChrom.getEnd();
+			int count = 0;
+			//The counts are pipelined on one connection
+			List<Client.Call<Integer>> countCalls = new ArrayList<Client.Call<Integer>>();
+			for(SeqAlignment alignment : aligns) { 
+				if(availChroms.get(alignment).contains(gen.getChromID(chrom))){
+					countCalls.add(Client.countCall(Integer.toString(alignment.getDBID()),
+	                				gen.getChromID(chrom),
+	                                false,
+	                                wholeChrom.getStart(),
+	                                wholeChrom.getEnd(),
+	                                null,
+	                                null,
+	                                null));
+				}
+			}
+			for(Integer c : client.pipeline(countCalls))
+				if(c!=null)
+					count += c;
+			ArrayList<Region> chunks = new ArrayList<Region>();
+			// if there are too many reads in a chrom, read smaller chunks
+			if (count>MAXRDBLOAD){
+				int chunkNum = count/MAXRDBLOAD*2+1;
+				int chunkLength = length/chunkNum;
+				int start = 0;
+				while (start<=length){
+					int end = Math.min(length, start+chunkLength-1);
+					Region r = new Region(gen, chrom, start, end);
+					start = end+1;
+					chunks.add(r);
+				}
+			}else
+				chunks.add(wholeChrom);
+	
+			HitBuffer[] bufs = new HitBuffer[]{new HitBuffer(), new HitBuffer()};
+			for (Region chunk: chunks){
+				loadStrandedBaseCounts(client, chunk, '+', bufs[0]);
+				loadStrandedBaseCounts(client, chunk, '-', bufs[1]);
+			}
+			addBuffers(chrom, bufs);
 		}
 	}
 	
     /**
-     *  load paired read hit 5' coordinates (sorted) and counts
-     * 
+     *  load read hit 5' coordinates (sorted) and counts, streaming them into a hit buffer
+     *  @throws IOException if ReadDB can't be reached (the chromosome would be incomplete)
      */
-    private Pair<ArrayList<Integer>,ArrayList<Float>> loadStrandedBaseCounts(Region r, char strand){
+    private void loadStrandedBaseCounts(ClientPool client, Region r, char strand, HitBuffer buf) throws IOException{
         
         TreeMap<Integer,Float> allHits = null;
-        ArrayList<Integer> coords = new ArrayList<Integer>();
-        ArrayList<Float> counts = new ArrayList<Float>();
         try {
             allHits = client.getWeightHistogram(alignIDs,
                                                 r.getGenome().getChromID(r.getChrom()),
                                                 false,
                                                 false,
                                                 1,
+                                                0,
                                                 r.getStart(),
                                                 r.getEnd(),
                                                 null,
@@ -212,23 +261,16 @@ public class ReadDBHitLoader extends HitLoader{
                     throw new NullPointerException("ReadDBHitLoader: client.getWeightHistogram returned null");
                 }
             } else {
-                coords.addAll(allHits.keySet());
-                counts.addAll(allHits.values());
+            	for(Map.Entry<Integer,Float> hit : allHits.entrySet())
+            		buf.add(hit.getKey(), hit.getValue());
             }
-        } catch (IOException e) {
-            e.printStackTrace();
         } catch (ClientException e) {
             //Do nothing here; ClientException could be thrown because a chromosome doesn't contain any hits
         }
-        return new Pair<ArrayList<Integer>,ArrayList<Float>>(coords, counts);
     }
 	
     /**
-     * Close the client
+     * Nothing to clean up: the client pool is shared and closes its idle connections itself
      */
-	public void cleanup(){
-		if(client!=null){
-			client.close();
-		}
-	}
+	public void cleanup(){}
 }
@@ -3,49 +3,115 @@ package edu.psu.compbio.seqcode.projects.multigps.hitloaders;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import net.sf.samtools.SAMFileReader;
 import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMSequenceRecord;
 import net.sf.samtools.SAMFileReader.ValidationStringency;
 import net.sf.samtools.util.CloseableIterator;
 
-import edu.psu.compbio.seqcode.projects.multigps.framework.*;
-
+/**
+ * SAMFileHitLoader: loads reads from SAM/BAM files.
+ *
+ * Indexed BAM files are sourced one reference sequence at a time, with reference sequences loaded in parallel
+ * (up to the loader's I/O thread limit). In that mode, multiply-mapped reads are only recognized when their
+ * alignments are adjacent within the same reference sequence.
+ */
 public class SAMFileHitLoader extends FileHitLoader{
 
+	private Boolean indexed=null;
+
     public SAMFileHitLoader(File f, boolean nonUnique) {
     	super(f, nonUnique);
     }
-    
+
+    /**
+     * Indexed BAM files can be sourced by chromosome in parallel
+     */
+    public boolean sourcesChromosomesInParallel(){
+    	if(ioThreads<=1)
+    		return false;
+    	if(indexed==null){
+    		SAMFileReader reader = new SAMFileReader(file);
+    		indexed = reader.isBinary() && reader.hasIndex();
+    		reader.close();
+    	}
+    	return indexed;
+    }
+
     /**
 	 * Get the reads from the appropriate source (implementation-specific).
-	 * Loads data to the fivePrimesList and hitsCountList
+	 * Streams data into the hit buffers
 	 */
 	public void sourceReads() {
 		this.initialize();
+		if(sourcesChromosomesInParallel()){
+			sourceReadsByChromosome();
+			return;
+		}
 		SAMFileReader reader = new SAMFileReader(file);
 		reader.setValidationStringency(ValidationStringency.SILENT);
 		CloseableIterator<SAMRecord> iter = reader.iterator();
+		readRecords(iter, null);
+		iter.close();
+		reader.close();
+    }//end of countReads method
+
+	/**
+	 * Source each reference sequence of an indexed BAM file in a separate task
+	 */
+	protected void sourceReadsByChromosome(){
+		SAMFileReader reader = new SAMFileReader(file);
+		List<SAMSequenceRecord> seqs = reader.getFileHeader().getSequenceDictionary().getSequences();
+		reader.close();
+
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(ioThreads, seqs.size())));
+		try{
+			List<Future<Void>> futures = new ArrayList<Future<Void>>();
+			for(SAMSequenceRecord seq : seqs)
+				futures.add(pool.submit(new ChromosomeLoader(seq.getSequenceName())));
+			for(Future<Void> f : futures)
+				f.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("SAMFileHitLoader: interrupted while loading "+file.getName(), e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException("SAMFileHitLoader: error loading "+file.getName(), e.getCause());
+		}finally{
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * Group consecutive records by read name and process each read
+	 * @param iter records
+	 * @param bufs HitBuffers indexed by strand to fill (null to add hits directly to the loader)
+	 */
+	protected void readRecords(CloseableIterator<SAMRecord> iter, HitBuffer[] bufs){
 		Collection<SAMRecord> byRead = new ArrayList<SAMRecord>();
 		String lastread = null;
 		while (iter.hasNext()) {
 		    SAMRecord record = iter.next();
-		    
+
 		    if (record.getReadUnmappedFlag()) {continue; }
 		    if (lastread == null || !lastread.equals(record.getReadName())) {
-		    	processRead(byRead);
+		    	processRead(byRead, bufs);
 		    	byRead.clear();
 		    }
 		    lastread = record.getReadName();
 		    byRead.add(record);
-			    
+
 		}
-		processRead(byRead);
-		iter.close();
-		reader.close();
-    }//end of countReads method
-    
-    protected void processRead(Collection<SAMRecord> records) {
+		processRead(byRead, bufs);
+	}
+
+    protected void processRead(Collection<SAMRecord> records, HitBuffer[] bufs) {
         int mapcount = records.size();
         if (mapcount == 0) {
             return;
@@ -53,19 +119,52 @@ public class SAMFileHitLoader extends FileHitLoader{
         if (!useNonUnique && mapcount > 1) {
             return;
         }
-	
+
         float weight = 1 / ((float)mapcount);
-        Read currRead = new Read();
 		for (SAMRecord record : records) {
-		    int start = record.getAlignmentStart();
-		    int end = record.getAlignmentEnd();
-		    ReadHit currHit = new ReadHit(
-						  record.getReferenceName().replaceFirst("^chr", ""), 
-						  start, end, 
-						  record.getReadNegativeStrandFlag() ? '-' : '+',
-						  weight);
-		    currRead.addHit(currHit);
-		}currRead.setNumHits(mapcount);
-		addHits(currRead);
+			char strand = record.getReadNegativeStrandFlag() ? '-' : '+';
+			int fivePrime = strand=='+' ? record.getAlignmentStart() : record.getAlignmentEnd();
+			if(bufs==null)
+				addHit(record.getReferenceName().replaceFirst("^chr", ""), strand, fivePrime, weight);
+			else
+				bufs[strand=='+' ? 0 : 1].add(fivePrime, weight);
+		}
     }//end of processRead
+
+    /**
+     * Loads all hits on one reference sequence with a dedicated reader. 
+     * Failures propagate through the task's Future, so sourceReadsByChromosome() fails rather than leaving the reference out.
+     */
+    class ChromosomeLoader implements Callable<Void>{
+    	private String refName;
+
+    	public ChromosomeLoader(String ref){
+    		refName = ref;
+    	}
+
+    	public Void call(){
+    		acquireIO();
+    		try{
+    			HitBuffer[] bufs = new HitBuffer[]{new HitBuffer(), new HitBuffer()};
+	    		SAMFileReader reader = new SAMFileReader(file);
+	    		try{
+		    		reader.setValidationStringency(ValidationStringency.SILENT);
+		    		CloseableIterator<SAMRecord> iter = reader.query(refName, 0, 0, false);
+		    		try{
+		    			readRecords(iter, bufs);
+		    		}finally{
+		    			iter.close();
+		    		}
+	    		}catch(RuntimeException e){
+	    			throw new RuntimeException("SAMFileHitLoader: error reading "+refName+" from "+file.getName(), e);
+	    		}finally{
+	    			reader.close();
+	    		}
+	    		addBuffers(refName.replaceFirst("^chr", ""), bufs);
+    		}finally{
+    			releaseIO();
+    		}
+    		return null;
+    	}
+    }
 }
@@ -1,6 +1,7 @@
 package edu.psu.compbio.seqcode.projects.multigps.mixturemodel;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 
@@ -11,13 +12,27 @@ import edu.psu.compbio.seqcode.projects.multigps.experiments.ExperimentManager;
 import edu.psu.compbio.seqcode.projects.multigps.framework.BackgroundCollection;
 import edu.psu.compbio.seqcode.projects.multigps.framework.BindingModel;
 import edu.psu.compbio.seqcode.projects.multigps.framework.Config;
-import edu.psu.compbio.seqcode.projects.multigps.framework.StrandedBaseCount;
+import edu.psu.compbio.seqcode.projects.multigps.framework.StrandedBaseBuffer;
 import edu.psu.compbio.seqcode.projects.multigps.utilities.EMStepPlotter;
 
 
 /**
  * BindingEM: run EM training with sparse prior and positional prior(s) on binding data.
  * 
+ * A BindingEM object is intended to be reused for every window processed by one thread (it is not thread-safe). 
+ * All per-read and per-component working arrays are flattened, one primitive array per condition, 
+ * and are only reallocated when a window needs more room than any previous window:
+ *   hBand[c][i*W + k]        : H function for read i at window offset hBandStart[c][i]+k
+ *   rBind[c][j*numBases + i] : responsibility of binding component j for read i
+ * Components with pi=0 are dropped from a compacted index of active components (activeComps/numActive), 
+ * so the E-step and M-step loops only visit live components, and the inner loops over reads are 
+ * branch-free passes over contiguous arrays. 
+ * 
+ * The H function is banded: each read only stores the W positions (the binding model's support, W=max-min+1) 
+ * where its probability differs from the model's background probability (hBg). 
+ * Band values are copied from a per-replicate lookup table of the binding model, as are the log-probabilities 
+ * used in mu maximization, so memory and time scale with reads x kernel width rather than reads x window width. 
+ * 
  * @author Shaun Mahony
  * @version	%I%, %G%
  */
@@ -35,25 +50,38 @@ public class BindingEM {
 	// H function and responsibility have to account for all reads in region now, as they will be updated 
     // once the component positions change (i.e. we can't do the trick where we restrict to reads within 
     // range of the components).
+	// Per-condition arrays are reused across windows, so they may be longer than the current hitNum/numComponents. 
 	protected double[][]   hitCounts;	// Hit weights
 	protected int[][]      hitPos;		// Hit positions
 	protected boolean[][]  hitPlusStr;	// Hit positive strand boolean
 	protected int[]		   hitNum;		// Number of hits in each condition 
 	protected int[][]      repIndices;  // Index of replicate for the hit
-	protected double[][][] hAll;		// H function values for all positions in the current window (precomputed)
-	protected double[][][] h; 			// H function (binding component probability per read)
+	protected double[][]   hBand;		// Banded H function (precomputed) [c][i*hBandWidth[c]+k]
+	protected int[][]      hBandStart;	// Window offset of the first band position for each read
+	protected int[]        hBandWidth;	// Band width (widest binding model support among the condition's replicates)
+	protected double[][]   hBg;			// H function outside the band (binding model background probability) for each read
+	protected double[][]   kernelProbs;	// Binding model probability lookup tables, indexed by replicate & (distance-kernelMin)
+	protected double[][]   kernelLogProbs; // Binding model log-probability lookup tables, indexed by replicate & (distance-kernelMin)
+	protected int[]        kernelMin;	// Minimum distance covered by each replicate's lookup table
+	protected double[]     kernelBg, kernelLogBg; // Probability & log-probability outside each replicate's binding model
 	protected double[][]   n; 			// N function (noise component probability per read)
-	protected double[][][] rBind;		// Binding component responsibilities
+	protected double[][]   rBind;		// Binding component responsibilities [c][j*numBases+i]
 	protected double[][]   rNoise;		// Noise component responsibilities
+	protected double[][]   totalResp;	// Sum of responsibilities per read
 	protected double[][]   pi;			// pi : emission probabilities for binding components
 	protected double[]     piNoise;		// pi : emission probabilities for noise components (fixed)
 	protected int[][]      mu;			// mu : positions of the binding components
+	protected int[][]      activeComps;	// Indices of components with pi>0 (ascending)
+	protected int[]        numActive;	// Number of components with pi>0
 	protected double []    alphaMax;	// Maximum alpha
 	protected double[][]   motifPrior;  // Motif prior (indexed by condition & base) 
 	protected BindingModel[] bindingModels; //Array of binding models for convenience
-	protected double[][][] lastRBind;	//Last responsibilities (monitor convergence)
+	protected double[][]   lastRBind;	//Last responsibilities (monitor convergence) [c][j*numBases+i]
 	protected double[][]   lastPi;		//Last Pi (monitor convergence)
 	protected int[][]      lastMu;		//Last positions (monitor convergence)
+	protected double[]     weightedResp; //Responsibility x hit weight for the component being positioned
+	protected double[][]   muSums;		//Mu maximization sums [c][j*muWin + offset]
+	protected int          muWin;		//Width of the mu maximization window
 	protected double lastLAP, LAP; 		//log-likelihood monitoring
 	protected boolean plotEM=false;		//Plot the current region components
 	protected Region plotSubRegion=null; //Sub region to plot
@@ -84,6 +112,40 @@ public class BindingEM {
 		probAgivenB = Math.log(config.getProbSharedBinding())/Math.log(2);
         probAgivenNOTB =  Math.log((N-S)/(L-N+S))/Math.log(2);
         //System.err.println("EM initialized.\nPositonal prior constants:\tA given B="+probAgivenB+"\tA given notB="+probAgivenNOTB);
+        
+        //Reusable working arrays (grown on demand)
+        muWin = config.EM_MU_UPDATE_WIN*2;
+        hitCounts= new double[numConditions][0];
+    	hitPos= new int[numConditions][0];
+    	hitPlusStr= new boolean[numConditions][0];
+    	repIndices= new int[numConditions][0];
+    	hitNum = new int[numConditions];
+    	hBand = new double[numConditions][0];
+    	hBandStart = new int[numConditions][0];
+    	hBandWidth = new int[numConditions];
+    	hBg = new double[numConditions][0];
+    	n= new double[numConditions][0];
+    	rBind= new double[numConditions][0];
+    	rNoise= new double[numConditions][0];
+    	totalResp= new double[numConditions][0];
+    	lastRBind = new double[numConditions][0];
+    	muSums = new double[numConditions][0];
+    	pi = new double[numConditions][0];
+    	lastPi = new double[numConditions][0];
+    	mu = new int[numConditions][0];
+    	lastMu = new int[numConditions][0];
+    	activeComps = new int[numConditions][0];
+    	numActive = new int[numConditions];
+    	piNoise = new double[numConditions];
+    	alphaMax = new double[numConditions];
+    	weightedResp = new double[0];
+    	int numReps = manager.getExperimentSet().getReplicates().size();
+    	bindingModels = new BindingModel[numReps];
+    	kernelProbs = new double[numReps][];
+    	kernelLogProbs = new double[numReps][];
+    	kernelMin = new int[numReps];
+    	kernelBg = new double[numReps];
+    	kernelLogBg = new double[numReps];
 	}
 	
 	//Accessor
@@ -96,7 +158,7 @@ public class BindingEM {
      *
      * Almost purely matrix/array operations.
      */
-    public List<List<BindingComponent>>  train(List<List<StrandedBaseCount>> signals, 
+    public List<List<BindingComponent>>  train(List<StrandedBaseBuffer> signals, 
     											  Region w, 
     											  List<NoiseComponent> noise,
     											  List<List<BindingComponent>> comps, 
@@ -110,107 +172,84 @@ public class BindingEM {
         this.motifPrior = motifPrior;
         this.trainingRound = trainingRound;
     	this.plotSubRegion = plotSubRegion;
-        //Matrix initializations
-        hitCounts= new double[numConditions][];	// Hit weights
-    	hitPos= new int[numConditions][];			// Hit positions
-    	hitPlusStr= new boolean[numConditions][];	// Hit positive strand boolean
-    	hitNum = new int[numConditions];			// Number of hits in each condition
-    	repIndices= new int[numConditions][];	    // Index of replicate for the hit
-    	hAll = new double[numConditions][][];		// H function values for all positions in the current window (precomputed)
-    	h= new double[numConditions][][]; 			// H function (binding component probability per read)
-    	n= new double[numConditions][]; 			// N function (noise component probability per read)
-    	rBind= new double[numConditions][][];		// Binding component responsibilities
-    	rNoise= new double[numConditions][];		// Noise component responsibilities
-    	pi = new double[numConditions][numComponents];	// pi : emission probabilities for binding components
-    	piNoise = new double[numConditions];		// pi : emission probabilities for noise components (fixed)
-    	alphaMax = new double[numConditions];		//Maximum alpha
-        mu = new int[numConditions][numComponents];// mu : positions of the binding components
-        bindingModels = new BindingModel[manager.getExperimentSet().getReplicates().size()]; //Array of bindingModels for convenience
         plotEM = (plotSubRegion!=null && plotSubRegion.overlaps(w));
-        //Monitor state convergence using the following last variables
-        lastRBind = new double[numConditions][][];
-        lastPi = new double[numConditions][numComponents];
-        lastMu = new int[numConditions][numComponents];
+        //Reset the convergence monitors left over from the last window
+        stateEquivCount=0;
+        lastLAP=0; LAP=0;
         
         //Initializing data structures
         for(ExperimentCondition cond : manager.getExperimentSet().getConditions()){
         	int c = cond.getIndex();
         	
-        	//Add bindingModels to array
-        	for(ControlledExperiment rep : cond.getReplicates())
-        		bindingModels[rep.getIndex()] = rep.getBindingModel();
+        	//Add bindingModels to array & build their lookup tables (models can change between training rounds)
+        	hBandWidth[c]=0;
+        	for(ControlledExperiment rep : cond.getReplicates()){
+        		loadKernel(rep.getIndex(), rep.getBindingModel());
+        		hBandWidth[c] = Math.max(hBandWidth[c], kernelProbs[rep.getIndex()].length);
+        	}
         	
         	//Set maximum alphas
         	alphaMax[c] =  config.getAlphaScalingFactor() * (double)conditionBackgrounds.get(cond).getMaxThreshold('.');
         	
-        	//Load Reads (merge from all replicates)
-        	List<StrandedBaseCount> bases = new ArrayList<StrandedBaseCount>();
+        	//Load Reads (merge from all replicates) & the replicate index for each read
+        	int numBases = 0;
         	for(ControlledExperiment rep : cond.getReplicates())
-        		bases.addAll(signals.get(rep.getIndex()));
-        	int numBases = bases.size();
+        		numBases += signals.get(rep.getIndex()).size();
         	hitNum[c]=numBases;
-        	
-        	//Load replicate index for each read
-        	repIndices[c] = new int[numBases]; 
-        	int y=0, z=0;
+        	ensureReadCapacity(c, numBases, numComp, hBandWidth[c]);
+        	int y=0;
         	for(ControlledExperiment rep : cond.getReplicates()){
-        		z=0;
-        		while(z<signals.get(rep.getIndex()).size()){
+        		StrandedBaseBuffer repBases = signals.get(rep.getIndex());
+        		for(int z=0; z<repBases.size(); z++){
         			repIndices[c][y] = rep.getIndex();
-        			z++; y++;
+        			hitPos[c][y] = repBases.getCoordinate(z);
+        			hitPlusStr[c][y] = repBases.isPlusStrand(z);
+        			hitCounts[c][y] = repBases.getCount(z);
+        			y++;
         		}
         	}
-            //Load read info
-            double[] countc= new double[numBases];
-            int[] posc= new int[numBases];
-            boolean[] plusc= new boolean[numBases];
-            for(int i=0;i<numBases;i++){
-            	posc[i] = bases.get(i).getCoordinate();
-            	plusc[i] = bases.get(i).getStrand() == '+';
-                countc[i]=bases.get(i).getCount();
-            }
-            hitPos[c] = posc;
-            hitCounts[c]=countc;
-            hitPlusStr[c] = plusc;
         	
-            //Load pi for binding components
+            //Load pi & positions for binding components
             for(int j=0;j<numComp;j++){
                 BindingComponent comp = components.get(c).get(j);
                 pi[c][j]= comp.getPi(); 
+                mu[c][j] = comp.getPosition();
             }
             //Load pi for noise components
             piNoise[c]=noise.get(c).getPi();
             
-            //Load binding component positions
-            for(int j=0;j<numComp;j++)
-            	mu[c][j] = components.get(c).get(j).getPosition();
-            
-            //Initialize H function for all positions in the current region
-            double[][] hAllc = new double[w.getWidth()][numBases];
-            for(int i=0;i<numBases;i++)
-            	for(int b=0;b<w.getWidth();b++){
-            		int pos = b+w.getStart();
-                    int dist = hitPlusStr[c][i] ? hitPos[c][i]-pos: pos-hitPos[c][i];
-                    hAllc[b][i] = bindingModels[repIndices[c][i]].probability(dist);
-            	}
-    		hAll[c] = hAllc;
-    		
-            //Initialize responsibility functions
-            double[][] hc= new double[numComp][numBases];
-            double[] nc = new double[numBases];
+            //Initialize the banded H function: for each read, the window offsets within the binding model's support.
+            //Distance is (read position - component position) on the read's strand, so '+' strand bands run backwards through the table.
+            int[] posc = hitPos[c];
+            boolean[] plusc = hitPlusStr[c];
+            int[] repc = repIndices[c];
+            int W = hBandWidth[c];
+            double[] hBandc = hBand[c];
             for(int i=0;i<numBases;i++){
-            	for(int j=0;j<numComp;j++){
-            		int index = mu[c][j]-w.getStart();
-                    hc[j][i] = hAll[c][index][i];
-                }
-            	nc[i] = noise.get(c).scorePosition(hitPos[c][i], repIndices[c][i]);
+            	int r = repc[i];
+            	double[] table = kernelProbs[r];
+            	int L = table.length, off = i*W;
+            	if(plusc[i]){
+            		hBandStart[c][i] = posc[i]-w.getStart()-(kernelMin[r]+L-1);
+            		for(int k=0;k<L;k++)
+            			hBandc[off+k] = table[L-1-k];
+            	}else{
+            		hBandStart[c][i] = posc[i]-w.getStart()+kernelMin[r];
+            		System.arraycopy(table, 0, hBandc, off, L);
+            	}
+            	Arrays.fill(hBandc, off+L, off+W, kernelBg[r]);
+            	hBg[c][i] = kernelBg[r];
             }
-            h[c] = hc;
-            n[c] = nc;
+    		
+            //Initialize noise function
+            for(int i=0;i<numBases;i++)
+            	n[c][i] = noise.get(c).scorePosition(posc[i], repc[i]);
             
-            rBind[c] = new double[numComp][numBases];
-    		rNoise[c]= new double[numBases];
-    		lastRBind[c] = new double[numComp][numBases];
+            //Responsibilities start at zero
+            Arrays.fill(rBind[c], 0, numComp*numBases, 0.0);
+            Arrays.fill(lastRBind[c], 0, numComp*numBases, 0.0);
+            Arrays.fill(rNoise[c], 0, numBases, 0.0);
+            updateActiveComponents(c);
         }
         //End of data structure initialization
         
@@ -228,13 +267,15 @@ public class BindingEM {
         	//Binding Components
         	List<BindingComponent> currActiveComps = new ArrayList<BindingComponent>();
         	int c = cond.getIndex();
+        	int numBases = hitNum[c];
 	    	for(int j=0;j<numComp;j++){ 
 	            BindingComponent comp = components.get(c).get(j);
 	            comp.setPi(pi[c][j]);
 	            comp.setPosition(mu[c][j]);
 	            double sum_resp = 0.0;	
-                for(int i=0;i<hitNum[c];i++){
-                    sum_resp += hitCounts[c][i]*rBind[c][j][i];
+	            int off = j*numBases;
+                for(int i=0;i<numBases;i++){
+                    sum_resp += hitCounts[c][i]*rBind[c][off+i];
                 }
 	            comp.setSumResponsibility(sum_resp);
 	            if(pi[c][j]>0.0){
@@ -244,7 +285,7 @@ public class BindingEM {
 	    	activeComponents.add(currActiveComps);
 	    	//Noise Components
 	    	double noise_resp = 0.0;	
-            for(int i=0;i<hitNum[c];i++)
+            for(int i=0;i<numBases;i++)
                 noise_resp += hitCounts[c][i]*rNoise[c][i];
 	    	noise.get(c).setSumResponsibility(noise_resp);
         }        
@@ -253,6 +294,66 @@ public class BindingEM {
         return activeComponents;
     }//end of EMTrain method
 
+    /**
+     * Make sure the working arrays for a condition can hold the current window. 
+     * Arrays only grow, so after the first few windows no further allocation takes place.
+     */
+    private void ensureReadCapacity(int c, int numBases, int numComp, int bandWidth){
+    	if(hitPos[c].length<numBases){
+    		int cap = Math.max(numBases, hitPos[c].length + (hitPos[c].length>>1));
+    		hitPos[c] = new int[cap];
+    		hitCounts[c] = new double[cap];
+    		hitPlusStr[c] = new boolean[cap];
+    		repIndices[c] = new int[cap];
+    		n[c] = new double[cap];
+    		rNoise[c] = new double[cap];
+    		totalResp[c] = new double[cap];
+    		hBandStart[c] = new int[cap];
+    		hBg[c] = new double[cap];
+    	}
+    	if(weightedResp.length<numBases)
+    		weightedResp = new double[Math.max(numBases, weightedResp.length + (weightedResp.length>>1))];
+    	if(pi[c].length<numComp){
+    		pi[c] = new double[numComp];
+    		lastPi[c] = new double[numComp];
+    		mu[c] = new int[numComp];
+    		lastMu[c] = new int[numComp];
+    		activeComps[c] = new int[numComp];
+    	}
+    	long hSize = (long)bandWidth*numBases;
+    	if(hSize>Integer.MAX_VALUE)
+    		throw new RuntimeException("BindingEM: too many reads for banded H function ("+bandWidth+" bp x "+numBases+" reads)");
+    	if(hBand[c].length<hSize)
+    		hBand[c] = new double[(int)hSize];
+    	if(rBind[c].length<numComp*numBases){
+    		rBind[c] = new double[numComp*numBases];
+    		lastRBind[c] = new double[numComp*numBases];
+    	}
+    }
+    
+    /**
+     * Build the probability & log-probability lookup tables for one replicate's binding model.
+     * Distances outside the model's support [min,max] take the model's background values, as in BindingModel.probability().
+     */
+    private void loadKernel(int r, BindingModel model){
+    	bindingModels[r] = model;
+    	kernelProbs[r] = model.getProbabilities();
+    	kernelLogProbs[r] = model.getLogProbabilities();
+    	kernelMin[r] = model.getMin();
+    	kernelBg[r] = model.probability(model.getMax()+1);
+    	kernelLogBg[r] = model.logProbability(model.getMax()+1);
+    }
+    
+    /**
+     * Rebuild the compacted index of components with pi>0 (kept in ascending component order)
+     */
+    private void updateActiveComponents(int c){
+    	int a=0;
+    	for(int j=0;j<numComponents;j++)
+    		if(pi[c][j]>0)
+    			activeComps[c][a++]=j;
+    	numActive[c]=a;
+    }
 
     /**
      * Core EM iterations with sparse prior (component elimination) & multi-condition positional priors.
@@ -260,25 +361,17 @@ public class BindingEM {
      */
     private void EM_MAP (Region currRegion) {
         int numComp = numComponents;
-        double [][] totalResp = new double[numConditions][];
         int regStart = currRegion.getStart();
         
         //Variables for tracking mu maximization. Defined early to avoid memory assignment during main EM loop. 
-        double[][][] muSums = new double[numConditions][numComp][]; //Results of mu maximization summations for individual components across genome
         int[][] muSumStarts = new int[numConditions][numComp]; //Start positions of muSum arrays (start of maximization window).
         int[][] muSumWidths = new int[numConditions][numComp]; //Effective widths of muSum arrays (width of maximization window).
         int[][] muSumMaxPos = new int[numConditions][numComp]; //Positions of maxima in mu maximization summations
         int[] muJoinClosestComps = new int[numConditions]; //Indices of nearest components in other conditions
         boolean[] muJoinSharedBetter = new boolean[numConditions]; //Indicator that sharing components across conditions is better than not
         int[][] newMu = new int[numConditions][numComponents];// mu update
+        double[] sumR=new double[numComponents]; // pi update
         
-        //Initialize responsibilities
-        for(int c=0; c<numConditions; c++){
-    		int numBases = hitNum[c];
-    		totalResp[c] = new double[numBases];
-            for(int i=0;i<numBases;i++)
-                totalResp[c][i] = 0;
-    	}
         //Alpha is annealed in. Alpha=0 during ML steps
         double[] currAlpha = new double[numConditions];
         for(int c=0; c<numConditions; c++)
@@ -312,65 +405,79 @@ public class BindingEM {
     		//E-step
     		////////
     		for(int c=0; c<numConditions; c++){ int numBases = hitNum[c];
-        		//Recompute h function, given binding component positions (n function is constant because noise model doesn't move)
-        		for(int i=0;i<numBases;i++)
-                	for(int j=0;j<numComp;j++){ if(pi[c][j]>0){
-                		int index = mu[c][j]-regStart;
-                        h[c][j][i] = hAll[c][index][i];
-                	}}
-        		//Compute responsibilities
-    			for(int i=0;i<numBases;i++)
-                    totalResp[c][i] = 0;
-        		for(int i=0;i<numBases;i++){
-        			for(int j=0;j<numComp;j++){ if(pi[c][j]>0){
-        				rBind[c][j][i] = h[c][j][i]*pi[c][j];
-        				totalResp[c][i] +=rBind[c][j][i]; 
-        			}}
-        			rNoise[c][i] = n[c][i] * piNoise[c];
-        			totalResp[c][i] +=rNoise[c][i];
-        		}
+    			double[] hBandc = hBand[c], hBgc = hBg[c], rBindc = rBind[c], rNoisec = rNoise[c], nc = n[c], totalRespc = totalResp[c];
+    			int[] bandStartc = hBandStart[c];
+    			int W = hBandWidth[c];
+        		//Compute responsibilities: h function is read from each read's band at the component's position
+    			//(n function is constant because noise model doesn't move)
+    			Arrays.fill(totalRespc, 0, numBases, 0.0);
+    			for(int a=0;a<numActive[c];a++){
+    				int j = activeComps[c][a];
+    				int b = mu[c][j]-regStart, rOff = j*numBases;
+    				double pij = pi[c][j];
+    				for(int i=0;i<numBases;i++){
+    					int k = b-bandStartc[i];
+    					double r = (k>=0 && k<W ? hBandc[i*W+k] : hBgc[i])*pij;
+    					rBindc[rOff+i] = r;
+    					totalRespc[i] += r;
+    				}
+    			}
+    			double piN = piNoise[c];
+    			for(int i=0;i<numBases;i++){
+    				rNoisec[i] = nc[i] * piN;
+    				totalRespc[i] += rNoisec[i];
+    			}
         		//Normalize responsibilities
-        		for(int i=0;i<numBases;i++){
-        			for(int j=0;j<numComp;j++){ if(pi[c][j]>0){
-        				rBind[c][j][i]/=totalResp[c][i];
-        			}}
-        			rNoise[c][i]/=totalResp[c][i];
-        		}
+    			for(int a=0;a<numActive[c];a++){
+    				int rOff = activeComps[c][a]*numBases;
+    				for(int i=0;i<numBases;i++)
+    					rBindc[rOff+i] /= totalRespc[i];
+    			}
+    			for(int i=0;i<numBases;i++)
+    				rNoisec[i] /= totalRespc[i];
     		}
     		
         		
     		/////////////////////
     		//M-step: maximize mu (positions)
     		/////////////////////
-    		//Set up variable arrays if necessary (assign memory only once to non-zero components)
+    		//Set up variable arrays if necessary (assign memory only once)
 			if(numConditions>1 && t==config.ALPHA_ANNEALING_ITER)
 				for(int c=0; c<numConditions; c++)
-					for(int j=0;j<numComp;j++)
-						if(pi[c][j]>0)
-							muSums[c][j] = new double[config.EM_MU_UPDATE_WIN*2];
+					if(muSums[c].length<numComp*muWin)
+						muSums[c] = new double[numComp*muWin];
     		//Maximize mu part 1: calculate maximization sums assuming no events shared across conditions
     		for(int c=0; c<numConditions; c++){ int numBases = hitNum[c];
-    			for(int j=0;j<numComp;j++){ if(pi[c][j]>0){
+    			double[] rBindc = rBind[c], countc = hitCounts[c];
+    			int[] posc = hitPos[c], repc = repIndices[c];
+    			boolean[] plusc = hitPlusStr[c];
+    			for(int a=0;a<numActive[c];a++){
+    				int j = activeComps[c][a];
     				int start=Math.max(mu[c][j]-config.EM_MU_UPDATE_WIN, regStart);
         			int end = Math.min(currRegion.getEnd(), mu[c][j]+config.EM_MU_UPDATE_WIN);
         			//Assign special variables
         			if(numConditions>1 && t>config.ALPHA_ANNEALING_ITER){
         				muSumStarts[c][j] = start; muSumWidths[c][j] = end-start;
         			}
+        			//Responsibility-weighted hit counts do not depend on the candidate position
+        			int rOff = j*numBases;
+        			for(int i=0;i<numBases;i++)
+        				weightedResp[i] = rBindc[rOff+i]*countc[i];
         			//Score the current window
         			double currScore=0, maxScore=-Double.MAX_VALUE;
         			int maxPos = 0;
         			for(int x=start; x<end; x++){
         				currScore=0;
         				for(int i=0;i<numBases;i++){
-        					int dist = hitPlusStr[c][i] ? hitPos[c][i]-x: x-hitPos[c][i];
-        					currScore+=(rBind[c][j][i]*hitCounts[c][i]) * bindingModels[repIndices[c][i]].logProbability(dist);
+        					int dist = plusc[i] ? posc[i]-x: x-posc[i];
+        					int r = repc[i], k = dist-kernelMin[r];
+        					currScore+=weightedResp[i] * (k>=0 && k<kernelLogProbs[r].length ? kernelLogProbs[r][k] : kernelLogBg[r]);
         				}
         				if(motifPrior!=null && config.useMotifPrior())
         					currScore += motifPrior[c][x-regStart];
         				
         				if(numConditions>1 && t>config.ALPHA_ANNEALING_ITER)   //Save the score
-            				muSums[c][j][x-start] = currScore;
+            				muSums[c][j*muWin+x-start] = currScore;
         				 
         				if(currScore>maxScore){
         					maxPos=x;
@@ -378,17 +485,17 @@ public class BindingEM {
         				}
         			}
         			muSumMaxPos[c][j] = maxPos; 
-        		}}
+        		}
     		}
     		//Maximize mu part 2: evaluate whether joining nearby components across conditions is more favorable 
     		for(int c=0; c<numConditions; c++){
-    			for(int j=0;j<numComp;j++){ if(pi[c][j]>0){
+    			for(int a=0;a<numActive[c];a++){ int j=activeComps[c][a]; {
     				if(numConditions>1 && t>config.ALPHA_ANNEALING_ITER && config.useMultiConditionPosPrior()){
     					//mu2.a: find the closest components to j in each condition
     					int closestComp=-1; int closestDist = Integer.MAX_VALUE;
     					for(int d=0; d<numConditions; d++){ if(d!=c){
     						closestComp=-1; closestDist = Integer.MAX_VALUE;
-    		    			for(int k=0;k<numComp;k++){ if(pi[d][k]>0){
+    		    			for(int b=0;b<numActive[d];b++){ int k=activeComps[d][b]; {
     		    				int dist = Math.abs(mu[c][j]-mu[d][k]);
     		    				if(dist<closestDist && dist<config.EM_MU_UPDATE_WIN){
     		    					closestDist = dist; closestComp=k;
@@ -406,14 +513,14 @@ public class BindingEM {
     							muJoinSharedBetter[d]=false;
     						else{
     							//Case 1: two independent components
-    							double indepScore = muSums[c][j][muSumMaxPos[c][j]-muSumStarts[c][j]] + probAgivenNOTB +
-    												muSums[d][k][muSumMaxPos[d][k]-muSumStarts[d][k]] + probAgivenNOTB;
+    							double indepScore = muSums[c][j*muWin+muSumMaxPos[c][j]-muSumStarts[c][j]] + probAgivenNOTB +
+    												muSums[d][k*muWin+muSumMaxPos[d][k]-muSumStarts[d][k]] + probAgivenNOTB;
     							//Case 2: single shared components
     							double maxSharedScore=-Double.MAX_VALUE; int maxSharedPos = 0; double currScore=0;
     		        			for(int y=muSumStarts[c][j]; y<muSumStarts[c][j]+muSumWidths[c][j]; y++){
     		        				if(y>=muSumStarts[d][k] && y<muSumStarts[d][k]+muSumWidths[d][k]){
-    		        					currScore = muSums[c][j][y-muSumStarts[c][j]] + probAgivenB +
-    		        								muSums[d][k][y-muSumStarts[d][k]] + probAgivenB;
+    		        					currScore = muSums[c][j*muWin+y-muSumStarts[c][j]] + probAgivenB +
+    		        								muSums[d][k*muWin+y-muSumStarts[d][k]] + probAgivenB;
     		        					if(currScore > maxSharedScore){
     		        						maxSharedScore = currScore; maxSharedPos = y;
     		        					}
@@ -437,24 +544,24 @@ public class BindingEM {
     					//mu2.c: for all conditions that passed the pairwise test, evaluate if a single shared event is better than all independent
     					if(numConditions>2){  //Shortcut for 2 conditions above
 	    					//Case 1: sum of all independent components
-	    					double allIndepScore = muSums[c][j][muSumMaxPos[c][j]-muSumStarts[c][j]] + probAgivenNOTB;
+	    					double allIndepScore = muSums[c][j*muWin+muSumMaxPos[c][j]-muSumStarts[c][j]] + probAgivenNOTB;
 	    					for(int d=0; d<numConditions; d++){ if(d!=c){
 	    						int k = muJoinClosestComps[d];
 	    						if(k!=-1){
-	    							allIndepScore+=muSums[d][k][muSumMaxPos[d][k]-muSumStarts[d][k]] + probAgivenNOTB;
+	    							allIndepScore+=muSums[d][k*muWin+muSumMaxPos[d][k]-muSumStarts[d][k]] + probAgivenNOTB;
 	    						}
 	    					}}
 	    					//Case 2: sum of shared component and non-shared
 	    					double maxSomeSharedScore=-Double.MAX_VALUE; int maxSomeSharedPos = 0; double currScore=0;
 	    					for(int y = maxMuStart; y<minMuEnd; y++){ 
-	    						currScore=muSums[c][j][y-muSumStarts[c][j]] + probAgivenB;
+	    						currScore=muSums[c][j*muWin+y-muSumStarts[c][j]] + probAgivenB;
 	    						for(int d=0; d<numConditions; d++){ if(d!=c){
 		    						int k = muJoinClosestComps[d];
 		    						if(k!=-1){
 		    							if(muJoinSharedBetter[d])
-		    								currScore += muSums[d][k][y-muSumStarts[d][k]] + probAgivenB;
+		    								currScore += muSums[d][k*muWin+y-muSumStarts[d][k]] + probAgivenB;
 		    							else
-		    								currScore +=muSums[d][k][muSumMaxPos[d][k]-muSumStarts[d][k]] + probAgivenNOTB;
+		    								currScore +=muSums[d][k*muWin+muSumMaxPos[d][k]-muSumStarts[d][k]] + probAgivenNOTB;
 		    						}
 	    						}}
 	    						if(currScore > maxSomeSharedScore){
@@ -476,11 +583,11 @@ public class BindingEM {
 			    						}
 		    					}}
 		    					for(int y = maxMuStart; y<minMuEnd; y++){ 
-		    						currScore=muSums[c][j][y-muSumStarts[c][j]] + probAgivenB;
+		    						currScore=muSums[c][j*muWin+y-muSumStarts[c][j]] + probAgivenB;
 		    						for(int d=0; d<numConditions; d++){ if(d!=c){
 			    						int k = muJoinClosestComps[d];
 			    						if(k!=-1){
-			    							currScore += muSums[d][k][y-muSumStarts[d][k]] + probAgivenB;
+			    							currScore += muSums[d][k*muWin+y-muSumStarts[d][k]] + probAgivenB;
 			    						}
 		    						}}
 		    						if(currScore > maxAllSharedScore){
@@ -504,30 +611,35 @@ public class BindingEM {
     					newMu[c][j] = muSumMaxPos[c][j];
     				}
     			}}
-    		}//Update mu values
+    		}
+    		//Update mu values
     		for(int c=0; c<numConditions; c++){
-    			for(int j=0;j<numComp;j++){ if(pi[c][j]>0){
+    			for(int a=0;a<numActive[c];a++){
+    				int j = activeComps[c][a];
     				mu[c][j] = newMu[c][j];
-    			}}
+    			}
     		}
     		//Maximize mu part 3: Resolve duplicate positions (combine & delete one copy)
     		for(int c=0; c<numConditions; c++){ int numBases = hitNum[c];	
+    			double[] rBindc = rBind[c];
         		HashMap<Integer, Integer> pos2index = new HashMap<Integer, Integer>(); //Position to array index map 
-        		for(int j=0;j<numComp;j++){ if(pi[c][j]>0){
+        		for(int a=0;a<numActive[c];a++){
+        			int j = activeComps[c][a];
         			if(pos2index.containsKey(mu[c][j])){ 
         				int orig = pos2index.get(mu[c][j]);
+        				int oOff = orig*numBases, jOff = j*numBases;
         				//Combine
         				pi[c][orig]+=pi[c][j];
                        	for(int i=0; i<numBases;i++)
-                       		rBind[c][orig][i] += rBind[c][j][i];
+                       		rBindc[oOff+i] += rBindc[jOff+i];
                        	//Delete
                        	pi[c][j]=0.0;
-                       	for(int i=0; i<numBases;i++)
-                       		rBind[c][j][i] = 0;
+                       	Arrays.fill(rBindc, jOff, jOff+numBases, 0.0);
         			}else{
         				pos2index.put(mu[c][j], j);
         			}
-        		}}
+        		}
+        		updateActiveComponents(c);
     		}
         		
     		/////////////////////
@@ -535,43 +647,54 @@ public class BindingEM {
     		/////////////////////
     		boolean componentEliminated=false;
     		for(int c=0; c<numConditions; c++){ int numBases = hitNum[c];	
+    			double[] rBindc = rBind[c], countc = hitCounts[c];
         		//Maximize pi
-        		double[] sumR=new double[numComponents];
-        		for(int j=0;j<numComp;j++){ if(pi[c][j]>0){
+    			Arrays.fill(sumR, 0.0);
+        		for(int a=0;a<numActive[c];a++){
+        			int j = activeComps[c][a];
+        			int rOff = j*numBases;
+        			double s=0;
         			for(int i=0;i<numBases;i++)
-        				sumR[j] += rBind[c][j][i]*hitCounts[c][i];
-                }}
+        				s += rBindc[rOff+i]*countc[i];
+        			sumR[j] = s;
+                }
         		int minIndex=0; double minVal=Double.MAX_VALUE;
-        		for(int j=0;j<numComp;j++){ if(pi[c][j]>0){
+        		for(int a=0;a<numActive[c];a++){
+        			int j = activeComps[c][a];
         			if(sumR[j]<minVal){ minVal=sumR[j]; minIndex=j;}
-        		}}                
+        		}                
                 if(minVal>currAlpha[c]){
                     // No component to be eliminated, update pi(j)
-                	for(int j=0;j<numComp;j++){ if(pi[c][j]>0){
+                	for(int a=0;a<numActive[c];a++){
+                		int j = activeComps[c][a];
                 		pi[c][j]=Math.max(0, sumR[j]-currAlpha[c]); 
-                	}}
+                	}
                 }else{
                     // Eliminate worst binding component
                     // Responsibilities will be redistributed in the E step
                    	pi[c][minIndex]=0.0;
-                   	for(int i=0; i<numBases;i++)
-                   		rBind[c][minIndex][i] = 0;
+                   	Arrays.fill(rBindc, minIndex*numBases, (minIndex+1)*numBases, 0.0);
                    	//I discussed this bit with Chris, and we decided that the best thing to do is
                    	//to re-estimate pi values for non-eliminated components using the current responsibility assignments
-                   	for(int j=0;j<numComp;j++){ if(pi[c][j]>0){
-                		pi[c][j]=Math.max(0, sumR[j]); 
-                	}}
+                   	for(int a=0;a<numActive[c];a++){
+                   		int j = activeComps[c][a];
+                   		if(pi[c][j]>0)
+                   			pi[c][j]=Math.max(0, sumR[j]); 
+                	}
                    	componentEliminated=true;
                 }
+                updateActiveComponents(c);
                 //Normalize pi (accounting for piNoise)
                 double totalPi=0;
-                for(int j=0;j<numComp;j++){ if(pi[c][j]>0){
-            		totalPi+=pi[c][j];
-            	}}
-                for(int j=0;j<numComp;j++){ if(pi[c][j]>0){
+                for(int a=0;a<numActive[c];a++){
+            		totalPi+=pi[c][activeComps[c][a]];
+            	}
+                for(int a=0;a<numActive[c];a++){
+                	int j = activeComps[c][a];
             		if(totalPi>0)
             			pi[c][j]=pi[c][j]/(totalPi/(1-piNoise[c]));
-            	}}
+            	}
+                updateActiveComponents(c);
             	
         		
             	/////////////
@@ -586,9 +709,7 @@ public class BindingEM {
         	//Non-zero components count
         	int nonZeroComps=0;
         	for(int c=0; c<numConditions; c++)
-        		for(int j=0;j<numComp;j++)
-        			if(pi[c][j]>0)
-        				nonZeroComps++;
+        		nonZeroComps+=numActive[c];
         	
         	////////////
         	//Compute LL
@@ -599,12 +720,13 @@ public class BindingEM {
 	            double LL =0;
 	            for(int c=0; c<numConditions; c++){
 	        		int numBases = hitNum[c];
+	        		double[] rBindc = rBind[c];
 	        		for(int i=0;i<numBases;i++){
 	        			// for each read, each event will give a conditional prob or bg prob
 	                    double j_sum=0;
-	        			for(int j=0;j<numComp;j++){ if(pi[c][j]>0.0){
-	        				j_sum += Math.log(rBind[c][j][i])/config.LOG2;
-	                    }}
+	        			for(int a=0;a<numActive[c];a++){
+	        				j_sum += Math.log(rBindc[activeComps[c][a]*numBases+i])/config.LOG2;
+	                    }
 	        			j_sum += Math.log(rNoise[c][i])/config.LOG2;
 	                    
 	        			LL += j_sum*hitCounts[c][i];                        
@@ -615,9 +737,9 @@ public class BindingEM {
 	            for(int c=0; c<numConditions; c++){
 	            	//sum of pi
 	            	double sum_log_pi=0;
-	            	for(int j=0;j<numComp;j++){ if(pi[c][j]>0.0){
-	            		sum_log_pi+=Math.log(pi[c][j])/config.LOG2;
-	            	}}
+	            	for(int a=0;a<numActive[c];a++){
+	            		sum_log_pi+=Math.log(pi[c][activeComps[c][a]])/config.LOG2;
+	            	}
 	            	//Positional priors
 	            	double sum_pos_prior=0;
 	            	//TODO: how do we account for multi-condition "prior" here?
@@ -686,37 +808,38 @@ public class BindingEM {
      * Set responsibility profile for each component (for kernel update)
      * @param bindComponents
      * @param signals
-     * @param responsibilities
+     * @param responsibilities flattened per condition: [c][j*numBases+i]
      * @param c2b
      */
-    private void setComponentResponsibilityProfiles(List<List<BindingComponent>> bindComponents, List<List<StrandedBaseCount>> signals, 
-            									double[][][] responsibilities) {
+    private void setComponentResponsibilityProfiles(List<List<BindingComponent>> bindComponents, List<StrandedBaseBuffer> signals, 
+            									double[][] responsibilities) {
 		for(ExperimentCondition cond : manager.getExperimentSet().getConditions()){
 			int c = cond.getIndex();
+			int numBases = hitNum[c];
 			
 			for(int j=0;j<bindComponents.get(c).size();j++){
 				BindingComponent comp = bindComponents.get(c).get(j);
 				int jr = comp.getIndex();
 			
 		    	for(ControlledExperiment rep : cond.getReplicates()){
-		    		List<StrandedBaseCount> bases = signals.get(rep.getIndex());
+		    		StrandedBaseBuffer bases = signals.get(rep.getIndex());
 		
-			    	double[][] rc = responsibilities[c];
+			    	double[] rc = responsibilities[c];
+			    	int rOff = jr*numBases;
 			   
 			    	int center = config.MAX_BINDINGMODEL_WIDTH/2;
 			   		// store binding profile (read responsibilities in c condition) of this component
 					double[] profile_plus = new double[config.MAX_BINDINGMODEL_WIDTH];
 					double[] profile_minus = new double[config.MAX_BINDINGMODEL_WIDTH];
 					for(int i=0;i<bases.size();i++){
-						StrandedBaseCount base = bases.get(i);
-						if (base.getStrand()=='+'){
-							int offset = base.getCoordinate()-comp.getPosition()+center;
+						if (bases.isPlusStrand(i)){
+							int offset = bases.getCoordinate(i)-comp.getPosition()+center;
 							if(offset>=0 && offset<config.MAX_BINDINGMODEL_WIDTH)
-								profile_plus[offset]=rc[jr][i]*base.getCount();
+								profile_plus[offset]=rc[rOff+i]*bases.getCount(i);
 						}else{
-							int offset = comp.getPosition()-base.getCoordinate()+center;
+							int offset = comp.getPosition()-bases.getCoordinate(i)+center;
 							if(offset>=0 && offset<config.MAX_BINDINGMODEL_WIDTH)
-								profile_minus[offset]=rc[jr][i]*base.getCount();
+								profile_minus[offset]=rc[rOff+i]*bases.getCount(i);
 						}
 					}
 					comp.setReadProfile(rep.getIndex(), profile_plus,  '+');
@@ -733,13 +856,9 @@ public class BindingEM {
     private void copyStateToLast(){
     	int numC = manager.getNumConditions();
     	for(int c=0; c<numC; c++){
-    		for(int j=0; j<numComponents; j++){
-    			lastPi[c][j] = pi[c][j];
-    			lastMu[c][j] = mu[c][j];
-    			for(int x=0; x<rBind[c][j].length; x++){
-    				lastRBind[c][j][x] = rBind[c][j][x];
-    			}
-    		}
+    		System.arraycopy(pi[c], 0, lastPi[c], 0, numComponents);
+    		System.arraycopy(mu[c], 0, lastMu[c], 0, numComponents);
+    		System.arraycopy(rBind[c], 0, lastRBind[c], 0, numComponents*hitNum[c]);
     	}
     }
     
@@ -762,24 +881,32 @@ public class BindingEM {
     	boolean compPosEqual=true;
     	if(numCompEqual){
     		for(int c=0; c<numC; c++)
-    			for(int j=0; j<mu[c].length; j++){if(pi[c][j]>0){
+    			for(int a=0;a<numActive[c];a++){
+    				int j = activeComps[c][a];
     				compPosEqual = compPosEqual && (mu[c][j] == lastMu[c][j]);
-    			}}
+    			}
     	}else{
     		compPosEqual=false;
     	}
     	boolean piBindEquivalent=true;
     	for(int c=0; c<numC; c++)
-			for(int j=0; j<pi[c].length; j++){if(pi[c][j]>0){
+    		for(int a=0;a<numActive[c];a++){
+    			int j = activeComps[c][a];
 				piBindEquivalent = piBindEquivalent && (Math.abs(pi[c][j]-lastPi[c][j])<config.EM_STATE_EQUIV_THRES);
-			}}
+			}
     	boolean rBindEquivalent=true;
-    	for(int c=0; c<numC; c++)
-    		for(int j=0; j<pi[c].length; j++){if(pi[c][j]>0){
-    			for(int x=0; x<rBind[c][j].length; x++){
-    				rBindEquivalent = rBindEquivalent && (Math.abs(rBind[c][j][x]-lastRBind[c][j][x])<config.EM_STATE_EQUIV_THRES);
+    	for(int c=0; c<numC && rBindEquivalent; c++){
+    		int numBases = hitNum[c];
+    		for(int a=0;a<numActive[c] && rBindEquivalent;a++){
+    			int rOff = activeComps[c][a]*numBases;
+    			for(int x=rOff; x<rOff+numBases; x++){
+    				if(!(Math.abs(rBind[c][x]-lastRBind[c][x])<config.EM_STATE_EQUIV_THRES)){
+    					rBindEquivalent=false;
+    					break;
+    				}
     			}
-			}}
+			}
+    	}
 		return numCompEqual && compPosEqual && piBindEquivalent && rBindEquivalent;
     }
 }
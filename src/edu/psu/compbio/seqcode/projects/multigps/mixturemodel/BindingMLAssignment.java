@@ -13,7 +13,7 @@ import edu.psu.compbio.seqcode.projects.multigps.features.BindingEvent;
 import edu.psu.compbio.seqcode.projects.multigps.framework.BackgroundCollection;
 import edu.psu.compbio.seqcode.projects.multigps.framework.BindingModel;
 import edu.psu.compbio.seqcode.projects.multigps.framework.Config;
-import edu.psu.compbio.seqcode.projects.multigps.framework.StrandedBaseCount;
+import edu.psu.compbio.seqcode.projects.multigps.framework.StrandedBaseBuffer;
 import edu.psu.compbio.seqcode.projects.multigps.utilities.EMStepPlotter;
 
 /**
@@ -90,8 +90,8 @@ public class BindingMLAssignment {
      *
      * Almost purely matrix/array operations.
      */
-    public List<BindingEvent>  assign(List<List<StrandedBaseCount>> signals,
-    								  List<List<StrandedBaseCount>> controls,
+    public List<BindingEvent>  assign(List<StrandedBaseBuffer> signals,
+    								  List<StrandedBaseBuffer> controls,
     								  Region w, 
     								  List<NoiseComponent> noise,
     								  List<BindingComponent> comps, 
@@ -143,63 +143,53 @@ public class BindingMLAssignment {
         	for(ControlledExperiment rep : cond.getReplicates())
         		bindingModels[rep.getIndex()] = rep.getBindingModel();
         	
-        	//Load Reads (merge from all replicates)
-        	List<StrandedBaseCount> sigBases = new ArrayList<StrandedBaseCount>();
-        	List<StrandedBaseCount> ctrlBases = new ArrayList<StrandedBaseCount>();
+        	//Count reads (merged from all replicates)
+        	sigHitNum[c] = 0;
+        	ctrlHitNum[c] = 0;
         	for(ControlledExperiment rep : cond.getReplicates()){
-        		sigBases.addAll(signals.get(rep.getIndex()));
+        		sigHitNum[c] += signals.get(rep.getIndex()).size();
         		if(controls.get(rep.getIndex())!=null)
-        			ctrlBases.addAll(controls.get(rep.getIndex()));
+        			ctrlHitNum[c] += controls.get(rep.getIndex()).size();
         	}
-        	sigHitNum[c] = sigBases.size();
-        	ctrlHitNum[c] = ctrlBases.size();
         	
         	//Count total weights for convenience
         	for(ControlledExperiment rep : cond.getReplicates()){
-        		sigRepHitCountTotals[rep.getIndex()]=0;
-        		for(StrandedBaseCount s : signals.get(rep.getIndex()))
-        			sigRepHitCountTotals[rep.getIndex()]+=s.getCount();
+        		sigRepHitCountTotals[rep.getIndex()]=signals.get(rep.getIndex()).getTotalCount();
         		uniformRepHitCountTotals[rep.getIndex()] = ((rep.getNoiseCount()/config.getMappableGenomeLength())*(double)w.getWidth())/rep.getControlScaling(); //Normalizing by control scaling is a hack - usually control scaling will be 1 when the replicate has no control... however, it is not 1 for SES. 
         	}
         	
-        	//Load replicate index for each read
+        	//Load read info & the replicate index for each read
         	sigRepIndices[c] = new int[sigHitNum[c]];
-        	ctrlRepIndices[c] = ctrlHitNum[c]==0 ? null : new int[ctrlHitNum[c]];
-        	int ys=0, yc=0, z=0;
-        	for(ControlledExperiment rep : cond.getReplicates()){
-        		z=0;
-        		while(z<signals.get(rep.getIndex()).size()){
-        			sigRepIndices[c][ys] = rep.getIndex();
-        			z++; ys++;
-        		}
-        		z=0;
-        		while(z<controls.get(rep.getIndex()).size()){
-        			ctrlRepIndices[c][yc] = rep.getIndex();
-        			z++; yc++;
-        		}
-        	}
-            
-            //Load signal read info
             sigHitCounts[c]= new double[sigHitNum[c]];
             sigHitPos[c]= new int[sigHitNum[c]];
             sigHitPlusStr[c]= new boolean[sigHitNum[c]];
-            for(int i=0;i<sigHitNum[c];i++){
-            	sigHitPos[c][i] = sigBases.get(i).getCoordinate();
-            	sigHitPlusStr[c][i] = sigBases.get(i).getStrand() == '+';
-            	sigHitCounts[c][i]=sigBases.get(i).getCount();
-            }
-            
-            //Load control read info
+        	ctrlRepIndices[c] = ctrlHitNum[c]==0 ? null : new int[ctrlHitNum[c]];
             if(ctrlHitNum[c]>0){
 	            ctrlHitCounts[c]= new double[ctrlHitNum[c]];
 	            ctrlHitPos[c]= new int[ctrlHitNum[c]];
 	            ctrlHitPlusStr[c]= new boolean[ctrlHitNum[c]];
-	            for(int i=0;i<ctrlHitNum[c];i++){
-	            	ctrlHitPos[c][i] = ctrlBases.get(i).getCoordinate();
-	            	ctrlHitPlusStr[c][i] = ctrlBases.get(i).getStrand() == '+';
-	            	ctrlHitCounts[c][i]=ctrlBases.get(i).getCount();
-	            }
             }
+        	int ys=0, yc=0;
+        	for(ControlledExperiment rep : cond.getReplicates()){
+        		StrandedBaseBuffer sigBases = signals.get(rep.getIndex());
+        		for(int z=0; z<sigBases.size(); z++){
+        			sigRepIndices[c][ys] = rep.getIndex();
+        			sigHitPos[c][ys] = sigBases.getCoordinate(z);
+        			sigHitPlusStr[c][ys] = sigBases.isPlusStrand(z);
+        			sigHitCounts[c][ys] = sigBases.getCount(z);
+        			ys++;
+        		}
+        		StrandedBaseBuffer ctrlBases = controls.get(rep.getIndex());
+        		if(ctrlBases!=null){
+	        		for(int z=0; z<ctrlBases.size(); z++){
+	        			ctrlRepIndices[c][yc] = rep.getIndex();
+	        			ctrlHitPos[c][yc] = ctrlBases.getCoordinate(z);
+	        			ctrlHitPlusStr[c][yc] = ctrlBases.isPlusStrand(z);
+	        			ctrlHitCounts[c][yc] = ctrlBases.getCount(z);
+	        			yc++;
+	        		}
+        		}
+        	}
 
             //Load pi for binding components
             for(int j=0;j<numComp;j++){
@@ -4,7 +4,6 @@ import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
@@ -24,7 +23,8 @@ import edu.psu.compbio.seqcode.projects.multigps.framework.BindingModel;
 import edu.psu.compbio.seqcode.projects.multigps.framework.Config;
 import edu.psu.compbio.seqcode.projects.multigps.framework.PoissonBackgroundModel;
 import edu.psu.compbio.seqcode.projects.multigps.framework.PotentialRegionFilter;
-import edu.psu.compbio.seqcode.projects.multigps.framework.StrandedBaseCount;
+import edu.psu.compbio.seqcode.projects.multigps.framework.RegionScheduler;
+import edu.psu.compbio.seqcode.projects.multigps.framework.StrandedBaseBuffer;
 import edu.psu.compbio.seqcode.projects.multigps.motifs.MotifPlatform;
 
 /**
@@ -96,34 +96,14 @@ public class BindingMixture {
 	 */
 	public void execute(boolean EM, boolean uniformBindingComponents){
 		trainingRound++;
-		Thread[] threads = new Thread[config.getMaxThreads()];
-        ArrayList<Region> threadRegions[] = new ArrayList[config.getMaxThreads()];
-        int i = 0;
-        for (i = 0 ; i < threads.length; i++) {
-            threadRegions[i] = new ArrayList<Region>();
-        }
-        for(Region r : testRegions){
-            threadRegions[(i++) % config.getMaxThreads()].add(r);
-        }
-
-        for (i = 0 ; i < threads.length; i++) {
-            Thread t = new Thread(new BindingMixtureThread(threadRegions[i], EM, uniformBindingComponents));
-            t.start();
-            threads[i] = t;
-        }
-        boolean anyrunning = true;
-        while (anyrunning) {
-            anyrunning = false;
-            try {
-                Thread.sleep(5000);
-            } catch (InterruptedException e) { }
-            for (i = 0; i < threads.length; i++) {
-                if (threads[i].isAlive()) {
-                    anyrunning = true;
-                    break;
-                }
-            }
-        }		
+		final boolean runEM = EM;
+		final boolean uniform = uniformBindingComponents;
+		RegionScheduler scheduler = new RegionScheduler(config.getMaxThreads());
+		scheduler.execute(testRegions, new RegionScheduler.ReadCountCostEstimator(manager), new RegionScheduler.RegionWorkerFactory(){
+			public Runnable createWorker(Iterable<Region> regions){
+				return new BindingMixtureThread(regions, runEM, uniform);
+			}
+		});
 	}
 	
 	/**
@@ -309,8 +289,7 @@ public class BindingMixture {
      */
     public void updateMotifs(){
     	if(config.getFindingMotifs()){
-    		for(ExperimentCondition cond : manager.getExperimentSet().getConditions())
-    			motifFinder.findMotifs(cond, activeComponents, trainingRound);
+    		motifFinder.findMotifs(activeComponents, trainingRound);
     		motifFinder.alignMotifs();
     		
     		//Print progress
@@ -426,15 +405,26 @@ public class BindingMixture {
 	 * @version	%I%, %G%
 	 */
 	class BindingMixtureThread implements Runnable{
-		private Collection<Region> regions;
+		private Iterable<Region> regions;
 		private int numBindingComponents=1;	//Assuming that the total number of components (active+inactive) is the same in every condition makes coding easier in the BindingEM class.  
 		private boolean runEM = true;
 		private boolean uniformBindingComponents=false;
+		//Per-thread hit buffers, indexed by replicate and reused for every window
+		private List<StrandedBaseBuffer> signalHits = new ArrayList<StrandedBaseBuffer>();
+		private List<StrandedBaseBuffer> controlHits = new ArrayList<StrandedBaseBuffer>();
+		//Per-thread EM engine; its working arrays are reused for every window
+		private BindingEM EM=null;
 		
-		public BindingMixtureThread(Collection<Region> regs, boolean EM, boolean uniformBindingComponents){
+		public BindingMixtureThread(Iterable<Region> regs, boolean EM, boolean uniformBindingComponents){
 			regions = regs;	
 			this.uniformBindingComponents = uniformBindingComponents;
 			runEM=EM;
+			for(ExperimentCondition cond : manager.getExperimentSet().getConditions()){
+				for(ControlledExperiment rep : cond.getReplicates()){
+					signalHits.add(new StrandedBaseBuffer());
+					controlHits.add(new StrandedBaseBuffer());
+				}
+			}
 		}
 		
 		/**
@@ -509,7 +499,8 @@ public class BindingMixture {
 		 * @return Pair of component lists (noise components and binding components) indexed by condition
 		 */
 		private Pair<List<NoiseComponent>, List<List<BindingComponent>>> analyzeWindowEM(Region w){
-			BindingEM EM = new BindingEM(config, manager, conditionBackgrounds, potRegFilter.getPotentialRegions().size());
+			if(EM==null)
+				EM = new BindingEM(config, manager, conditionBackgrounds, potRegFilter.getPotentialRegions().size());
 			List<List<BindingComponent>> bindingComponents=null;
 			List<NoiseComponent> noiseComponents=null;
 			List<List<BindingComponent>> nonZeroComponents = new ArrayList<List<BindingComponent>>();
@@ -523,11 +514,11 @@ public class BindingMixture {
 					plotSubReg = p;
 			
 			//Load signal data
-			List<List<StrandedBaseCount>> signals = loadSignalData(w);
+			List<StrandedBaseBuffer> signals = loadSignalData(w);
             if (signals==null)
                 return new Pair<List<NoiseComponent>, List<List<BindingComponent>>>(noiseComponents, nonZeroComponents);
             //Load control data
-            List<List<StrandedBaseCount>> controls = loadControlData(w);
+            List<StrandedBaseBuffer> controls = loadControlData(w);
             
             //Initialize noise components
             noiseComponents = initializeNoiseComponents(w, signals, controls);
@@ -561,11 +552,11 @@ public class BindingMixture {
 			List<BindingEvent> currEvents = new ArrayList<BindingEvent>(); 
 			
 			//Load signal data
-			List<List<StrandedBaseCount>> signals = loadSignalData(w);
+			List<StrandedBaseBuffer> signals = loadSignalData(w);
             if (signals==null)
                 return currEvents;
             //Load control data
-            List<List<StrandedBaseCount>> controls = loadControlData(w);
+            List<StrandedBaseBuffer> controls = loadControlData(w);
             
             //Initialize noise components
             noiseComponents = initializeNoiseComponents(w, signals, controls);
@@ -656,43 +647,37 @@ public class BindingMixture {
 		
 		/**
 		 * Load all signal read hits in a region by condition. 
+		 * Hits are loaded into this thread's reusable buffers, so the returned data is only valid until the next call.
 		 * 
 		 * @param w
-		 * @return List of List of StrandedBaseCounts, indexed by replicate index
+		 * @return List of StrandedBaseBuffers, indexed by replicate index
 		 */
-		private List<List<StrandedBaseCount>> loadSignalData(Region w){
-			List<List<StrandedBaseCount>> data = new ArrayList<List<StrandedBaseCount>>();
-			for(ExperimentCondition cond : manager.getExperimentSet().getConditions()){
-				for(ControlledExperiment rep : cond.getReplicates())
-					data.add(new ArrayList<StrandedBaseCount>());
-			}
+		private List<StrandedBaseBuffer> loadSignalData(Region w){
+			for(StrandedBaseBuffer b : signalHits){ b.clear(); }
 			for(ExperimentCondition cond : manager.getExperimentSet().getConditions()){
 				for(ControlledExperiment rep : cond.getReplicates()){
-					data.get(rep.getIndex()).addAll(rep.getSignal().getUnstrandedBases(w));
+					rep.getSignal().getUnstrandedBases(w, signalHits.get(rep.getIndex()));
 				}
 			}
-			return data;
+			return signalHits;
 		}
 		
 		/**
 		 * Load all control read hits in a region by condition. 
+		 * Hits are loaded into this thread's reusable buffers, so the returned data is only valid until the next call.
 		 * 
 		 * @param w
-		 * @return List of List of StrandedBaseCounts, indexed by replicate index
+		 * @return List of StrandedBaseBuffers, indexed by replicate index
 		 */
-		private List<List<StrandedBaseCount>> loadControlData(Region w){
-			List<List<StrandedBaseCount>> data = new ArrayList<List<StrandedBaseCount>>();
-			for(ExperimentCondition cond : manager.getExperimentSet().getConditions()){
-				for(ControlledExperiment rep : cond.getReplicates())
-					data.add(new ArrayList<StrandedBaseCount>());
-			}
+		private List<StrandedBaseBuffer> loadControlData(Region w){
+			for(StrandedBaseBuffer b : controlHits){ b.clear(); }
 			for(ExperimentCondition cond : manager.getExperimentSet().getConditions()){
 				for(ControlledExperiment rep : cond.getReplicates()){
 					if(rep.hasControl())
-						data.get(rep.getIndex()).addAll(rep.getControl().getUnstrandedBases(w));
+						rep.getControl().getUnstrandedBases(w, controlHits.get(rep.getIndex()));
 				}
 			}
-			return data;
+			return controlHits;
 		}
 		
 		/**
@@ -831,7 +816,7 @@ public class BindingMixture {
          *
          * @param currReg
          */
-        private List<NoiseComponent> initializeNoiseComponents(Region currReg, List<List<StrandedBaseCount>> sigHits, List<List<StrandedBaseCount>> ctrlHits){
+        private List<NoiseComponent> initializeNoiseComponents(Region currReg, List<StrandedBaseBuffer> sigHits, List<StrandedBaseBuffer> ctrlHits){
         	List<NoiseComponent> noise = new ArrayList<NoiseComponent>();
         	int numReps = manager.getExperimentSet().getReplicates().size();
         	double [] localSigRepCounts=new double [numReps];
@@ -843,9 +828,7 @@ public class BindingMixture {
         		for(ControlledExperiment rep : cond.getReplicates()){
 	    			if(rep.hasControl() && ctrlHits.get(rep.getIndex()).size()>0){
 	            		distribs[rep.getIndex()] = smoothNoiseDistribs(currReg, ctrlHits.get(rep.getIndex()));
-	            		localCtrlRepCounts[rep.getIndex()]=0;
-	            		for(StrandedBaseCount b : ctrlHits.get(rep.getIndex()))
-	            			localCtrlRepCounts[rep.getIndex()]+=b.getCount();
+	            		localCtrlRepCounts[rep.getIndex()]=ctrlHits.get(rep.getIndex()).getTotalCount();
 	    			}else
 	    				distribs[rep.getIndex()] = null;
 	    		}
@@ -858,10 +841,8 @@ public class BindingMixture {
         		//Sum signal reads & set local region experiment counts
         		double sigCounts=0;
         		for(ControlledExperiment rep : cond.getReplicates()){
-        			localSigRepCounts[rep.getIndex()]=0;
-        			for(StrandedBaseCount b : sigHits.get(rep.getIndex())){
-        				sigCounts+=b.getCount(); localSigRepCounts[rep.getIndex()]+=b.getCount();
-        			}
+        			localSigRepCounts[rep.getIndex()]=sigHits.get(rep.getIndex()).getTotalCount();
+        			sigCounts+=localSigRepCounts[rep.getIndex()];
         		}
         		
         		//Calculate a local noise factor to check for expected over-representation of noise reads, as specified in the control.
@@ -903,17 +884,17 @@ public class BindingMixture {
          * @param ctrlHits
          * @return double array the same width as the region, containing probabilities normalized to sum to 1
          */
-        private double[] smoothNoiseDistribs(Region currReg, List<StrandedBaseCount> ctrlHits){
+        private double[] smoothNoiseDistribs(Region currReg, StrandedBaseBuffer ctrlHits){
         	double [] distrib = new double[currReg.getWidth()];
         	double [] counts = new double[currReg.getWidth()];
         	//Pseudocounts for distrib
         	for(int d=0; d<currReg.getWidth(); d++)
         		counts[d]=1;
         	//Add in count weights
-        	for(StrandedBaseCount hit : ctrlHits){
-        		int index = hit.getCoordinate()-currReg.getStart();
+        	for(int h=0; h<ctrlHits.size(); h++){
+        		int index = ctrlHits.getCoordinate(h)-currReg.getStart();
         		if(index>=0 && index<currReg.getWidth())
-        			counts[index]+=hit.getCount();
+        			counts[index]+=ctrlHits.getCount(h);
         	}
         	
         	//Smooth
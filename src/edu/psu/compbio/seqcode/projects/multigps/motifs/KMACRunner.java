@@ -0,0 +1,138 @@
+package edu.psu.compbio.seqcode.projects.multigps.motifs;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.psu.compbio.seqcode.gse.datasets.motifs.WeightMatrix;
+import edu.psu.compbio.seqcode.gse.deepseq.discovery.kmer.KMAC;
+import edu.psu.compbio.seqcode.gse.deepseq.discovery.kmer.Kmer;
+import edu.psu.compbio.seqcode.gse.utils.Pair;
+import edu.psu.compbio.seqcode.projects.multigps.experiments.ExperimentManager;
+import edu.psu.compbio.seqcode.projects.multigps.framework.Config;
+
+/**
+ * Runs KMAC motif discovery in-process, in place of calling MEME.
+ *
+ * The negative sequences (the MotifPlatform's random genomic sequences) are prepared once and shared
+ * by every condition and training round. Each call to execute() gets its own KMAC instance, so
+ * several conditions can be run at once.
+ */
+public class KMACRunner implements MotifDiscoverer {
+
+	protected ExperimentManager manager;
+	protected Config config;
+	protected List<String> negSeqs = new ArrayList<String>(); //Upper-cased negative sequences. Never modified after construction.
+	protected Map<String,Double> back = new HashMap<String,Double>(); //Base frequencies in the negative sequences
+	protected int threadsPerRun;
+	protected Float pseudo = (float)0.001;
+
+	//Constructor
+	public KMACRunner(Config c, ExperimentManager man, String[] negativeSeqs){
+		config=c;
+		manager=man;
+		threadsPerRun = Math.max(1, config.getMaxThreads()/Math.max(1, manager.getNumConditions()));
+
+		double[] counts = new double[4];
+		if(negativeSeqs!=null){
+			for(String seq : negativeSeqs){
+				String s = seq.toUpperCase();
+				negSeqs.add(s);
+				for(int i=0; i<s.length(); i++){
+					switch(s.charAt(i)){
+					case 'A': counts[0]++; break;
+					case 'C': counts[1]++; break;
+					case 'G': counts[2]++; break;
+					case 'T': counts[3]++; break;
+					}
+				}
+			}
+		}
+		double total = counts[0]+counts[1]+counts[2]+counts[3];
+		String[] letters = {"A","C","G","T"};
+		for(int b=0; b<4; b++)
+			back.put(letters[b], total>0 ? counts[b]/total : 0.25);
+	}
+
+	/**
+	 * Run KMAC on the sequences, with the shared negative sequences as the background set
+	 * @param sequences: sequences around the condition's binding events, all the same length
+	 */
+	public Pair<List<WeightMatrix>,List<WeightMatrix>> execute(List<String> sequences, String name, boolean bestOnly){
+		List<WeightMatrix> wm = new ArrayList<WeightMatrix>();
+		List<WeightMatrix> fm = new ArrayList<WeightMatrix>();
+		if(sequences.size()==0)
+			return new Pair<List<WeightMatrix>,List<WeightMatrix>>(wm,fm);
+
+		//KMAC's output files go in the intermediate directory, like MEME's
+		File outDir = new File(config.getOutputIntermediateDir(), "kmac_"+name);
+		if(outDir.exists())
+			config.deleteDirectory(outDir);
+		outDir.mkdirs();
+
+		try{
+			int width = sequences.get(0).length();
+			ArrayList<String> pos = new ArrayList<String>();
+			ArrayList<Double> weights = new ArrayList<Double>();
+			for(String seq : sequences){
+				if(seq.length()==width){
+					pos.add(seq.toUpperCase());
+					weights.add(1.0);
+				}
+			}
+
+			edu.psu.compbio.seqcode.gse.deepseq.discovery.Config kconfig = new edu.psu.compbio.seqcode.gse.deepseq.discovery.Config();
+			kconfig.k_win = width;
+			kconfig.k_seqs = pos.size();
+			kconfig.k_min = config.KMACkmin;
+			kconfig.k_max = config.KMACkmax;
+			kconfig.maxThreads = threadsPerRun;
+			kconfig.use_weighted_kmer = false; //All sequences are weighted equally (and the k-mer weights are shared by all KMAC instances)
+			kconfig.k_neg_dinu_shuffle = negSeqs.isEmpty(); //No random sequences were cached, so use shuffled positives
+
+			KMAC kmac = new KMAC();
+			kmac.setConfig(kconfig, new File(outDir, name).getAbsolutePath());
+			kmac.setSequences(pos, new ArrayList<String>(negSeqs), weights); //KMAC masks its negative sequences, so it gets its own list
+			kmac.setStandalone();
+
+			int k = kmac.selectK(kconfig.k_min, kconfig.k_max);
+			if(k>0){
+				ArrayList<Kmer> kmers = kmac.selectEnrichedKmers(k);
+				if(!kmers.isEmpty()){
+					kmac.KmerMotifAlignmentClustering(kmers, -1, false, null);
+					int motifCount=0;
+					for(KMAC.KmerCluster cluster : kmac.getClusters()){ //Primary cluster first
+						float[][] pfm = cluster.getPFM();
+						if(cluster.wm==null || pfm==null)
+							continue;
+						motifCount++;
+						WeightMatrix matrix = new WeightMatrix(pfm.length);
+						matrix.setNameVerType("Motif"+motifCount, "freq", "KMAC");
+						for(int i=0; i<pfm.length; i++){
+							float A = pfm[i]['A']+pseudo;
+							float C = pfm[i]['C']+pseudo;
+							float G = pfm[i]['G']+pseudo;
+							float T = pfm[i]['T']+pseudo;
+							float total = A+C+G+T;
+							matrix.matrix[i]['A'] = A/total;
+							matrix.matrix[i]['C'] = C/total;
+							matrix.matrix[i]['G'] = G/total;
+							matrix.matrix[i]['T'] = T/total;
+						}
+						matrix.setLogOdds();
+						fm.add(matrix);
+						wm.add(WeightMatrix.getLogOddsVersion(matrix, back));
+						if(bestOnly)
+							break;
+					}
+				}
+			}
+		}catch(Exception e){
+			System.err.println("KMAC failed on "+name);
+			e.printStackTrace();
+		}
+		return new Pair<List<WeightMatrix>,List<WeightMatrix>>(wm,fm);
+	}
+}
@@ -25,7 +25,7 @@ import edu.psu.compbio.seqcode.projects.multigps.framework.Config;
 import edu.psu.compbio.seqcode.projects.multigps.stats.StreamGobbler;
 import edu.psu.compbio.seqcode.projects.multigps.utilities.Utils;
 
-public class MEMERunner {
+public class MEMERunner implements MotifDiscoverer {
 
 	protected ExperimentManager manager; 
 	protected Config config;
@@ -0,0 +1,22 @@
+package edu.psu.compbio.seqcode.projects.multigps.motifs;
+
+import java.util.List;
+
+import edu.psu.compbio.seqcode.gse.datasets.motifs.WeightMatrix;
+import edu.psu.compbio.seqcode.gse.utils.Pair;
+
+/**
+ * A motif-finding method that MotifPlatform can run on the sequences around a condition's binding events. 
+ * Implementations must allow execute() to be called for several conditions at once from different threads. 
+ */
+public interface MotifDiscoverer {
+
+	/**
+	 * Find motifs in the sequences
+	 * @param sequences: sequences to search, all the same length
+	 * @param name: name of this run, unique per condition and training round (used for any output files)
+	 * @param bestOnly: return only the best motif
+	 * @return Pair of: log-odds matrices and frequency matrices, in the same order
+	 */
+	public Pair<List<WeightMatrix>,List<WeightMatrix>> execute(List<String> sequences, String name, boolean bestOnly);
+}
@@ -4,15 +4,22 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import edu.psu.compbio.seqcode.gse.datasets.general.NamedRegion;
 import edu.psu.compbio.seqcode.gse.datasets.general.Region;
 import edu.psu.compbio.seqcode.gse.datasets.motifs.WeightMatrix;
 import edu.psu.compbio.seqcode.gse.ewok.verbs.ChromRegionIterator;
 import edu.psu.compbio.seqcode.gse.ewok.verbs.SequenceGenerator;
+import edu.psu.compbio.seqcode.gse.ewok.verbs.motifs.EncodedSequence;
 import edu.psu.compbio.seqcode.gse.ewok.verbs.motifs.WeightMatrixScoreProfile;
 import edu.psu.compbio.seqcode.gse.ewok.verbs.motifs.WeightMatrixScorer;
 import edu.psu.compbio.seqcode.gse.utils.Pair;
@@ -28,7 +35,9 @@ public class MotifPlatform {
 	protected SequenceGenerator<Region> seqgen;
 	protected List<Region> randomRegions = new ArrayList<Region>(); //Randomly chosen regions for motif significance tests
 	protected String[] randomSequences; //Randomly chosen sequences for motif significance tests
-	protected MEMERunner meme;
+	protected List<EncodedSequence> randomEncoded=null; //randomSequences, encoded once for all ROC tests
+	protected MotifDiscoverer discoverer;
+	protected Map<WeightMatrix,WeightMatrixScorer> scorers = new IdentityHashMap<WeightMatrix,WeightMatrixScorer>(); //Compiled scorers for the conditions' current motifs
 		
 	/**
 	 * Constructor for motif platform
@@ -49,11 +58,41 @@ public class MotifPlatform {
 			randomSequences = seqgen.setupRegionCache(regionsOfInterest, randomRegions);
 			System.err.println("Caching completed");
 		}
-		meme = new MEMERunner(config, man);
+		if(config.getUseMEME())
+			discoverer = new MEMERunner(config, man);
+		else
+			discoverer = new KMACRunner(config, man, randomSequences);
 	}
 
 	/**
-	 * Extract sequences around top BindingComponents and call the MEME runner 
+	 * Run motif-finding for all conditions. The conditions are run in parallel.
+	 * @param activeComponents
+	 * @param trainingRound
+	 */
+	public void findMotifs(final HashMap<Region, List<List<BindingComponent>>> activeComponents, final int trainingRound){
+		List<ExperimentCondition> conds = manager.getExperimentSet().getConditions();
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(config.getMaxThreads(), conds.size())));
+		try{
+			List<Future<?>> futures = new ArrayList<Future<?>>();
+			for(final ExperimentCondition cond : conds){
+				futures.add(pool.submit(new Runnable(){
+					public void run(){ findMotifs(cond, activeComponents, trainingRound); }
+				}));
+			}
+			for(Future<?> f : futures)
+				f.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("MotifPlatform: interrupted while finding motifs", e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException("MotifPlatform: error finding motifs", e.getCause());
+		}finally{
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * Extract sequences around top BindingComponents and call the motif discoverer 
 	 * @param cond
 	 * @param activeComponents
 	 * @param trainingRound
@@ -85,8 +124,8 @@ public class MotifPlatform {
 				addedSeqs++;
 			}
 		}
-		//Execute MEME
-		Pair<List<WeightMatrix>,List<WeightMatrix>> matrices = meme.execute(seqs, new String("motif_"+cond.getName()+"_t"+trainingRound), false);
+		//Execute motif-finding
+		Pair<List<WeightMatrix>,List<WeightMatrix>> matrices = discoverer.execute(seqs, new String("motif_"+cond.getName()+"_t"+trainingRound), false);
 		List<WeightMatrix> wm = matrices.car();
 		List<WeightMatrix> fm = matrices.cdr();
 		
@@ -100,26 +139,28 @@ public class MotifPlatform {
 					maxRoc = rocScores[i]; 
 					bestMotif=i;
 				}
-			//Results summary
+			//Results summary (printed in one go, as conditions are run in parallel)
+			StringBuilder summary = new StringBuilder();
 			if(config.isVerbose()){
-				System.err.println("MEME results for: "+cond.getName());
+				summary.append("Motif-finding results for: "+cond.getName()+"\n");
 				for(int w=0; w<fm.size(); w++){
 					if(fm.get(w)!=null){
-						System.err.println("\t"+fm.get(w).getName()+"\t"+ WeightMatrix.getConsensus(fm.get(w))+"\tROC:"+String.format("%.2f",rocScores[w]));
+						summary.append("\t"+fm.get(w).getName()+"\t"+ WeightMatrix.getConsensus(fm.get(w))+"\tROC:"+String.format("%.2f",rocScores[w])+"\n");
 					}
 				}
 			}
 			
 			//Set the condition's motif if the ROC is above threshold
 			if(maxRoc >= config.MOTIF_MIN_ROC){
-				System.err.println("\t"+fm.get(bestMotif).getName() + " chosen as best motif.");
+				summary.append("\t"+cond.getName()+": "+fm.get(bestMotif).getName() + " chosen as best motif.\n");
 				cond.setMotif(wm.get(bestMotif));
 				cond.setFreqMatrix(fm.get(bestMotif));
 			}else{
-				System.err.println("\tNo motif passes minimum ROC score threshold.");
+				summary.append("\t"+cond.getName()+": No motif passes minimum ROC score threshold.\n");
 				cond.setMotif(null);
 				cond.setFreqMatrix(null);
 			}
+			System.err.print(summary.toString());
 		}else{
 			cond.setMotif(null);
 			cond.setFreqMatrix(null);
@@ -172,6 +213,7 @@ public class MotifPlatform {
 	 */
 	public double[][] scanRegionWithMotifs(Region reg, String regSeq){
 		double[][] scanScores = new double[manager.getNumConditions()][reg.getWidth()];
+		EncodedSequence encSeq = new EncodedSequence(regSeq);
 		
 		for(ExperimentCondition cond : manager.getExperimentSet().getConditions()){
 			int e = cond.getIndex();
@@ -181,8 +223,7 @@ public class MotifPlatform {
 			WeightMatrix motif = cond.getMotif();
 			if(motif!=null){
 				int motifOffset = cond.getMotifOffset();
-				WeightMatrixScorer scorer = new WeightMatrixScorer(motif);
-				WeightMatrixScoreProfile profiler = scorer.execute(regSeq);
+				WeightMatrixScoreProfile profiler = getScorer(motif).execute(encSeq);
 				for(int z=0; z<reg.getWidth()-motif.length()+1; z++){
 					double currScore= profiler.getMaxScore(z);
 					int zOff = z+motifOffset;
@@ -204,6 +245,7 @@ public class MotifPlatform {
 	public Pair<Double[][],String[][]> scanRegionWithMotifsGetSeqs(Region reg, String regSeq){
 		Double[][] scanScores = new Double[manager.getNumConditions()][reg.getWidth()];
 		String[][] scanSeqs = new String[manager.getNumConditions()][reg.getWidth()];
+		EncodedSequence encSeq = new EncodedSequence(regSeq);
 		
 		for(ExperimentCondition cond : manager.getExperimentSet().getConditions()){
 			int e = cond.getIndex();
@@ -215,8 +257,7 @@ public class MotifPlatform {
 			WeightMatrix motif = cond.getMotif();
 			if(motif!=null){
 				int motifOffset = cond.getMotifOffset();
-				WeightMatrixScorer scorer = new WeightMatrixScorer(motif);
-				WeightMatrixScoreProfile profiler = scorer.execute(regSeq);
+				WeightMatrixScoreProfile profiler = getScorer(motif).execute(encSeq);
 				for(int z=0; z<reg.getWidth()-motif.length()+1; z++){
 					double currScore= profiler.getMaxScore(z);
 					String currSeq = regSeq.substring(z, z+motif.length());
@@ -258,8 +299,7 @@ public class MotifPlatform {
 		WeightMatrix motif = cond.getMotif();
 		if(motif!=null){
 			int motifOffset = cond.getMotifOffset();
-			WeightMatrixScorer scorer = new WeightMatrixScorer(motif);
-			WeightMatrixScoreProfile profiler = scorer.execute(regSeq);
+			WeightMatrixScoreProfile profiler = getScorer(motif).execute(regSeq);
 			for(int z=0; z<reg.getWidth()-motif.length()+1; z++){
 				double currScore= profiler.getMaxScore(z);
 				int zOff = z+motifOffset;
@@ -272,6 +312,24 @@ public class MotifPlatform {
 		return scanScores;
 	}
 	
+	/**
+	 * Get the scorer for a motif. Scorers compile their motif, so they are kept while the 
+	 * motif is attached to a condition rather than rebuilt for every region.
+	 */
+	protected WeightMatrixScorer getScorer(WeightMatrix motif){
+		synchronized(scorers){
+			WeightMatrixScorer scorer = scorers.get(motif);
+			if(scorer==null){
+				//Drop the scorers of motifs from earlier rounds
+				if(scorers.size()>=2*manager.getNumConditions())
+					scorers.clear();
+				scorer = new WeightMatrixScorer(motif, seqgen);
+				scorers.put(motif, scorer);
+			}
+			return scorer;
+		}
+	}
+	
 	/**
 	 * Compute the fraction of letters in the sequence that are lowercase or N
 	 * @param seq
@@ -351,18 +409,23 @@ public class MotifPlatform {
 	 */
 	protected double[] motifROCScores(List<WeightMatrix> matrices, List<String> posSeqs, String[] negSeqs){
 		double[] rocScores = new double[matrices.size()];
+		//Encode the sequences once for all matrices
+		List<EncodedSequence> posEnc = new ArrayList<EncodedSequence>();
+		for(String posSeq : posSeqs)
+			posEnc.add(new EncodedSequence(posSeq));
+		List<EncodedSequence> negEnc = negSeqs==randomSequences ? getEncodedRandomSequences() : encode(negSeqs);
 		int m=0;
 		for(WeightMatrix motif : matrices){
 			List<Double> posScores = new ArrayList<Double>();
 			List<Double> negScores = new ArrayList<Double>();
 			if(motif!=null){
 				WeightMatrixScorer scorer = new WeightMatrixScorer(motif);
-				for(String posSeq : posSeqs){
+				for(EncodedSequence posSeq : posEnc){
 					WeightMatrixScoreProfile profiler = scorer.execute(posSeq);
 					posScores.add(profiler.getMaxScore());
 				}
-				for(int s=0; s<negSeqs.length; s++){
-					WeightMatrixScoreProfile profiler = scorer.execute(negSeqs[s]);
+				for(EncodedSequence negSeq : negEnc){
+					WeightMatrixScoreProfile profiler = scorer.execute(negSeq);
 					negScores.add(profiler.getMaxScore());
 				}
 			}
@@ -372,6 +435,21 @@ public class MotifPlatform {
 		return rocScores;
 	}
 	
+	/**
+	 * Get the random sequences, encoded for scanning. They are the same in every training round, so they are only encoded once. 
+	 */
+	protected synchronized List<EncodedSequence> getEncodedRandomSequences(){
+		if(randomEncoded==null)
+			randomEncoded = encode(randomSequences);
+		return randomEncoded;
+	}
+	protected List<EncodedSequence> encode(String[] seqs){
+		List<EncodedSequence> enc = new ArrayList<EncodedSequence>();
+		for(int s=0; s<seqs.length; s++)
+			enc.add(new EncodedSequence(seqs[s]));
+		return enc;
+	}
+	
 	/**
 	 * Calculate the area under a motif-scoring ROC
 	 * @param posMaxScores
@@ -53,6 +53,7 @@ public class CountDataSimulator {
 	public void setUpRegFrac(Double f){upRegFrac=f;}
 	public void setDownRegFrac(Double f){downRegFrac=f;}
 	public void setDiffExpLevel(Double d){diffExpLevel = d;}
+	public void setEmpirical(List<Double> e){empirical = new ArrayList<Double>(e); Collections.sort(empirical);}
 	
 	/**
 	 * Load an empirical dataset from a file
@@ -87,7 +87,7 @@ public class MultiConditionReadSimulator {
 			writers = new FileWriter[numConditions][numReplicates];
 			for(int co=0; co<numConditions; co++)
 				for(int r=0; r<numReplicates; r++){
-					FileWriter fout = new FileWriter(outPath+"_reads_C"+co+"_R"+r+".bed");
+					FileWriter fout = new FileWriter(getReadFileName(co, r));
 					writers[co][r]=fout;
 				}
 		} catch (IOException e) {
@@ -301,7 +301,18 @@ public class MultiConditionReadSimulator {
 		}
 	}
 		
+	/**
+	 * Simulate binding event reads (if any) and noise reads for every replicate, and close the output files.
+	 */
+	public void simulate(){
+		if(numEvents>0)
+			simulateBindingReads();
+		simulateNoiseReads();
+		close();
+	}
+	
 	//Accessors
+	public String getReadFileName(int cond, int rep){return outPath+"_reads_C"+cond+"_R"+rep+".bed";}
 	public void setTotalReads(int totReadsA, int totReadsB){
 		for(int co=0; co<numConditions; co++)
 			for(int r=0; r<numReplicates; r++){